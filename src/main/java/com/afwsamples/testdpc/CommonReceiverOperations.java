@@ -30,13 +30,8 @@ import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
-import com.afwsamples.testdpc.common.Util;
-import java.io.File;
-import java.io.FileOutputStream;
+import com.afwsamples.testdpc.policy.networking.NetworkLogStore;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -44,8 +39,6 @@ import java.util.List;
  * DeviceAdminReceiver and DelegatedAdminReceiver.
  */
 public class CommonReceiverOperations {
-  public static final String NETWORK_LOGS_FILE_PREFIX = "network_logs_";
-
   private static final String TAG = "AdminReceiver";
 
   public static String onChoosePrivateKeyAlias(Context context, int uid) {
@@ -93,41 +86,29 @@ public class CommonReceiverOperations {
 
     showToast(context, context.getString(R.string.on_network_logs_available_success, batchToken));
 
-    ArrayList<String> loggedEvents = new ArrayList<>();
-    if (Util.SDK_INT >= VERSION_CODES.P) {
-      for (NetworkEvent event : events) {
-        loggedEvents.add(event.toString());
-      }
-    } else {
-      events.forEach(event -> loggedEvents.add(event.toString()));
-    }
-    new EventSavingTask(context, batchToken, loggedEvents).execute();
+    new EventSavingTask(context, batchToken, events).execute();
   }
 
+  @TargetApi(VERSION_CODES.O)
   private static class EventSavingTask extends AsyncTask<Void, Void, Void> {
 
     private Context mContext;
     private long mBatchToken;
-    private List<String> mLoggedEvents;
+    private List<NetworkEvent> mEvents;
 
-    public EventSavingTask(Context context, long batchToken, ArrayList<String> loggedEvents) {
+    public EventSavingTask(Context context, long batchToken, List<NetworkEvent> events) {
       mContext = context;
       mBatchToken = batchToken;
-      mLoggedEvents = loggedEvents;
+      mEvents = events;
     }
 
     @Override
     protected Void doInBackground(Void... params) {
-      Date timestamp = new Date();
-      String filename = NETWORK_LOGS_FILE_PREFIX + mBatchToken + "_" + timestamp.getTime() + ".txt";
-      File file = new File(mContext.getExternalFilesDir(null), filename);
-      try (OutputStream os = new FileOutputStream(file)) {
-        for (String event : mLoggedEvents) {
-          os.write((event + "\n").getBytes());
-        }
-        Log.d(TAG, "Saved network logs to file: " + filename);
+      try {
+        int recordCount = NetworkLogStore.getInstance(mContext).append(mBatchToken, mEvents);
+        Log.d(TAG, "Saved " + recordCount + " network log records of batch " + mBatchToken);
       } catch (IOException e) {
-        Log.e(TAG, "Failed saving network events to file" + filename, e);
+        Log.e(TAG, "Failed saving network events of batch " + mBatchToken, e);
       }
       return null;
     }
@@ -35,8 +35,10 @@ import android.os.UserManager;
 import android.util.Log;
 import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
+import com.afwsamples.testdpc.common.BugreportStore;
 import com.afwsamples.testdpc.common.NotificationUtil;
 import com.afwsamples.testdpc.common.Util;
+import com.afwsamples.testdpc.common.preference.AdminStateSnapshot;
 import com.afwsamples.testdpc.provision.PostProvisioningTask;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -44,9 +46,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -70,6 +70,8 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
 
   @Override
   public void onReceive(Context context, Intent intent) {
+    // Any admin callback may come with a change of the admin state the policy screens check.
+    AdminStateSnapshot.invalidate();
     switch (intent.getAction()) {
       case ACTION_PASSWORD_REQUIREMENTS_CHANGED:
       case Intent.ACTION_BOOT_COMPLETED:
@@ -171,36 +173,36 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
     new AsyncTask<Void, Void, String>() {
       @Override
       protected String doInBackground(Void... params) {
-        File outputBugreportFile;
+        String name = bugreportUri.getLastPathSegment();
+        if (name == null) {
+          name = "bugreport-" + System.currentTimeMillis() + ".zip";
+        }
         String message;
-        InputStream in;
-        OutputStream out;
-        try {
-          ParcelFileDescriptor mInputPfd =
-              context.getContentResolver().openFileDescriptor(bugreportUri, "r");
-          in = new FileInputStream(mInputPfd.getFileDescriptor());
-          outputBugreportFile =
-              new File(context.getExternalFilesDir(null), bugreportUri.getLastPathSegment());
-          Log.i(TAG, "Writing bugreport to " + outputBugreportFile);
-          out = new FileOutputStream(outputBugreportFile);
-          byte[] buffer = new byte[1024];
-          int read;
-          long totalRead = 0;
-          while ((read = in.read(buffer)) != -1) {
-            totalRead += read;
-            out.write(buffer, 0, read);
+        try (ParcelFileDescriptor pfd =
+                context.getContentResolver().openFileDescriptor(bugreportUri, "r");
+            FileInputStream in = new FileInputStream(pfd.getFileDescriptor())) {
+          BugreportStore store = BugreportStore.create(context);
+          Log.i(TAG, "Writing bugreport " + name + " to " + store.getDirectory());
+          BugreportStore.Result saved =
+              store.save(
+                  in.getChannel(),
+                  name,
+                  bugreportFileHash,
+                  new BugreportProgressNotifier(context, name, pfd.getStatSize()));
+          for (File deleted : saved.deletedFiles) {
+            Log.i(TAG, "Deleted " + deleted + " to stay under the bugreport quota");
           }
-          in.close();
-          out.close();
           message =
               context.getString(
-                  R.string.received_bugreport,
-                  outputBugreportFile.getPath(),
-                  bugreportFileHash,
-                  totalRead);
+                  R.string.received_bugreport, saved.file.getPath(), saved.sha256, saved.size);
           Log.i(TAG, message);
+        } catch (BugreportStore.HashMismatchException e) {
+          Log.e(TAG, "Bugreport " + name + " is corrupted", e);
+          message =
+              context.getString(
+                  R.string.received_bugreport_hash_mismatch, e.getActualHash(), bugreportFileHash);
         } catch (IOException e) {
-          Log.e(TAG, e.getMessage());
+          Log.e(TAG, "Failed to retrieve bugreport " + name, e);
           message = context.getString(R.string.received_bugreport_failed_retrieval);
         }
         return message;
@@ -215,6 +217,36 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
     }.execute();
   }
 
+  /** Shows the progress of a bugreport copy, updating the notification once per percent. */
+  private static class BugreportProgressNotifier implements BugreportStore.ProgressListener {
+    private final Context mContext;
+    private final String mName;
+    private final long mSize;
+    private int mLastPercent = -1;
+
+    BugreportProgressNotifier(Context context, String name, long size) {
+      mContext = context;
+      mName = name;
+      // The size is unknown (-1) if the bugreport is shared through a pipe.
+      mSize = size;
+    }
+
+    @Override
+    public void onProgress(long copiedBytes) {
+      int percent = mSize > 0 ? (int) Math.min(100, copiedBytes * 100 / mSize) : 0;
+      if (percent == mLastPercent) {
+        return;
+      }
+      mLastPercent = percent;
+      NotificationUtil.showProgressNotification(
+          mContext,
+          R.string.bugreport_title,
+          mContext.getString(R.string.bugreport_copy_progress, mName),
+          mSize > 0 ? percent : -1,
+          NotificationUtil.BUGREPORT_NOTIFICATION_ID);
+    }
+  }
+
   @TargetApi(VERSION_CODES.N)
   @Override
   public void onBugreportFailed(Context context, Intent intent, int failureCode) {
@@ -63,6 +63,6 @@ public class DeviceAdminService extends android.app.admin.DeviceAdminService {
 
   @Override
   protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
-    new ShellCommand(getApplicationContext(), writer, args).run();
+    ShellCommand.getInstance(getApplicationContext()).run(writer, args);
   }
 }
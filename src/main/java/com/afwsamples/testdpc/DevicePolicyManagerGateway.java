@@ -31,6 +31,8 @@ import android.security.AttestedKeyPair;
 import android.security.keystore.KeyGenParameterSpec;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import com.afwsamples.testdpc.common.PermissionGrantMatrix;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -234,6 +236,13 @@ public interface DevicePolicyManagerGateway {
   /** See {@link android.os.UserManager#hasUserRestriction(String)}. */
   boolean hasUserRestriction(@NonNull String userRestriction);
 
+  /**
+   * Returns the restrictions in effect for the user, as {@link
+   * android.os.UserManager#getUserRestrictions()} does.
+   */
+  @NonNull
+  Set<String> getEffectiveUserRestrictions();
+
   /** See {@link android.app.admin.DevicePolicyManager#lockNow()}. */
   void lockNow(@NonNull Consumer<Void> onSuccess, @NonNull Consumer<Exception> onError);
 
@@ -513,7 +522,6 @@ public interface DevicePolicyManagerGateway {
    */
   int getPersonalAppsSuspendedReasons();
 
-  // TODO(b/171350084): use on CosuConfig
   /** See {@link android.app.admin.DevicePolicyManager#enableSystemApp(ComponentName, String)}. */
   void enableSystemApp(
       String packageName, @NonNull Consumer<Void> onSuccess, @NonNull Consumer<Exception> onError);
@@ -586,6 +594,33 @@ public interface DevicePolicyManagerGateway {
    */
   int getPermissionGrantState(String packageName, String permission);
 
+  /**
+   * Gets the grant state of runtime permissions for each of {@code packageNames}, using {@link
+   * android.app.admin.DevicePolicyManager#getPermissionGrantState(ComponentName, String, String)}.
+   *
+   * <p>Only the runtime permissions that each package requests are queried: those of {@code
+   * permissions}, or all of them if it is empty.
+   */
+  PermissionGrantMatrix getPermissionGrantStates(
+      Collection<String> packageNames, Collection<String> permissions);
+
+  /**
+   * Sets the grant state of runtime permissions for each of {@code packageNames}, using {@link
+   * android.app.admin.DevicePolicyManager#setPermissionGrantState(ComponentName, String, String,
+   * int)}.
+   *
+   * <p>The permissions are selected as in {@link #getPermissionGrantStates(Collection,
+   * Collection)}, and those already in {@code grantState} are skipped. All the permissions are
+   * tried even if some fail, and {@code onError} is then called with the ones that failed. {@code
+   * onSuccess} gets the permissions that were changed, with their previous grant state.
+   */
+  void setPermissionGrantStates(
+      Collection<String> packageNames,
+      Collection<String> permissions,
+      int grantState,
+      @NonNull Consumer<List<PermissionGrantMatrix.Cell>> onSuccess,
+      @NonNull Consumer<Exception> onError);
+
   /** See {@link android.app.admin.DevicePolicyManager#canAdminGrantSensorsPermissions()}. */
   boolean canAdminGrantSensorsPermissions();
 
@@ -641,6 +676,16 @@ public interface DevicePolicyManagerGateway {
    */
   boolean getCameraDisabledByAnyAdmin();
 
+  /**
+   * See {@link android.app.admin.DevicePolicyManager#setScreenCaptureDisabled(ComponentName,
+   * boolean)}.
+   */
+  void setScreenCaptureDisabled(
+      boolean disabled, @NonNull Consumer<Void> onSuccess, @NonNull Consumer<Exception> onError);
+
+  /** See {@link android.app.admin.DevicePolicyManager#getScreenCaptureDisabled(ComponentName)}. */
+  boolean getScreenCaptureDisabled();
+
   /**
    * See {@link android.app.admin.DevicePolicyManager#setStatusBarDisabled(ComponentName, boolean)}.
    */
@@ -735,6 +780,22 @@ public interface DevicePolicyManagerGateway {
   void revokeKeyPairFromApp(@NonNull String alias, @NonNull String packageName, 
       @NonNull Consumer<Boolean> onSuccess, @NonNull Consumer<Exception> onError);
 
+  /** See {@link android.app.admin.DevicePolicyManager#getInstalledCaCerts(ComponentName)}. */
+  @NonNull
+  List<byte[]> getInstalledCaCerts();
+
+  /** See {@link android.app.admin.DevicePolicyManager#installCaCert(ComponentName, byte[])}. */
+  void installCaCert(
+      @NonNull byte[] certificate,
+      @NonNull Consumer<Void> onSuccess,
+      @NonNull Consumer<Exception> onError);
+
+  /** See {@link android.app.admin.DevicePolicyManager#uninstallCaCert(ComponentName, byte[])}. */
+  void uninstallCaCert(
+      @NonNull byte[] certificate,
+      @NonNull Consumer<Void> onSuccess,
+      @NonNull Consumer<Exception> onError);
+
   /**
    * See {@link android.app.admin.DevicePolicyManager#setDelegatedScopes(ComponentName, String, List<String>)};
    */
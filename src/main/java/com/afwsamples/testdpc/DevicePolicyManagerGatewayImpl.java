@@ -23,7 +23,6 @@ import android.app.admin.SecurityLog.SecurityEvent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
@@ -38,13 +37,15 @@ import android.security.AttestedKeyPair;
 import android.security.keystore.KeyGenParameterSpec;
 import android.util.Log;
 import androidx.annotation.NonNull;
+import com.afwsamples.testdpc.common.AppCatalog;
+import com.afwsamples.testdpc.common.PermissionGrantMatrix;
+import com.afwsamples.testdpc.common.PermissionInfoCache;
 import com.afwsamples.testdpc.common.ReflectionUtil;
 import com.afwsamples.testdpc.common.Util;
 import com.google.common.base.Joiner;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,6 +61,8 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
   private final UserManager mUserManager;
   private final ComponentName mAdminComponentName;
   private final PackageManager mPackageManager;
+  private final AppCatalog mAppCatalog;
+  private final PermissionInfoCache mPermissionInfoCache;
   private final LocationManager mLocationManager;
 
   public DevicePolicyManagerGatewayImpl(@NonNull Context context) {
@@ -67,6 +70,8 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
         context.getSystemService(DevicePolicyManager.class),
         context.getSystemService(UserManager.class),
         context.getPackageManager(),
+        AppCatalog.getInstance(context),
+        PermissionInfoCache.getInstance(context),
         context.getSystemService(LocationManager.class),
         DeviceAdminReceiver.getComponentName(context));
   }
@@ -75,11 +80,15 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
       @NonNull DevicePolicyManager dpm,
       @NonNull UserManager um,
       @NonNull PackageManager pm,
+      @NonNull AppCatalog appCatalog,
+      @NonNull PermissionInfoCache permissionInfoCache,
       @NonNull LocationManager lm,
       @NonNull ComponentName admin) {
     mDevicePolicyManager = dpm;
     mUserManager = um;
     mPackageManager = pm;
+    mAppCatalog = appCatalog;
+    mPermissionInfoCache = permissionInfoCache;
     mLocationManager = lm;
     mAdminComponentName = admin;
 
@@ -93,7 +102,14 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     UserManager um = context.getSystemService(UserManager.class);
     PackageManager pm = context.getPackageManager();
     LocationManager lm = context.getSystemService(LocationManager.class);
-    return new DevicePolicyManagerGatewayImpl(dpm, um, pm, lm, admin);
+    return new DevicePolicyManagerGatewayImpl(
+        dpm,
+        um,
+        pm,
+        AppCatalog.getInstance(context),
+        PermissionInfoCache.getInstance(context),
+        lm,
+        admin);
   }
 
   @Override
@@ -390,6 +406,15 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     return mUserManager.hasUserRestriction(userRestriction);
   }
 
+  @Override
+  public Set<String> getEffectiveUserRestrictions() {
+    Log.d(TAG, "getEffectiveUserRestrictions()");
+    Bundle restrictions = mUserManager.getUserRestrictions();
+    return restrictions.keySet().stream()
+        .filter(k -> restrictions.getBoolean(k))
+        .collect(Collectors.toSet());
+  }
+
   @Override
   public void lockNow(Consumer<Void> onSuccess, Consumer<Exception> onError) {
     Log.d(TAG, "lockNow()");
@@ -827,6 +852,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
     try {
       mDevicePolicyManager.enableSystemApp(mAdminComponentName, packageName);
+      mAppCatalog.onPackageChanged(packageName);
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -841,6 +867,9 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     try {
       int result = mDevicePolicyManager.enableSystemApp(mAdminComponentName, intent);
       Log.d(TAG, "returning " + result + " activities");
+      if (result > 0) {
+        mAppCatalog.invalidate();
+      }
       onSuccess.accept(result);
     } catch (Exception e) {
       onError.accept(e);
@@ -851,22 +880,11 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
   public List<String> getDisabledSystemApps() {
     // Disabled system apps list = {All system apps} - {Enabled system apps}
     List<String> disabledSystemApps = new ArrayList<String>();
-    // This list contains both enabled and disabled apps.
-    List<ApplicationInfo> allApps =
-        mPackageManager.getInstalledApplications(PackageManager.GET_UNINSTALLED_PACKAGES);
-    Collections.sort(allApps, new ApplicationInfo.DisplayNameComparator(mPackageManager));
-    // This list contains all enabled apps.
-    List<ApplicationInfo> enabledApps =
-        mPackageManager.getInstalledApplications(0 /* Default flags */);
-    Set<String> enabledAppsPkgNames = new HashSet<String>();
-    for (ApplicationInfo applicationInfo : enabledApps) {
-      enabledAppsPkgNames.add(applicationInfo.packageName);
-    }
-    for (ApplicationInfo applicationInfo : allApps) {
+    // The catalog contains both enabled and disabled apps.
+    for (AppCatalog.App app : mAppCatalog.getApps()) {
       // Interested in disabled system apps only.
-      if (!enabledAppsPkgNames.contains(applicationInfo.packageName)
-          && (applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
-        disabledSystemApps.add(applicationInfo.packageName);
+      if (!app.installed && app.isSystem()) {
+        disabledSystemApps.add(app.packageName);
       }
     }
     Log.d(TAG, "getDisabledSystemApps(): returning " + disabledSystemApps.size() + " apps");
@@ -892,6 +910,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
     try {
       mDevicePolicyManager.setApplicationHidden(mAdminComponentName, packageName, hidden);
+      mAppCatalog.onPackageChanged(packageName);
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -996,6 +1015,78 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     return grantState;
   }
 
+  @Override
+  public PermissionGrantMatrix getPermissionGrantStates(
+      Collection<String> packageNames, Collection<String> permissions) {
+    long start = System.currentTimeMillis();
+    PermissionGrantMatrix matrix = new PermissionGrantMatrix();
+    for (String packageName : packageNames) {
+      matrix.addPackage(packageName);
+      List<String> requested = mPermissionInfoCache.getRuntimePermissions(packageName);
+      for (String permission : PermissionGrantMatrix.select(requested, permissions)) {
+        matrix.put(
+            packageName,
+            permission,
+            mDevicePolicyManager.getPermissionGrantState(
+                mAdminComponentName, packageName, permission));
+      }
+    }
+    Log.d(
+        TAG,
+        "getPermissionGrantStates("
+            + packageNames.size()
+            + " packages, "
+            + permissions.size()
+            + " permissions): "
+            + matrix.size()
+            + " grant states in "
+            + (System.currentTimeMillis() - start)
+            + " ms");
+    return matrix;
+  }
+
+  @Override
+  public void setPermissionGrantStates(
+      Collection<String> packageNames,
+      Collection<String> permissions,
+      int grantState,
+      Consumer<List<PermissionGrantMatrix.Cell>> onSuccess,
+      Consumer<Exception> onError) {
+    String stateName = Util.grantStateToString(grantState);
+    try {
+      PermissionGrantMatrix matrix = getPermissionGrantStates(packageNames, permissions);
+      List<PermissionGrantMatrix.Cell> changed = new ArrayList<>();
+      List<String> failed = new ArrayList<>();
+      for (PermissionGrantMatrix.Cell cell : matrix.getCellsToChange(grantState)) {
+        if (mDevicePolicyManager.setPermissionGrantState(
+            mAdminComponentName, cell.packageName, cell.permission, grantState)) {
+          changed.add(cell);
+        } else {
+          failed.add(cell.packageName + " " + cell.permission);
+        }
+      }
+      Log.d(
+          TAG,
+          "setPermissionGrantStates("
+              + stateName
+              + "): changed "
+              + changed.size()
+              + ", failed "
+              + failed.size()
+              + ", unchanged "
+              + (matrix.size() - changed.size() - failed.size()));
+      if (failed.isEmpty()) {
+        onSuccess.accept(changed);
+      } else {
+        onError.accept(
+            new FailedOperationException(
+                "setPermissionGrantStates(%s, %s)", Joiner.on(", ").join(failed), stateName));
+      }
+    } catch (Exception e) {
+      onError.accept(e);
+    }
+  }
+
   @Override
   public boolean canAdminGrantSensorsPermissions() {
     boolean can = mDevicePolicyManager.canAdminGrantSensorsPermissions();
@@ -1094,6 +1185,23 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     return mDevicePolicyManager.getCameraDisabled(/* admin= */ null);
   }
 
+  @Override
+  public void setScreenCaptureDisabled(
+      boolean disabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    Log.d(TAG, "setScreenCaptureDisabled(" + disabled + ")");
+    try {
+      mDevicePolicyManager.setScreenCaptureDisabled(mAdminComponentName, disabled);
+      onSuccess.accept(null);
+    } catch (Exception e) {
+      onError.accept(e);
+    }
+  }
+
+  @Override
+  public boolean getScreenCaptureDisabled() {
+    return mDevicePolicyManager.getScreenCaptureDisabled(mAdminComponentName);
+  }
+
   @Override
   public void setStatusBarDisabled(
       boolean disabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
@@ -1266,6 +1374,38 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     }
   }
 
+  @Override
+  public List<byte[]> getInstalledCaCerts() {
+    return mDevicePolicyManager.getInstalledCaCerts(mAdminComponentName);
+  }
+
+  @Override
+  public void installCaCert(
+      byte[] certificate, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    Log.d(TAG, "installCaCert(" + certificate.length + " bytes)");
+    try {
+      if (mDevicePolicyManager.installCaCert(mAdminComponentName, certificate)) {
+        onSuccess.accept(null);
+      } else {
+        onError.accept(new FailedOperationException("installCaCert(%d bytes)", certificate.length));
+      }
+    } catch (Exception e) {
+      onError.accept(e);
+    }
+  }
+
+  @Override
+  public void uninstallCaCert(
+      byte[] certificate, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    Log.d(TAG, "uninstallCaCert(" + certificate.length + " bytes)");
+    try {
+      mDevicePolicyManager.uninstallCaCert(mAdminComponentName, certificate);
+      onSuccess.accept(null);
+    } catch (Exception e) {
+      onError.accept(e);
+    }
+  }
+
   @Override
   public void setDelegatedScopes(String delegatePackage, List<String> scopes,
       Consumer<Void> onSuccess, Consumer<Exception> onError) {
@@ -29,10 +29,12 @@ import android.view.MenuItem;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import com.afwsamples.testdpc.common.AppCatalog;
 import com.afwsamples.testdpc.common.DumpableActivity;
 import com.afwsamples.testdpc.common.OnBackPressedHandler;
 import com.afwsamples.testdpc.policy.PolicyManagementFragment;
 import com.afwsamples.testdpc.search.PolicySearchFragment;
+import com.afwsamples.testdpc.search.PreferenceIndexSqliteOpenHelper;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 
@@ -64,6 +66,10 @@ public class PolicyManagementActivity extends DumpableActivity
           .commit();
     }
     getFragmentManager().addOnBackStackChangedListener(this);
+    // Make sure the search index is ready before the user starts typing.
+    PreferenceIndexSqliteOpenHelper.getInstance(this).updateIndexInBackground();
+    // Same for the app list shown by the app pickers.
+    AppCatalog.getInstance(this).loadInBackground();
   }
 
   @Override
@@ -37,23 +37,47 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
+import android.text.TextUtils;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import com.afwsamples.testdpc.common.BugreportStore;
+import com.afwsamples.testdpc.common.CaCertificateInventory;
+import com.afwsamples.testdpc.common.CaCertificateInventory.CaCertificate;
+import com.afwsamples.testdpc.common.PermissionGrantMatrix;
 import com.afwsamples.testdpc.common.Util;
-import com.afwsamples.testdpc.policy.SecurityLogsFragment;
+import com.afwsamples.testdpc.comp.DeviceAdminServiceConnectionPool;
+import com.afwsamples.testdpc.feedback.KeyedAppStateStore;
+import com.afwsamples.testdpc.policy.PolicyBundle;
+import com.afwsamples.testdpc.policy.PolicyBundleEngine;
+import com.afwsamples.testdpc.policy.PolicyBundleParser;
+import com.afwsamples.testdpc.policy.PolicyPlan;
+import com.afwsamples.testdpc.policy.SecurityLogIndex;
+import com.afwsamples.testdpc.policy.UserRestrictionEngine;
+import com.afwsamples.testdpc.policy.UserRestrictionSet;
+import com.afwsamples.testdpc.policy.networking.DataUsageReport;
+import com.afwsamples.testdpc.policy.networking.DataUsageReportEngine;
+import com.afwsamples.testdpc.policy.networking.NetworkLogStore;
 import com.afwsamples.testdpc.policy.resetpassword.ResetPasswordWithTokenFragment;
+import com.afwsamples.testdpc.profilepolicy.apprestrictions.ManagedConfigEngine;
 import com.afwsamples.testdpc.util.flags.Flags;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
@@ -61,6 +85,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import org.json.JSONException;
+import org.xmlpull.v1.XmlPullParserException;
 
 /**
  * Provides a CLI (command-line interface) to TestDPC through {@code dumpsys}.
@@ -70,28 +96,44 @@ import java.util.stream.Collectors;
 final class ShellCommand {
   private static final String TAG = "TestDPCShellCommand";
 
+  private static final String BATCH_COMMAND = "batch";
+  private static final String RUN_SCRIPT_COMMAND = "run-script";
+  private static final String BATCH_SEPARATOR = ";";
+  private static final String SCRIPT_COMMENT = "#";
+
+  private static ShellCommand sInstance;
+
   private final Context mContext;
-  private final PrintWriter mWriter;
-  private final String[] mArgs;
   private final DevicePolicyManagerGateway mDevicePolicyManagerGateway;
 
+  // Set for the duration of each run() call, which is serialized.
+  private PrintWriter mWriter;
+  // Number of errors reported through onError(), used to compute the status of batched commands.
+  private int mErrorCount;
+
+  @Nullable // lazily built on the first run() call and reused afterwards
+  private Flags mFlags;
+
   @Nullable // dynamically created on post() method
   private Handler mHandler;
 
-  public ShellCommand(
-      @NonNull Context context, @NonNull PrintWriter writer, @Nullable String[] args) {
+  private ShellCommand(@NonNull Context context) {
     mContext = context;
-    mWriter = writer;
-    mArgs = args;
     mDevicePolicyManagerGateway = new DevicePolicyManagerGatewayImpl(context);
     Log.d(
         TAG,
-        "constructor: pid="
-            + Process.myPid()
-            + ", process name="
-            + Util.myProcessName()
-            + ", args="
-            + Arrays.toString(args));
+        "constructor: pid=" + Process.myPid() + ", process name=" + Util.myProcessName());
+  }
+
+  /**
+   * Returns the process-wide instance, so the command registry and the {@link
+   * DevicePolicyManagerGateway} are only built once instead of on every {@code dumpsys} call.
+   */
+  public static synchronized ShellCommand getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      sInstance = new ShellCommand(context.getApplicationContext());
+    }
+    return sInstance;
   }
 
   private static String suspendedToString(boolean suspended) {
@@ -106,7 +148,43 @@ final class ShellCommand {
     return permitted ? "PERMITTED" : "NOT PERMITTED";
   }
 
-  public void run() {
+  /** Runs the command described by {@code args}, printing its output to {@code writer}. */
+  public synchronized void run(@NonNull PrintWriter writer, @Nullable String[] args) {
+    Log.d(TAG, "run(): args=" + Arrays.toString(args));
+    mWriter = writer;
+    try {
+      if (args != null && args.length > 0 && BATCH_COMMAND.equals(args[0])) {
+        // Handled before parsing so named params of the batched commands are not mistaken for
+        // params of the batch command itself.
+        runBatch(splitBatch(Arrays.copyOfRange(args, 1, args.length)));
+      } else {
+        runCommand(args);
+      }
+    } finally {
+      mWriter.flush();
+    }
+  }
+
+  /**
+   * Runs a single command, returning whether it was executed without usage, error, or exception
+   * being reported.
+   */
+  private boolean runCommand(@Nullable String[] args) {
+    if (mFlags == null) {
+      mFlags = buildFlags();
+    }
+    int errorCount = mErrorCount;
+    try {
+      return mFlags.run(args, mWriter) && errorCount == mErrorCount;
+    } catch (Exception e) {
+      // Must explicitly catch and show generic exceptions (like NumberFormatException parsing
+      // args), otherwise they'dbe logcat'ed on AndroidRuntime and not surfaced to caller
+      onError(e, "error executing %s", Arrays.toString(args));
+      return false;
+    }
+  }
+
+  private Flags buildFlags() {
     Flags flags = new Flags(mWriter);
 
     flags.registerCustomParser(
@@ -155,6 +233,19 @@ final class ShellCommand {
         });
 
     flags.addCommand(command("dump", this::dumpState).setDescription("Dump internal state."));
+    flags.addCommand(
+        command(BATCH_COMMAND, this::batch, repeated(ordinalParam(String.class, "commands")))
+            .setDescription(
+                "Run several commands separated by `\\;` in a single call, printing the status and"
+                    + " elapsed time of each one followed by a summary."));
+    flags.addCommand(
+        command(RUN_SCRIPT_COMMAND, this::runScript, ordinalParam(String.class, "file"))
+            .setDescription(
+                "Run the commands in the given file, one per line (empty lines and lines starting"
+                    + " with # are ignored), like the batch command. Relative paths are resolved"
+                    + " against the app's external files directory"
+                    + " (/storage/emulated/0/Android/data/com.afwsamples.testdpc/files for user 0),"
+                    + " where the file can be pushed with `adb push`."));
     flags.addCommand(
         command(
                 "create-user",
@@ -254,6 +345,24 @@ final class ShellCommand {
                 ordinalParam(String.class, "restriction"),
                 ordinalParam(boolean.class, "enabled"))
             .setDescription("Set the given user restriction on the parent user."));
+    flags.addCommand(
+        command(
+                "apply-user-restrictions",
+                this::applyUserRestrictions,
+                repeated(ordinalParam(String.class, "restrictions")))
+            .setDescription(
+                "Set exactly the given user restrictions, only changing the ones that differ (or"
+                    + " clear them all if no restrictions are passed)."));
+    flags.addCommand(
+        command(
+                "apply-policy-bundle",
+                this::applyPolicyBundle,
+                ordinalParam(String.class, "path"),
+                optional(namedParam(Boolean.class, "dry-run")))
+            .setDescription(
+                "Apply the policies of a JSON or COSU config XML file, only changing the ones that"
+                    + " differ, and roll them back if one fails. With --dry-run true, only print"
+                    + " the changes."));
     flags.addCommand(
         command("lock-now", this::lockNow, optional(namedParam(int.class, "flags")))
             .setDescription("Lock the device (now! :-)."));
@@ -264,6 +373,17 @@ final class ShellCommand {
     flags.addCommand(
                 command("request-bugreport", this::requestBugreport)
                         .setDescription("Request a bug report."));
+    flags.addCommand(
+        command(
+                "set-bugreport-quota",
+                this::setBugreportQuota,
+                ordinalParam(long.class, "bytes"))
+            .setDescription(
+                "Set the total size of the shared bugreports TestDPC keeps, deleting the oldest"
+                    + " ones when a new one is received."));
+    flags.addCommand(
+        command("get-bugreport-quota", this::getBugreportQuota)
+            .setDescription("Get the total size of the shared bugreports TestDPC keeps."));
     flags.addCommand(
             command("get-last-bugreport-request-time", this::getLastBugReportRequestTime)
                     .setDescription("Prints the last time the device owner request a bugreport."));
@@ -282,7 +402,25 @@ final class ShellCommand {
     flags.addCommand(
             command("retrieve-network-logs", this::retrieveNetworkLogs,
                     ordinalParam(Long.class, "batch-token"))
-                    .setDescription("Retrieves the network logs."));
+                    .setDescription(
+                        "Retrieves the network logs of the given batch, streaming them from the"
+                            + " local store when the batch was already saved."));
+    flags.addCommand(
+        command("list-device-admin-connections", this::listDeviceAdminConnections)
+            .setDescription(
+                "List the connection counts and latencies of the services bound with"
+                    + " bindDeviceAdminServiceAsUser()."));
+    flags.addCommand(
+        command(
+                "export-data-usage-report",
+                this::exportDataUsageReport,
+                repeated(namedParam(String.class, "networks")),
+                optional(namedParam(Integer.class, "days")),
+                optional(namedParam(Integer.class, "window-hours")))
+            .setDescription(
+                "Exports the data usage of each UID on the given networks (wifi, mobile; all by"
+                    + " default) as CSV, in windows of the given hours (24 by default) over the"
+                    + " last given days (7 by default)."));
     flags.addCommand(
             command(
                     "set-security-logging-enabled",
@@ -301,6 +439,22 @@ final class ShellCommand {
     flags.addCommand(
             command("retrieve-pre-reboot-security-logs", this::retrievePreRebootSecurityLogs)
                     .setDescription("Retrieves the pre-reboot security logs."));
+    flags.addCommand(
+        command(
+                "query-security-logs",
+                this::querySecurityLogs,
+                repeated(namedParam(String.class, "tags")),
+                optional(namedParam(Long.class, "from")),
+                optional(namedParam(Long.class, "to")),
+                optional(namedParam(Long.class, "min-id")),
+                optional(namedParam(Long.class, "max-id")),
+                optional(namedParam(Boolean.class, "pre-reboot")),
+                optional(namedParam(Integer.class, "limit")))
+            .setDescription(
+                "Streams the security logs previously retrieved (live and pre-reboot) that match"
+                    + " all the given filters: tag names (e.g. APP_PROCESS_START) or numbers,"
+                    + " time window in ms since epoch, inclusive event id range, whether they"
+                    + " were pre-reboot logs, and maximum number of events."));
     flags.addCommand(
         command("clear-organization-name", this::clearOrganizationName)
             .setDescription("Clear the organisation name."));
@@ -457,6 +611,42 @@ final class ShellCommand {
             .setDescription(
                 "Get the application restrictions for the given apps (or for TestDPC when empty,"
                     + " using UserManager)."));
+    flags.addCommand(
+        command(
+                "query-keyed-app-states",
+                this::queryKeyedAppStates,
+                optional(namedParam(String.class, "package")),
+                optional(namedParam(Boolean.class, "history")),
+                optional(namedParam(Boolean.class, "clear")))
+            .setDescription(
+                "Print the keyed app states received from the given package (all by default):"
+                    + " the latest value of each key, or the last values with --history true, and"
+                    + " the severity and sync request counts. With --clear true, drop them"
+                    + " afterwards."));
+    flags.addCommand(
+        command(
+                "push-managed-configs",
+                this::pushManagedConfigs,
+                ordinalParam(String.class, "path"),
+                optional(namedParam(Boolean.class, "dry-run")))
+            .setDescription(
+                "Push the application restrictions of each package of a JSON file, skipping the"
+                    + " packages whose restrictions are unchanged. With --dry-run true, only print"
+                    + " the changes."));
+    flags.addCommand(
+        command("list-ca-certs", this::listCaCerts)
+            .setDescription(
+                "List the installed CA certificates, with their SHA-256 fingerprint, subject,"
+                    + " issuer and expiry date."));
+    flags.addCommand(
+        command("install-ca-certs", this::installCaCerts, ordinalParam(String.class, "path"))
+            .setDescription(
+                "Install the CA certificates of the files of a directory (DER or PEM, possibly"
+                    + " several per file), skipping duplicates and those already installed."));
+    flags.addCommand(
+        command("uninstall-ca-certs", this::uninstallCaCerts, ordinalParam(String.class, "path"))
+            .setDescription(
+                "Uninstall the CA certificates of the files of a directory that are installed."));
     flags.addCommand(
         command(
                 "set-permission-grant-state",
@@ -472,6 +662,26 @@ final class ShellCommand {
                 ordinalParam(String.class, "package"),
                 ordinalParam(String.class, "permission"))
             .setDescription("Get the grant state for the given package and persmission."));
+    flags.addCommand(
+        command(
+                "set-permission-grant-states",
+                this::setPermissionGrantStates,
+                ordinalParam(int.class, "state"),
+                repeated(namedParam(String.class, "packages")),
+                repeated(namedParam(String.class, "permissions")))
+            .setDescription(
+                "Set the grant state of the given runtime permissions (all the ones requested by"
+                    + " default) for each of the given packages, skipping those that already have"
+                    + " it."));
+    flags.addCommand(
+        command(
+                "get-permission-grant-states",
+                this::getPermissionGrantStates,
+                repeated(namedParam(String.class, "packages")),
+                repeated(namedParam(String.class, "permissions")))
+            .setDescription(
+                "Get the grant state of the given runtime permissions (all the ones requested by"
+                    + " default) for each of the given packages."));
     flags.addCommand(
         command("can-admin-grant-sensors-permissions", this::canAdminGrantSensorsPermissions)
             .setDescription("Checks whether the admin can grant sensor permissions."));
@@ -640,13 +850,120 @@ final class ShellCommand {
               .setDescription("List all UserHandles of secondary users on the device."));
     }
 
-    try {
-      flags.run(mArgs);
-    } catch (Exception e) {
-      // Must explicitly catch and show generic exceptions (like NumberFormatException parsing
-      // args), otherwise they'dbe logcat'ed on AndroidRuntime and not surfaced to caller
-      onError(e, "error executing %s", Arrays.toString(mArgs));
+    return flags;
+  }
+
+  /** Splits {@code args} into commands separated by {@code ;} (standalone or trailing). */
+  private static List<String[]> splitBatch(String[] args) {
+    List<String[]> commands = new ArrayList<>();
+    List<String> current = new ArrayList<>();
+    for (String arg : args) {
+      boolean endOfCommand = arg.endsWith(BATCH_SEPARATOR);
+      if (endOfCommand) {
+        arg = arg.substring(0, arg.length() - BATCH_SEPARATOR.length());
+      }
+      if (!arg.isEmpty()) {
+        current.add(arg);
+      }
+      if (endOfCommand && !current.isEmpty()) {
+        commands.add(current.toArray(new String[0]));
+        current.clear();
+      }
+    }
+    if (!current.isEmpty()) {
+      commands.add(current.toArray(new String[0]));
     }
+    return commands;
+  }
+
+  /**
+   * Splits a script line into arguments on whitespace, keeping double-quoted strings (which can
+   * contain whitespace) as a single argument.
+   */
+  private static String[] tokenize(String line) {
+    List<String> tokens = new ArrayList<>();
+    StringBuilder token = new StringBuilder();
+    boolean quoted = false;
+    boolean inToken = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+        inToken = true;
+      } else if (!quoted && Character.isWhitespace(c)) {
+        if (inToken) {
+          tokens.add(token.toString());
+          token.setLength(0);
+          inToken = false;
+        }
+      } else {
+        token.append(c);
+        inToken = true;
+      }
+    }
+    if (inToken) {
+      tokens.add(token.toString());
+    }
+    return tokens.toArray(new String[0]);
+  }
+
+  /** Runs each command in turn, reporting its status and elapsed time, followed by a summary. */
+  private void runBatch(List<String[]> commands) {
+    int total = commands.size();
+    if (total == 0) {
+      mWriter.println("No commands to run");
+      return;
+    }
+    int failed = 0;
+    long batchStart = SystemClock.elapsedRealtime();
+    for (int i = 0; i < total; i++) {
+      String[] args = commands.get(i);
+      String commandLine = TextUtils.join(" ", args);
+      mWriter.printf("[%d/%d] %s\n", i + 1, total, commandLine);
+      long start = SystemClock.elapsedRealtime();
+      boolean succeeded;
+      if (BATCH_COMMAND.equals(args[0]) || RUN_SCRIPT_COMMAND.equals(args[0])) {
+        mWriter.printf("Command %s cannot be nested\n", args[0]);
+        succeeded = false;
+      } else {
+        succeeded = runCommand(args);
+      }
+      long elapsed = SystemClock.elapsedRealtime() - start;
+      if (!succeeded) {
+        failed++;
+      }
+      mWriter.printf("[%d/%d] %s (%d ms)\n", i + 1, total, succeeded ? "OK" : "FAILED", elapsed);
+    }
+    mWriter.printf(
+        "Ran %d commands in %d ms: %d succeeded, %d failed\n",
+        total, SystemClock.elapsedRealtime() - batchStart, total - failed, failed);
+  }
+
+  private void batch(String[] commands) {
+    // Normally unreached, as run() handles the batch command before parsing.
+    runBatch(splitBatch(commands));
+  }
+
+  private void runScript(String path) {
+    File file = new File(path);
+    if (!file.isAbsolute()) {
+      file = new File(mContext.getExternalFilesDir(null), path);
+    }
+    List<String[]> commands = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith(SCRIPT_COMMENT)) {
+          continue;
+        }
+        commands.add(tokenize(line));
+      }
+    } catch (IOException e) {
+      onError(e, "Error reading script %s", file);
+      return;
+    }
+    runBatch(commands);
   }
 
   private void dumpState() {
@@ -796,6 +1113,83 @@ final class ShellCommand {
         (e) -> onError(e, "Error setting user restriction '%s' to %b", userRestriction, enabled));
   }
 
+  private void applyUserRestrictions(String[] restrictions) {
+    Log.i(TAG, "applyUserRestrictions(" + Arrays.toString(restrictions) + ")");
+    UserRestrictionSet desired = UserRestrictionEngine.toSet(Arrays.asList(restrictions));
+    UserRestrictionEngine.Result result =
+        new UserRestrictionEngine(mDevicePolicyManagerGateway)
+            .apply(desired, true /* clearOthers */);
+    printCollection("added user restriction", result.getAdded());
+    printCollection("cleared user restriction", result.getCleared());
+    mWriter.printf("%d unchanged\n", result.getUnchanged());
+    result
+        .getFailures()
+        .forEach(
+            (restriction, e) -> onError(e, "Error applying user restriction '%s'", restriction));
+  }
+
+  private void applyPolicyBundle(String path, Boolean dryRun) {
+    Log.i(TAG, "applyPolicyBundle(" + path + ", " + dryRun + ")");
+    PolicyBundle bundle;
+    try {
+      bundle = readPolicyBundle(new File(path));
+    } catch (IOException | XmlPullParserException | JSONException e) {
+      onError(e, "Error reading policy bundle %s", path);
+      return;
+    }
+    PolicyBundleEngine engine = new PolicyBundleEngine(mContext, mDevicePolicyManagerGateway);
+    PolicyPlan plan = engine.plan(bundle);
+    if (dryRun != null && dryRun) {
+      printCollection("step", toStrings(plan.getSteps()));
+      mWriter.printf("%d unchanged\n", plan.getUnchangedCount());
+      return;
+    }
+    PolicyBundleEngine.Result result = engine.apply(plan);
+    result
+        .getAppliedStepMicros()
+        .forEach((step, micros) -> mWriter.printf("Applied %s in %d us\n", step, micros));
+    mWriter.printf("%d unchanged\n", result.getUnchanged());
+    if (!result.getSkipped().isEmpty()) {
+      printCollection("skipped step", toStrings(result.getSkipped()));
+    }
+    if (!result.isSuccess()) {
+      printCollection("rolled back step", toStrings(result.getRolledBack()));
+      printCollection("step not rolled back", toStrings(result.getNotRolledBack()));
+      onError(result.getError(), "Error applying %s", result.getFailedStep());
+    }
+  }
+
+  /** Reads a JSON policy bundle if the file starts with '{', and a COSU config XML otherwise. */
+  private static PolicyBundle readPolicyBundle(File file)
+      throws IOException, XmlPullParserException, JSONException {
+    String text = readFile(file);
+    if (text.trim().startsWith("{")) {
+      return PolicyBundleParser.parseJson(text);
+    }
+    return PolicyBundleParser.parseXml(
+        new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static String readFile(File file) throws IOException {
+    StringBuilder content = new StringBuilder();
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      char[] buffer = new char[8192];
+      int count;
+      while ((count = reader.read(buffer)) != -1) {
+        content.append(buffer, 0, count);
+      }
+    }
+    return content.toString();
+  }
+
+  private static List<String> toStrings(Collection<?> objects) {
+    List<String> strings = new ArrayList<>(objects.size());
+    for (Object object : objects) {
+      strings.add(String.valueOf(object));
+    }
+    return strings;
+  }
+
   private void setUserRestrictionOnParent(String userRestriction, boolean enabled) {
     Log.i(TAG, "setUserRestrictionOnParent(" + userRestriction + ", " + enabled + ")");
     DevicePolicyManagerGateway parentDpmGateway =
@@ -839,6 +1233,20 @@ final class ShellCommand {
         (v) -> onSuccess("Bugreport requested"), (e) -> onError(e, "Error requesting bugreport"));
   }
 
+  private void setBugreportQuota(long bytes) {
+    Log.i(TAG, "setBugreportQuota(" + bytes + ")");
+    try {
+      BugreportStore.setQuotaBytes(mContext, bytes);
+      onSuccess("Bugreport quota set to %d bytes", bytes);
+    } catch (IllegalArgumentException e) {
+      onError(e, "Error setting bugreport quota to %d bytes", bytes);
+    }
+  }
+
+  private void getBugreportQuota() {
+    mWriter.printf("%d bytes\n", BugreportStore.getQuotaBytes(mContext));
+  }
+
   private void getLastBugReportRequestTime() {
       printTime(mDevicePolicyManagerGateway.getLastBugReportRequestTime());
   }
@@ -860,6 +1268,10 @@ final class ShellCommand {
   }
 
   private void retrieveNetworkLogs(long batchToken) {
+    // Batches already saved by the admin receiver are streamed from the local store
+    if (printStoredNetworkLogs(batchToken)) {
+      return;
+    }
     List<NetworkEvent> events = mDevicePolicyManagerGateway.retrieveNetworkLogs(batchToken);
     if (events == null || events.isEmpty()) {
       mWriter.println("N/A");
@@ -884,6 +1296,91 @@ final class ShellCommand {
     }
   }
 
+  private boolean printStoredNetworkLogs(long batchToken) {
+    StringBuilder sb = new StringBuilder();
+    int count = 0;
+    try (NetworkLogStore.Cursor cursor =
+        NetworkLogStore.getInstance(mContext).query(batchToken)) {
+      while (cursor.moveToNext()) {
+        sb.setLength(0);
+        sb.append('\t').append(count++).append(':');
+        mWriter.println(cursor.appendTo(sb));
+      }
+    } catch (IOException e) {
+      if (count == 0) {
+        // Nothing was printed yet, so the live batch can still be printed instead.
+        Log.w(TAG, "Error reading stored network logs of batch " + batchToken, e);
+        return false;
+      }
+      onError(
+          e, "Error reading stored network logs of batch %d after %d records", batchToken, count);
+      return true;
+    }
+    if (count == 0) {
+      return false;
+    }
+    mWriter.printf("%d stored records\n", count);
+    return true;
+  }
+
+  @TargetApi(VERSION_CODES.O)
+  private void listDeviceAdminConnections() {
+    printCollection(
+        "device admin connection",
+        DeviceAdminServiceConnectionPool.getInstance(mContext).getStats());
+  }
+
+  @TargetApi(VERSION_CODES.M)
+  private void exportDataUsageReport(String[] networks, Integer days, Integer windowHours) {
+    List<String> networkList =
+        networks.length == 0
+            ? new ArrayList<>(DataUsageReportEngine.NETWORK_TYPES.keySet())
+            : Arrays.asList(networks);
+    int hours = windowHours == null ? 24 : windowHours;
+    int period = days == null ? 7 : days;
+    if (hours <= 0 || period <= 0) {
+      onError(
+          new IllegalArgumentException(period + " days, " + hours + " hours"),
+          "--days and --window-hours must be positive");
+      return;
+    }
+    long windowMillis = TimeUnit.HOURS.toMillis(hours);
+    long periodMillis = TimeUnit.DAYS.toMillis(period);
+    long windowCount = (periodMillis + windowMillis - 1) / windowMillis;
+    if (networkList.size() * windowCount > DataUsageReportEngine.MAX_QUERIES) {
+      onError(
+          new IllegalArgumentException(networkList.size() + " networks x " + windowCount),
+          "Too many windows, use larger --window-hours or fewer --days (at most %d queries)",
+          DataUsageReportEngine.MAX_QUERIES);
+      return;
+    }
+    Log.i(
+        TAG,
+        "exportDataUsageReport(" + networkList + ", " + windowCount + "x" + windowMillis + "ms)");
+    DataUsageReportEngine engine = new DataUsageReportEngine(mContext);
+    try {
+      long start = SystemClock.elapsedRealtime();
+      DataUsageReport report =
+          engine.run(networkList, System.currentTimeMillis(), windowMillis, (int) windowCount);
+      Log.d(
+          TAG,
+          "Built data usage report of "
+              + report.getRowCount()
+              + " rows in "
+              + (SystemClock.elapsedRealtime() - start)
+              + " ms");
+      File file = engine.exportCsv(report);
+      onSuccess(
+          "Exported %d rows (%d bytes used) to %s",
+          report.getRowCount(), report.getTotalBytes(), file);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onError(e, "Interrupted while building the data usage report");
+    } catch (RemoteException | IOException | SecurityException | IllegalArgumentException e) {
+      onError(e, "Error exporting the data usage report");
+    }
+  }
+
   private void setSecurityLoggingEnabled(boolean enabled) {
       Log.i(TAG, "setSecurityLoggingEnabled(" + enabled + ")");
       mDevicePolicyManagerGateway.setSecurityLoggingEnabled(
@@ -901,11 +1398,49 @@ final class ShellCommand {
   }
 
   private void retrieveSecurityLogs() {
-    printSecurityLogs(mDevicePolicyManagerGateway.retrieveSecurityLogs());
+    printSecurityLogs(mDevicePolicyManagerGateway.retrieveSecurityLogs(), /* preReboot= */ false);
   }
 
   private void retrievePreRebootSecurityLogs() {
-    printSecurityLogs(mDevicePolicyManagerGateway.retrievePreRebootSecurityLogs());
+    printSecurityLogs(
+        mDevicePolicyManagerGateway.retrievePreRebootSecurityLogs(), /* preReboot= */ true);
+  }
+
+  @TargetApi(VERSION_CODES.N)
+  private void querySecurityLogs(
+      String[] tagNames,
+      Long fromMillis,
+      Long toMillis,
+      Long minEventId,
+      Long maxEventId,
+      Boolean preReboot,
+      Integer limit) {
+    int[] tags = new int[tagNames.length];
+    for (int i = 0; i < tagNames.length; i++) {
+      Integer tag = SecurityLogIndex.getTagId(tagNames[i]);
+      if (tag == null) {
+        mWriter.printf("Invalid security log tag: %s\n", tagNames[i]);
+        return;
+      }
+      tags[i] = tag;
+    }
+    SecurityLogIndex.Filter filter =
+        new SecurityLogIndex.Filter()
+            .setTags(tags)
+            .setTimeRange(fromMillis, toMillis)
+            .setEventIdRange(minEventId, maxEventId)
+            .setPreReboot(preReboot)
+            .setLimit(limit == null ? 0 : limit);
+    StringBuilder sb = new StringBuilder();
+    int count =
+        SecurityLogIndex.getInstance(mContext)
+            .query(
+                filter,
+                (row) -> {
+                  sb.setLength(0);
+                  mWriter.println(row.appendTo(sb));
+                });
+    mWriter.printf("%d matching events\n", count);
   }
 
   private void clearOrganizationName() {
@@ -1228,6 +1763,138 @@ final class ShellCommand {
     }
   }
 
+  private void queryKeyedAppStates(String packageName, Boolean history, Boolean clear) {
+    KeyedAppStateStore store = KeyedAppStateStore.getInstance();
+    store.dump(packageName, history != null && history).forEach(mWriter::println);
+    if (clear != null && clear) {
+      store.clear();
+    }
+  }
+
+  private void pushManagedConfigs(String path, Boolean dryRun) {
+    Log.i(TAG, "pushManagedConfigs(" + path + ", " + dryRun + ")");
+    Map<String, Map<String, Object>> configs;
+    try {
+      configs = ManagedConfigEngine.parseDocument(readFile(new File(path)));
+    } catch (IOException | JSONException e) {
+      onError(e, "Error reading managed configurations %s", path);
+      return;
+    }
+    ManagedConfigEngine engine = new ManagedConfigEngine(mDevicePolicyManagerGateway);
+    ManagedConfigEngine.Plan plan = engine.plan(configs);
+    if (dryRun != null && dryRun) {
+      plan.getChanges()
+          .forEach(
+              (packageName, changes) ->
+                  printCollection(packageName + " change", toStrings(changes)));
+      mWriter.printf("%d unchanged\n", plan.getUnchanged().size());
+      return;
+    }
+    ManagedConfigEngine.Result result;
+    try {
+      result = engine.apply(plan);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onError(e, "Interrupted while pushing managed configurations");
+      return;
+    }
+    result
+        .getPushedMicros()
+        .forEach(
+            (packageName, micros) -> mWriter.printf("Pushed %s in %d us\n", packageName, micros));
+    mWriter.printf("%d unchanged\n", result.getUnchanged());
+    result.getErrors().forEach((packageName, e) -> onError(e, "Error pushing %s", packageName));
+  }
+
+  private void listCaCerts() {
+    Log.i(TAG, "listCaCerts()");
+    CaCertificateInventory.Result installed;
+    try {
+      installed = decodeInstalledCaCerts();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onError(e, "Interrupted while reading the installed CA certificates");
+      return;
+    }
+    printCollection("CA certificate", toStrings(installed.getCertificates()));
+    mWriter.printf(
+        "%d parsed, %d cached, %d invalid\n",
+        installed.getParsedBlobs(),
+        installed.getCachedBlobs(),
+        installed.getInvalidBlobs());
+  }
+
+  private void installCaCerts(String path) {
+    Log.i(TAG, "installCaCerts(" + path + ")");
+    List<CaCertificate> certificates;
+    List<CaCertificate> toInstall;
+    try {
+      certificates = readCaCerts(new File(path));
+      toInstall =
+          CaCertificateInventory.unique(
+              certificates, decodeInstalledCaCerts().getCertificates());
+    } catch (IOException | InterruptedException e) {
+      onError(e, "Error reading CA certificates from %s", path);
+      return;
+    }
+    mWriter.printf(
+        "%d already installed or duplicated\n", certificates.size() - toInstall.size());
+    for (CaCertificate certificate : toInstall) {
+      mDevicePolicyManagerGateway.installCaCert(
+          certificate.getEncoded(),
+          (v) -> onSuccess("Installed %s", certificate.subject),
+          (e) -> onError(e, "Error installing %s", certificate.subject));
+    }
+  }
+
+  private void uninstallCaCerts(String path) {
+    Log.i(TAG, "uninstallCaCerts(" + path + ")");
+    List<CaCertificate> toUninstall;
+    try {
+      toUninstall =
+          CaCertificateInventory.intersect(
+              readCaCerts(new File(path)), decodeInstalledCaCerts().getCertificates());
+    } catch (IOException | InterruptedException e) {
+      onError(e, "Error reading CA certificates from %s", path);
+      return;
+    }
+    if (toUninstall.isEmpty()) {
+      mWriter.println("None of the CA certificates is installed");
+    }
+    for (CaCertificate certificate : toUninstall) {
+      mDevicePolicyManagerGateway.uninstallCaCert(
+          certificate.getEncoded(),
+          (v) -> onSuccess("Uninstalled %s", certificate.subject),
+          (e) -> onError(e, "Error uninstalling %s", certificate.subject));
+    }
+  }
+
+  private CaCertificateInventory.Result decodeInstalledCaCerts() throws InterruptedException {
+    return CaCertificateInventory.getInstance()
+        .decode(mDevicePolicyManagerGateway.getInstalledCaCerts());
+  }
+
+  /** Reads the certificates of the files of {@code directory}, in the order of their names. */
+  private List<CaCertificate> readCaCerts(File directory)
+      throws IOException, InterruptedException {
+    File[] files = directory.listFiles(File::isFile);
+    if (files == null) {
+      throw new IOException(directory + " is not a directory");
+    }
+    Arrays.sort(files);
+    List<byte[]> blobs = new ArrayList<>(files.length);
+    for (File file : files) {
+      try (FileInputStream inputStream = new FileInputStream(file)) {
+        blobs.add(Util.readBytes(inputStream));
+      }
+    }
+    CaCertificateInventory.Result result = CaCertificateInventory.getInstance().decode(blobs);
+    if (result.getInvalidBlobs() > 0) {
+      mWriter.printf("Skipped %d files that are not certificates\n", result.getInvalidBlobs());
+    }
+    return result.getCertificates();
+  }
+
   private void printAppRestrictions(String packageName, String source, Bundle settings) {
     if (settings == null || settings.isEmpty()) {
       mWriter.printf("No app restrictions (from %s) for %s\n", source, packageName);
@@ -1259,6 +1926,44 @@ final class ShellCommand {
         "%s state for %s: %s\n", permission, packageName, Util.grantStateToString(grantState));
   }
 
+  private void setPermissionGrantStates(int grantState, String[] packages, String[] permissions) {
+    if (packages.length == 0) {
+      mWriter.println("No packages given");
+      return;
+    }
+    String grantName = Util.grantStateToString(grantState);
+    mDevicePolicyManagerGateway.setPermissionGrantStates(
+        Arrays.asList(packages),
+        Arrays.asList(permissions),
+        grantState,
+        (changed) -> {
+          for (PermissionGrantMatrix.Cell cell : changed) {
+            mWriter.printf(
+                "%s %s: %s -> %s\n",
+                cell.packageName,
+                cell.permission,
+                Util.grantStateToString(cell.grantState),
+                grantName);
+          }
+          onSuccess("Set %d permissions to %s", changed.size(), grantName);
+        },
+        (e) -> onError(e, "Error setting permissions to %s", grantName));
+  }
+
+  private void getPermissionGrantStates(String[] packages, String[] permissions) {
+    PermissionGrantMatrix matrix =
+        mDevicePolicyManagerGateway.getPermissionGrantStates(
+            Arrays.asList(packages), Arrays.asList(permissions));
+    for (String packageName : matrix.getPackages()) {
+      Map<String, Integer> grantStates = matrix.getGrantStates(packageName);
+      mWriter.printf("%s: %d permissions\n", packageName, grantStates.size());
+      for (Map.Entry<String, Integer> grantState : grantStates.entrySet()) {
+        mWriter.printf(
+            "  %s: %s\n", grantState.getKey(), Util.grantStateToString(grantState.getValue()));
+      }
+    }
+  }
+
   private void canAdminGrantSensorsPermissions() {
     mWriter.println(mDevicePolicyManagerGateway.canAdminGrantSensorsPermissions());
   }
@@ -1569,6 +2274,7 @@ final class ShellCommand {
   private void onError(@NonNull Exception e, @NonNull String pattern, @Nullable Object... args) {
     String msg = String.format(pattern, args);
     Log.e(TAG, msg, e);
+    mErrorCount++;
     mWriter.printf("%s: %s\n", msg, e);
   }
 
@@ -1588,26 +2294,17 @@ final class ShellCommand {
   }
 
   @TargetApi(VERSION_CODES.N)
-  @SuppressWarnings("SimpleDateFormat")
-  private void printSecurityLogs(List<SecurityEvent> events) {
+  private void printSecurityLogs(List<SecurityEvent> events, boolean preReboot) {
     if (events == null || events.isEmpty()) {
       mWriter.println("N/A");
       return;
     }
-    mWriter.printf("%d events:\n", events.size());
-    SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+    int stored = SecurityLogIndex.getInstance(mContext).insert(events, preReboot);
+    mWriter.printf("%d events (%d newly stored):\n", events.size(), stored);
+    StringBuilder sb = new StringBuilder();
     for (int i = 0; i < events.size(); i++) {
-      SecurityEvent event = events.get(i);
-      StringBuilder sb = new StringBuilder();
-      if (Util.SDK_INT >= VERSION_CODES.P) {
-        sb.append(event.getId() + ": ");
-      }
-      sb.append(SecurityLogsFragment.getStringEventTagFromId(event.getTag()));
-      sb.append(" (")
-          .append(formatter.format(new Date(TimeUnit.NANOSECONDS.toMillis(event.getTimeNanos()))))
-          .append("): ");
-      SecurityLogsFragment.printData(sb, event.getData());
-      mWriter.printf("%s\n", sb.toString());
+      sb.setLength(0);
+      mWriter.println(SecurityLogIndex.appendEvent(sb, events.get(i)));
     }
   }
 
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Process-wide list of the apps of the current user, sorted by label, that the app pickers read
+ * from.
+ *
+ * <p>The list is loaded once on a background thread, with the label of each app loaded a single
+ * time, and is then kept up to date one package at a time: the catalog listens to package
+ * broadcasts for as long as the process lives, and {@link
+ * com.afwsamples.testdpc.DevicePolicyManagerGateway} reports the packages it enables or hides.
+ * Icons are loaded by {@link AppIconLoader}.
+ */
+public final class AppCatalog {
+  private static final String TAG = "AppCatalog";
+
+  private static AppCatalog sInstance;
+
+  /** An app of the catalog. */
+  public static final class App {
+    public final ApplicationInfo applicationInfo;
+    public final String packageName;
+    public final String label;
+    /** Whether the app is returned without {@link PackageManager#GET_UNINSTALLED_PACKAGES}. */
+    public final boolean installed;
+    /** Whether the package has a launch intent. */
+    public final boolean launchable;
+
+    App(ApplicationInfo applicationInfo, String label, boolean installed, boolean launchable) {
+      this.applicationInfo = applicationInfo;
+      this.packageName = applicationInfo.packageName;
+      this.label = label;
+      this.installed = installed;
+      this.launchable = launchable;
+    }
+
+    public boolean isSystem() {
+      return (applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+    }
+  }
+
+  /** Immutable state of the catalog, replaced as a whole whenever it changes. */
+  private static final class Contents {
+    final Locale locale;
+    final List<App> apps;
+    final Map<String, App> appsByPackage;
+
+    Contents(Locale locale, List<App> apps) {
+      this.locale = locale;
+      this.apps = Collections.unmodifiableList(apps);
+      this.appsByPackage = new HashMap<>(apps.size());
+      for (App app : apps) {
+        appsByPackage.put(app.packageName, app);
+      }
+    }
+  }
+
+  private final PackageManager mPackageManager;
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  // Number of updates queued on mExecutor, which readers wait for.
+  private final AtomicInteger mPendingUpdates = new AtomicInteger();
+
+  // Only replaced on mExecutor.
+  private volatile Contents mContents;
+
+  private AppCatalog(Context context) {
+    Context applicationContext = context.getApplicationContext();
+    mPackageManager = applicationContext.getPackageManager();
+    IntentFilter intentFilter = new IntentFilter();
+    intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    // Sent when a package is enabled or disabled, which changes whether it is installed.
+    intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+    intentFilter.addDataScheme("package");
+    applicationContext.registerReceiver(
+        new BroadcastReceiver() {
+          @Override
+          public void onReceive(Context context, Intent intent) {
+            if (intent.getData() != null) {
+              onPackageChanged(intent.getData().getSchemeSpecificPart());
+            }
+          }
+        },
+        intentFilter);
+  }
+
+  public static synchronized AppCatalog getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new AppCatalog(context);
+    }
+    return sInstance;
+  }
+
+  /** Starts loading the catalog in the background, if it is not loaded yet. */
+  public void loadInBackground() {
+    mExecutor.execute(this::ensureLoaded);
+  }
+
+  /**
+   * Passes the apps, sorted by label, to {@code callback} on the main thread. The callback runs
+   * right away if the catalog is loaded, and once it is loaded otherwise.
+   */
+  public void getApps(Consumer<List<App>> callback) {
+    Contents contents = mContents;
+    if (isCurrent(contents) && mPendingUpdates.get() == 0) {
+      callback.accept(contents.apps);
+      return;
+    }
+    mExecutor.execute(
+        () -> {
+          List<App> apps = ensureLoaded().apps;
+          mHandler.post(() -> callback.accept(apps));
+        });
+  }
+
+  /**
+   * Returns the apps, sorted by label, waiting for the catalog to load if needed. Prefer {@link
+   * #getApps(Consumer)} on the main thread.
+   */
+  public List<App> getApps() {
+    Contents contents = mContents;
+    if (isCurrent(contents) && mPendingUpdates.get() == 0) {
+      return contents.apps;
+    }
+    try {
+      return mExecutor.submit(() -> ensureLoaded().apps).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while loading the app catalog", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failed to load the app catalog", e.getCause());
+    }
+  }
+
+  /**
+   * Reloads a single package after it was added, removed, replaced, enabled, disabled or hidden.
+   * Packages that are no longer on the device are removed from the catalog. Apps read after this
+   * call include the change.
+   */
+  public void onPackageChanged(String packageName) {
+    mPendingUpdates.incrementAndGet();
+    mExecutor.execute(
+        () -> {
+          try {
+            updatePackage(packageName);
+          } finally {
+            mPendingUpdates.decrementAndGet();
+          }
+        });
+  }
+
+  /** Drops the catalog after changes to unknown packages, so that it is loaded again. */
+  public void invalidate() {
+    mPendingUpdates.incrementAndGet();
+    mExecutor.execute(
+        () -> {
+          mContents = null;
+          mPendingUpdates.decrementAndGet();
+        });
+  }
+
+  /** Labels are localized, so the catalog is loaded again after a locale change. */
+  private boolean isCurrent(Contents contents) {
+    return contents != null && contents.locale.equals(Locale.getDefault());
+  }
+
+  /** Runs on mExecutor. */
+  private Contents ensureLoaded() {
+    Contents contents = mContents;
+    if (isCurrent(contents)) {
+      return contents;
+    }
+    long start = System.currentTimeMillis();
+    Locale locale = Locale.getDefault();
+    List<ApplicationInfo> allApps =
+        mPackageManager.getInstalledApplications(PackageManager.GET_UNINSTALLED_PACKAGES);
+    Set<String> installedPackages = new HashSet<>();
+    for (ApplicationInfo applicationInfo :
+        mPackageManager.getInstalledApplications(0 /* Default flags */)) {
+      installedPackages.add(applicationInfo.packageName);
+    }
+    Set<String> launchablePackages = getLaunchablePackages();
+    List<App> apps = new ArrayList<>(allApps.size());
+    for (ApplicationInfo applicationInfo : allApps) {
+      String packageName = applicationInfo.packageName;
+      apps.add(
+          new App(
+              applicationInfo,
+              loadLabel(applicationInfo),
+              installedPackages.contains(packageName),
+              launchablePackages.contains(packageName)));
+    }
+    Collections.sort(apps, labelComparator(locale));
+    contents = new Contents(locale, apps);
+    mContents = contents;
+    Log.d(
+        TAG,
+        "Loaded " + apps.size() + " apps in " + (System.currentTimeMillis() - start) + " ms");
+    return contents;
+  }
+
+  /** Runs on mExecutor. */
+  private void updatePackage(String packageName) {
+    Contents contents = mContents;
+    if (!isCurrent(contents)) {
+      // The next load reads the package anyway.
+      return;
+    }
+    List<App> apps = new ArrayList<>(contents.apps);
+    App oldApp = contents.appsByPackage.get(packageName);
+    if (oldApp != null) {
+      apps.remove(oldApp);
+    }
+    App newApp = loadApp(packageName);
+    if (newApp != null) {
+      Comparator<App> comparator = labelComparator(contents.locale);
+      int index = Collections.binarySearch(apps, newApp, comparator);
+      apps.add(index < 0 ? -index - 1 : index, newApp);
+    }
+    if (oldApp == null && newApp == null) {
+      return;
+    }
+    mContents = new Contents(contents.locale, apps);
+    Log.d(TAG, "Updated " + packageName + ", present: " + (newApp != null));
+  }
+
+  private App loadApp(String packageName) {
+    ApplicationInfo applicationInfo;
+    try {
+      applicationInfo =
+          mPackageManager.getApplicationInfo(packageName, PackageManager.GET_UNINSTALLED_PACKAGES);
+    } catch (PackageManager.NameNotFoundException e) {
+      return null;
+    }
+    boolean installed;
+    try {
+      mPackageManager.getApplicationInfo(packageName, 0 /* Default flags */);
+      installed = true;
+    } catch (PackageManager.NameNotFoundException e) {
+      installed = false;
+    }
+    boolean launchable = mPackageManager.getLaunchIntentForPackage(packageName) != null;
+    return new App(applicationInfo, loadLabel(applicationInfo), installed, launchable);
+  }
+
+  /**
+   * Returns the packages for which {@link PackageManager#getLaunchIntentForPackage} is not null,
+   * with two queries instead of one per package.
+   */
+  private Set<String> getLaunchablePackages() {
+    Set<String> packages = new HashSet<>();
+    for (String category : new String[] {Intent.CATEGORY_INFO, Intent.CATEGORY_LAUNCHER}) {
+      Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(category);
+      for (ResolveInfo resolveInfo : mPackageManager.queryIntentActivities(intent, 0)) {
+        packages.add(resolveInfo.activityInfo.packageName);
+      }
+    }
+    return packages;
+  }
+
+  private String loadLabel(ApplicationInfo applicationInfo) {
+    CharSequence label = applicationInfo.loadLabel(mPackageManager);
+    return label != null ? label.toString() : applicationInfo.packageName;
+  }
+
+  /** Same order as {@link ApplicationInfo.DisplayNameComparator}, without reloading labels. */
+  private static Comparator<App> labelComparator(Locale locale) {
+    final Collator collator = Collator.getInstance(locale);
+    return new Comparator<App>() {
+      @Override
+      public int compare(App a, App b) {
+        return collator.compare(a.label, b.label);
+      }
+    };
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+import android.widget.TextView;
+import androidx.annotation.Nullable;
+import androidx.core.content.pm.PackageInfoCompat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the icons and labels shown by the app list adapters on a background thread.
+ *
+ * <p>{@link #bind} shows a placeholder until the load completes. Rows that ask for the same icon
+ * while it is loading share a single load. Rebinding a recycled view to another row drops its
+ * pending load, and cancels the load if no other view waits for it. Loaded icons are rendered to
+ * bitmaps at the launcher icon size. They are kept with their labels in a cache bounded by the
+ * bitmap size and keyed by package and version code, so updated apps are loaded again.
+ *
+ * <p>All the methods must be called on the main thread.
+ */
+public final class AppIconLoader {
+  private static final String TAG = "AppIconLoader";
+  // Share of the heap the cached bitmaps may use.
+  private static final int CACHE_HEAP_FRACTION = 16;
+  private static final long UNKNOWN_VERSION = -1;
+
+  private static AppIconLoader sInstance;
+
+  /**
+   * The icon and label to show for a row. The load methods are called on a background thread and
+   * can throw {@link NameNotFoundException} if the package is gone, in which case the row shows
+   * the package name without an icon.
+   */
+  public abstract static class Request {
+    private final String mPackageName;
+    private final String mVariant;
+
+    /**
+     * @param packageName package the icon and label belong to.
+     * @param variant tells apart requests for the same package that load a different icon or
+     *     label, for example the ones of a component instead of the app.
+     */
+    public Request(String packageName, String variant) {
+      mPackageName = packageName;
+      mVariant = variant;
+    }
+
+    protected abstract Drawable loadIcon(PackageManager packageManager)
+        throws NameNotFoundException;
+
+    protected abstract CharSequence loadLabel(PackageManager packageManager)
+        throws NameNotFoundException;
+
+    String getPackageName() {
+      return mPackageName;
+    }
+
+    /** Identifies the request independently of the package version. */
+    String getKey() {
+      return mPackageName + "/" + mVariant;
+    }
+  }
+
+  private static final class Entry {
+    final Bitmap icon;
+    final CharSequence label;
+
+    Entry(Bitmap icon, CharSequence label) {
+      this.icon = icon;
+      this.label = label;
+    }
+  }
+
+  /** Views waiting for a load. */
+  private static final class Target {
+    final ImageView iconView;
+    @Nullable final TextView labelView;
+    Load load;
+
+    Target(ImageView iconView, @Nullable TextView labelView) {
+      this.iconView = iconView;
+      this.labelView = labelView;
+    }
+  }
+
+  /** A load in flight, shared by all the views that asked for the same request. */
+  private static final class Load {
+    final Request request;
+    final List<Target> targets = new ArrayList<>();
+    Future<?> future;
+
+    Load(Request request) {
+      this.request = request;
+    }
+  }
+
+  private final Resources mResources;
+  private final PackageManager mPackageManager;
+  private final int mIconSize;
+  private final Drawable mPlaceholder;
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final LruCache<String, Entry> mCache;
+  // Version codes of the packages loaded so far, to look up the cache without a binder call.
+  private final Map<String, Long> mVersionCodes = new HashMap<>();
+  private final Map<String, Load> mLoads = new HashMap<>();
+  private final Map<ImageView, Target> mTargets = new WeakHashMap<>();
+  private Locale mLocale = Locale.getDefault();
+
+  private AppIconLoader(Context context) {
+    Context applicationContext = context.getApplicationContext();
+    mResources = applicationContext.getResources();
+    mPackageManager = applicationContext.getPackageManager();
+    mIconSize = mResources.getDimensionPixelSize(android.R.dimen.app_icon_size);
+    mPlaceholder = mPackageManager.getDefaultActivityIcon();
+    int maxKilobytes = (int) (Runtime.getRuntime().maxMemory() / 1024 / CACHE_HEAP_FRACTION);
+    mCache =
+        new LruCache<String, Entry>(maxKilobytes) {
+          @Override
+          protected int sizeOf(String key, Entry entry) {
+            return entry.icon.getByteCount() / 1024 + 1;
+          }
+        };
+    PackageChangeReceiver.addListener(applicationContext, this::onPackageChanged);
+  }
+
+  public static synchronized AppIconLoader getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new AppIconLoader(context);
+    }
+    return sInstance;
+  }
+
+  /** Shows the icon and label of an app, given its package name. */
+  public static Request forPackage(String packageName, int applicationInfoFlags) {
+    return new Request(packageName, "app") {
+      private ApplicationInfo mApplicationInfo;
+
+      @Override
+      protected Drawable loadIcon(PackageManager packageManager) throws NameNotFoundException {
+        return getApplicationInfo(packageManager).loadIcon(packageManager);
+      }
+
+      @Override
+      protected CharSequence loadLabel(PackageManager packageManager)
+          throws NameNotFoundException {
+        return getApplicationInfo(packageManager).loadLabel(packageManager);
+      }
+
+      private ApplicationInfo getApplicationInfo(PackageManager packageManager)
+          throws NameNotFoundException {
+        if (mApplicationInfo == null) {
+          mApplicationInfo =
+              packageManager.getApplicationInfo(getPackageName(), applicationInfoFlags);
+        }
+        return mApplicationInfo;
+      }
+    };
+  }
+
+  /** Shows the icon and label of an app. */
+  public static Request forApplication(ApplicationInfo applicationInfo) {
+    return new Request(applicationInfo.packageName, "app") {
+      @Override
+      protected Drawable loadIcon(PackageManager packageManager) {
+        return applicationInfo.loadIcon(packageManager);
+      }
+
+      @Override
+      protected CharSequence loadLabel(PackageManager packageManager) {
+        return applicationInfo.loadLabel(packageManager);
+      }
+    };
+  }
+
+  /** Shows the icon and label of the component a {@link ResolveInfo} resolved to. */
+  public static Request forResolveInfo(ResolveInfo resolveInfo) {
+    return new Request(getPackageName(resolveInfo), getComponentName(resolveInfo)) {
+      @Override
+      protected Drawable loadIcon(PackageManager packageManager) {
+        return resolveInfo.loadIcon(packageManager);
+      }
+
+      @Override
+      protected CharSequence loadLabel(PackageManager packageManager) {
+        return resolveInfo.loadLabel(packageManager);
+      }
+    };
+  }
+
+  /** Returns the package of the component a {@link ResolveInfo} resolved to. */
+  public static String getPackageName(ResolveInfo resolveInfo) {
+    ComponentInfo componentInfo = getComponentInfo(resolveInfo);
+    return componentInfo != null ? componentInfo.packageName : resolveInfo.resolvePackageName;
+  }
+
+  /** Returns the class name of the component a {@link ResolveInfo} resolved to, if any. */
+  public static String getComponentName(ResolveInfo resolveInfo) {
+    ComponentInfo componentInfo = getComponentInfo(resolveInfo);
+    return componentInfo != null ? componentInfo.name : "";
+  }
+
+  private static ComponentInfo getComponentInfo(ResolveInfo resolveInfo) {
+    if (resolveInfo.activityInfo != null) {
+      return resolveInfo.activityInfo;
+    }
+    if (resolveInfo.serviceInfo != null) {
+      return resolveInfo.serviceInfo;
+    }
+    return resolveInfo.providerInfo;
+  }
+
+  /**
+   * Shows the icon and label of {@code request} in the given views, which replaces whatever was
+   * bound to them before. {@code labelView} can be null to only load the icon.
+   */
+  public void bind(ImageView iconView, @Nullable TextView labelView, Request request) {
+    if (!mLocale.equals(Locale.getDefault())) {
+      // Labels are localized.
+      mLocale = Locale.getDefault();
+      mCache.evictAll();
+    }
+    unbind(iconView);
+
+    Long versionCode = mVersionCodes.get(request.getPackageName());
+    if (versionCode != null) {
+      Entry entry = mCache.get(getCacheKey(request, versionCode));
+      if (entry != null) {
+        show(iconView, labelView, entry, request);
+        return;
+      }
+    }
+
+    iconView.setImageDrawable(newPlaceholder());
+    if (labelView != null) {
+      labelView.setText(request.getPackageName());
+    }
+    Target target = new Target(iconView, labelView);
+    Load load = mLoads.get(request.getKey());
+    if (load == null) {
+      load = new Load(request);
+      final Load newLoad = load;
+      load.future = mExecutor.submit(() -> runLoad(newLoad));
+      mLoads.put(request.getKey(), load);
+    }
+    target.load = load;
+    load.targets.add(target);
+    mTargets.put(iconView, target);
+  }
+
+  /** Forgets the loaded version of a package after it was added, removed, replaced or changed. */
+  public void onPackageChanged(String packageName) {
+    mVersionCodes.remove(packageName);
+  }
+
+  /**
+   * Drops the pending load of a view, for rows that show something else than an app in the same
+   * view. Binding a view to another request already does this.
+   */
+  public void unbind(ImageView iconView) {
+    Target target = mTargets.remove(iconView);
+    if (target == null) {
+      return;
+    }
+    Load load = target.load;
+    load.targets.remove(target);
+    if (load.targets.isEmpty()) {
+      load.future.cancel(false /* mayInterruptIfRunning */);
+      mLoads.remove(load.request.getKey());
+    }
+  }
+
+  /** Runs on mExecutor. */
+  private void runLoad(Load load) {
+    Request request = load.request;
+    long versionCode = getVersionCode(request.getPackageName());
+    String cacheKey = getCacheKey(request, versionCode);
+    Entry entry = mCache.get(cacheKey);
+    if (entry == null) {
+      try {
+        Bitmap icon = toBitmap(request.loadIcon(mPackageManager));
+        entry = new Entry(icon, request.loadLabel(mPackageManager));
+        mCache.put(cacheKey, entry);
+      } catch (NameNotFoundException e) {
+        Log.w(TAG, "Package not found: " + request.getPackageName());
+      } catch (RuntimeException e) {
+        // The waiting views still have to be released.
+        Log.e(TAG, "Failed to load " + cacheKey, e);
+      }
+    }
+    final Entry result = entry;
+    mHandler.post(() -> deliver(load, versionCode, result));
+  }
+
+  private void deliver(Load load, long versionCode, @Nullable Entry entry) {
+    if (mLoads.get(load.request.getKey()) == load) {
+      mLoads.remove(load.request.getKey());
+    }
+    if (entry != null) {
+      mVersionCodes.put(load.request.getPackageName(), versionCode);
+    }
+    for (Target target : load.targets) {
+      // Views that were bound to another request meanwhile have left load.targets.
+      mTargets.remove(target.iconView);
+      if (entry != null) {
+        show(target.iconView, target.labelView, entry, load.request);
+      } else {
+        target.iconView.setImageDrawable(null);
+      }
+    }
+  }
+
+  private void show(
+      ImageView iconView, @Nullable TextView labelView, Entry entry, Request request) {
+    iconView.setImageDrawable(new BitmapDrawable(mResources, entry.icon));
+    if (labelView != null) {
+      labelView.setText(
+          TextUtils.isEmpty(entry.label) ? request.getPackageName() : entry.label);
+    }
+  }
+
+  private long getVersionCode(String packageName) {
+    try {
+      return PackageInfoCompat.getLongVersionCode(
+          mPackageManager.getPackageInfo(packageName, PackageManager.GET_UNINSTALLED_PACKAGES));
+    } catch (NameNotFoundException e) {
+      return UNKNOWN_VERSION;
+    }
+  }
+
+  private static String getCacheKey(Request request, long versionCode) {
+    return request.getKey() + "@" + versionCode;
+  }
+
+  private Bitmap toBitmap(Drawable icon) {
+    Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+    icon.setBounds(0, 0, mIconSize, mIconSize);
+    icon.draw(new Canvas(bitmap));
+    return bitmap;
+  }
+
+  private Drawable newPlaceholder() {
+    Drawable.ConstantState state = mPlaceholder.getConstantState();
+    return state != null ? state.newDrawable(mResources) : mPlaceholder;
+  }
+}
@@ -17,7 +17,6 @@
 package com.afwsamples.testdpc.common;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -33,14 +32,14 @@ import java.util.List;
  * listview.
  */
 public class AppInfoArrayAdapter extends ArrayAdapter<String> {
-  private PackageManager mPackageManager;
+  private final AppIconLoader mIconLoader;
   private int mAppInfoFlags = 0;
   private static final String TAG = "AppInfoArrayAdapter";
 
   public AppInfoArrayAdapter(
       Context context, int resource, List<String> pkgNameList, boolean includeDisabledApps) {
     super(context, resource, pkgNameList);
-    mPackageManager = getContext().getPackageManager();
+    mIconLoader = AppIconLoader.getInstance(context);
     if (includeDisabledApps) {
       mAppInfoFlags = PackageManager.GET_UNINSTALLED_PACKAGES;
     }
@@ -58,16 +57,11 @@ public class AppInfoArrayAdapter extends ArrayAdapter<String> {
 
     final ImageView iconImageView = (ImageView) convertView.findViewById(R.id.pkg_icon);
     final TextView pkgNameTextView = (TextView) convertView.findViewById(R.id.pkg_name);
-    try {
-      ApplicationInfo applicationInfo =
-          mPackageManager.getApplicationInfo(getItem(position), mAppInfoFlags);
-      iconImageView.setImageDrawable(mPackageManager.getApplicationIcon(applicationInfo));
-      pkgNameTextView.setText(mPackageManager.getApplicationLabel(applicationInfo));
-    } catch (PackageManager.NameNotFoundException e) {
-      // The package has probably been uninstalled so just show it's package name
-      iconImageView.setImageDrawable(null);
-      pkgNameTextView.setText(getItem(position));
-    }
+    // If the package has been uninstalled, the loader just shows its package name.
+    mIconLoader.bind(
+        iconImageView,
+        pkgNameTextView,
+        AppIconLoader.forPackage(getItem(position), mAppInfoFlags));
     return convertView;
   }
 }
@@ -18,7 +18,6 @@ package com.afwsamples.testdpc.common;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -32,12 +31,12 @@ import java.util.List;
 /** An array adapter which shows an application name and its icon in a spinner view. */
 public class AppInfoSpinnerAdapter extends ArrayAdapter<ApplicationInfo> implements SpinnerAdapter {
 
-  private PackageManager mPackageManager;
+  private final AppIconLoader mIconLoader;
 
   public AppInfoSpinnerAdapter(
       Context context, int resource, int textViewResourceId, List<ApplicationInfo> objects) {
     super(context, resource, textViewResourceId, objects);
-    mPackageManager = context.getPackageManager();
+    mIconLoader = AppIconLoader.getInstance(context);
   }
 
   @Override
@@ -56,9 +55,9 @@ public class AppInfoSpinnerAdapter extends ArrayAdapter<ApplicationInfo> impleme
     }
     ApplicationInfo applicationInfo = getItem(position);
     ImageView iconImageView = (ImageView) convertView.findViewById(R.id.pkg_icon);
-    iconImageView.setImageDrawable(mPackageManager.getApplicationIcon(applicationInfo));
     TextView pkgNameTextView = (TextView) convertView.findViewById(R.id.pkg_name);
-    pkgNameTextView.setText(mPackageManager.getApplicationLabel(applicationInfo));
+    mIconLoader.bind(
+        iconImageView, pkgNameTextView, AppIconLoader.forApplication(applicationInfo));
     return convertView;
   }
 }
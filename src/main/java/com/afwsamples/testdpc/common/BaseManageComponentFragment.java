@@ -85,7 +85,11 @@ public abstract class BaseManageComponentFragment<T> extends Fragment
   @Override
   public void onActivityCreated(Bundle savedInstanceState) {
     super.onActivityCreated(savedInstanceState);
-    onSpinnerItemSelected(getSpinnerSelectedItem());
+    T item = getSpinnerSelectedItem();
+    // The spinner may still be loading, it reports its first item once it has it.
+    if (item != null) {
+      onSpinnerItemSelected(item);
+    }
   }
 
   protected abstract SpinnerAdapter createSpinnerAdapter();
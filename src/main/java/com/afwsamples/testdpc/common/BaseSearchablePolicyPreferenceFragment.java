@@ -18,6 +18,7 @@ import androidx.preference.PreferenceViewHolder;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import com.afwsamples.testdpc.R;
+import com.afwsamples.testdpc.common.preference.AdminStateSnapshot;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 
@@ -48,6 +49,8 @@ public abstract class BaseSearchablePolicyPreferenceFragment extends PreferenceF
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
+    // Preferences are inflated by super.onCreate(), so make them check the current admin state.
+    AdminStateSnapshot.invalidate();
     super.onCreate(savedInstanceState);
     if (savedInstanceState != null) {
       mPreferenceHighlighted = savedInstanceState.getBoolean(SAVE_HIGHLIGHTED_KEY);
@@ -72,6 +75,8 @@ public abstract class BaseSearchablePolicyPreferenceFragment extends PreferenceF
 
   @Override
   public void onResume() {
+    // The admin state may have changed while the screen was in the background.
+    AdminStateSnapshot.invalidate();
     super.onResume();
     highlightPreferenceIfNeeded();
   }
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Saves the bugreports shared with TestDPC to a directory, keeping the total size of the saved
+ * bugreports under a quota.
+ *
+ * <p>A bugreport is copied to a temporary file through a large direct buffer, which is hashed with
+ * SHA-256 as it is copied. The file is only renamed to its final name if the hash matches the one
+ * given by the system, so the directory never holds a partial or corrupted bugreport.
+ */
+public final class BugreportStore {
+  /** Quota used until one is set with {@link #setQuotaBytes}. */
+  public static final long DEFAULT_QUOTA_BYTES = 2L * 1024 * 1024 * 1024;
+
+  private static final String DIRECTORY = "bugreports";
+  private static final String QUOTA_KEY = "bugreport_quota_bytes";
+  private static final String PARTIAL_PREFIX = ".";
+  private static final String PARTIAL_SUFFIX = ".partial";
+  private static final int BUFFER_SIZE = 1024 * 1024;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** Called after each chunk that is copied. */
+  public interface ProgressListener {
+    void onProgress(long copiedBytes);
+  }
+
+  /** Thrown when the copied bugreport doesn't have the expected hash. */
+  public static final class HashMismatchException extends IOException {
+    private final String mActualHash;
+
+    HashMismatchException(String expectedHash, String actualHash) {
+      super("Expected SHA-256 " + expectedHash + " but got " + actualHash);
+      mActualHash = actualHash;
+    }
+
+    public String getActualHash() {
+      return mActualHash;
+    }
+  }
+
+  /** A saved bugreport. */
+  public static final class Result {
+    public final File file;
+    public final long size;
+    public final String sha256;
+    /** Older bugreports deleted to stay under the quota. */
+    public final List<File> deletedFiles;
+
+    Result(File file, long size, String sha256, List<File> deletedFiles) {
+      this.file = file;
+      this.size = size;
+      this.sha256 = sha256;
+      this.deletedFiles = deletedFiles;
+    }
+  }
+
+  private final File mDirectory;
+  private final long mQuotaBytes;
+
+  public BugreportStore(File directory, long quotaBytes) {
+    mDirectory = directory;
+    mQuotaBytes = quotaBytes;
+  }
+
+  /** Returns the store in the external files dir, with the quota set for the device. */
+  public static BugreportStore create(Context context) {
+    return new BugreportStore(
+        new File(context.getExternalFilesDir(null), DIRECTORY), getQuotaBytes(context));
+  }
+
+  public static long getQuotaBytes(Context context) {
+    return PreferenceManager.getDefaultSharedPreferences(context)
+        .getLong(QUOTA_KEY, DEFAULT_QUOTA_BYTES);
+  }
+
+  public static void setQuotaBytes(Context context, long quotaBytes) {
+    if (quotaBytes < 0) {
+      throw new IllegalArgumentException("Negative quota: " + quotaBytes);
+    }
+    PreferenceManager.getDefaultSharedPreferences(context)
+        .edit()
+        .putLong(QUOTA_KEY, quotaBytes)
+        .apply();
+  }
+
+  public File getDirectory() {
+    return mDirectory;
+  }
+
+  /**
+   * Copies a bugreport to {@code name} in the directory, then deletes the oldest bugreports until
+   * the saved ones fit in the quota. The new bugreport is always kept.
+   *
+   * @param expectedSha256 hex SHA-256 hash of the bugreport, or null to not check it.
+   * @throws HashMismatchException if the copy doesn't have the expected hash, in which case
+   *     nothing is saved.
+   */
+  public Result save(
+      ReadableByteChannel in,
+      String name,
+      @Nullable String expectedSha256,
+      @Nullable ProgressListener listener)
+      throws IOException {
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      throw new IOException("Cannot create " + mDirectory);
+    }
+    deletePartialFiles();
+    MessageDigest digest = newSha256Digest();
+    File partialFile = new File(mDirectory, PARTIAL_PREFIX + name + PARTIAL_SUFFIX);
+    File file = new File(mDirectory, name);
+    long size = 0;
+    boolean saved = false;
+    try {
+      try (FileChannel out = new FileOutputStream(partialFile).getChannel()) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (in.read(buffer) != -1) {
+          buffer.flip();
+          size += buffer.remaining();
+          digest.update(buffer.duplicate());
+          while (buffer.hasRemaining()) {
+            out.write(buffer);
+          }
+          buffer.clear();
+          if (listener != null) {
+            listener.onProgress(size);
+          }
+        }
+        // The data must be on disk before the rename makes the file visible.
+        out.force(true /* metaData */);
+      }
+      String sha256 = toHex(digest.digest());
+      if (expectedSha256 != null
+          && !expectedSha256.isEmpty()
+          && !expectedSha256.equalsIgnoreCase(sha256)) {
+        throw new HashMismatchException(expectedSha256, sha256);
+      }
+      if (!partialFile.renameTo(file)) {
+        throw new IOException("Cannot rename " + partialFile + " to " + file);
+      }
+      saved = true;
+      return new Result(file, size, sha256, enforceQuota(file));
+    } finally {
+      if (!saved) {
+        partialFile.delete();
+      }
+    }
+  }
+
+  /** Returns the saved bugreports, newest first. */
+  public List<File> getBugreports() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    List<File> bugreports = new ArrayList<>(files.length);
+    for (File file : files) {
+      if (file.isFile() && !isPartialFile(file)) {
+        bugreports.add(file);
+      }
+    }
+    Collections.sort(
+        bugreports,
+        new Comparator<File>() {
+          @Override
+          public int compare(File a, File b) {
+            return Long.compare(b.lastModified(), a.lastModified());
+          }
+        });
+    return bugreports;
+  }
+
+  /** Deletes the oldest bugreports but {@code keep} until the rest fits in the quota. */
+  private List<File> enforceQuota(File keep) {
+    List<File> bugreports = getBugreports();
+    long total = 0;
+    for (File file : bugreports) {
+      total += file.length();
+    }
+    List<File> deleted = new ArrayList<>();
+    for (int i = bugreports.size() - 1; i >= 0 && total > mQuotaBytes; i--) {
+      File file = bugreports.get(i);
+      if (file.equals(keep)) {
+        continue;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        total -= length;
+        deleted.add(file);
+      }
+    }
+    return deleted;
+  }
+
+  /** Partial files are only left behind if the process died while copying. */
+  private void deletePartialFiles() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (isPartialFile(file)) {
+        file.delete();
+      }
+    }
+  }
+
+  private static boolean isPartialFile(File file) {
+    String name = file.getName();
+    return name.startsWith(PARTIAL_PREFIX) && name.endsWith(PARTIAL_SUFFIX);
+  }
+
+  private static MessageDigest newSha256Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always available", e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Process-wide inventory of decoded CA certificates, used to list the installed CA certificates in
+ * the UI and the {@code list-ca-certs} shell command, and to install or uninstall them in bulk.
+ *
+ * <p>Decoded certificates are cached by the SHA-256 of the blob they were read from, so a blob that
+ * was already seen is never parsed again. Blobs that are not cached are parsed on up to {@link
+ * #MAX_DECODE_THREADS} threads, each with its own {@link CertificateFactory}. A blob can be DER or
+ * PEM, and can hold several certificates, as CA bundles do.
+ */
+public final class CaCertificateInventory {
+  static final int MAX_DECODE_THREADS = 4;
+  // Below this number of blobs to parse, starting threads costs more than it saves.
+  static final int MIN_BLOBS_PER_THREAD = 8;
+  // The cache is dropped when it grows past this size, so that it can't grow without bound.
+  static final int MAX_CACHED_BLOBS = 4096;
+
+  private static final String X509_CERT_TYPE = "X.509";
+
+  private static CaCertificateInventory sInstance;
+
+  /** A decoded CA certificate. */
+  public static final class CaCertificate {
+    /** SHA-256 of the DER encoding, in lowercase hex. */
+    public final String fingerprint;
+    public final String subject;
+    public final String issuer;
+    public final long notAfterMillis;
+    private final byte[] mEncoded;
+
+    CaCertificate(X509Certificate certificate) throws CertificateException {
+      mEncoded = certificate.getEncoded();
+      fingerprint = sha256(mEncoded);
+      subject = certificate.getSubjectX500Principal().getName(X500Principal.RFC2253);
+      issuer = certificate.getIssuerX500Principal().getName(X500Principal.RFC2253);
+      notAfterMillis = certificate.getNotAfter().getTime();
+    }
+
+    /** Returns the DER encoding, as passed to {@code DevicePolicyManager#installCaCert}. */
+    public byte[] getEncoded() {
+      return mEncoded.clone();
+    }
+
+    public boolean isExpired(long nowMillis) {
+      return notAfterMillis < nowMillis;
+    }
+
+    @Override
+    public String toString() {
+      return fingerprint
+          + " "
+          + subject
+          + " (issuer "
+          + issuer
+          + ", expires "
+          + formatDate(notAfterMillis)
+          + ")";
+    }
+  }
+
+  /** Outcome of {@link #decode(List)}. */
+  public static final class Result {
+    private final List<CaCertificate> mCertificates = new ArrayList<>();
+    private int mParsedBlobs;
+    private int mCachedBlobs;
+    private int mInvalidBlobs;
+
+    /** Returns the certificates, in the order of the blobs. */
+    public List<CaCertificate> getCertificates() {
+      return Collections.unmodifiableList(mCertificates);
+    }
+
+    /** Number of blobs that were parsed. */
+    public int getParsedBlobs() {
+      return mParsedBlobs;
+    }
+
+    /** Number of blobs that were found in the cache. */
+    public int getCachedBlobs() {
+      return mCachedBlobs;
+    }
+
+    /** Number of blobs that could not be parsed, and have no certificates in the result. */
+    public int getInvalidBlobs() {
+      return mInvalidBlobs;
+    }
+  }
+
+  private final Map<String, List<CaCertificate>> mCache = new ConcurrentHashMap<>();
+
+  CaCertificateInventory() {}
+
+  public static synchronized CaCertificateInventory getInstance() {
+    if (sInstance == null) {
+      sInstance = new CaCertificateInventory();
+    }
+    return sInstance;
+  }
+
+  /** Decodes the certificates of {@code blobs}, parsing only the blobs that are not cached. */
+  public Result decode(List<byte[]> blobs) throws InterruptedException {
+    if (mCache.size() + blobs.size() > MAX_CACHED_BLOBS) {
+      mCache.clear();
+    }
+    String[] keys = new String[blobs.size()];
+    List<List<CaCertificate>> cached = new ArrayList<>(keys.length);
+    List<Integer> toParse = new ArrayList<>();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = sha256(blobs.get(i));
+      cached.add(mCache.get(keys[i]));
+      if (cached.get(i) == null) {
+        toParse.add(i);
+      }
+    }
+    Map<Integer, List<CaCertificate>> parsed = parse(blobs, toParse);
+    Result result = new Result();
+    for (int i = 0; i < keys.length; i++) {
+      List<CaCertificate> certificates = cached.get(i);
+      if (certificates != null) {
+        result.mCachedBlobs++;
+      } else {
+        certificates = parsed.get(i);
+        if (certificates == null) {
+          result.mInvalidBlobs++;
+          continue;
+        }
+        result.mParsedBlobs++;
+        mCache.put(keys[i], certificates);
+      }
+      result.mCertificates.addAll(certificates);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the certificates of {@code certificates} that are not in {@code exclude}, keeping the
+   * first of those with the same fingerprint.
+   */
+  public static List<CaCertificate> unique(
+      Collection<CaCertificate> certificates, Collection<CaCertificate> exclude) {
+    Set<String> seen = new HashSet<>();
+    for (CaCertificate certificate : exclude) {
+      seen.add(certificate.fingerprint);
+    }
+    List<CaCertificate> unique = new ArrayList<>();
+    for (CaCertificate certificate : certificates) {
+      if (seen.add(certificate.fingerprint)) {
+        unique.add(certificate);
+      }
+    }
+    return unique;
+  }
+
+  /** Returns the certificates of {@code certificates} that are also in {@code installed}. */
+  public static List<CaCertificate> intersect(
+      Collection<CaCertificate> certificates, Collection<CaCertificate> installed) {
+    Set<String> installedFingerprints = new HashSet<>();
+    for (CaCertificate certificate : installed) {
+      installedFingerprints.add(certificate.fingerprint);
+    }
+    List<CaCertificate> found = new ArrayList<>();
+    for (CaCertificate certificate : certificates) {
+      // Removed once found, so that each is returned once.
+      if (installedFingerprints.remove(certificate.fingerprint)) {
+        found.add(certificate);
+      }
+    }
+    return found;
+  }
+
+  /** Drops the cache. */
+  public void clear() {
+    mCache.clear();
+  }
+
+  /** Parses the blobs at {@code indices}, returning the certificates of the valid ones. */
+  private static Map<Integer, List<CaCertificate>> parse(List<byte[]> blobs, List<Integer> indices)
+      throws InterruptedException {
+    Map<Integer, List<CaCertificate>> parsed = new ConcurrentHashMap<>();
+    int threads = Math.min(MAX_DECODE_THREADS, indices.size() / MIN_BLOBS_PER_THREAD);
+    if (threads <= 1) {
+      parseChunk(blobs, indices, parsed);
+      return parsed;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>(threads);
+      for (int t = 0; t < threads; t++) {
+        List<Integer> chunk = new ArrayList<>();
+        for (int i = t; i < indices.size(); i += threads) {
+          chunk.add(indices.get(i));
+        }
+        futures.add(executor.submit(() -> parseChunk(blobs, chunk, parsed)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return parsed;
+  }
+
+  private static void parseChunk(
+      List<byte[]> blobs, List<Integer> indices, Map<Integer, List<CaCertificate>> out) {
+    CertificateFactory factory;
+    try {
+      factory = CertificateFactory.getInstance(X509_CERT_TYPE);
+    } catch (CertificateException e) {
+      throw new IllegalStateException(e);
+    }
+    for (int index : indices) {
+      try {
+        out.put(index, parse(factory, blobs.get(index)));
+      } catch (CertificateException e) {
+        // Not a certificate, counted as invalid.
+      }
+    }
+  }
+
+  private static List<CaCertificate> parse(CertificateFactory factory, byte[] blob)
+      throws CertificateException {
+    Collection<? extends Certificate> certificates =
+        factory.generateCertificates(new ByteArrayInputStream(blob));
+    if (certificates.isEmpty()) {
+      throw new CertificateException("No certificate found");
+    }
+    List<CaCertificate> decoded = new ArrayList<>(certificates.size());
+    for (Certificate certificate : certificates) {
+      decoded.add(new CaCertificate((X509Certificate) certificate));
+    }
+    return Collections.unmodifiableList(decoded);
+  }
+
+  static String sha256(byte[] data) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] hash = digest.digest(data);
+    StringBuilder hex = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  static String formatDate(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(millis));
+  }
+}
@@ -20,7 +20,6 @@ import android.content.pm.ApplicationInfo;
 import android.widget.SpinnerAdapter;
 import com.afwsamples.testdpc.R;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -36,10 +35,14 @@ public abstract class ManageAppFragment extends BaseManageComponentFragment<Appl
 
   @Override
   protected SpinnerAdapter createSpinnerAdapter() {
-    List<ApplicationInfo> managedAppList = getInstalledOrLaunchableApps();
-    Collections.sort(managedAppList, new ApplicationInfo.DisplayNameComparator(mPackageManager));
-    return new AppInfoSpinnerAdapter(
-        getActivity(), R.layout.app_row, R.id.pkg_name, managedAppList);
+    AppInfoSpinnerAdapter adapter =
+        new AppInfoSpinnerAdapter(
+            getActivity(), R.layout.app_row, R.id.pkg_name, new ArrayList<ApplicationInfo>());
+    // The catalog is usually loaded in the background by now, in which case the apps are added
+    // right away. Otherwise the spinner selects the first app once they are added.
+    AppCatalog.getInstance(getActivity())
+        .getApps((apps) -> adapter.addAll(getInstalledOrLaunchableApps(apps)));
+    return adapter;
   }
 
   /**
@@ -50,16 +53,16 @@ public abstract class ManageAppFragment extends BaseManageComponentFragment<Appl
     return true;
   }
 
-  private List<ApplicationInfo> getInstalledOrLaunchableApps() {
-    List<ApplicationInfo> installedApps =
-        mPackageManager.getInstalledApplications(0 /* Default flags */);
+  /** Returns the apps of {@code apps} to list, in the same order. */
+  private List<ApplicationInfo> getInstalledOrLaunchableApps(List<AppCatalog.App> apps) {
     List<ApplicationInfo> filteredAppList = new ArrayList<>();
-    for (ApplicationInfo applicationInfo : installedApps) {
-      if (mPackageManager.getLaunchIntentForPackage(applicationInfo.packageName) != null
-          || (applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) == 0
-          || ALLOWLISTED_APPS.contains(applicationInfo.packageName)) {
-        if (filterApp(applicationInfo)) {
-          filteredAppList.add(applicationInfo);
+    for (AppCatalog.App app : apps) {
+      if (!app.installed) {
+        continue;
+      }
+      if (app.launchable || !app.isSystem() || ALLOWLISTED_APPS.contains(app.packageName)) {
+        if (filterApp(app.applicationInfo)) {
+          filteredAppList.add(app.applicationInfo);
         }
       }
     }
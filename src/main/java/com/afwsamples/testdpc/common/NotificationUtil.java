@@ -39,6 +39,26 @@ public class NotificationUtil {
     notificationManager.notify(notificationId, notification);
   }
 
+  /**
+   * Shows an ongoing notification with a progress bar, which is indeterminate if {@code percent}
+   * is negative. Replace it with {@link #showNotification} once the operation completes.
+   */
+  public static void showProgressNotification(
+      Context context, @StringRes int titleId, String msg, int percent, int notificationId) {
+    NotificationManager notificationManager =
+        (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    Notification notification =
+        getNotificationBuilder(context)
+            .setSmallIcon(R.drawable.ic_launcher)
+            .setContentTitle(context.getString(titleId))
+            .setContentText(msg)
+            .setProgress(100, Math.max(0, percent), percent < 0)
+            .setOngoing(true)
+            .setOnlyAlertOnce(true)
+            .build();
+    notificationManager.notify(notificationId, notification);
+  }
+
   public static NotificationCompat.Builder getNotificationBuilder(Context context) {
     if (Util.SDK_INT >= VERSION_CODES.O) {
       createDefaultNotificationChannel(context);
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Receiver of package changes registered on the application context for the lifetime of the
+ * process, for the process-wide caches of package data. Unlike {@link
+ * com.afwsamples.testdpc.PackageMonitorReceiver}, it doesn't depend on a bound service.
+ *
+ * <p>Listeners are called on the main thread.
+ */
+final class PackageChangeReceiver extends BroadcastReceiver {
+  /** Called when a package was added, removed, replaced or changed. */
+  interface Listener {
+    void onPackageChanged(String packageName);
+  }
+
+  private static PackageChangeReceiver sInstance;
+
+  private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+  private PackageChangeReceiver() {}
+
+  /** Adds a listener, registering the receiver on the first call. */
+  static synchronized void addListener(Context context, Listener listener) {
+    if (sInstance == null) {
+      sInstance = new PackageChangeReceiver();
+      IntentFilter intentFilter = new IntentFilter();
+      intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+      intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+      intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+      intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+      intentFilter.addDataScheme("package");
+      context.getApplicationContext().registerReceiver(sInstance, intentFilter);
+    }
+    sInstance.mListeners.add(listener);
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (intent.getData() == null) {
+      return;
+    }
+    String packageName = intent.getData().getSchemeSpecificPart();
+    for (Listener listener : mListeners) {
+      listener.onPackageChanged(packageName);
+    }
+  }
+}
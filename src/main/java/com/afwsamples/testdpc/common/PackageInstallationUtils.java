@@ -21,9 +21,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.content.pm.PackageInstaller;
+import android.os.ParcelFileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 /** Utility class for various operations necessary to package installation. */
 public class PackageInstallationUtils {
@@ -31,6 +35,7 @@ public class PackageInstallationUtils {
   public static final String ACTION_INSTALL_COMPLETE = "com.afwsamples.testdpc.INSTALL_COMPLETE";
   private static final String ACTION_UNINSTALL_COMPLETE =
       "com.afwsamples.testdpc.UNINSTALL_COMPLETE";
+  private static final int BUFFER_SIZE = 1024 * 1024;
 
   public static boolean installPackage(Context context, InputStream in, String packageName)
       throws IOException {
@@ -55,6 +60,74 @@ public class PackageInstallationUtils {
     return true;
   }
 
+  /**
+   * Installs the APK in {@code apk}, e.g. a file opened with {@link
+   * android.app.DownloadManager#openDownloadedFile}, in its own session. The descriptor is closed.
+   *
+   * <p>The session is created with the size of the APK, so the space is allocated up front, and the
+   * APK is copied in the kernel when the session is backed by a file. Each call uses a new session,
+   * so several APKs can be installed at the same time from different threads.
+   *
+   * @return the id of the committed session.
+   */
+  public static int installPackage(Context context, ParcelFileDescriptor apk, String packageName)
+      throws IOException {
+    final PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
+    final PackageInstaller.SessionParams params =
+        new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+    params.setAppPackageName(packageName);
+    final long size = apk.getStatSize();
+    if (size >= 0) {
+      params.setSize(size);
+    }
+    final int sessionId;
+    final PackageInstaller.Session session;
+    try {
+      sessionId = packageInstaller.createSession(params);
+      session = packageInstaller.openSession(sessionId);
+    } catch (IOException | RuntimeException e) {
+      apk.close();
+      throw e;
+    }
+    try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(apk);
+        OutputStream out = session.openWrite("TestDPC", 0, size)) {
+      if (size >= 0 && out instanceof FileOutputStream) {
+        transfer(in.getChannel(), ((FileOutputStream) out).getChannel(), size);
+      } else {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int c;
+        while ((c = in.read(buffer)) != -1) {
+          out.write(buffer, 0, c);
+        }
+      }
+      session.fsync(out);
+    } catch (IOException | RuntimeException e) {
+      session.abandon();
+      session.close();
+      throw e;
+    }
+    try {
+      session.commit(createInstallIntentSender(context, sessionId));
+    } catch (RuntimeException e) {
+      session.abandon();
+      throw e;
+    } finally {
+      session.close();
+    }
+    return sessionId;
+  }
+
+  private static void transfer(FileChannel in, FileChannel out, long size) throws IOException {
+    long position = 0;
+    while (position < size) {
+      final long transferred = in.transferTo(position, size - position, out);
+      if (transferred <= 0) {
+        throw new IOException("APK truncated at " + position + " of " + size + " bytes");
+      }
+      position += transferred;
+    }
+  }
+
   public static void uninstallPackage(Context context, String packageName) {
     final PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
     packageInstaller.uninstall(packageName, createUninstallIntentSender(context, packageName));
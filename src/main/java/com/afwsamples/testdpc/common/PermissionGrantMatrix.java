@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Grant states of runtime permissions for a set of packages, as read by {@link
+ * com.afwsamples.testdpc.DevicePolicyManagerGateway#getPermissionGrantStates}.
+ *
+ * <p>Only the permissions that a package requests are in the matrix, so a package and permission
+ * that are missing can't be granted.
+ */
+public final class PermissionGrantMatrix {
+
+  /** The grant state of a permission for a package. */
+  public static final class Cell {
+    public final String packageName;
+    public final String permission;
+    public final int grantState;
+
+    Cell(String packageName, String permission, int grantState) {
+      this.packageName = packageName;
+      this.permission = permission;
+      this.grantState = grantState;
+    }
+
+    @Override
+    public String toString() {
+      return packageName + " " + permission + "=" + grantState;
+    }
+  }
+
+  private final Map<String, Map<String, Integer>> mGrantStates = new LinkedHashMap<>();
+  private int mSize;
+
+  /**
+   * Returns the permissions of {@code requested} to put in the matrix for a package: all of them
+   * if {@code permissions} is empty, and those also in {@code permissions} otherwise.
+   */
+  public static List<String> select(List<String> requested, Collection<String> permissions) {
+    if (permissions.isEmpty()) {
+      return requested;
+    }
+    Set<String> wanted = new LinkedHashSet<>(permissions);
+    List<String> selected = new ArrayList<>();
+    for (String permission : requested) {
+      if (wanted.contains(permission)) {
+        selected.add(permission);
+      }
+    }
+    return selected;
+  }
+
+  /** Adds a package, so that it is listed even if it requests none of the permissions. */
+  public void addPackage(String packageName) {
+    if (!mGrantStates.containsKey(packageName)) {
+      mGrantStates.put(packageName, new LinkedHashMap<>());
+    }
+  }
+
+  /** Sets the grant state of {@code permission} for {@code packageName}. */
+  public void put(String packageName, String permission, int grantState) {
+    addPackage(packageName);
+    if (mGrantStates.get(packageName).put(permission, grantState) == null) {
+      mSize++;
+    }
+  }
+
+  /** Returns the packages, in the order they were added. */
+  public Set<String> getPackages() {
+    return Collections.unmodifiableSet(mGrantStates.keySet());
+  }
+
+  /** Returns the grant state of each permission of {@code packageName}, or an empty map. */
+  public Map<String, Integer> getGrantStates(String packageName) {
+    Map<String, Integer> grantStates = mGrantStates.get(packageName);
+    return grantStates == null
+        ? Collections.<String, Integer>emptyMap()
+        : Collections.unmodifiableMap(grantStates);
+  }
+
+  /** Returns the number of permissions, over all the packages. */
+  public int size() {
+    return mSize;
+  }
+
+  /** Returns all the cells, package by package. */
+  public List<Cell> getCells() {
+    List<Cell> cells = new ArrayList<>(mSize);
+    for (Map.Entry<String, Map<String, Integer>> entry : mGrantStates.entrySet()) {
+      for (Map.Entry<String, Integer> grantState : entry.getValue().entrySet()) {
+        cells.add(new Cell(entry.getKey(), grantState.getKey(), grantState.getValue()));
+      }
+    }
+    return cells;
+  }
+
+  /** Returns the cells that have a grant state other than {@code grantState}. */
+  public List<Cell> getCellsToChange(int grantState) {
+    List<Cell> cells = new ArrayList<>();
+    for (Cell cell : getCells()) {
+      if (cell.grantState != grantState) {
+        cells.add(cell);
+      }
+    }
+    return cells;
+  }
+}
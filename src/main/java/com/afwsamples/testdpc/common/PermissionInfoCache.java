@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PermissionInfo;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide cache of the protection level of permissions, and of the runtime permissions
+ * requested by each package, so that each is looked up from the {@link PackageManager} once.
+ *
+ * <p>Any package can define permissions, so the whole cache is dropped whenever a package is added,
+ * removed, replaced or changed, as reported by {@link PackageChangeReceiver}.
+ * Permissions that are not defined are not cached, as they may be defined by an app installed
+ * later.
+ */
+public final class PermissionInfoCache {
+  private static final String TAG = "PermissionInfoCache";
+
+  /** Returned by {@link #getProtectionLevel(String)} for permissions that are not defined. */
+  public static final int PROTECTION_UNKNOWN = -1;
+
+  private static PermissionInfoCache sInstance;
+
+  private final PackageManager mPackageManager;
+  private final Map<String, Integer> mProtectionLevels = new ConcurrentHashMap<>();
+  private final Map<String, List<String>> mRuntimePermissions = new ConcurrentHashMap<>();
+  // Incremented on each package change, so that lookups started before it are not cached.
+  private final AtomicInteger mGeneration = new AtomicInteger();
+
+  private PermissionInfoCache(Context context) {
+    mPackageManager = context.getApplicationContext().getPackageManager();
+    PackageChangeReceiver.addListener(context, this::onPackageChanged);
+  }
+
+  public static synchronized PermissionInfoCache getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new PermissionInfoCache(context);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Returns the base protection level of {@code permission}, such as {@link
+   * PermissionInfo#PROTECTION_DANGEROUS}, or {@link #PROTECTION_UNKNOWN} if it is not defined.
+   */
+  public int getProtectionLevel(String permission) {
+    Integer cached = mProtectionLevels.get(permission);
+    if (cached != null) {
+      return cached;
+    }
+    int generation = mGeneration.get();
+    int protectionLevel;
+    try {
+      PermissionInfo permissionInfo = mPackageManager.getPermissionInfo(permission, 0);
+      protectionLevel = permissionInfo.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE;
+    } catch (NameNotFoundException e) {
+      return PROTECTION_UNKNOWN;
+    }
+    if (generation == mGeneration.get()) {
+      mProtectionLevels.put(permission, protectionLevel);
+    }
+    return protectionLevel;
+  }
+
+  /** Returns whether {@code permission} is a runtime (dangerous) permission. */
+  public boolean isRuntimePermission(String permission) {
+    return getProtectionLevel(permission) == PermissionInfo.PROTECTION_DANGEROUS;
+  }
+
+  /**
+   * Returns the runtime permissions requested by {@code packageName}, in the order of its manifest,
+   * or an empty list if the package is not installed.
+   */
+  public List<String> getRuntimePermissions(String packageName) {
+    List<String> cached = mRuntimePermissions.get(packageName);
+    if (cached != null) {
+      return cached;
+    }
+    int generation = mGeneration.get();
+    PackageInfo packageInfo;
+    try {
+      packageInfo = mPackageManager.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+    } catch (NameNotFoundException e) {
+      Log.e(TAG, "Could not retrieve info about the package: " + packageName, e);
+      return Collections.emptyList();
+    }
+    List<String> permissions = new ArrayList<>();
+    if (packageInfo.requestedPermissions != null) {
+      for (String permission : packageInfo.requestedPermissions) {
+        if (isRuntimePermission(permission)) {
+          permissions.add(permission);
+        }
+      }
+    }
+    permissions = Collections.unmodifiableList(permissions);
+    if (generation == mGeneration.get()) {
+      mRuntimePermissions.put(packageName, permissions);
+    }
+    return permissions;
+  }
+
+  /** Drops the cache after a package was added, removed, replaced or changed. */
+  public void onPackageChanged(String packageName) {
+    mGeneration.incrementAndGet();
+    mProtectionLevels.clear();
+    mRuntimePermissions.clear();
+    Log.d(TAG, "Cleared after a change of " + packageName);
+  }
+}
@@ -102,15 +102,11 @@ public class PermissionsHelper {
   }
 
   private static boolean isPermissionDangerous(String permission, Context context) {
-    PermissionInfo permissionInfo;
-    try {
-      permissionInfo = context.getPackageManager().getPermissionInfo(permission, 0);
-    } catch (NameNotFoundException e) {
-      Log.e(TAG, "Failed to look up permission.", e);
+    int protectionLevel = PermissionInfoCache.getInstance(context).getProtectionLevel(permission);
+    if (protectionLevel == PermissionInfoCache.PROTECTION_UNKNOWN) {
+      Log.e(TAG, "Failed to look up permission. " + permission + " is not defined.");
       return false;
     }
-    return permissionInfo != null
-        && (permissionInfo.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
-            == PermissionInfo.PROTECTION_DANGEROUS;
+    return protectionLevel == PermissionInfo.PROTECTION_DANGEROUS;
   }
 }
@@ -17,7 +17,6 @@
 package com.afwsamples.testdpc.common;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -32,12 +31,12 @@ import java.util.List;
 /** An array adapter which shows an application name and its icon in a spinner view. */
 public class ResolveInfoSpinnerAdapter extends ArrayAdapter<ResolveInfo> implements SpinnerAdapter {
 
-  private PackageManager mPackageManager;
+  private final AppIconLoader mIconLoader;
 
   public ResolveInfoSpinnerAdapter(
       Context context, int resource, int textViewResourceId, List<ResolveInfo> objects) {
     super(context, resource, textViewResourceId, objects);
-    mPackageManager = context.getPackageManager();
+    mIconLoader = AppIconLoader.getInstance(context);
   }
 
   @Override
@@ -56,9 +55,8 @@ public class ResolveInfoSpinnerAdapter extends ArrayAdapter<ResolveInfo> impleme
     }
     ResolveInfo resolveInfo = getItem(position);
     ImageView iconImageView = (ImageView) convertView.findViewById(R.id.pkg_icon);
-    iconImageView.setImageDrawable(resolveInfo.loadIcon(mPackageManager));
     TextView pkgNameTextView = (TextView) convertView.findViewById(R.id.pkg_name);
-    pkgNameTextView.setText(resolveInfo.loadLabel(mPackageManager));
+    mIconLoader.bind(iconImageView, pkgNameTextView, AppIconLoader.forResolveInfo(resolveInfo));
     return convertView;
   }
 }
@@ -17,8 +17,6 @@
 package com.afwsamples.testdpc.common;
 
 import android.app.Fragment;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -29,8 +27,8 @@ import android.widget.EditText;
 import android.widget.ListView;
 import com.afwsamples.testdpc.R;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * This fragment shows the list of apps, and allows the user to select one of them to perform a
@@ -43,7 +41,8 @@ public abstract class SelectAppFragment extends Fragment
   private EditText mCurrentSelectedPackage;
   private EditText mNewSelectedPackage;
   private ListView mAppListView;
-  private List<String> mAppPackages;
+  private AppInfoArrayAdapter mAppInfoArrayAdapter;
+  private final List<String> mAppPackages = new ArrayList<>();
 
   @Override
   public void onResume() {
@@ -54,7 +53,13 @@ public abstract class SelectAppFragment extends Fragment
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    mAppPackages = createAppList();
+    loadAppList(
+        (appPackages) -> {
+          mAppPackages.addAll(appPackages);
+          if (mAppInfoArrayAdapter != null) {
+            mAppInfoArrayAdapter.notifyDataSetChanged();
+          }
+        });
   }
 
   @Override
@@ -65,27 +70,33 @@ public abstract class SelectAppFragment extends Fragment
     mCurrentSelectedPackage = view.findViewById(R.id.selected_package_current);
     mNewSelectedPackage = view.findViewById(R.id.selected_package_new);
     mAppListView = view.findViewById(R.id.select_app_list);
-    AppInfoArrayAdapter appInfoArrayAdapter =
+    mAppInfoArrayAdapter =
         new AppInfoArrayAdapter(getActivity(), R.id.pkg_name, mAppPackages, true);
-    mAppListView.setAdapter(appInfoArrayAdapter);
+    mAppListView.setAdapter(mAppInfoArrayAdapter);
     view.findViewById(R.id.selected_package_set).setOnClickListener(this);
     view.findViewById(R.id.selected_package_clear).setOnClickListener(this);
     mAppListView.setOnItemClickListener(this);
     return view;
   }
 
-  /** @return a list of apps that users are allowed to select from. */
-  protected List<String> createAppList() {
-    List<String> appList = new ArrayList<>();
-    PackageManager pm = getActivity().getPackageManager();
-    List<ApplicationInfo> allApps = pm.getInstalledApplications(0 /* No flag */);
-    Collections.sort(allApps, new ApplicationInfo.DisplayNameComparator(pm));
-    for (ApplicationInfo info : allApps) {
-      if ((pm.getLaunchIntentForPackage(info.packageName)) != null) {
-        appList.add(info.packageName);
-      }
-    }
-    return appList;
+  /**
+   * Loads the apps that users are allowed to select from, and passes them to {@code callback} on
+   * the main thread.
+   */
+  protected void loadAppList(Consumer<List<String>> callback) {
+    // The catalog is sorted by label, and is usually loaded in the background by now, in which case
+    // the callback runs right away.
+    AppCatalog.getInstance(getActivity())
+        .getApps(
+            (apps) -> {
+              List<String> appList = new ArrayList<>();
+              for (AppCatalog.App app : apps) {
+                if (app.installed && app.launchable) {
+                  appList.add(app.packageName);
+                }
+              }
+              callback.accept(appList);
+            });
   }
 
   protected ViewGroup getExtensionLayout(View rootView) {
@@ -20,6 +20,7 @@ import android.app.admin.DevicePolicyManager;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
@@ -51,19 +52,21 @@ public abstract class ToggleComponentsArrayAdapter extends ArrayAdapter<ResolveI
   protected DevicePolicyManager mDevicePolicyManager;
   protected DevicePolicyManagerGateway mDevicePolicyManagerGateway;
   protected List<Boolean> mIsComponentCheckedList;
+  private final AppIconLoader mIconLoader;
 
   public ToggleComponentsArrayAdapter(Context context, int resource, List<ResolveInfo> objects) {
     super(context, resource, objects);
     mPackageManager = context.getPackageManager();
     mDevicePolicyManagerGateway = new DevicePolicyManagerGatewayImpl(context);
     mDevicePolicyManager = mDevicePolicyManagerGateway.getDevicePolicyManager();
+    mIconLoader = AppIconLoader.getInstance(context);
     // Init mIsComponentCheckedList
     mIsComponentCheckedList = new ArrayList<>(Arrays.asList(new Boolean[objects.size()]));
     Collections.fill(mIsComponentCheckedList, Boolean.FALSE);
   }
 
   /**
-   * Get the display name of the item.
+   * Get the display name of the item. Called on a background thread.
    *
    * @param position The position of a component in this adapter which should handle the click
    *     event.
@@ -72,20 +75,13 @@ public abstract class ToggleComponentsArrayAdapter extends ArrayAdapter<ResolveI
 
   @Override
   public View getView(final int position, View convertView, ViewGroup parent) {
-    ApplicationInfo applicationInfo = getApplicationInfo(position);
-    if (applicationInfo == null) {
-      Log.e(TAG, "Fail to retrieve application info for the entry: " + position);
-      return null;
-    }
-
     if (convertView == null) {
       convertView =
           LayoutInflater.from(getContext()).inflate(R.layout.enable_component_row, parent, false);
     }
     ImageView iconImageView = (ImageView) convertView.findViewById(R.id.pkg_icon);
-    iconImageView.setImageDrawable(getApplicationIcon(applicationInfo));
     TextView pkgNameTextView = (TextView) convertView.findViewById(R.id.pkg_name);
-    pkgNameTextView.setText(getDisplayName(position));
+    mIconLoader.bind(iconImageView, pkgNameTextView, createIconRequest(position));
     CheckBox enableComponentCheckbox =
         (CheckBox) convertView.findViewById(R.id.enable_component_checkbox);
     enableComponentCheckbox.setOnClickListener(
@@ -121,7 +117,8 @@ public abstract class ToggleComponentsArrayAdapter extends ArrayAdapter<ResolveI
   }
 
   /**
-   * Gets the {@link android.content.pm.ApplicationInfo} of a service or an activity.
+   * Gets the {@link android.content.pm.ApplicationInfo} of a service or an activity. Called on a
+   * background thread when loading the icon of the item.
    *
    * @param position The position of the view that requests {@link
    *     android.content.pm.ApplicationInfo}.
@@ -156,7 +153,35 @@ public abstract class ToggleComponentsArrayAdapter extends ArrayAdapter<ResolveI
     return applicationInfo != null && (applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
   }
 
+  /** Loads the icon of an item. Called on a background thread. */
   protected Drawable getApplicationIcon(ApplicationInfo applicationInfo) {
     return mPackageManager.getApplicationIcon(applicationInfo);
   }
+
+  /**
+   * Loads the icon and the display name of the item at the given position with {@link
+   * #getApplicationInfo(int)}, {@link #getApplicationIcon(ApplicationInfo)} and {@link
+   * #getDisplayName(int)}.
+   */
+  private AppIconLoader.Request createIconRequest(final int position) {
+    ResolveInfo resolveInfo = getItem(position);
+    // Subclasses can load different icons and labels for the same component.
+    String variant = getClass().getName() + "/" + AppIconLoader.getComponentName(resolveInfo);
+    return new AppIconLoader.Request(AppIconLoader.getPackageName(resolveInfo), variant) {
+      @Override
+      protected Drawable loadIcon(PackageManager packageManager) throws NameNotFoundException {
+        ApplicationInfo applicationInfo = getApplicationInfo(position);
+        if (applicationInfo == null) {
+          Log.e(TAG, "Fail to retrieve application info for the entry: " + position);
+          throw new NameNotFoundException(getPackageName());
+        }
+        return getApplicationIcon(applicationInfo);
+      }
+
+      @Override
+      protected CharSequence loadLabel(PackageManager packageManager) {
+        return getDisplayName(position);
+      }
+    };
+  }
 }
@@ -43,12 +43,12 @@ import android.widget.Toast;
 import androidx.preference.PreferenceFragment;
 import com.afwsamples.testdpc.DeviceAdminReceiver;
 import com.afwsamples.testdpc.R;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -228,13 +228,7 @@ public class Util {
       InputStream certificateInputStream, DevicePolicyManager dpm, ComponentName admin) {
     try {
       if (certificateInputStream != null) {
-        ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        int len = 0;
-        while ((len = certificateInputStream.read(buffer)) > 0) {
-          byteBuffer.write(buffer, 0, len);
-        }
-        return dpm.installCaCert(admin, byteBuffer.toByteArray());
+        return dpm.installCaCert(admin, readBytes(certificateInputStream));
       }
     } catch (IOException e) {
       Log.e(TAG, "installCaCertificate: ", e);
@@ -242,6 +236,31 @@ public class Util {
     return false;
   }
 
+  /**
+   * Reads {@code inputStream} to its end. The buffer is sized from {@link InputStream#available()},
+   * so that a file is read in a single array, without copies.
+   */
+  public static byte[] readBytes(InputStream inputStream) throws IOException {
+    int available = inputStream.available();
+    byte[] buffer = new byte[available > 0 ? available : DEFAULT_BUFFER_SIZE];
+    int size = 0;
+    while (true) {
+      if (size == buffer.length) {
+        int next = inputStream.read();
+        if (next == -1) {
+          return buffer;
+        }
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        buffer[size++] = (byte) next;
+      }
+      int count = inputStream.read(buffer, size, buffer.length - size);
+      if (count == -1) {
+        return Arrays.copyOf(buffer, size);
+      }
+      size += count;
+    }
+  }
+
   /** @return Intent for the default home activity */
   public static Intent getHomeIntent() {
     final Intent intent = new Intent(Intent.ACTION_MAIN);
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common.preference;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Build.VERSION_CODES;
+import androidx.core.content.ContextCompat;
+import com.afwsamples.testdpc.common.Util;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admin, delegation and user state that {@link DpcPreferenceHelper} checks the preference
+ * constraints against.
+ *
+ * <p>Reading this state takes several binder calls, and a policy screen has hundreds of
+ * preferences, so it is read once and shared by all of them until it is invalidated. Screens
+ * invalidate it when they are created or resumed, and it is also invalidated by admin callbacks
+ * and when the delegated scopes of TestDPC change.
+ */
+public final class AdminStateSnapshot {
+  private static AdminStateSnapshot sInstance;
+  private static boolean sDelegationReceiverRegistered;
+
+  private final Context mContext;
+  private final @DpcPreferenceHelper.AdminKind int mAdmin;
+  private final @DpcPreferenceHelper.UserKind int mUser;
+  private final List<String> mDelegations;
+  private final Map<String, Boolean> mPermissions = new HashMap<>();
+
+  private AdminStateSnapshot(Context context) {
+    mContext = context;
+    mAdmin = readCurrentAdmin(context);
+    mUser = readCurrentUser(context);
+    mDelegations = readCurrentDelegations(context);
+  }
+
+  /** Returns the current snapshot, reading the state again if it was invalidated. */
+  public static synchronized AdminStateSnapshot get(Context context) {
+    if (sInstance == null) {
+      Context applicationContext = context.getApplicationContext();
+      registerDelegationReceiverIfNeeded(applicationContext);
+      sInstance = new AdminStateSnapshot(applicationContext);
+    }
+    return sInstance;
+  }
+
+  /** Makes the next {@link #get(Context)} read the state again. */
+  public static synchronized void invalidate() {
+    sInstance = null;
+  }
+
+  @DpcPreferenceHelper.AdminKind
+  int getAdmin() {
+    return mAdmin;
+  }
+
+  @DpcPreferenceHelper.UserKind
+  int getUser() {
+    return mUser;
+  }
+
+  boolean hasDelegation(String delegation) {
+    return mDelegations.contains(delegation);
+  }
+
+  synchronized boolean hasPermission(String permission) {
+    Boolean granted = mPermissions.get(permission);
+    if (granted == null) {
+      granted = mContext.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
+      mPermissions.put(permission, granted);
+    }
+    return granted;
+  }
+
+  private static int readCurrentAdmin(Context context) {
+    final DevicePolicyManager dpm =
+        (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+    final String packageName = context.getPackageName();
+
+    if (dpm.isDeviceOwnerApp(packageName)) {
+      return DpcPreferenceHelper.ADMIN_DEVICE_OWNER;
+    }
+    if (dpm.isProfileOwnerApp(packageName)) {
+      Boolean orgOwned =
+          Util.SDK_INT >= VERSION_CODES.R && dpm.isOrganizationOwnedDeviceWithManagedProfile();
+      if (orgOwned) {
+        return DpcPreferenceHelper.ADMIN_ORG_OWNED_PROFILE_OWNER;
+      } else {
+        return DpcPreferenceHelper.ADMIN_PROFILE_OWNER;
+      }
+    }
+    return DpcPreferenceHelper.ADMIN_NONE;
+  }
+
+  private static List<String> readCurrentDelegations(Context context) {
+    if (Util.SDK_INT < VERSION_CODES.O) {
+      return Collections.emptyList();
+    }
+
+    final DevicePolicyManager dpm =
+        (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+    final String packageName = context.getPackageName();
+    return dpm.getDelegatedScopes(null, packageName);
+  }
+
+  private static int readCurrentUser(Context context) {
+    if (Util.isPrimaryUser(context)) {
+      return DpcPreferenceHelper.USER_PRIMARY_USER;
+    }
+
+    if (Util.isManagedProfile(context)) {
+      return DpcPreferenceHelper.USER_MANAGED_PROFILE;
+    }
+
+    return DpcPreferenceHelper.USER_SECONDARY_USER;
+  }
+
+  /** The delegation change broadcast is only sent to receivers registered at runtime. */
+  private static void registerDelegationReceiverIfNeeded(Context applicationContext) {
+    if (sDelegationReceiverRegistered || Util.SDK_INT < VERSION_CODES.O) {
+      return;
+    }
+    ContextCompat.registerReceiver(
+        applicationContext,
+        new BroadcastReceiver() {
+          @Override
+          public void onReceive(Context context, Intent intent) {
+            invalidate();
+          }
+        },
+        new IntentFilter(DevicePolicyManager.ACTION_APPLICATION_DELEGATION_SCOPES_CHANGED),
+        ContextCompat.RECEIVER_NOT_EXPORTED);
+    sDelegationReceiverRegistered = true;
+  }
+}
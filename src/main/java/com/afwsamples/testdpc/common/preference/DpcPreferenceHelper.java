@@ -16,9 +16,7 @@
 
 package com.afwsamples.testdpc.common.preference;
 
-import android.app.admin.DevicePolicyManager;
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.content.res.TypedArray;
 import android.os.Build.VERSION_CODES;
 import android.text.TextUtils;
@@ -34,7 +32,6 @@ import com.afwsamples.testdpc.common.Util;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -42,6 +39,9 @@ import java.util.List;
  * with an informative message if the constraint does not hold. The API level, admin type (device or
  * profile owner) and user type (primary, managed profile, etc.) can be used as constraints.
  *
+ * <p>Constraints are checked against the shared {@link AdminStateSnapshot}, so the preferences of a
+ * screen do not each query the admin and user state.
+ *
  * @attr ref android.R.styleable#DpcPreference_minSdkVersion
  * @attr ref android.R.styleable#DpcPreference_admin
  * @attr ref android.R.styleable#DpcPreference_user
@@ -245,11 +245,12 @@ public class DpcPreferenceHelper {
       return mContext.getString(R.string.requires_android_api_level, mMinSdkVersion);
     }
 
-    if (!isSufficientlyPrivileged(getCurrentAdmin(), getCurrentDelegations())) {
+    final AdminStateSnapshot adminState = AdminStateSnapshot.get(mContext);
+    if (!isSufficientlyPrivileged(adminState)) {
       return getAdminConstraintSummary();
     }
 
-    if (!isEnabledForUser(getCurrentUser())) {
+    if (!isEnabledForUser(adminState.getUser())) {
       return getUserConstraintSummary();
     }
 
@@ -262,64 +263,18 @@ public class DpcPreferenceHelper {
     return null;
   }
 
-  private int getCurrentAdmin() {
-    final DevicePolicyManager dpm =
-        (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
-    final String packageName = mContext.getPackageName();
-
-    if (dpm.isDeviceOwnerApp(packageName)) {
-      return ADMIN_DEVICE_OWNER;
-    }
-    if (dpm.isProfileOwnerApp(packageName)) {
-      Boolean orgOwned =
-          Util.SDK_INT >= VERSION_CODES.R && dpm.isOrganizationOwnedDeviceWithManagedProfile();
-      if (orgOwned) {
-        return ADMIN_ORG_OWNED_PROFILE_OWNER;
-      } else {
-        return ADMIN_PROFILE_OWNER;
-      }
-    }
-    return ADMIN_NONE;
-  }
-
-  private List<String> getCurrentDelegations() {
-    if (Util.SDK_INT < VERSION_CODES.O) {
-      return Collections.emptyList();
-    }
-
-    final DevicePolicyManager dpm =
-        (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
-    final String packageName = mContext.getPackageName();
-    return dpm.getDelegatedScopes(null, packageName);
-  }
-
-  private int getCurrentUser() {
-    if (Util.isPrimaryUser(mContext)) {
-      return USER_PRIMARY_USER;
-    }
-
-    if (Util.isManagedProfile(mContext)) {
-      return USER_MANAGED_PROFILE;
-    }
-
-    return USER_SECONDARY_USER;
-  }
-
-  private boolean isSufficientlyPrivileged(@AdminKind int admin, List<String> delegations) {
-    return isEnabledForAdmin(admin) || hasDelegation(delegations) || hasPermission();
+  private boolean isSufficientlyPrivileged(AdminStateSnapshot adminState) {
+    return isEnabledForAdmin(adminState.getAdmin())
+        || adminState.hasDelegation(mDelegationConstraint)
+        || hasPermission(adminState);
   }
 
   private boolean isEnabledForAdmin(@AdminKind int admin) {
     return (mAdminConstraint & admin) == admin;
   }
 
-  private boolean hasDelegation(List<String> delegations) {
-    return delegations.contains(mDelegationConstraint);
-  }
-
-  private boolean hasPermission() {
-    return mPermissionConstraint != null
-        && mContext.checkSelfPermission(mPermissionConstraint) == PackageManager.PERMISSION_GRANTED;
+  private boolean hasPermission(AdminStateSnapshot adminState) {
+    return mPermissionConstraint != null && adminState.hasPermission(mPermissionConstraint);
   }
 
   private boolean isEnabledForUser(@UserKind int user) {
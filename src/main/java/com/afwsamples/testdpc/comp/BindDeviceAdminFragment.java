@@ -24,7 +24,6 @@ import android.app.admin.DevicePolicyManager;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
@@ -41,7 +40,8 @@ import com.afwsamples.testdpc.common.Util;
 import com.afwsamples.testdpc.common.preference.CustomConstraint;
 import com.afwsamples.testdpc.common.preference.DpcPreference;
 import com.afwsamples.testdpc.common.preference.DpcSwitchPreference;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 /** Features related to {@link DevicePolicyManager#bindDeviceAdminServiceAsUser} */
@@ -193,27 +193,30 @@ public class BindDeviceAdminFragment extends BaseSearchablePolicyPreferenceFragm
         final Uri uri;
         if (data != null && (uri = data.getData()) != null) {
           ContentResolver contentResolver = getActivity().getContentResolver();
-          AssetFileDescriptor afd;
-          try {
-            afd = contentResolver.openAssetFileDescriptor(uri, "r");
-          } catch (FileNotFoundException e) {
-            Log.e(TAG, "Could not find certificate file", e);
+          ProfileOperationBatch batch = new ProfileOperationBatch();
+          try (InputStream in = contentResolver.openInputStream(uri)) {
+            batch.installCaCertificate(Util.readBytes(in));
+          } catch (IOException e) {
+            Log.e(TAG, "Could not read certificate file", e);
             return;
           }
           boolean bindSuccess =
               mBindDeviceAdminServiceHelper.crossUserCall(
                   service -> {
-                    boolean isCaInstalled = service.installCaCertificate(afd);
-                    String toastMessage =
-                        isCaInstalled
-                            ? getString(R.string.install_ca_successfully)
-                            : getString(R.string.install_ca_fail);
-                    getActivity()
-                        .runOnUiThread(
-                            () ->
-                                Toast.makeText(getActivity(), toastMessage, Toast.LENGTH_SHORT)
-                                    .show());
-                    Toast.makeText(getActivity(), toastMessage, Toast.LENGTH_SHORT).show();
+                    ProfileOperationBatch.Result result =
+                        ProfileOperationBatch.parseResults(
+                                service.executeBatch(batch.getOperations()))
+                            .get(0);
+                    if (!result.isSuccess()) {
+                      Log.e(TAG, "Could not install certificate: " + result.getError());
+                    }
+                    Toast.makeText(
+                            getActivity(),
+                            result.isSuccess()
+                                ? R.string.install_ca_successfully
+                                : R.string.install_ca_fail,
+                            Toast.LENGTH_SHORT)
+                        .show();
                   });
           if (!bindSuccess) {
             Toast.makeText(getActivity(), R.string.bind_to_profile_owner_failed, Toast.LENGTH_LONG)
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.comp;
+
+import android.annotation.TargetApi;
+import android.app.Service;
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+import androidx.annotation.UiThread;
+import com.afwsamples.testdpc.DeviceAdminReceiver;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the services bound with {@link DevicePolicyManager#bindDeviceAdminServiceAsUser} alive
+ * across calls, with one connection per service and target user.
+ *
+ * <p>Calls made while a connection is being established are queued and run once it is connected.
+ * A connection is unbound after {@link #IDLE_TIMEOUT_MS} without calls. If the remote process
+ * dies, the system reconnects the binding, and calls made meanwhile wait for the new connection.
+ *
+ * <p>All the methods but {@link #getStats()} must be called on the main thread.
+ */
+@TargetApi(VERSION_CODES.O)
+public final class DeviceAdminServiceConnectionPool {
+  private static final String TAG = "DeviceAdminServicePool";
+
+  /** How long a connection stays bound after its last call. */
+  public static final long IDLE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+  private static DeviceAdminServiceConnectionPool sInstance;
+
+  private final Context mContext;
+  private final DevicePolicyManager mDpm;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final Map<String, Connection<?>> mConnections = new HashMap<>();
+  // Read from the shell command thread, guarded by itself.
+  private final Map<String, ConnectionStats> mStats = new LinkedHashMap<>();
+
+  private DeviceAdminServiceConnectionPool(Context context) {
+    mContext = context.getApplicationContext();
+    mDpm = (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
+  }
+
+  public static synchronized DeviceAdminServiceConnectionPool getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new DeviceAdminServiceConnectionPool(context);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Calls {@code listener} on the main thread with the service of {@code targetUserHandle}, right
+   * away if it is connected, and once it is connected otherwise.
+   *
+   * @return false if the service can't be bound, in which case the listener is not called.
+   */
+  @UiThread
+  public <T> boolean call(
+      Class<? extends Service> serviceClass,
+      ServiceInterfaceConverter<T> serviceInterfaceConverter,
+      UserHandle targetUserHandle,
+      OnServiceConnectedListener<T> listener) {
+    String key = serviceClass.getName() + "@" + targetUserHandle;
+    @SuppressWarnings("unchecked")
+    Connection<T> connection = (Connection<T>) mConnections.get(key);
+    if (connection == null) {
+      connection =
+          new Connection<>(key, serviceClass, serviceInterfaceConverter, targetUserHandle);
+      mConnections.put(key, connection);
+    }
+    return connection.call(listener);
+  }
+
+  /** Returns a line of connection counts and latencies per service and target user. */
+  public List<String> getStats() {
+    List<String> stats = new ArrayList<>();
+    synchronized (mStats) {
+      for (Map.Entry<String, ConnectionStats> entry : mStats.entrySet()) {
+        stats.add(entry.getKey() + ": " + entry.getValue());
+      }
+    }
+    return stats;
+  }
+
+  private ConnectionStats getConnectionStats(String key) {
+    synchronized (mStats) {
+      ConnectionStats stats = mStats.get(key);
+      if (stats == null) {
+        stats = new ConnectionStats();
+        mStats.put(key, stats);
+      }
+      return stats;
+    }
+  }
+
+  /** A binding to a service, shared by all the calls to it. */
+  private final class Connection<T> implements ServiceConnection {
+    private final String mKey;
+    private final Intent mServiceIntent;
+    private final ServiceInterfaceConverter<T> mServiceInterfaceConverter;
+    private final UserHandle mTargetUserHandle;
+    private final ConnectionStats mConnectionStats;
+    private final List<OnServiceConnectedListener<T>> mPendingCalls = new ArrayList<>();
+    private final Runnable mIdleTimeout = this::onIdle;
+    private boolean mBound;
+    private T mService;
+    private long mConnectStartTime;
+
+    Connection(
+        String key,
+        Class<? extends Service> serviceClass,
+        ServiceInterfaceConverter<T> serviceInterfaceConverter,
+        UserHandle targetUserHandle) {
+      mKey = key;
+      mServiceIntent = new Intent(mContext, serviceClass);
+      mServiceInterfaceConverter = serviceInterfaceConverter;
+      mTargetUserHandle = targetUserHandle;
+      mConnectionStats = getConnectionStats(key);
+    }
+
+    boolean call(OnServiceConnectedListener<T> listener) {
+      mHandler.removeCallbacks(mIdleTimeout);
+      if (mService != null) {
+        run(listener);
+        mHandler.postDelayed(mIdleTimeout, IDLE_TIMEOUT_MS);
+        return true;
+      }
+      mPendingCalls.add(listener);
+      if (mBound || bind()) {
+        return true;
+      }
+      mPendingCalls.clear();
+      mConnections.remove(mKey);
+      return false;
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+      long latency = SystemClock.elapsedRealtime() - mConnectStartTime;
+      Log.d(TAG, "Connected to " + mKey + " in " + latency + " ms");
+      mConnectionStats.onConnected(latency);
+      mService = mServiceInterfaceConverter.convert(iBinder);
+      List<OnServiceConnectedListener<T>> calls = new ArrayList<>(mPendingCalls);
+      mPendingCalls.clear();
+      for (OnServiceConnectedListener<T> listener : calls) {
+        run(listener);
+      }
+      mHandler.removeCallbacks(mIdleTimeout);
+      mHandler.postDelayed(mIdleTimeout, IDLE_TIMEOUT_MS);
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName componentName) {
+      // The binding is kept, so the system connects again once the service restarts.
+      Log.w(TAG, "Disconnected from " + mKey + ", waiting for the service to restart");
+      mConnectionStats.onDisconnected();
+      mService = null;
+      mConnectStartTime = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void onBindingDied(ComponentName name) {
+      Log.w(TAG, "Binding to " + mKey + " died");
+      unbind();
+      if (mPendingCalls.isEmpty()) {
+        mConnections.remove(mKey);
+      } else if (!bind()) {
+        Log.e(TAG, "Dropping " + mPendingCalls.size() + " calls to " + mKey);
+        mPendingCalls.clear();
+        mConnections.remove(mKey);
+      }
+    }
+
+    @Override
+    public void onNullBinding(ComponentName name) {
+      Log.e(TAG, "Null binding from " + mKey);
+      mPendingCalls.clear();
+      unbind();
+      mConnections.remove(mKey);
+    }
+
+    private boolean bind() {
+      mConnectStartTime = SystemClock.elapsedRealtime();
+      try {
+        mBound =
+            mDpm.bindDeviceAdminServiceAsUser(
+                DeviceAdminReceiver.getComponentName(mContext),
+                mServiceIntent,
+                this,
+                Context.BIND_AUTO_CREATE,
+                mTargetUserHandle);
+      } catch (SecurityException | IllegalArgumentException e) {
+        Log.e(TAG, "Cannot bind to user " + mTargetUserHandle, e);
+        mBound = false;
+      }
+      mConnectionStats.onBind(mBound);
+      return mBound;
+    }
+
+    private void unbind() {
+      mHandler.removeCallbacks(mIdleTimeout);
+      if (mBound) {
+        mContext.unbindService(this);
+        mBound = false;
+      }
+      mService = null;
+    }
+
+    private void run(OnServiceConnectedListener<T> listener) {
+      mConnectionStats.onCall();
+      try {
+        listener.onServiceConnected(mService);
+      } catch (RemoteException e) {
+        // If the service died, onServiceDisconnected() follows.
+        Log.e(TAG, "Call to " + mKey + " failed", e);
+      }
+    }
+
+    private void onIdle() {
+      if (mPendingCalls.isEmpty()) {
+        Log.d(TAG, "Unbinding idle " + mKey);
+        unbind();
+        mConnections.remove(mKey);
+      }
+    }
+  }
+
+  /** Counts and connection latencies of a service, kept after it is unbound. */
+  private static final class ConnectionStats {
+    private int mBinds;
+    private int mFailedBinds;
+    private int mConnects;
+    private int mDisconnects;
+    private int mCalls;
+    private long mLastLatencyMs;
+    private long mMaxLatencyMs;
+    private long mTotalLatencyMs;
+
+    synchronized void onBind(boolean bound) {
+      if (bound) {
+        mBinds++;
+      } else {
+        mFailedBinds++;
+      }
+    }
+
+    synchronized void onConnected(long latencyMs) {
+      mConnects++;
+      mLastLatencyMs = latencyMs;
+      mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+      mTotalLatencyMs += latencyMs;
+    }
+
+    synchronized void onDisconnected() {
+      mDisconnects++;
+    }
+
+    synchronized void onCall() {
+      mCalls++;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "binds="
+          + mBinds
+          + " failedBinds="
+          + mFailedBinds
+          + " connects="
+          + mConnects
+          + " disconnects="
+          + mDisconnects
+          + " calls="
+          + mCalls
+          + " latencyMs(last="
+          + mLastLatencyMs
+          + " avg="
+          + (mConnects == 0 ? 0 : mTotalLatencyMs / mConnects)
+          + " max="
+          + mMaxLatencyMs
+          + ")";
+    }
+  }
+}
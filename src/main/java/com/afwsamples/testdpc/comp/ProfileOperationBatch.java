@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.comp;
+
+import android.os.Bundle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered list of operations for {@link IProfileOwnerService#executeBatch}, which runs them all in
+ * a single binder transaction.
+ *
+ * <p>Each operation is stored in a {@link Bundle}, so the AIDL interface doesn't depend on app
+ * classes. The whole batch is sent in one parcel, so it must stay well below the binder
+ * transaction limit of 1 MB.
+ */
+public final class ProfileOperationBatch {
+  static final String KEY_TYPE = "type";
+  static final String KEY_RESTRICTION = "restriction";
+  static final String KEY_ENABLED = "enabled";
+  static final String KEY_CERTIFICATE = "certificate";
+  static final String KEY_PACKAGE = "package";
+  static final String KEY_HIDDEN = "hidden";
+  static final String KEY_PERMISSION = "permission";
+  static final String KEY_GRANT_STATE = "grant_state";
+  static final String KEY_SUCCESS = "success";
+  static final String KEY_ERROR = "error";
+
+  static final int TYPE_SET_USER_RESTRICTION = 1;
+  static final int TYPE_INSTALL_CA_CERTIFICATE = 2;
+  static final int TYPE_SET_APPLICATION_HIDDEN = 3;
+  static final int TYPE_SET_PERMISSION_GRANT_STATE = 4;
+
+  /** Outcome of an operation of the batch. */
+  public static final class Result {
+    private final boolean mSuccess;
+    private final String mError;
+
+    private Result(boolean success, String error) {
+      mSuccess = success;
+      mError = error;
+    }
+
+    static Result success() {
+      return new Result(true, null);
+    }
+
+    static Result failure(String error) {
+      return new Result(false, error);
+    }
+
+    static Result fromBundle(Bundle bundle) {
+      return new Result(bundle.getBoolean(KEY_SUCCESS), bundle.getString(KEY_ERROR));
+    }
+
+    Bundle toBundle() {
+      Bundle bundle = new Bundle();
+      bundle.putBoolean(KEY_SUCCESS, mSuccess);
+      bundle.putString(KEY_ERROR, mError);
+      return bundle;
+    }
+
+    public boolean isSuccess() {
+      return mSuccess;
+    }
+
+    /** Returns why the operation failed, or null if it succeeded. */
+    public String getError() {
+      return mError;
+    }
+
+    @Override
+    public String toString() {
+      return mSuccess ? "OK" : "FAILED: " + mError;
+    }
+  }
+
+  private final List<Bundle> mOperations = new ArrayList<>();
+
+  /** See {@link android.app.admin.DevicePolicyManager#addUserRestriction}. */
+  public ProfileOperationBatch setUserRestriction(String restriction, boolean enabled) {
+    Bundle operation = newOperation(TYPE_SET_USER_RESTRICTION);
+    operation.putString(KEY_RESTRICTION, restriction);
+    operation.putBoolean(KEY_ENABLED, enabled);
+    return this;
+  }
+
+  /** See {@link android.app.admin.DevicePolicyManager#installCaCert}. */
+  public ProfileOperationBatch installCaCertificate(byte[] certificate) {
+    newOperation(TYPE_INSTALL_CA_CERTIFICATE).putByteArray(KEY_CERTIFICATE, certificate);
+    return this;
+  }
+
+  /** See {@link android.app.admin.DevicePolicyManager#setApplicationHidden}. */
+  public ProfileOperationBatch setApplicationHidden(String packageName, boolean hidden) {
+    Bundle operation = newOperation(TYPE_SET_APPLICATION_HIDDEN);
+    operation.putString(KEY_PACKAGE, packageName);
+    operation.putBoolean(KEY_HIDDEN, hidden);
+    return this;
+  }
+
+  /** See {@link android.app.admin.DevicePolicyManager#setPermissionGrantState}. */
+  public ProfileOperationBatch setPermissionGrantState(
+      String packageName, String permission, int grantState) {
+    Bundle operation = newOperation(TYPE_SET_PERMISSION_GRANT_STATE);
+    operation.putString(KEY_PACKAGE, packageName);
+    operation.putString(KEY_PERMISSION, permission);
+    operation.putInt(KEY_GRANT_STATE, grantState);
+    return this;
+  }
+
+  public int size() {
+    return mOperations.size();
+  }
+
+  /** Returns the operations to pass to {@link IProfileOwnerService#executeBatch}. */
+  public List<Bundle> getOperations() {
+    return Collections.unmodifiableList(mOperations);
+  }
+
+  /** Parses the value returned by {@link IProfileOwnerService#executeBatch}. */
+  public static List<Result> parseResults(List<Bundle> results) {
+    List<Result> parsed = new ArrayList<>(results.size());
+    for (Bundle result : results) {
+      parsed.add(Result.fromBundle(result));
+    }
+    return parsed;
+  }
+
+  private Bundle newOperation(int type) {
+    Bundle operation = new Bundle();
+    operation.putInt(KEY_TYPE, type);
+    mOperations.add(operation);
+    return operation;
+  }
+}
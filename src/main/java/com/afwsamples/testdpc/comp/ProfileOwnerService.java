@@ -28,6 +28,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
@@ -37,6 +38,8 @@ import com.afwsamples.testdpc.PolicyManagementActivity;
 import com.afwsamples.testdpc.common.Util;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Handle cross user call from a DPC instance in other side.
@@ -95,5 +98,74 @@ public class ProfileOwnerService extends Service {
         return false;
       }
     }
+
+    @Override
+    public List<Bundle> executeBatch(List<Bundle> operations) {
+      ComponentName admin = DeviceAdminReceiver.getComponentName(mContext);
+      List<Bundle> results = new ArrayList<>(operations.size());
+      int failures = 0;
+      for (Bundle operation : operations) {
+        ProfileOperationBatch.Result result;
+        try {
+          result = execute(admin, operation);
+        } catch (RuntimeException e) {
+          // E.g. a malformed operation, which must not stop the following ones.
+          Log.w(TAG, "Operation failed: " + operation, e);
+          result = ProfileOperationBatch.Result.failure(e.toString());
+        }
+        if (!result.isSuccess()) {
+          failures++;
+        }
+        results.add(result.toBundle());
+      }
+      Log.d(TAG, "executeBatch(): " + operations.size() + " operations, " + failures + " failed");
+      return results;
+    }
+
+    private ProfileOperationBatch.Result execute(ComponentName admin, Bundle operation) {
+      int type = operation.getInt(ProfileOperationBatch.KEY_TYPE);
+      switch (type) {
+        case ProfileOperationBatch.TYPE_SET_USER_RESTRICTION:
+          {
+            String restriction = operation.getString(ProfileOperationBatch.KEY_RESTRICTION);
+            if (operation.getBoolean(ProfileOperationBatch.KEY_ENABLED)) {
+              mDpm.addUserRestriction(admin, restriction);
+            } else {
+              mDpm.clearUserRestriction(admin, restriction);
+            }
+            return ProfileOperationBatch.Result.success();
+          }
+        case ProfileOperationBatch.TYPE_INSTALL_CA_CERTIFICATE:
+          {
+            byte[] certificate = operation.getByteArray(ProfileOperationBatch.KEY_CERTIFICATE);
+            return mDpm.installCaCert(admin, certificate)
+                ? ProfileOperationBatch.Result.success()
+                : ProfileOperationBatch.Result.failure("Certificate not installed");
+          }
+        case ProfileOperationBatch.TYPE_SET_APPLICATION_HIDDEN:
+          {
+            String packageName = operation.getString(ProfileOperationBatch.KEY_PACKAGE);
+            boolean hidden = operation.getBoolean(ProfileOperationBatch.KEY_HIDDEN);
+            // setApplicationHidden() returns false if the app is already in that state.
+            return mDpm.isApplicationHidden(admin, packageName) == hidden
+                    || mDpm.setApplicationHidden(admin, packageName, hidden)
+                ? ProfileOperationBatch.Result.success()
+                : ProfileOperationBatch.Result.failure(
+                    "Hidden state of " + packageName + " not set");
+          }
+        case ProfileOperationBatch.TYPE_SET_PERMISSION_GRANT_STATE:
+          {
+            String packageName = operation.getString(ProfileOperationBatch.KEY_PACKAGE);
+            String permission = operation.getString(ProfileOperationBatch.KEY_PERMISSION);
+            int grantState = operation.getInt(ProfileOperationBatch.KEY_GRANT_STATE);
+            return mDpm.setPermissionGrantState(admin, packageName, permission, grantState)
+                ? ProfileOperationBatch.Result.success()
+                : ProfileOperationBatch.Result.failure(
+                    "Grant state of " + permission + " not set for " + packageName);
+          }
+        default:
+          return ProfileOperationBatch.Result.failure("Unknown operation type " + type);
+      }
+    }
   }
 }
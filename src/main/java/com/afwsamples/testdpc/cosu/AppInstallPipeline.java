@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.cosu;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.os.Handler;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import com.afwsamples.testdpc.common.PackageInstallationUtils;
+import com.afwsamples.testdpc.cosu.AppInstallTracker.App;
+import com.afwsamples.testdpc.cosu.AppInstallTracker.Phase;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads and installs the apps of a {@link CosuConfig}.
+ *
+ * <p>A bounded number of downloads run at the same time, so that queued downloads don't time out
+ * behind the running ones. Each downloaded APK is streamed from its download into its own install
+ * session on a background thread, so installs run in parallel with each other and with the
+ * remaining downloads.
+ *
+ * <p>The progress is saved after every step. If the set up is restarted, e.g. after a reboot,
+ * installed apps are skipped, finished downloads are installed and running downloads are waited
+ * for rather than started again. The progress is dropped once the set up ends, whether it
+ * succeeded or not, so that a later set up starts over.
+ *
+ * <p>An install that doesn't complete within {@link #INSTALL_TIMEOUT_MILLIS} is given up on, so
+ * that a stuck session doesn't block the set up.
+ *
+ * <p>All the methods must be called on the thread of the handler passed to the constructor.
+ */
+/* package */ final class AppInstallPipeline {
+  private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+  private static final int MAX_CONCURRENT_INSTALLS = 2;
+  private static final int INSTALL_TIMEOUT_MILLIS = 120_000;
+  private static final String STATE_KEY = "cosu_app_install_state";
+
+  private final Context mContext;
+  private final DownloadManager mDownloadManager;
+  private final Handler mHandler;
+  private final SharedPreferences mSharedPrefs;
+  private final AppInstallTracker mTracker = new AppInstallTracker(MAX_CONCURRENT_DOWNLOADS);
+  private final ExecutorService mInstallExecutor =
+      Executors.newFixedThreadPool(MAX_CONCURRENT_INSTALLS);
+  private long mStartTime;
+  private boolean mFinished;
+  private boolean mReleased;
+
+  AppInstallPipeline(Context context, DownloadManager downloadManager, Handler handler) {
+    mContext = context.getApplicationContext();
+    mDownloadManager = downloadManager;
+    mHandler = handler;
+    mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+  }
+
+  void addApp(String packageName, String downloadLocation) {
+    mTracker.addApp(packageName, downloadLocation);
+  }
+
+  /** Resumes the saved progress, if any, and starts the first downloads. */
+  void start() {
+    mStartTime = System.currentTimeMillis();
+    mTracker.restore(mSharedPrefs.getString(STATE_KEY, null));
+    verifyInstalledApps();
+    resumeDownloads();
+    for (App app : mTracker.getApps(Phase.DOWNLOADED)) {
+      install(app);
+    }
+    startDownloads();
+    onProgress();
+  }
+
+  boolean isFinished() {
+    return mTracker.isFinished();
+  }
+
+  /** Returns {@code downloadId} if it is the download of an app, and null otherwise. */
+  Long onDownloadComplete(long downloadId) {
+    App app = mTracker.onDownloadComplete(downloadId, System.currentTimeMillis());
+    if (app == null) {
+      Log.w(CosuUtils.TAG, "Unknown download id: " + downloadId);
+      return null;
+    }
+    if (CosuUtils.DEBUG) Log.d(CosuUtils.TAG, "Package download complete: " + app.packageName);
+    install(app);
+    startDownloads();
+    onProgress();
+    return downloadId;
+  }
+
+  /** Called with the result of streaming an app into its install session. */
+  void onInstallCommitted(String packageName, boolean success) {
+    App app = mTracker.getApp(packageName);
+    if (app == null || app.phase != Phase.INSTALLING) {
+      return;
+    }
+    if (success) {
+      mTracker.onInstallCommitted(app, System.currentTimeMillis());
+    } else {
+      // Give up on the package, just so we don't block the entire flow.
+      mTracker.onFailed(app, System.currentTimeMillis());
+    }
+    onProgress();
+  }
+
+  /** Gives up on an install that didn't complete in time. */
+  void onInstallTimeout(String packageName) {
+    App app = mTracker.getApp(packageName);
+    if (app == null || app.phase != Phase.INSTALLING) {
+      return;
+    }
+    Log.e(CosuUtils.TAG, "Time out during install of " + packageName);
+    mTracker.onFailed(app, System.currentTimeMillis());
+    onProgress();
+  }
+
+  void onInstallComplete(String packageName) {
+    if (CosuUtils.DEBUG) Log.d(CosuUtils.TAG, "Package install complete: " + packageName);
+    mTracker.onInstallComplete(packageName, System.currentTimeMillis());
+    onProgress();
+  }
+
+  /** Stops the installs that haven't started yet and drops the saved progress. */
+  void release() {
+    mReleased = true;
+    mInstallExecutor.shutdownNow();
+    mSharedPrefs.edit().remove(STATE_KEY).apply();
+  }
+
+  /** Installs again the apps saved as installed that were uninstalled since. */
+  private void verifyInstalledApps() {
+    PackageManager packageManager = mContext.getPackageManager();
+    for (App app : mTracker.getApps(Phase.INSTALLED)) {
+      try {
+        packageManager.getPackageInfo(app.packageName, 0);
+      } catch (PackageManager.NameNotFoundException e) {
+        Log.i(CosuUtils.TAG, "Installing again " + app.packageName);
+        mTracker.requeue(app);
+      }
+    }
+  }
+
+  /** Checks the downloads that were running when the progress was saved. */
+  private void resumeDownloads() {
+    List<App> downloading = mTracker.getApps(Phase.DOWNLOADING);
+    if (downloading.isEmpty()) {
+      return;
+    }
+    long[] ids = new long[downloading.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = downloading.get(i).downloadId;
+    }
+    Map<Long, Integer> statuses = new HashMap<>();
+    try (Cursor cursor = mDownloadManager.query(new DownloadManager.Query().setFilterById(ids))) {
+      if (cursor != null) {
+        int idColumn = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+        int statusColumn = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+        while (cursor.moveToNext()) {
+          statuses.put(cursor.getLong(idColumn), cursor.getInt(statusColumn));
+        }
+      }
+    }
+    for (App app : downloading) {
+      Integer status = statuses.get(app.downloadId);
+      if (status == null || status == DownloadManager.STATUS_FAILED) {
+        Log.i(CosuUtils.TAG, "Restarting the download of " + app.packageName);
+        mTracker.requeue(app);
+      } else if (status == DownloadManager.STATUS_SUCCESSFUL) {
+        mTracker.onDownloadComplete(app.downloadId, System.currentTimeMillis());
+      } else {
+        Log.i(CosuUtils.TAG, "Waiting for the download of " + app.packageName);
+        CosuUtils.scheduleDownloadTimeout(mHandler, app.downloadId);
+      }
+    }
+  }
+
+  private void startDownloads() {
+    App app;
+    while ((app = mTracker.nextDownload()) != null) {
+      try {
+        long downloadId =
+            CosuUtils.startDownload(mDownloadManager, mHandler, app.downloadLocation);
+        mTracker.onDownloadEnqueued(app, downloadId, System.currentTimeMillis());
+      } catch (IllegalArgumentException | SecurityException e) {
+        Log.e(CosuUtils.TAG, "Cannot download " + app.packageName, e);
+        mTracker.onFailed(app, System.currentTimeMillis());
+      }
+    }
+  }
+
+  private void install(App app) {
+    mTracker.onInstallStarted(app, System.currentTimeMillis());
+    final long downloadId = app.downloadId;
+    final String packageName = app.packageName;
+    mHandler.sendMessageDelayed(
+        mHandler.obtainMessage(CosuUtils.MSG_INSTALL_TIMEOUT, packageName),
+        INSTALL_TIMEOUT_MILLIS);
+    mInstallExecutor.execute(
+        () -> {
+          boolean success = false;
+          try {
+            success = streamToSession(downloadId, packageName);
+          } finally {
+            // Always reported, so that the app can't be left installing.
+            mHandler.sendMessage(
+                mHandler.obtainMessage(
+                    CosuUtils.MSG_INSTALL_COMMITTED, success ? 1 : 0, 0, packageName));
+          }
+        });
+  }
+
+  /** Runs on an install thread. */
+  private boolean streamToSession(long downloadId, String packageName) {
+    try {
+      PackageInstallationUtils.installPackage(
+          mContext, mDownloadManager.openDownloadedFile(downloadId), packageName);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      Log.e(CosuUtils.TAG, "Error installing package: " + packageName, e);
+      return false;
+    }
+  }
+
+  /** Saves the progress, and logs the time spent in each phase once all the apps are done. */
+  private void onProgress() {
+    if (mReleased) {
+      return;
+    }
+    if (!mTracker.isFinished()) {
+      mSharedPrefs.edit().putString(STATE_KEY, mTracker.serialize()).apply();
+      return;
+    }
+    if (mFinished) {
+      return;
+    }
+    mFinished = true;
+    mSharedPrefs.edit().remove(STATE_KEY).apply();
+    mInstallExecutor.shutdown();
+    Log.i(
+        CosuUtils.TAG,
+        "App downloads and installs done in " + (System.currentTimeMillis() - mStartTime) + " ms");
+    for (App app : mTracker.getApps(Phase.INSTALLED)) {
+      Log.i(CosuUtils.TAG, "  " + app);
+    }
+    for (App app : mTracker.getApps(Phase.FAILED)) {
+      Log.i(CosuUtils.TAG, "  " + app);
+    }
+  }
+}
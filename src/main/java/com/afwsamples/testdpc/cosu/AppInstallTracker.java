@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.cosu;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * State of the apps downloaded and installed during COSU set up, keyed by package name and by
+ * download id.
+ *
+ * <p>At most {@code maxConcurrentDownloads} apps are downloading at a time, and every event is
+ * handled in constant time. The state can be saved with {@link #serialize()} and restored after a
+ * restart with {@link #restore(String)}, so that finished downloads and installs are not redone.
+ *
+ * <p>Times are wall clock milliseconds, as they must stay meaningful across a reboot.
+ */
+/* package */ final class AppInstallTracker {
+  static final long NO_DOWNLOAD = -1;
+
+  private static final String FIELD_SEPARATOR = "\t";
+  private static final String LINE_SEPARATOR = "\n";
+  private static final int FIELD_COUNT = 9;
+
+  enum Phase {
+    QUEUED,
+    DOWNLOADING,
+    DOWNLOADED,
+    INSTALLING,
+    INSTALLED,
+    FAILED
+  }
+
+  /** An app of the config and the progress of its download and install. */
+  static final class App {
+    final String packageName;
+    final String downloadLocation;
+    Phase phase = Phase.QUEUED;
+    long downloadId = NO_DOWNLOAD;
+    long downloadStartTime;
+    long downloadEndTime;
+    long installStartTime;
+    long streamEndTime;
+    long installEndTime;
+
+    App(String packageName, String downloadLocation) {
+      this.packageName = packageName;
+      this.downloadLocation = downloadLocation;
+    }
+
+    boolean isFinished() {
+      return phase == Phase.INSTALLED || phase == Phase.FAILED;
+    }
+
+    @Override
+    public String toString() {
+      return packageName
+          + ": "
+          + phase
+          + " download="
+          + duration(downloadStartTime, downloadEndTime)
+          + "ms stream="
+          + duration(installStartTime, streamEndTime)
+          + "ms commit="
+          + duration(streamEndTime, installEndTime)
+          + "ms";
+    }
+
+    private static long duration(long start, long end) {
+      return start == 0 || end < start ? 0 : end - start;
+    }
+  }
+
+  private final int mMaxConcurrentDownloads;
+  private final Map<String, App> mAppsByPackage = new LinkedHashMap<>();
+  private final Map<Long, App> mAppsByDownloadId = new HashMap<>();
+  // May hold apps that left the QUEUED phase, which are skipped when polled.
+  private final Queue<App> mQueue = new ArrayDeque<>();
+  private int mActiveDownloads;
+  private int mUnfinished;
+
+  AppInstallTracker(int maxConcurrentDownloads) {
+    if (maxConcurrentDownloads <= 0) {
+      throw new IllegalArgumentException("Invalid download limit: " + maxConcurrentDownloads);
+    }
+    mMaxConcurrentDownloads = maxConcurrentDownloads;
+  }
+
+  /** Adds an app to download and install. The last location wins if a package is added twice. */
+  void addApp(String packageName, String downloadLocation) {
+    App previous = mAppsByPackage.get(packageName);
+    if (previous != null) {
+      setPhase(previous, Phase.FAILED);
+    }
+    App app = new App(packageName, downloadLocation);
+    mAppsByPackage.put(packageName, app);
+    mQueue.add(app);
+    mUnfinished++;
+  }
+
+  /**
+   * Applies the progress saved by {@link #serialize()} to the apps added so far. Saved apps that
+   * are no longer in the config, or whose download location changed, are ignored.
+   *
+   * <p>Installs that were running are redone from their download, and failed apps are retried.
+   */
+  void restore(String serialized) {
+    if (serialized == null || serialized.isEmpty()) {
+      return;
+    }
+    for (String line : serialized.split(LINE_SEPARATOR)) {
+      String[] fields = line.split(FIELD_SEPARATOR, -1);
+      if (fields.length != FIELD_COUNT) {
+        continue;
+      }
+      App app = mAppsByPackage.get(fields[0]);
+      if (app == null || app.phase != Phase.QUEUED || !app.downloadLocation.equals(fields[1])) {
+        continue;
+      }
+      Phase phase;
+      long[] values = new long[FIELD_COUNT - 3];
+      try {
+        phase = Phase.valueOf(fields[2]);
+        for (int i = 0; i < values.length; i++) {
+          values[i] = Long.parseLong(fields[i + 3]);
+        }
+      } catch (IllegalArgumentException e) {
+        continue;
+      }
+      app.downloadId = values[0];
+      app.downloadStartTime = values[1];
+      app.downloadEndTime = values[2];
+      app.installStartTime = values[3];
+      app.streamEndTime = values[4];
+      app.installEndTime = values[5];
+      if (phase == Phase.INSTALLING) {
+        phase = Phase.DOWNLOADED;
+      } else if (phase == Phase.FAILED) {
+        phase = Phase.QUEUED;
+      }
+      if (app.downloadId == NO_DOWNLOAD
+          && (phase == Phase.DOWNLOADING || phase == Phase.DOWNLOADED)) {
+        phase = Phase.QUEUED;
+      }
+      if (phase == Phase.QUEUED) {
+        app.downloadId = NO_DOWNLOAD;
+      } else if (app.downloadId != NO_DOWNLOAD) {
+        mAppsByDownloadId.put(app.downloadId, app);
+      }
+      setPhase(app, phase);
+    }
+  }
+
+  /** Returns the progress of all the apps, to be passed to {@link #restore(String)}. */
+  String serialize() {
+    StringBuilder builder = new StringBuilder();
+    for (App app : mAppsByPackage.values()) {
+      builder
+          .append(app.packageName)
+          .append(FIELD_SEPARATOR)
+          .append(app.downloadLocation)
+          .append(FIELD_SEPARATOR)
+          .append(app.phase.name())
+          .append(FIELD_SEPARATOR)
+          .append(app.downloadId)
+          .append(FIELD_SEPARATOR)
+          .append(app.downloadStartTime)
+          .append(FIELD_SEPARATOR)
+          .append(app.downloadEndTime)
+          .append(FIELD_SEPARATOR)
+          .append(app.installStartTime)
+          .append(FIELD_SEPARATOR)
+          .append(app.streamEndTime)
+          .append(FIELD_SEPARATOR)
+          .append(app.installEndTime)
+          .append(LINE_SEPARATOR);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns the next app to download if there is one and a download slot is free, in which case
+   * the app is counted as downloading until {@link #onDownloadComplete} or {@link #onFailed}.
+   */
+  App nextDownload() {
+    while (mActiveDownloads < mMaxConcurrentDownloads && !mQueue.isEmpty()) {
+      App app = mQueue.poll();
+      if (app.phase == Phase.QUEUED && mAppsByPackage.get(app.packageName) == app) {
+        setPhase(app, Phase.DOWNLOADING);
+        return app;
+      }
+    }
+    return null;
+  }
+
+  void onDownloadEnqueued(App app, long downloadId, long now) {
+    app.downloadId = downloadId;
+    app.downloadStartTime = now;
+    mAppsByDownloadId.put(downloadId, app);
+  }
+
+  /** Returns the app downloaded with {@code downloadId}, or null if no app is downloading it. */
+  App onDownloadComplete(long downloadId, long now) {
+    App app = mAppsByDownloadId.get(downloadId);
+    if (app == null || app.phase != Phase.DOWNLOADING) {
+      return null;
+    }
+    app.downloadEndTime = now;
+    setPhase(app, Phase.DOWNLOADED);
+    return app;
+  }
+
+  /**
+   * Queues the download of an app again, e.g. after its download was lost in a restart, or after
+   * an app saved as installed was uninstalled.
+   */
+  void requeue(App app) {
+    if (app.phase == Phase.FAILED) {
+      return;
+    }
+    mAppsByDownloadId.remove(app.downloadId);
+    app.downloadId = NO_DOWNLOAD;
+    setPhase(app, Phase.QUEUED);
+    mQueue.add(app);
+  }
+
+  void onInstallStarted(App app, long now) {
+    app.installStartTime = now;
+    setPhase(app, Phase.INSTALLING);
+  }
+
+  /** Called once the app is written to its install session and the session is committed. */
+  void onInstallCommitted(App app, long now) {
+    app.streamEndTime = now;
+  }
+
+  /** Returns the app of {@code packageName} if it was being installed, and null otherwise. */
+  App onInstallComplete(String packageName, long now) {
+    App app = mAppsByPackage.get(packageName);
+    if (app == null || app.isFinished()) {
+      return null;
+    }
+    app.installEndTime = now;
+    setPhase(app, Phase.INSTALLED);
+    return app;
+  }
+
+  /** Gives up on an app, so that it doesn't block the rest of the set up. */
+  void onFailed(App app, long now) {
+    if (app.isFinished()) {
+      return;
+    }
+    app.installEndTime = now;
+    setPhase(app, Phase.FAILED);
+  }
+
+  /** Returns true once every app is installed or failed. */
+  boolean isFinished() {
+    return mUnfinished == 0;
+  }
+
+  int getActiveDownloadCount() {
+    return mActiveDownloads;
+  }
+
+  /** Returns the apps in {@code phase}, in the order they were added. */
+  List<App> getApps(Phase phase) {
+    List<App> apps = new ArrayList<>();
+    for (App app : mAppsByPackage.values()) {
+      if (app.phase == phase) {
+        apps.add(app);
+      }
+    }
+    return apps;
+  }
+
+  App getApp(String packageName) {
+    return mAppsByPackage.get(packageName);
+  }
+
+  /** Keeps the download and unfinished counters in sync with the phase of each app. */
+  private void setPhase(App app, Phase phase) {
+    if (app.phase == Phase.DOWNLOADING) {
+      mActiveDownloads--;
+    }
+    if (app.isFinished()) {
+      mUnfinished++;
+    }
+    app.phase = phase;
+    if (app.phase == Phase.DOWNLOADING) {
+      mActiveDownloads++;
+    }
+    if (app.isFinished()) {
+      mUnfinished--;
+    }
+  }
+}
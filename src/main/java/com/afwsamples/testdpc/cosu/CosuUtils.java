@@ -30,6 +30,9 @@ import android.util.Log;
   public static final int MSG_DOWNLOAD_COMPLETE = 1;
   public static final int MSG_DOWNLOAD_TIMEOUT = 2;
   public static final int MSG_INSTALL_COMPLETE = 3;
+  public static final int MSG_INSTALL_COMMITTED = 4;
+  public static final int MSG_INSTALL_TIMEOUT = 5;
+  public static final int MSG_POLICIES_APPLIED = 6;
 
   private static final int DOWNLOAD_TIMEOUT_MILLIS = 120_000;
 
@@ -37,9 +40,13 @@ import android.util.Log;
   public static Long startDownload(DownloadManager dm, Handler handler, String location) {
     DownloadManager.Request request = new DownloadManager.Request(Uri.parse(location));
     Long id = dm.enqueue(request);
-    handler.sendMessageDelayed(
-        handler.obtainMessage(MSG_DOWNLOAD_TIMEOUT, id), DOWNLOAD_TIMEOUT_MILLIS);
+    scheduleDownloadTimeout(handler, id);
     if (DEBUG) Log.d(TAG, "Starting download: DownloadId=" + id);
     return id;
   }
+
+  public static void scheduleDownloadTimeout(Handler handler, Long id) {
+    handler.sendMessageDelayed(
+        handler.obtainMessage(MSG_DOWNLOAD_TIMEOUT, id), DOWNLOAD_TIMEOUT_MILLIS);
+  }
 }
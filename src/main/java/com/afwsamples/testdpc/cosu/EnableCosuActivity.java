@@ -44,6 +44,8 @@ import com.google.android.setupdesign.view.NavigationBar;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This activity is started after provisioning is complete in {@link DeviceAdminReceiver} for COSU
@@ -63,6 +65,7 @@ public class EnableCosuActivity extends Activity {
 
   private Long mConfigDownloadId;
   private CosuConfig mConfig;
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -111,6 +114,12 @@ public class EnableCosuActivity extends Activity {
     mStatusText.setText(getString(R.string.setup_cosu_status_download));
   }
 
+  @Override
+  protected void onDestroy() {
+    mExecutor.shutdown();
+    super.onDestroy();
+  }
+
   private void onConfigFileDownloaded() {
     mStatusText.setText(getString(R.string.setup_cosu_status_parse));
     if (CosuUtils.DEBUG) Log.d(CosuUtils.TAG, "Config file downloaded");
@@ -133,7 +142,18 @@ public class EnableCosuActivity extends Activity {
     Log.d(CosuUtils.TAG, "CosuConfig:");
     Log.d(CosuUtils.TAG, mConfig.toString());
 
-    if (!mConfig.applyPolicies(DeviceAdminReceiver.getComponentName(this))) {
+    // Reading the current policies scans the installed apps, so it is kept off the main thread.
+    final CosuConfig config = mConfig;
+    mExecutor.execute(
+        () -> {
+          boolean success = config.applyPolicies();
+          mHandler.sendMessage(
+              mHandler.obtainMessage(CosuUtils.MSG_POLICIES_APPLIED, success ? 1 : 0, 0));
+        });
+  }
+
+  private void onPoliciesApplied(boolean success) {
+    if (!success) {
       finishWithFailure();
       return;
     }
@@ -188,12 +208,14 @@ public class EnableCosuActivity extends Activity {
     Toast.makeText(this, R.string.setup_cosu_success, Toast.LENGTH_LONG).show();
     unregisterReceiver(mInstallReceiver);
     unregisterReceiver(mDownloadReceiver);
+    mConfig.release();
 
     // check that no timeout messages remain on the handler and remove them
     if (mHandler.hasMessages(CosuUtils.MSG_DOWNLOAD_TIMEOUT)) {
       Log.w(CosuUtils.TAG, "Download timeout messages remaining on handler thread.");
       mHandler.removeMessages(CosuUtils.MSG_DOWNLOAD_TIMEOUT);
     }
+    mHandler.removeMessages(CosuUtils.MSG_INSTALL_TIMEOUT);
     finish();
   }
 
@@ -202,6 +224,10 @@ public class EnableCosuActivity extends Activity {
     unregisterReceiver(mInstallReceiver);
     unregisterReceiver(mDownloadReceiver);
     mHandler.removeMessages(CosuUtils.MSG_DOWNLOAD_TIMEOUT);
+    mHandler.removeMessages(CosuUtils.MSG_INSTALL_TIMEOUT);
+    if (mConfig != null) {
+      mConfig.release();
+    }
     finish();
   }
 
@@ -209,6 +235,10 @@ public class EnableCosuActivity extends Activity {
       new Handler() {
         @Override
         public void handleMessage(Message msg) {
+          if (isFinishing()) {
+            // Installs that were running when the set up ended still report back.
+            return;
+          }
           switch (msg.what) {
             case CosuUtils.MSG_DOWNLOAD_COMPLETE:
               {
@@ -227,6 +257,12 @@ public class EnableCosuActivity extends Activity {
               }
               break;
 
+            case CosuUtils.MSG_POLICIES_APPLIED:
+              {
+                onPoliciesApplied(msg.arg1 != 0);
+              }
+              break;
+
             case CosuUtils.MSG_DOWNLOAD_TIMEOUT:
               {
                 long id = ((Long) msg.obj).longValue();
@@ -241,6 +277,24 @@ public class EnableCosuActivity extends Activity {
               }
               break;
 
+            case CosuUtils.MSG_INSTALL_COMMITTED:
+              {
+                mConfig.onInstallCommitted((String) msg.obj, msg.arg1 != 0);
+                if (mConfig.areAllInstallsFinished()) {
+                  startCosuMode();
+                }
+              }
+              break;
+
+            case CosuUtils.MSG_INSTALL_TIMEOUT:
+              {
+                mConfig.onInstallTimeout((String) msg.obj);
+                if (mConfig.areAllInstallsFinished()) {
+                  startCosuMode();
+                }
+              }
+              break;
+
             case CosuUtils.MSG_INSTALL_COMPLETE:
               {
                 mConfig.onInstallComplete((String) msg.obj);
@@ -15,9 +15,14 @@
  */
 package com.afwsamples.testdpc.feedback;
 
+import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.content.Context;
 import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 import androidx.core.app.NotificationCompat;
@@ -28,14 +33,20 @@ import androidx.enterprise.feedback.ReceivedKeyedAppState;
 import androidx.preference.PreferenceManager;
 import com.afwsamples.testdpc.R;
 import com.afwsamples.testdpc.common.Util;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Receive {@link KeyedAppState} instances and show them as a notification.
+ * Receive {@link KeyedAppState} instances, store them in {@link KeyedAppStateStore} and show them
+ * as a notification.
  *
- * <p>Also logs received keyed app states using the tag "KeyedAppStates".
+ * <p>Also logs received keyed app states using the tag "KeyedAppStates". A state that repeats the
+ * previous value of its key is only counted by the store, and a key that was notified less than
+ * {@link KeyedAppStateStore#DIGEST_INTERVAL_MILLIS} ago is updated by a periodic digest instead.
  */
 public class AppStatesService extends KeyedAppStatesService {
 
@@ -44,65 +55,131 @@ public class AppStatesService extends KeyedAppStatesService {
 
   @VisibleForTesting static final String TAG = "KeyedAppStates";
 
-  private int nextNotificationId = 0;
-  private Map<String, Integer> idMapping = new HashMap<>();
+  private static final Handler sHandler = new Handler(Looper.getMainLooper());
+  private static final AtomicBoolean sDigestScheduled = new AtomicBoolean();
 
   @Override
   public void onReceive(Collection<ReceivedKeyedAppState> states, boolean requestSync) {
-    boolean shouldNotify =
-        PreferenceManager.getDefaultSharedPreferences(this)
-            .getBoolean(getString(R.string.app_feedback_notifications), false);
+    KeyedAppStateStore store = KeyedAppStateStore.getInstance();
+    long now = SystemClock.elapsedRealtime();
+    List<KeyedAppStateStore.Update> updates = new ArrayList<>(states.size());
+    Set<String> packageNames = new LinkedHashSet<>();
+    for (ReceivedKeyedAppState state : states) {
+      updates.add(
+          store.record(
+              state.getPackageName(),
+              state.getKey(),
+              state.getSeverity(),
+              state.getMessage(),
+              state.getData(),
+              state.getTimestamp(),
+              now));
+      packageNames.add(state.getPackageName());
+    }
+    // The sync request applies to the whole batch, so it is recorded once per package.
+    if (requestSync) {
+      store.recordSyncRequest(packageNames);
+    }
 
-    if (!shouldNotify) {
+    if (!shouldNotify(this)) {
       return;
     }
 
     createNotificationChannel();
 
-    for (ReceivedKeyedAppState state : states) {
-      showNotification(state, requestSync);
+    NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
+    boolean deferred = false;
+    for (KeyedAppStateStore.Update update : updates) {
+      if (update.evictedNotificationId >= 0) {
+        notificationManager.cancel(update.evictedNotificationId);
+      }
+      if (update.repeated) {
+        continue;
+      }
+      log(update, requestSync);
+      if (update.notifyNow) {
+        notificationManager.notify(
+            update.notificationId,
+            buildNotification(
+                this,
+                update.packageName,
+                update.key,
+                update.record,
+                requestSync ? "\nSYNC REQUESTED" : ""));
+      } else {
+        deferred = true;
+      }
+    }
+    if (deferred && sDigestScheduled.compareAndSet(false, true)) {
+      Context context = getApplicationContext();
+      sHandler.postDelayed(() -> postDigest(context), KeyedAppStateStore.DIGEST_INTERVAL_MILLIS);
     }
   }
 
-  private void showNotification(ReceivedKeyedAppState state, boolean requestSync) {
-    final String logMessage =
-        state.getTimestamp()
-            + " "
-            + state.getPackageName()
-            + ":"
-            + state.getKey()
-            + "="
-            + state.getData()
-            + " ("
-            + state.getMessage()
-            + ")"
-            + (requestSync ? " - SYNC REQUESTED" : "");
+  private static boolean shouldNotify(Context context) {
+    return PreferenceManager.getDefaultSharedPreferences(context)
+        .getBoolean(context.getString(R.string.app_feedback_notifications), false);
+  }
 
-    if (state.getSeverity() == KeyedAppState.SEVERITY_ERROR) {
-      Log.e(TAG, logMessage);
+  private static void log(KeyedAppStateStore.Update update, boolean requestSync) {
+    KeyedAppStateStore.Record record = update.record;
+    StringBuilder logMessage =
+        new StringBuilder()
+            .append(record.timestamp)
+            .append(' ')
+            .append(update.packageName)
+            .append(':')
+            .append(update.key)
+            .append('=')
+            .append(record.data)
+            .append(" (")
+            .append(record.message)
+            .append(')');
+    if (requestSync) {
+      logMessage.append(" - SYNC REQUESTED");
+    }
+
+    if (record.severity == KeyedAppState.SEVERITY_ERROR) {
+      Log.e(TAG, logMessage.toString());
     } else {
-      Log.i(TAG, logMessage);
+      Log.i(TAG, logMessage.toString());
     }
+  }
 
-    final String severity =
-        (state.getSeverity() == KeyedAppState.SEVERITY_ERROR)
-            ? "ERROR"
-            : (state.getSeverity() == KeyedAppState.SEVERITY_INFO) ? "INFO" : "UNKNOWN";
+  /** Updates the notification of each key whose new values were not notified yet. */
+  private static void postDigest(Context context) {
+    sDigestScheduled.set(false);
+    List<KeyedAppStateStore.DigestItem> digest =
+        KeyedAppStateStore.getInstance().takeDigest(SystemClock.elapsedRealtime());
+    if (digest.isEmpty() || !shouldNotify(context)) {
+      return;
+    }
+    Log.i(TAG, "Digest of " + digest.size() + " keys");
+    NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+    for (KeyedAppStateStore.DigestItem item : digest) {
+      notificationManager.notify(
+          item.notificationId,
+          buildNotification(
+              context,
+              item.packageName,
+              item.key,
+              item.latest,
+              "\n" + item.updates + " updates since the last notification"));
+    }
+  }
 
-    NotificationCompat.Builder notificationBuilder =
-        new NotificationCompat.Builder(this, CHANNEL_ID)
-            .setSmallIcon(R.drawable.arrow_down)
-            .setContentTitle(state.getPackageName() + ":" + state.getKey() + " " + severity)
-            .setContentText(
-                state.getTimestamp()
-                    + " "
-                    + state.getData()
-                    + " ("
-                    + state.getMessage()
-                    + ")"
-                    + (requestSync ? "\nSYNC REQUESTED" : ""));
-    NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
-    notificationManager.notify(getIdForState(state), notificationBuilder.build());
+  private static Notification buildNotification(
+      Context context,
+      String packageName,
+      String key,
+      KeyedAppStateStore.Record record,
+      String suffix) {
+    return new NotificationCompat.Builder(context, CHANNEL_ID)
+        .setSmallIcon(R.drawable.arrow_down)
+        .setContentTitle(
+            packageName + ":" + key + " " + KeyedAppStateStore.severityToString(record.severity))
+        .setContentText(record.timestamp + " " + record.data + " (" + record.message + ")" + suffix)
+        .build();
   }
 
   private void createNotificationChannel() {
@@ -113,13 +190,4 @@ public class AppStatesService extends KeyedAppStatesService {
       notificationManager.createNotificationChannel(channel);
     }
   }
-
-  private int getIdForState(ReceivedKeyedAppState state) {
-    String key = state.getPackageName() + ":" + state.getKey();
-
-    if (!idMapping.containsKey(key)) {
-      idMapping.put(key, nextNotificationId++);
-    }
-    return idMapping.get(key);
-  }
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.feedback;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Process-wide store of the keyed app states received by {@link AppStatesService}, queried by the
+ * {@code query-keyed-app-states} shell command.
+ *
+ * <p>The last {@link #HISTORY_SIZE} values of each (package, key) are kept in a ring buffer. A
+ * value equal to the latest one (same severity, message and data) is folded into it by counting
+ * the repeat, so an app that reports the same state every few seconds takes a single slot. At most
+ * {@link #MAX_ENTRIES} keys are kept, and the least recently reported one is dropped first.
+ *
+ * <p>The store also decides when to notify: a new value of a key is notified right away if the key
+ * was not notified in the last {@link #DIGEST_INTERVAL_MILLIS}, and is otherwise left for the next
+ * {@link #takeDigest(long)}.
+ */
+public final class KeyedAppStateStore {
+  static final int HISTORY_SIZE = 16;
+  static final int MAX_ENTRIES = 256;
+  static final long DIGEST_INTERVAL_MILLIS = 60 * 1000;
+
+  // Values of KeyedAppState.SEVERITY_*.
+  static final int SEVERITY_INFO = 1;
+  static final int SEVERITY_ERROR = 2;
+
+  private static KeyedAppStateStore sInstance;
+
+  /** A value reported for a key. */
+  public static final class Record {
+    public final long timestamp;
+    public final int severity;
+    public final String message;
+    public final String data;
+    /** Number of times the value was reported in a row. */
+    public final int count;
+
+    Record(long timestamp, int severity, String message, String data, int count) {
+      this.timestamp = timestamp;
+      this.severity = severity;
+      this.message = message;
+      this.data = data;
+      this.count = count;
+    }
+
+    boolean sameValueAs(int severity, String message, String data) {
+      return this.severity == severity
+          && Objects.equals(this.message, message)
+          && Objects.equals(this.data, data);
+    }
+
+    @Override
+    public String toString() {
+      return timestamp
+          + " "
+          + severityToString(severity)
+          + " "
+          + data
+          + " ("
+          + message
+          + ")"
+          + (count > 1 ? " x" + count : "");
+    }
+  }
+
+  /** The result of {@link #record}. */
+  public static final class Update {
+    public final String packageName;
+    public final String key;
+    public final int notificationId;
+    public final Record record;
+    /** Whether the value is the same as the previous one of the key. */
+    public final boolean repeated;
+    /** Whether the value must be notified now, rather than in the next digest. */
+    public final boolean notifyNow;
+    /** The notification id of the key dropped to make room for this one, or -1. */
+    public final int evictedNotificationId;
+
+    Update(
+        Entry entry,
+        Record record,
+        boolean repeated,
+        boolean notifyNow,
+        int evictedNotificationId) {
+      this.packageName = entry.mPackageName;
+      this.key = entry.mKey;
+      this.notificationId = entry.mNotificationId;
+      this.record = record;
+      this.repeated = repeated;
+      this.notifyNow = notifyNow;
+      this.evictedNotificationId = evictedNotificationId;
+    }
+  }
+
+  /** The latest value of a key whose updates were left for a digest. */
+  public static final class DigestItem {
+    public final String packageName;
+    public final String key;
+    public final int notificationId;
+    public final Record latest;
+    /** Number of new values since the key was last notified. */
+    public final int updates;
+
+    DigestItem(Entry entry) {
+      this.packageName = entry.mPackageName;
+      this.key = entry.mKey;
+      this.notificationId = entry.mNotificationId;
+      this.latest = entry.getLatest();
+      this.updates = entry.mPendingUpdates;
+    }
+  }
+
+  private static final class Entry {
+    final String mPackageName;
+    final String mKey;
+    final int mNotificationId;
+    final Record[] mHistory = new Record[HISTORY_SIZE];
+    // Index of the latest record in mHistory, and number of records.
+    int mHead = -1;
+    int mSize;
+    int mInfoCount;
+    int mErrorCount;
+    long mLastNotifiedMillis = Long.MIN_VALUE;
+    int mPendingUpdates;
+
+    Entry(String packageName, String key, int notificationId) {
+      mPackageName = packageName;
+      mKey = key;
+      mNotificationId = notificationId;
+    }
+
+    Record getLatest() {
+      return mHistory[mHead];
+    }
+
+    void replaceLatest(Record record) {
+      mHistory[mHead] = record;
+    }
+
+    void add(Record record) {
+      mHead = (mHead + 1) % HISTORY_SIZE;
+      mHistory[mHead] = record;
+      mSize = Math.min(mSize + 1, HISTORY_SIZE);
+    }
+
+    /** Returns the records, from the oldest to the latest. */
+    List<Record> getHistory() {
+      List<Record> history = new ArrayList<>(mSize);
+      for (int i = mSize - 1; i >= 0; i--) {
+        history.add(mHistory[(mHead - i + HISTORY_SIZE) % HISTORY_SIZE]);
+      }
+      return history;
+    }
+  }
+
+  // In access order, so that the least recently reported key is evicted first.
+  private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, Integer> mSyncRequests = new LinkedHashMap<>();
+  private int mNextNotificationId;
+  private int mInfoCount;
+  private int mErrorCount;
+
+  KeyedAppStateStore() {}
+
+  public static synchronized KeyedAppStateStore getInstance() {
+    if (sInstance == null) {
+      sInstance = new KeyedAppStateStore();
+    }
+    return sInstance;
+  }
+
+  /**
+   * Records a value reported by {@code packageName} for {@code key}.
+   *
+   * @param nowMillis the current time, on a monotonic clock, used to rate limit notifications.
+   */
+  public synchronized Update record(
+      String packageName,
+      String key,
+      int severity,
+      String message,
+      String data,
+      long timestamp,
+      long nowMillis) {
+    if (severity == SEVERITY_ERROR) {
+      mErrorCount++;
+    } else {
+      mInfoCount++;
+    }
+    String mapKey = packageName + ":" + key;
+    Entry entry = mEntries.get(mapKey);
+    int evictedNotificationId = -1;
+    if (entry == null) {
+      if (mEntries.size() >= MAX_ENTRIES) {
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        evictedNotificationId = eldest.next().mNotificationId;
+        eldest.remove();
+      }
+      entry = new Entry(packageName, key, mNextNotificationId++);
+      mEntries.put(mapKey, entry);
+    }
+    if (severity == SEVERITY_ERROR) {
+      entry.mErrorCount++;
+    } else {
+      entry.mInfoCount++;
+    }
+    if (entry.mSize > 0 && entry.getLatest().sameValueAs(severity, message, data)) {
+      Record record = new Record(timestamp, severity, message, data, entry.getLatest().count + 1);
+      entry.replaceLatest(record);
+      return new Update(entry, record, true, false, evictedNotificationId);
+    }
+    Record record = new Record(timestamp, severity, message, data, 1);
+    entry.add(record);
+    boolean notifyNow =
+        entry.mLastNotifiedMillis == Long.MIN_VALUE
+            || nowMillis - entry.mLastNotifiedMillis >= DIGEST_INTERVAL_MILLIS;
+    if (notifyNow) {
+      entry.mLastNotifiedMillis = nowMillis;
+      entry.mPendingUpdates = 0;
+    } else {
+      entry.mPendingUpdates++;
+    }
+    return new Update(entry, record, false, notifyNow, evictedNotificationId);
+  }
+
+  /** Records that {@code packageNames} requested a sync in a single batch of states. */
+  public synchronized void recordSyncRequest(Collection<String> packageNames) {
+    for (String packageName : packageNames) {
+      Integer count = mSyncRequests.get(packageName);
+      mSyncRequests.put(packageName, count == null ? 1 : count + 1);
+    }
+  }
+
+  /** Returns whether some updates were left for a digest. */
+  public synchronized boolean hasPendingDigest() {
+    for (Entry entry : mEntries.values()) {
+      if (entry.mPendingUpdates > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the keys with updates that were not notified, and marks them as notified. */
+  public synchronized List<DigestItem> takeDigest(long nowMillis) {
+    List<DigestItem> digest = new ArrayList<>();
+    // Iterating doesn't change the access order.
+    for (Entry entry : mEntries.values()) {
+      if (entry.mPendingUpdates > 0) {
+        digest.add(new DigestItem(entry));
+        entry.mPendingUpdates = 0;
+        entry.mLastNotifiedMillis = nowMillis;
+      }
+    }
+    return digest;
+  }
+
+  /**
+   * Returns a description of the stored states, optionally limited to one package.
+   *
+   * @param history whether to list all the values kept for each key, and not only the latest.
+   */
+  public synchronized List<String> dump(String packageName, boolean history) {
+    List<String> lines = new ArrayList<>();
+    lines.add(
+        mEntries.size()
+            + " keys, "
+            + mInfoCount
+            + " info and "
+            + mErrorCount
+            + " error states received");
+    for (Entry entry : mEntries.values()) {
+      if (packageName != null && !packageName.equals(entry.mPackageName)) {
+        continue;
+      }
+      lines.add(
+          entry.mPackageName
+              + ":"
+              + entry.mKey
+              + " ("
+              + entry.mInfoCount
+              + " info, "
+              + entry.mErrorCount
+              + " error)");
+      List<Record> records =
+          history ? entry.getHistory() : Collections.singletonList(entry.getLatest());
+      for (Record record : records) {
+        lines.add("  " + record);
+      }
+    }
+    for (Map.Entry<String, Integer> syncRequest : mSyncRequests.entrySet()) {
+      if (packageName == null || packageName.equals(syncRequest.getKey())) {
+        lines.add("Sync requested by " + syncRequest.getKey() + " " + syncRequest.getValue() + "x");
+      }
+    }
+    return lines;
+  }
+
+  /** Drops all the states and counters. */
+  public synchronized void clear() {
+    mEntries.clear();
+    mSyncRequests.clear();
+    mInfoCount = 0;
+    mErrorCount = 0;
+  }
+
+  static String severityToString(int severity) {
+    return severity == SEVERITY_ERROR ? "ERROR" : severity == SEVERITY_INFO ? "INFO" : "UNKNOWN";
+  }
+}
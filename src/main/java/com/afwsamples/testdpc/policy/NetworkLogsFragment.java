@@ -16,124 +16,223 @@
 
 package com.afwsamples.testdpc.policy;
 
-import static com.afwsamples.testdpc.CommonReceiverOperations.NETWORK_LOGS_FILE_PREFIX;
-
 import android.annotation.TargetApi;
 import android.app.ListFragment;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.util.Log;
-import android.widget.ArrayAdapter;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
+import android.widget.TextView;
 import com.afwsamples.testdpc.R;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import com.afwsamples.testdpc.policy.networking.NetworkLogPager;
+import com.afwsamples.testdpc.policy.networking.NetworkLogStore;
+import com.afwsamples.testdpc.util.MainThreadExecutor;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.regex.PatternSyntaxException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-/** Display the last retrieved batch of NetworkEvents. */
+/**
+ * Display every retained batch of NetworkEvents.
+ *
+ * <p>Records are read through a memory-mapped {@link NetworkLogPager} and formatted a page at a
+ * time in the background, only for the part of the list that is being looked at.
+ */
 @TargetApi(VERSION_CODES.O)
 public class NetworkLogsFragment extends ListFragment {
 
   private static final String TAG = "NetworkLogsFragment";
 
-  private List<String> mLogs = new ArrayList<>();
-  private ArrayAdapter<String> mAdapter;
+  private static final int PAGE_SIZE = 64;
+  private static final int MAX_CACHED_PAGES = 16;
+  // Pending pages this far from the last requested one were scrolled past and are not loaded.
+  private static final int MAX_PAGE_DISTANCE = 2;
+
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Executor mMainThreadExecutor = new MainThreadExecutor();
+  private PagedLogsAdapter mAdapter;
+  private String mBatchHeaderFormat;
+  private String mLoadingText;
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    mAdapter =
-        new ArrayAdapter<>(
-            getActivity(), android.R.layout.simple_list_item_1, android.R.id.text1, mLogs);
+    mBatchHeaderFormat = getString(R.string.network_logs_batch_header);
+    mLoadingText = getString(R.string.network_logs_loading);
+    mAdapter = new PagedLogsAdapter();
     setListAdapter(mAdapter);
   }
 
   @Override
   public void onActivityCreated(Bundle savedInstanceState) {
     super.onActivityCreated(savedInstanceState);
-    mLogs = fetchEvents();
-    showEvents(mLogs);
+    NetworkLogStore store = NetworkLogStore.getInstance(getContext());
+    mExecutor.execute(
+        () -> {
+          try {
+            NetworkLogPager pager = store.openPager();
+            mMainThreadExecutor.execute(() -> showEvents(pager));
+          } catch (IOException e) {
+            Log.e(TAG, "Failed opening network logs", e);
+            mMainThreadExecutor.execute(() -> showEvents(null));
+          }
+        });
   }
 
-  private List<String> fetchEvents() {
-    File logsFile = findLastBatch();
-    if (logsFile == null) {
-      return Collections.emptyList();
+  @Override
+  public void onDestroy() {
+    mExecutor.shutdownNow();
+    super.onDestroy();
+  }
+
+  private void showEvents(NetworkLogPager pager) {
+    if (!isAdded()) {
+      return;
     }
-    BufferedReader reader = null;
-    try {
-      long batchToken = determineBatchToken(logsFile.getName());
-      mAdapter.add(getContext().getString(R.string.on_network_logs_available_success, batchToken));
-      reader = new BufferedReader(new FileReader(logsFile));
-      ArrayList<String> events = new ArrayList<>();
-      String line;
-      while ((line = reader.readLine()) != null) {
-        Log.v(TAG, "found line: " + line);
-        events.add(line);
-      }
-      return events;
-    } catch (NumberFormatException | IOException e) {
-      mAdapter.add(getString(R.string.on_network_logs_available_failure));
-    } finally {
-      try {
-        if (reader != null) {
-          reader.close();
-        }
-      } catch (IOException e) {
-        // no-op
-      }
+    if (pager == null) {
+      setEmptyText(getString(R.string.on_network_logs_available_failure));
+      return;
+    }
+    Log.d(TAG, "Incoming logs: " + pager.getCount() + " records in " + pager.getBatchCount()
+        + " batches");
+    if (pager.getCount() == 0) {
+      Log.w(TAG, "No stored batch, are you polling too early?");
     }
-    return Collections.emptyList();
+    mAdapter.setPager(pager);
+    ListView listView = getListView();
+    listView.setSelection(listView.getCount() - 1);
   }
 
-  private void showEvents(List<String> logs) {
-    if (logs == null) {
-      Log.w(TAG, "logs == null, are you polling too early?");
-      mAdapter.add(getString(R.string.on_network_logs_available_failure));
-    } else {
-      Log.d(TAG, "Incoming logs size: " + logs.size());
-      mAdapter.addAll(mLogs);
-      ListView listView = NetworkLogsFragment.this.getListView();
-      listView.setSelection(listView.getCount() - 1);
+  /** Formats the records of the given page. Runs on {@link #mExecutor}. */
+  private String[] loadPage(NetworkLogPager pager, int page) {
+    int start = page * PAGE_SIZE;
+    int end = Math.min(start + PAGE_SIZE, pager.getCount());
+    String[] rows = new String[end - start];
+    NetworkLogStore.RecordView record = pager.newRecordView();
+    StringBuilder sb = new StringBuilder();
+    for (int position = start; position < end; position++) {
+      pager.read(position, record);
+      sb.setLength(0);
+      int batchIndex = pager.getBatchIndex(position);
+      if (pager.getBatchStart(batchIndex) == position) {
+        sb.append(String.format(Locale.getDefault(), mBatchHeaderFormat, record.getBatchToken()))
+            .append('\n');
+      }
+      rows[position - start] = record.appendTo(sb).toString();
     }
+    return rows;
   }
 
-  private File findLastBatch() {
-    File path = getContext().getExternalFilesDir(null);
-    if (path == null) {
-      return null;
+  /**
+   * Adapter that only keeps a bounded number of formatted pages around, loading missing pages in
+   * the background and showing a placeholder until they are ready.
+   */
+  private class PagedLogsAdapter extends BaseAdapter {
+    private final LruCache<Integer, String[]> mPages = new LruCache<>(MAX_CACHED_PAGES);
+    private final Set<Integer> mPendingPages = new HashSet<>();
+    private volatile int mLastRequestedPage;
+    private NetworkLogPager mPager;
+
+    void setPager(NetworkLogPager pager) {
+      mPager = pager;
+      mPages.evictAll();
+      mPendingPages.clear();
+      notifyDataSetChanged();
     }
-    File[] networkLogsFiles =
-        path.listFiles((File file, String s) -> s.startsWith(NETWORK_LOGS_FILE_PREFIX));
-    if (networkLogsFiles == null || networkLogsFiles.length == 0) {
-      return null;
+
+    @Override
+    public int getCount() {
+      return mPager == null ? 0 : mPager.getCount();
+    }
+
+    /** Returns the formatted record, or {@code null} while its page is being loaded. */
+    @Override
+    public String getItem(int position) {
+      int page = position / PAGE_SIZE;
+      String[] rows = mPages.get(page);
+      if (position % PAGE_SIZE >= PAGE_SIZE / 2) {
+        prefetch(page + 1);
+      } else {
+        prefetch(page - 1);
+      }
+      if (rows == null) {
+        requestPage(page);
+        return null;
+      }
+      return rows[position % PAGE_SIZE];
+    }
+
+    @Override
+    public long getItemId(int position) {
+      return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+      TextView view =
+          convertView != null
+              ? (TextView) convertView
+              : (TextView)
+                  LayoutInflater.from(parent.getContext())
+                      .inflate(android.R.layout.simple_list_item_1, parent, false);
+      String text = getItem(position);
+      view.setText(text != null ? text : mLoadingText);
+      return view;
+    }
+
+    private void prefetch(int page) {
+      if (page >= 0 && page * PAGE_SIZE < getCount() && mPages.get(page) == null) {
+        requestPage(page);
+      }
+    }
+
+    private void requestPage(int page) {
+      mLastRequestedPage = page;
+      if (!mPendingPages.add(page)) {
+        return;
+      }
+      NetworkLogPager pager = mPager;
+      mExecutor.execute(
+          () -> {
+            String[] rows =
+                Math.abs(page - mLastRequestedPage) > MAX_PAGE_DISTANCE
+                    ? null
+                    : loadPage(pager, page);
+            mMainThreadExecutor.execute(() -> onPageLoaded(pager, page, rows));
+          });
     }
-    // Get the most recent batch. Batches are sorted by the timestamp they were last modified
-    // in, also corresponding to the last value in their file names.
-    return Collections.max(
-        // Can't use Comparator.comparing(): requires default interface methods (min_sdk >= 24).
-        Arrays.asList(networkLogsFiles),
-        (f1, f2) -> Long.signum(f1.lastModified() - f2.lastModified()));
-  }
 
-  private long determineBatchToken(String fileName) throws NumberFormatException {
-    // Name should be "network_logs_X_Y.txt", where X is the batch token
-    String[] fileNameArr = fileName.split("_");
-    if (fileNameArr.length <= 2) {
-      throw new NumberFormatException("Failed parsing the batch from file: " + fileName);
+    private void onPageLoaded(NetworkLogPager pager, int page, String[] rows) {
+      if (pager != mPager) {
+        return;
+      }
+      mPendingPages.remove(page);
+      if (rows != null) {
+        mPages.put(page, rows);
+        notifyDataSetChanged();
+      } else if (isPageVisible(page)) {
+        // Skipped while scrolling past it, but the list stopped on it: its placeholders would
+        // otherwise stay until the next scroll.
+        requestPage(page);
+      }
     }
-    long batchToken;
-    try {
-      batchToken = Long.parseLong(fileNameArr[2]);
-    } catch (PatternSyntaxException e) {
-      throw new NumberFormatException("Failed parsing the batch from file: " + fileName);
+
+    private boolean isPageVisible(int page) {
+      if (getView() == null) {
+        return false;
+      }
+      ListView listView = getListView();
+      int start = page * PAGE_SIZE;
+      return start <= listView.getLastVisiblePosition()
+          && start + PAGE_SIZE > listView.getFirstVisiblePosition();
     }
-    return batchToken;
   }
 }
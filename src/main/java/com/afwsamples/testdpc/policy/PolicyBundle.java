@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import androidx.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of policies to apply together with {@link PolicyBundleEngine}, as read by {@link
+ * PolicyBundleParser}.
+ *
+ * <p>Apps, restrictions and settings are deduplicated as they are added. A policy that is not set
+ * in the bundle (a null value or lock task packages) is left as it is on the device.
+ */
+public final class PolicyBundle {
+  @Nullable private final Set<String> mLockTaskPackages;
+  private final Set<String> mHiddenApps;
+  private final Set<String> mEnabledSystemApps;
+  private final Set<String> mUserRestrictions;
+  private final Map<String, String> mGlobalSettings;
+  @Nullable private final Boolean mKeyguardDisabled;
+  @Nullable private final Boolean mStatusBarDisabled;
+  @Nullable private final Boolean mCameraDisabled;
+  @Nullable private final Boolean mScreenCaptureDisabled;
+
+  private PolicyBundle(Builder builder) {
+    mLockTaskPackages =
+        builder.mLockTaskPackages == null
+            ? null
+            : Collections.unmodifiableSet(new LinkedHashSet<>(builder.mLockTaskPackages));
+    mHiddenApps = Collections.unmodifiableSet(new LinkedHashSet<>(builder.mHiddenApps));
+    mEnabledSystemApps =
+        Collections.unmodifiableSet(new LinkedHashSet<>(builder.mEnabledSystemApps));
+    mUserRestrictions = Collections.unmodifiableSet(new LinkedHashSet<>(builder.mUserRestrictions));
+    mGlobalSettings = Collections.unmodifiableMap(new LinkedHashMap<>(builder.mGlobalSettings));
+    mKeyguardDisabled = builder.mKeyguardDisabled;
+    mStatusBarDisabled = builder.mStatusBarDisabled;
+    mCameraDisabled = builder.mCameraDisabled;
+    mScreenCaptureDisabled = builder.mScreenCaptureDisabled;
+  }
+
+  /** Returns the packages allowed to lock task, or null if they are not set. */
+  @Nullable
+  public Set<String> getLockTaskPackages() {
+    return mLockTaskPackages;
+  }
+
+  public Set<String> getHiddenApps() {
+    return mHiddenApps;
+  }
+
+  public Set<String> getEnabledSystemApps() {
+    return mEnabledSystemApps;
+  }
+
+  public Set<String> getUserRestrictions() {
+    return mUserRestrictions;
+  }
+
+  public Map<String, String> getGlobalSettings() {
+    return mGlobalSettings;
+  }
+
+  @Nullable
+  public Boolean getKeyguardDisabled() {
+    return mKeyguardDisabled;
+  }
+
+  @Nullable
+  public Boolean getStatusBarDisabled() {
+    return mStatusBarDisabled;
+  }
+
+  @Nullable
+  public Boolean getCameraDisabled() {
+    return mCameraDisabled;
+  }
+
+  @Nullable
+  public Boolean getScreenCaptureDisabled() {
+    return mScreenCaptureDisabled;
+  }
+
+  /** Returns the number of policies set in the bundle, each app and setting counting as one. */
+  public int size() {
+    return (mLockTaskPackages == null ? 0 : 1)
+        + mHiddenApps.size()
+        + mEnabledSystemApps.size()
+        + mUserRestrictions.size()
+        + mGlobalSettings.size()
+        + (mKeyguardDisabled == null ? 0 : 1)
+        + (mStatusBarDisabled == null ? 0 : 1)
+        + (mCameraDisabled == null ? 0 : 1)
+        + (mScreenCaptureDisabled == null ? 0 : 1);
+  }
+
+  public Builder toBuilder() {
+    Builder builder = new Builder();
+    if (mLockTaskPackages != null) {
+      builder.setLockTaskPackages(mLockTaskPackages);
+    }
+    builder.mHiddenApps.addAll(mHiddenApps);
+    builder.mEnabledSystemApps.addAll(mEnabledSystemApps);
+    builder.mUserRestrictions.addAll(mUserRestrictions);
+    builder.mGlobalSettings.putAll(mGlobalSettings);
+    return builder
+        .setKeyguardDisabled(mKeyguardDisabled)
+        .setStatusBarDisabled(mStatusBarDisabled)
+        .setCameraDisabled(mCameraDisabled)
+        .setScreenCaptureDisabled(mScreenCaptureDisabled);
+  }
+
+  @Override
+  public String toString() {
+    return "lockTaskPackages="
+        + mLockTaskPackages
+        + " hiddenApps="
+        + mHiddenApps
+        + " enabledSystemApps="
+        + mEnabledSystemApps
+        + " userRestrictions="
+        + mUserRestrictions
+        + " globalSettings="
+        + mGlobalSettings
+        + " keyguardDisabled="
+        + mKeyguardDisabled
+        + " statusBarDisabled="
+        + mStatusBarDisabled
+        + " cameraDisabled="
+        + mCameraDisabled
+        + " screenCaptureDisabled="
+        + mScreenCaptureDisabled;
+  }
+
+  /** Builder for {@link PolicyBundle}. */
+  public static final class Builder {
+    private Set<String> mLockTaskPackages;
+    private final Set<String> mHiddenApps = new LinkedHashSet<>();
+    private final Set<String> mEnabledSystemApps = new LinkedHashSet<>();
+    private final Set<String> mUserRestrictions = new LinkedHashSet<>();
+    private final Map<String, String> mGlobalSettings = new LinkedHashMap<>();
+    private Boolean mKeyguardDisabled;
+    private Boolean mStatusBarDisabled;
+    private Boolean mCameraDisabled;
+    private Boolean mScreenCaptureDisabled;
+
+    /** Sets the packages allowed to lock task, replacing the ones added so far. */
+    public Builder setLockTaskPackages(Collection<String> packageNames) {
+      mLockTaskPackages = new LinkedHashSet<>(packageNames);
+      return this;
+    }
+
+    public Builder addLockTaskPackage(String packageName) {
+      if (mLockTaskPackages == null) {
+        mLockTaskPackages = new LinkedHashSet<>();
+      }
+      mLockTaskPackages.add(packageName);
+      return this;
+    }
+
+    public Builder addHiddenApp(String packageName) {
+      mHiddenApps.add(packageName);
+      return this;
+    }
+
+    public Builder addEnabledSystemApp(String packageName) {
+      mEnabledSystemApps.add(packageName);
+      return this;
+    }
+
+    public Builder addUserRestriction(String restriction) {
+      mUserRestrictions.add(restriction);
+      return this;
+    }
+
+    /** Sets a global setting. The last value wins if a setting is put twice. */
+    public Builder putGlobalSetting(String setting, String value) {
+      mGlobalSettings.put(setting, value);
+      return this;
+    }
+
+    public Builder setKeyguardDisabled(@Nullable Boolean disabled) {
+      mKeyguardDisabled = disabled;
+      return this;
+    }
+
+    public Builder setStatusBarDisabled(@Nullable Boolean disabled) {
+      mStatusBarDisabled = disabled;
+      return this;
+    }
+
+    public Builder setCameraDisabled(@Nullable Boolean disabled) {
+      mCameraDisabled = disabled;
+      return this;
+    }
+
+    public Builder setScreenCaptureDisabled(@Nullable Boolean disabled) {
+      mScreenCaptureDisabled = disabled;
+      return this;
+    }
+
+    public PolicyBundle build() {
+      return new PolicyBundle(this);
+    }
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Build.VERSION_CODES;
+import android.provider.Settings;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.afwsamples.testdpc.DevicePolicyManagerGateway;
+import com.afwsamples.testdpc.common.Util;
+import com.afwsamples.testdpc.policy.PolicyPlan.Step;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies {@link PolicyBundle}s through a {@link DevicePolicyManagerGateway}.
+ *
+ * <p>The current policies are read first, with one call per kind of policy where the platform
+ * allows it, and only the policies that differ are set, in the order of {@link PolicyPlan.Kind}.
+ * If a call fails, the steps already applied are undone in reverse order, so the device is left
+ * with the policies it had before. Steps whose previous value can't be read, such as enabling a
+ * system app, are not undone. Best effort steps, see {@link Step#isBestEffort()}, are skipped when
+ * they fail, and the following steps are still applied.
+ */
+public final class PolicyBundleEngine {
+  private static final String TAG = "PolicyBundleEngine";
+
+  /** Outcome of {@link #apply(PolicyPlan)}. */
+  public static final class Result {
+    private final Map<Step, Long> mAppliedStepMicros = new LinkedHashMap<>();
+    private final List<Step> mRolledBack = new ArrayList<>();
+    private final List<Step> mNotRolledBack = new ArrayList<>();
+    private final List<Step> mSkipped = new ArrayList<>();
+    private int mUnchanged;
+    private Step mFailedStep;
+    private Exception mError;
+
+    public boolean isSuccess() {
+      return mFailedStep == null;
+    }
+
+    /** Steps that were applied, with the time each call took in microseconds. */
+    public Map<Step, Long> getAppliedStepMicros() {
+      return Collections.unmodifiableMap(mAppliedStepMicros);
+    }
+
+    /** Number of policies that already had the desired value. */
+    public int getUnchanged() {
+      return mUnchanged;
+    }
+
+    /** Returns the step that failed, or null if all the steps were applied. */
+    @Nullable
+    public Step getFailedStep() {
+      return mFailedStep;
+    }
+
+    @Nullable
+    public Exception getError() {
+      return mError;
+    }
+
+    /** Steps that were undone after the failure. */
+    public List<Step> getRolledBack() {
+      return Collections.unmodifiableList(mRolledBack);
+    }
+
+    /** Steps that were applied before the failure and could not be undone. */
+    public List<Step> getNotRolledBack() {
+      return Collections.unmodifiableList(mNotRolledBack);
+    }
+
+    /** Best effort steps that failed, and were skipped. */
+    public List<Step> getSkipped() {
+      return Collections.unmodifiableList(mSkipped);
+    }
+  }
+
+  private final ContentResolver mContentResolver;
+  private final DevicePolicyManagerGateway mDevicePolicyManagerGateway;
+
+  public PolicyBundleEngine(
+      Context context, DevicePolicyManagerGateway devicePolicyManagerGateway) {
+    mContentResolver = context.getContentResolver();
+    mDevicePolicyManagerGateway = devicePolicyManagerGateway;
+  }
+
+  /** Returns the steps needed to apply {@code desired}, without applying them. */
+  public PolicyPlan plan(PolicyBundle desired) {
+    long start = System.nanoTime();
+    if (Util.SDK_INT < VERSION_CODES.M) {
+      // The keyguard and status bar can only be disabled from M.
+      desired = desired.toBuilder().setKeyguardDisabled(null).setStatusBarDisabled(null).build();
+    }
+    PolicyPlan plan = PolicyPlan.create(desired, readCurrentPolicies(desired));
+    Log.d(
+        TAG,
+        "plan(): "
+            + plan.getSteps().size()
+            + " steps, "
+            + plan.getUnchangedCount()
+            + " unchanged, in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            + " ms");
+    return plan;
+  }
+
+  /** Plans and applies {@code desired}. */
+  public Result apply(PolicyBundle desired) {
+    return apply(plan(desired));
+  }
+
+  /**
+   * Applies the steps of {@code plan} in order, undoing them all if one that isn't best effort
+   * fails.
+   */
+  public Result apply(PolicyPlan plan) {
+    Result result = new Result();
+    result.mUnchanged = plan.getUnchangedCount();
+    List<Step> applied = new ArrayList<>(plan.getSteps().size());
+    for (Step step : plan.getSteps()) {
+      long start = System.nanoTime();
+      Exception error = run(step, step.getValue());
+      long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+      if (error != null && step.isBestEffort()) {
+        Log.w(TAG, "Failed to apply " + step + ", skipping it", error);
+        result.mSkipped.add(step);
+        continue;
+      }
+      if (error != null) {
+        Log.e(
+            TAG, "Failed to apply " + step + ", rolling back " + applied.size() + " steps", error);
+        result.mFailedStep = step;
+        result.mError = error;
+        rollBack(applied, result);
+        return result;
+      }
+      applied.add(step);
+      result.mAppliedStepMicros.put(step, micros);
+    }
+    Log.d(
+        TAG,
+        "apply(): applied " + applied.size() + " steps, skipped " + result.mSkipped.size());
+    return result;
+  }
+
+  private void rollBack(List<Step> applied, Result result) {
+    for (int i = applied.size() - 1; i >= 0; i--) {
+      Step step = applied.get(i);
+      if (!step.isReversible()) {
+        result.mNotRolledBack.add(step);
+        continue;
+      }
+      Exception error = run(step, step.getPreviousValue());
+      if (error == null) {
+        result.mRolledBack.add(step);
+      } else {
+        Log.e(TAG, "Failed to roll back " + step, error);
+        result.mNotRolledBack.add(step);
+      }
+    }
+  }
+
+  /**
+   * Reads the current value of the policies of {@code desired}, in the form expected by {@link
+   * PolicyPlan#create}.
+   */
+  private PolicyBundle readCurrentPolicies(PolicyBundle desired) {
+    PolicyBundle.Builder current = new PolicyBundle.Builder();
+    if (!desired.getEnabledSystemApps().isEmpty()) {
+      Set<String> disabled = new HashSet<>(mDevicePolicyManagerGateway.getDisabledSystemApps());
+      for (String packageName : desired.getEnabledSystemApps()) {
+        if (!disabled.contains(packageName)) {
+          current.addEnabledSystemApp(packageName);
+        }
+      }
+    }
+    for (String packageName : desired.getHiddenApps()) {
+      try {
+        if (mDevicePolicyManagerGateway.isApplicationHidden(packageName)) {
+          current.addHiddenApp(packageName);
+        }
+      } catch (NameNotFoundException e) {
+        // Like hidden, there is nothing to show.
+        Log.w(TAG, "Not hiding " + packageName + ", which is not installed");
+        current.addHiddenApp(packageName);
+      }
+    }
+    if (desired.getLockTaskPackages() != null) {
+      current.setLockTaskPackages(
+          Arrays.asList(mDevicePolicyManagerGateway.getLockTaskPackages()));
+    }
+    if (!desired.getUserRestrictions().isEmpty()) {
+      UserRestrictionSet restrictions =
+          new UserRestrictionEngine(mDevicePolicyManagerGateway).getAdminRestrictions();
+      for (String restriction : desired.getUserRestrictions()) {
+        if (restrictions.contains(restriction)) {
+          current.addUserRestriction(restriction);
+        }
+      }
+    }
+    for (String setting : desired.getGlobalSettings().keySet()) {
+      String value = Settings.Global.getString(mContentResolver, setting);
+      if (value != null) {
+        current.putGlobalSetting(setting, value);
+      }
+    }
+    // The keyguard and status bar flags can't be read back, so they are always set.
+    if (desired.getCameraDisabled() != null) {
+      current.setCameraDisabled(mDevicePolicyManagerGateway.getCameraDisabled());
+    }
+    if (desired.getScreenCaptureDisabled() != null) {
+      current.setScreenCaptureDisabled(mDevicePolicyManagerGateway.getScreenCaptureDisabled());
+    }
+    return current.build();
+  }
+
+  /**
+   * Sets the policy of {@code step} to {@code value}. The gateway calls back before returning.
+   *
+   * @return the error, or null if the policy was set.
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  private Exception run(Step step, Object value) {
+    Exception[] error = new Exception[1];
+    DevicePolicyManagerGateway gateway = mDevicePolicyManagerGateway;
+    switch (step.getKind()) {
+      case ENABLE_SYSTEM_APP:
+        gateway.enableSystemApp(step.getKey(), (v) -> {}, (e) -> error[0] = e);
+        break;
+      case HIDE_APP:
+        gateway.setApplicationHidden(
+            step.getKey(), (Boolean) value, (v) -> {}, (e) -> error[0] = e);
+        break;
+      case LOCK_TASK_PACKAGES:
+        Set<String> packages = (Set<String>) value;
+        gateway.setLockTaskPackages(
+            packages.toArray(new String[packages.size()]), (v) -> {}, (e) -> error[0] = e);
+        break;
+      case USER_RESTRICTION:
+        gateway.setUserRestriction(step.getKey(), (Boolean) value, (v) -> {}, (e) -> error[0] = e);
+        break;
+      case GLOBAL_SETTING:
+        gateway.setGlobalSetting(step.getKey(), (String) value, (v) -> {}, (e) -> error[0] = e);
+        break;
+      case KEYGUARD_DISABLED:
+        gateway.setKeyguardDisabled((Boolean) value, (v) -> {}, (e) -> error[0] = e);
+        break;
+      case STATUS_BAR_DISABLED:
+        gateway.setStatusBarDisabled((Boolean) value, (v) -> {}, (e) -> error[0] = e);
+        break;
+      case CAMERA_DISABLED:
+        gateway.setCameraDisabled((Boolean) value, (v) -> {}, (e) -> error[0] = e);
+        break;
+      case SCREEN_CAPTURE_DISABLED:
+        gateway.setScreenCaptureDisabled((Boolean) value, (v) -> {}, (e) -> error[0] = e);
+        break;
+    }
+    return error[0];
+  }
+}
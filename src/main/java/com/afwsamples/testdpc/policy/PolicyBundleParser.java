@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import android.util.Xml;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Reads {@link PolicyBundle}s from the XML of the COSU config, or from JSON.
+ *
+ * <p>In the XML form, as in the COSU config, the lock task packages are the kiosk apps and the
+ * flags that are not set are false. The JSON form is an object with any of these keys, and the
+ * policies whose key is missing are left as they are:
+ *
+ * <pre>
+ * {
+ *   "lock_task_packages": ["com.example.kiosk"],
+ *   "hide_apps": ["com.example.game"],
+ *   "enable_system_apps": ["com.android.camera2"],
+ *   "user_restrictions": ["no_install_apps"],
+ *   "global_settings": {"auto_time": "1"},
+ *   "disable_keyguard": true,
+ *   "disable_status_bar": true,
+ *   "disable_camera": false,
+ *   "disable_screen_capture": true
+ * }
+ * </pre>
+ */
+public final class PolicyBundleParser {
+  private static final String TAG_APP = "app";
+  private static final String TAG_ENABLE_APPS = "enable-apps";
+  private static final String TAG_HIDE_APPS = "hide-apps";
+  private static final String TAG_KIOSK_APPS = "kiosk-apps";
+  private static final String TAG_POLICIES = "policies";
+  private static final String TAG_USER_RESTRICTION = "user-restriction";
+  private static final String TAG_GLOBAL_SETTING = "global-setting";
+  private static final String TAG_DISABLE_STATUS_BAR = "disable-status-bar";
+  private static final String TAG_DISABLE_KEYGUARD = "disable-keyguard";
+  private static final String TAG_DISABLE_CAMERA = "disable-camera";
+  private static final String TAG_DISABLE_SCREEN_CAPTURE = "disable-screen-capture";
+
+  private static final String ATTRIBUTE_PACKAGE_NAME = "package-name";
+  private static final String ATTRIBUTE_VALUE = "value";
+  private static final String ATTRIBUTE_NAME = "name";
+
+  private static final String KEY_LOCK_TASK_PACKAGES = "lock_task_packages";
+  private static final String KEY_HIDE_APPS = "hide_apps";
+  private static final String KEY_ENABLE_SYSTEM_APPS = "enable_system_apps";
+  private static final String KEY_USER_RESTRICTIONS = "user_restrictions";
+  private static final String KEY_GLOBAL_SETTINGS = "global_settings";
+  private static final String KEY_DISABLE_KEYGUARD = "disable_keyguard";
+  private static final String KEY_DISABLE_STATUS_BAR = "disable_status_bar";
+  private static final String KEY_DISABLE_CAMERA = "disable_camera";
+  private static final String KEY_DISABLE_SCREEN_CAPTURE = "disable_screen_capture";
+
+  private PolicyBundleParser() {}
+
+  /** Reads the policies of a COSU config XML. The other elements are ignored. */
+  public static PolicyBundle parseXml(InputStream in) throws XmlPullParserException, IOException {
+    try {
+      XmlPullParser parser = Xml.newPullParser();
+      parser.setInput(in, null);
+      PolicyBundle.Builder builder = newXmlBuilder();
+      while (parser.next() != XmlPullParser.END_DOCUMENT) {
+        if (parser.getEventType() == XmlPullParser.START_TAG) {
+          readXmlElement(parser, builder);
+        }
+      }
+      return builder.build();
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Returns a builder with the defaults of the XML form. */
+  public static PolicyBundle.Builder newXmlBuilder() {
+    return new PolicyBundle.Builder()
+        .setLockTaskPackages(Collections.<String>emptySet())
+        .setKeyguardDisabled(false)
+        .setStatusBarDisabled(false)
+        .setCameraDisabled(false)
+        .setScreenCaptureDisabled(false);
+  }
+
+  /**
+   * Reads the element at the current start tag into {@code builder} if it is a policy element.
+   *
+   * @return true if the element was read, false if it isn't a policy element, in which case the
+   *     parser didn't move.
+   */
+  public static boolean readXmlElement(XmlPullParser parser, PolicyBundle.Builder builder)
+      throws XmlPullParserException, IOException {
+    String name = parser.getName();
+    if (TAG_POLICIES.equals(name)) {
+      readPolicies(parser, builder);
+    } else if (TAG_ENABLE_APPS.equals(name)) {
+      readApps(parser, builder, TAG_ENABLE_APPS);
+    } else if (TAG_HIDE_APPS.equals(name)) {
+      readApps(parser, builder, TAG_HIDE_APPS);
+    } else if (TAG_KIOSK_APPS.equals(name)) {
+      readApps(parser, builder, TAG_KIOSK_APPS);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /** Reads the JSON form of a bundle. */
+  public static PolicyBundle parseJson(String json) throws JSONException {
+    JSONObject object = new JSONObject(json);
+    PolicyBundle.Builder builder = new PolicyBundle.Builder();
+    Iterator<String> keys = object.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      switch (key) {
+        case KEY_LOCK_TASK_PACKAGES:
+          JSONArray packages = object.getJSONArray(key);
+          builder.setLockTaskPackages(Collections.<String>emptySet());
+          for (int i = 0; i < packages.length(); i++) {
+            builder.addLockTaskPackage(packages.getString(i));
+          }
+          break;
+        case KEY_HIDE_APPS:
+          JSONArray hiddenApps = object.getJSONArray(key);
+          for (int i = 0; i < hiddenApps.length(); i++) {
+            builder.addHiddenApp(hiddenApps.getString(i));
+          }
+          break;
+        case KEY_ENABLE_SYSTEM_APPS:
+          JSONArray systemApps = object.getJSONArray(key);
+          for (int i = 0; i < systemApps.length(); i++) {
+            builder.addEnabledSystemApp(systemApps.getString(i));
+          }
+          break;
+        case KEY_USER_RESTRICTIONS:
+          JSONArray restrictions = object.getJSONArray(key);
+          for (int i = 0; i < restrictions.length(); i++) {
+            builder.addUserRestriction(restrictions.getString(i));
+          }
+          break;
+        case KEY_GLOBAL_SETTINGS:
+          JSONObject settings = object.getJSONObject(key);
+          Iterator<String> settingNames = settings.keys();
+          while (settingNames.hasNext()) {
+            String setting = settingNames.next();
+            builder.putGlobalSetting(setting, settings.getString(setting));
+          }
+          break;
+        case KEY_DISABLE_KEYGUARD:
+          builder.setKeyguardDisabled(object.getBoolean(key));
+          break;
+        case KEY_DISABLE_STATUS_BAR:
+          builder.setStatusBarDisabled(object.getBoolean(key));
+          break;
+        case KEY_DISABLE_CAMERA:
+          builder.setCameraDisabled(object.getBoolean(key));
+          break;
+        case KEY_DISABLE_SCREEN_CAPTURE:
+          builder.setScreenCaptureDisabled(object.getBoolean(key));
+          break;
+        default:
+          throw new JSONException("Unknown policy: " + key);
+      }
+    }
+    return builder.build();
+  }
+
+  /** Read a number of apps from the xml parser */
+  private static void readApps(XmlPullParser parser, PolicyBundle.Builder builder, String tag)
+      throws XmlPullParserException, IOException {
+    while (parser.next() != XmlPullParser.END_TAG) {
+      if (parser.getEventType() != XmlPullParser.START_TAG) {
+        continue;
+      }
+
+      String name = parser.getName();
+      if (TAG_APP.equals(name)) {
+        String packageName = parser.getAttributeValue(null, ATTRIBUTE_PACKAGE_NAME);
+        if (packageName != null) {
+          if (TAG_ENABLE_APPS.equals(tag)) {
+            builder.addEnabledSystemApp(packageName);
+          } else if (TAG_HIDE_APPS.equals(tag)) {
+            builder.addHiddenApp(packageName);
+          } else {
+            builder.addLockTaskPackage(packageName);
+          }
+        }
+      }
+      skipCurrentTag(parser);
+    }
+  }
+
+  /** Read the policies to be set */
+  private static void readPolicies(XmlPullParser parser, PolicyBundle.Builder builder)
+      throws IOException, XmlPullParserException {
+    while (parser.next() != XmlPullParser.END_TAG) {
+      if (parser.getEventType() != XmlPullParser.START_TAG) {
+        continue;
+      }
+
+      String name = parser.getName();
+      if (TAG_USER_RESTRICTION.equals(name)) {
+        String userRestriction = parser.getAttributeValue(null, ATTRIBUTE_NAME);
+        if (userRestriction != null) {
+          builder.addUserRestriction(userRestriction);
+        }
+      } else if (TAG_GLOBAL_SETTING.equals(name)) {
+        String setting = parser.getAttributeValue(null, ATTRIBUTE_NAME);
+        String value = parser.getAttributeValue(null, ATTRIBUTE_VALUE);
+        if (setting != null && value != null) {
+          builder.putGlobalSetting(setting, value);
+        }
+      } else if (TAG_DISABLE_STATUS_BAR.equals(name)) {
+        builder.setStatusBarDisabled(readBooleanValue(parser));
+      } else if (TAG_DISABLE_KEYGUARD.equals(name)) {
+        builder.setKeyguardDisabled(readBooleanValue(parser));
+      } else if (TAG_DISABLE_CAMERA.equals(name)) {
+        builder.setCameraDisabled(readBooleanValue(parser));
+      } else if (TAG_DISABLE_SCREEN_CAPTURE.equals(name)) {
+        builder.setScreenCaptureDisabled(readBooleanValue(parser));
+      }
+      skipCurrentTag(parser);
+    }
+  }
+
+  private static boolean readBooleanValue(XmlPullParser parser) {
+    return Boolean.parseBoolean(parser.getAttributeValue(null, ATTRIBUTE_VALUE));
+  }
+
+  /** Continue to the end of the current xml tag */
+  private static void skipCurrentTag(XmlPullParser parser)
+      throws XmlPullParserException, IOException {
+    int outerDepth = parser.getDepth();
+    int type;
+    while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+        && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {}
+  }
+}
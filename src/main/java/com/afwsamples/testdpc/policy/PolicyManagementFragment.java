@@ -44,7 +44,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.location.LocationManager;
@@ -106,12 +105,16 @@ import com.afwsamples.testdpc.DevicePolicyManagerGatewayImpl;
 import com.afwsamples.testdpc.R;
 import com.afwsamples.testdpc.SetupManagementActivity;
 import com.afwsamples.testdpc.common.AccountArrayAdapter;
+import com.afwsamples.testdpc.common.AppCatalog;
 import com.afwsamples.testdpc.common.AppInfoArrayAdapter;
 import com.afwsamples.testdpc.common.BaseSearchablePolicyPreferenceFragment;
+import com.afwsamples.testdpc.common.CaCertificateInventory;
+import com.afwsamples.testdpc.common.CaCertificateInventory.CaCertificate;
 import com.afwsamples.testdpc.common.CertificateUtil;
 import com.afwsamples.testdpc.common.Dumpable;
 import com.afwsamples.testdpc.common.MediaDisplayFragment;
 import com.afwsamples.testdpc.common.PackageInstallationUtils;
+import com.afwsamples.testdpc.common.PermissionInfoCache;
 import com.afwsamples.testdpc.common.ReflectionUtil;
 import com.afwsamples.testdpc.common.ReflectionUtil.ReflectionIsTemporaryException;
 import com.afwsamples.testdpc.common.UserArrayAdapter;
@@ -149,7 +152,6 @@ import com.afwsamples.testdpc.profilepolicy.delegation.DelegationFragment;
 import com.afwsamples.testdpc.profilepolicy.permission.ManageAppPermissionsFragment;
 import com.afwsamples.testdpc.transferownership.PickTransferComponentFragment;
 import com.afwsamples.testdpc.util.MainThreadExecutor;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -162,8 +164,6 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -178,6 +178,7 @@ import java.util.Locale;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -576,6 +577,8 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
             mDevicePolicyManager,
             mUserManager,
             mPackageManager,
+            AppCatalog.getInstance(context),
+            PermissionInfoCache.getInstance(context),
             context.getSystemService(LocationManager.class),
             mAdminComponentName);
     mIsProfileOwner = mDevicePolicyManagerGateway.isProfileOwnerApp();
@@ -3479,21 +3482,21 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
    * uninstallation.
    */
   private void showBlockUninstallationPrompt() {
+    withCatalogApps(this::showBlockUninstallationPrompt);
+  }
+
+  private void showBlockUninstallationPrompt(List<AppCatalog.App> apps) {
     Activity activity = getActivity();
     if (activity == null || activity.isFinishing()) {
       return;
     }
 
-    List<ApplicationInfo> applicationInfoList =
-        mPackageManager.getInstalledApplications(0 /* No flag */);
     List<ResolveInfo> resolveInfoList = new ArrayList<ResolveInfo>();
-    Collections.sort(
-        applicationInfoList, new ApplicationInfo.DisplayNameComparator(mPackageManager));
-    for (ApplicationInfo applicationInfo : applicationInfoList) {
+    for (AppCatalog.App app : apps) {
       // Ignore system apps because they can't be uninstalled.
-      if ((applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) == 0) {
+      if (app.installed && !app.isSystem()) {
         ResolveInfo resolveInfo = new ResolveInfo();
-        resolveInfo.resolvePackageName = applicationInfo.packageName;
+        resolveInfo.resolvePackageName = app.packageName;
         resolveInfoList.add(resolveInfo);
       }
     }
@@ -3522,8 +3525,12 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
    * dialog enables the app.
    */
   private void showEnableSystemAppsPrompt() {
-    final List<String> disabledSystemApps = mDevicePolicyManagerGateway.getDisabledSystemApps();
+    // The gateway reads the disabled apps from the catalog, which is loaded by then.
+    withCatalogApps(
+        apps -> showEnableSystemAppsPrompt(mDevicePolicyManagerGateway.getDisabledSystemApps()));
+  }
 
+  private void showEnableSystemAppsPrompt(final List<String> disabledSystemApps) {
     if (disabledSystemApps.isEmpty()) {
       showToast(R.string.no_disabled_system_apps);
     } else {
@@ -3625,17 +3632,22 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
    * dialog enables the app.
    */
   private void showHideAppsPrompt(final boolean showHiddenApps) {
-    final List<String> showApps = new ArrayList<>();
     if (showHiddenApps) {
-      // Find all hidden packages using the GET_UNINSTALLED_PACKAGES flag
-      for (ApplicationInfo applicationInfo : getAllInstalledApplicationsSorted()) {
-        if (mDevicePolicyManager.isApplicationHidden(
-            mAdminComponentName, applicationInfo.packageName)) {
-          showApps.add(applicationInfo.packageName);
-        }
-      }
+      // Find all hidden packages, the catalog includes packages that are not installed
+      withCatalogApps(
+          apps -> {
+            final List<String> hiddenApps = new ArrayList<>();
+            for (AppCatalog.App app : apps) {
+              if (mDevicePolicyManager.isApplicationHidden(
+                  mAdminComponentName, app.packageName)) {
+                hiddenApps.add(app.packageName);
+              }
+            }
+            showHideAppsPrompt(hiddenApps, true);
+          });
     } else {
       // Find all non-hidden apps with a launcher icon
+      final List<String> showApps = new ArrayList<>();
       for (ResolveInfo res : getAllLauncherIntentResolversSorted()) {
         if (!showApps.contains(res.activityInfo.packageName)
             && !mDevicePolicyManager.isApplicationHidden(
@@ -3643,8 +3655,11 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
           showApps.add(res.activityInfo.packageName);
         }
       }
+      showHideAppsPrompt(showApps, false);
     }
+  }
 
+  private void showHideAppsPrompt(final List<String> showApps, final boolean showHiddenApps) {
     if (showApps.isEmpty()) {
       showToast(showHiddenApps ? R.string.unhide_apps_empty : R.string.hide_apps_empty);
     } else {
@@ -3734,24 +3749,33 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
   /** Shows an alert dialog which displays a list of suspended/non-suspended apps. */
   @TargetApi(VERSION_CODES.N)
   private void showSuspendAppsPrompt(final boolean forUnsuspending) {
-    final List<String> showApps = new ArrayList<>();
     if (forUnsuspending) {
-      // Find all suspended packages using the GET_UNINSTALLED_PACKAGES flag.
-      for (ApplicationInfo applicationInfo : getAllInstalledApplicationsSorted()) {
-        if (isPackageSuspended(applicationInfo.packageName)) {
-          showApps.add(applicationInfo.packageName);
-        }
-      }
+      // Find all suspended packages, the catalog includes packages that are not installed.
+      withCatalogApps(
+          apps -> {
+            final List<String> suspendedApps = new ArrayList<>();
+            for (AppCatalog.App app : apps) {
+              if (isPackageSuspended(app.packageName)) {
+                suspendedApps.add(app.packageName);
+              }
+            }
+            showSuspendAppsPrompt(suspendedApps, true);
+          });
     } else {
       // Find all non-suspended apps with a launcher icon.
+      final List<String> showApps = new ArrayList<>();
       for (ResolveInfo res : getAllLauncherIntentResolversSorted()) {
         if (!showApps.contains(res.activityInfo.packageName)
             && !isPackageSuspended(res.activityInfo.packageName)) {
           showApps.add(res.activityInfo.packageName);
         }
       }
+      showSuspendAppsPrompt(showApps, false);
     }
+  }
 
+  @TargetApi(VERSION_CODES.N)
+  private void showSuspendAppsPrompt(final List<String> showApps, final boolean forUnsuspending) {
     if (showApps.isEmpty()) {
       showToast(forUnsuspending ? R.string.unsuspend_apps_empty : R.string.suspend_apps_empty);
     } else {
@@ -3800,19 +3824,23 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
   /** Shows an alert dialog with a list of packages with metered data disabled. */
   @TargetApi(VERSION_CODES.P)
   private void showSetMeteredDataPrompt() {
+    withCatalogApps(this::showSetMeteredDataPrompt);
+  }
+
+  @TargetApi(VERSION_CODES.P)
+  private void showSetMeteredDataPrompt(List<AppCatalog.App> apps) {
     final Activity activity = getActivity();
     if (activity == null || activity.isFinishing()) {
       return;
     }
 
-    final List<ApplicationInfo> applicationInfos =
-        mPackageManager.getInstalledApplications(0 /* flags */);
     final List<ResolveInfo> resolveInfos = new ArrayList<>();
-    Collections.sort(applicationInfos, new ApplicationInfo.DisplayNameComparator(mPackageManager));
-    for (ApplicationInfo applicationInfo : applicationInfos) {
-      final ResolveInfo resolveInfo = new ResolveInfo();
-      resolveInfo.resolvePackageName = applicationInfo.packageName;
-      resolveInfos.add(resolveInfo);
+    for (AppCatalog.App app : apps) {
+      if (app.installed) {
+        final ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.resolvePackageName = app.packageName;
+        resolveInfos.add(resolveInfo);
+      }
     }
     final MeteredDataRestrictionInfoAdapter meteredDataRestrictionInfoAdapter =
         new MeteredDataRestrictionInfoAdapter(
@@ -3842,10 +3870,14 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
    */
   @TargetApi(VERSION_CODES.P)
   private void showClearAppDataPrompt() {
-    final List<String> packageNameList =
-        getAllInstalledApplicationsSorted().stream()
-            .map(applicationInfo -> applicationInfo.packageName)
-            .collect(Collectors.toList());
+    withCatalogApps(
+        apps ->
+            showClearAppDataPrompt(
+                apps.stream().map(app -> app.packageName).collect(Collectors.toList())));
+  }
+
+  @TargetApi(VERSION_CODES.P)
+  private void showClearAppDataPrompt(final List<String> packageNameList) {
     if (packageNameList.isEmpty()) {
       showToast(R.string.clear_app_data_empty);
     } else {
@@ -3891,11 +3923,19 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
     return launcherIntentResolvers;
   }
 
-  private List<ApplicationInfo> getAllInstalledApplicationsSorted() {
-    List<ApplicationInfo> allApps =
-        mPackageManager.getInstalledApplications(PackageManager.GET_UNINSTALLED_PACKAGES);
-    Collections.sort(allApps, new ApplicationInfo.DisplayNameComparator(mPackageManager));
-    return allApps;
+  /**
+   * Runs {@code action} on the main thread with all the apps of the shared catalog, including the
+   * ones returned only with the GET_UNINSTALLED_PACKAGES flag, sorted by label. Nothing runs if
+   * the fragment is detached while the catalog loads.
+   */
+  private void withCatalogApps(Consumer<List<AppCatalog.App>> action) {
+    AppCatalog.getInstance(getActivity())
+        .getApps(
+            apps -> {
+              if (isAdded()) {
+                action.accept(apps);
+              }
+            });
   }
 
   private void showToast(int msgId, Object... args) {
@@ -4129,48 +4169,50 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
   }
 
   /** Gets all CA certificates and displays them in a prompt. */
-  private class ShowCaCertificateListTask extends AsyncTask<Void, Void, String[]> {
+  private class ShowCaCertificateListTask extends AsyncTask<Void, Void, List<CaCertificate>> {
 
     @Override
-    protected String[] doInBackground(Void... params) {
-      return getCaCertificateSubjectDnList();
+    protected List<CaCertificate> doInBackground(Void... params) {
+      try {
+        CaCertificateInventory.Result result =
+            CaCertificateInventory.getInstance()
+                .decode(mDevicePolicyManagerGateway.getInstalledCaCerts());
+        if (result.getInvalidBlobs() > 0) {
+          Log.w(TAG, result.getInvalidBlobs() + " installed CA certificates could not be read");
+        }
+        return result.getCertificates();
+      } catch (InterruptedException e) {
+        // Cancelled.
+        return null;
+      }
     }
 
     @Override
-    protected void onPostExecute(String[] installedCaCertificateDnList) {
+    protected void onPostExecute(List<CaCertificate> installedCaCertificates) {
       if (getActivity() == null || getActivity().isFinishing()) {
         return;
       }
-      if (installedCaCertificateDnList == null) {
+      if (installedCaCertificates == null || installedCaCertificates.isEmpty()) {
         showToast(R.string.no_ca_certificate);
       } else {
+        DateFormat dateFormat = DateFormat.getDateInstance();
+        String[] items = new String[installedCaCertificates.size()];
+        for (int i = 0; i < items.length; i++) {
+          CaCertificate certificate = installedCaCertificates.get(i);
+          items[i] =
+              getString(
+                  R.string.installed_ca_item,
+                  certificate.subject,
+                  certificate.issuer,
+                  dateFormat.format(new Date(certificate.notAfterMillis)),
+                  certificate.fingerprint);
+        }
         new AlertDialog.Builder(getActivity())
             .setTitle(getString(R.string.installed_ca_title))
-            .setItems(installedCaCertificateDnList, null)
+            .setItems(items, null)
             .show();
       }
     }
-
-    private String[] getCaCertificateSubjectDnList() {
-      List<byte[]> installedCaCerts = mDevicePolicyManager.getInstalledCaCerts(mAdminComponentName);
-      String[] caSubjectDnList = null;
-      if (installedCaCerts.size() > 0) {
-        caSubjectDnList = new String[installedCaCerts.size()];
-        int i = 0;
-        for (byte[] installedCaCert : installedCaCerts) {
-          try {
-            X509Certificate certificate =
-                (X509Certificate)
-                    CertificateFactory.getInstance(X509_CERT_TYPE)
-                        .generateCertificate(new ByteArrayInputStream(installedCaCert));
-            caSubjectDnList[i++] = certificate.getSubjectDN().getName();
-          } catch (CertificateException e) {
-            Log.e(TAG, "getCaCertificateSubjectDnList: ", e);
-          }
-        }
-      }
-      return caSubjectDnList;
-    }
   }
 
   private void showFragment(final Fragment fragment) {
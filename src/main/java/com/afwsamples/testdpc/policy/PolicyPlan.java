@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The calls needed to go from the current policies of the device to a desired {@link
+ * PolicyBundle}, in the order they must be made.
+ *
+ * <p>Policies that already have the desired value get no step.
+ */
+public final class PolicyPlan {
+  /**
+   * What a step changes. Steps are run in the order of this enum: system apps are enabled before
+   * they are hidden or allowed to lock task, and lock task packages are set before the keyguard
+   * and status bar are disabled.
+   */
+  public enum Kind {
+    ENABLE_SYSTEM_APP,
+    HIDE_APP,
+    LOCK_TASK_PACKAGES,
+    USER_RESTRICTION,
+    GLOBAL_SETTING,
+    KEYGUARD_DISABLED,
+    STATUS_BAR_DISABLED,
+    CAMERA_DISABLED,
+    SCREEN_CAPTURE_DISABLED
+  }
+
+  /** A single call of the plan. */
+  public static final class Step {
+    private final Kind mKind;
+    @Nullable private final String mKey;
+    private final Object mValue;
+    @Nullable private final Object mPreviousValue;
+
+    Step(Kind kind, @Nullable String key, Object value, @Nullable Object previousValue) {
+      mKind = kind;
+      mKey = key;
+      mValue = value;
+      mPreviousValue = previousValue;
+    }
+
+    public Kind getKind() {
+      return mKind;
+    }
+
+    /** Returns the package, restriction or setting the step is about, if any. */
+    @Nullable
+    public String getKey() {
+      return mKey;
+    }
+
+    /** Returns the value to set: a Boolean, a String, or a Set of packages. */
+    public Object getValue() {
+      return mValue;
+    }
+
+    /** Returns the value to restore to undo the step, or null if it is unknown. */
+    @Nullable
+    public Object getPreviousValue() {
+      return mPreviousValue;
+    }
+
+    public boolean isReversible() {
+      return mPreviousValue != null;
+    }
+
+    /**
+     * Whether a failure of the step is only logged, without rolling back the plan. Enabling a
+     * system app is best effort, as the app may not be on every device, and so is disabling the
+     * keyguard or status bar, which the platform refuses while a secure lock screen is set.
+     */
+    public boolean isBestEffort() {
+      switch (mKind) {
+        case ENABLE_SYSTEM_APP:
+        case KEYGUARD_DISABLED:
+        case STATUS_BAR_DISABLED:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return mKind
+          + (mKey == null ? "" : " " + mKey)
+          + ": "
+          + (mPreviousValue == null ? "?" : mPreviousValue)
+          + " -> "
+          + mValue;
+    }
+  }
+
+  private final List<Step> mSteps;
+  private final int mUnchangedCount;
+
+  private PolicyPlan(List<Step> steps, int unchangedCount) {
+    mSteps = Collections.unmodifiableList(steps);
+    mUnchangedCount = unchangedCount;
+  }
+
+  /**
+   * Returns the plan to go from {@code current} to {@code desired}.
+   *
+   * @param current the policies of the device for the apps, restrictions and settings of {@code
+   *     desired}: the apps already enabled or hidden, the restrictions already set, the current
+   *     value of the settings, and null for the values that can't be read.
+   */
+  public static PolicyPlan create(PolicyBundle desired, PolicyBundle current) {
+    List<Step> steps = new ArrayList<>();
+    for (String packageName : desired.getEnabledSystemApps()) {
+      if (!current.getEnabledSystemApps().contains(packageName)) {
+        // A system app can't be disabled again by an admin.
+        steps.add(new Step(Kind.ENABLE_SYSTEM_APP, packageName, true, null));
+      }
+    }
+    for (String packageName : desired.getHiddenApps()) {
+      if (!current.getHiddenApps().contains(packageName)) {
+        steps.add(new Step(Kind.HIDE_APP, packageName, true, false));
+      }
+    }
+    Set<String> lockTaskPackages = desired.getLockTaskPackages();
+    if (lockTaskPackages != null && !lockTaskPackages.equals(current.getLockTaskPackages())) {
+      steps.add(
+          new Step(Kind.LOCK_TASK_PACKAGES, null, lockTaskPackages, current.getLockTaskPackages()));
+    }
+    for (String restriction : desired.getUserRestrictions()) {
+      if (!current.getUserRestrictions().contains(restriction)) {
+        steps.add(new Step(Kind.USER_RESTRICTION, restriction, true, false));
+      }
+    }
+    for (Map.Entry<String, String> setting : desired.getGlobalSettings().entrySet()) {
+      String currentValue = current.getGlobalSettings().get(setting.getKey());
+      if (!setting.getValue().equals(currentValue)) {
+        steps.add(
+            new Step(Kind.GLOBAL_SETTING, setting.getKey(), setting.getValue(), currentValue));
+      }
+    }
+    addFlagStep(
+        steps,
+        Kind.KEYGUARD_DISABLED,
+        desired.getKeyguardDisabled(),
+        current.getKeyguardDisabled());
+    addFlagStep(
+        steps,
+        Kind.STATUS_BAR_DISABLED,
+        desired.getStatusBarDisabled(),
+        current.getStatusBarDisabled());
+    addFlagStep(
+        steps, Kind.CAMERA_DISABLED, desired.getCameraDisabled(), current.getCameraDisabled());
+    addFlagStep(
+        steps,
+        Kind.SCREEN_CAPTURE_DISABLED,
+        desired.getScreenCaptureDisabled(),
+        current.getScreenCaptureDisabled());
+    return new PolicyPlan(steps, desired.size() - steps.size());
+  }
+
+  private static void addFlagStep(
+      List<Step> steps, Kind kind, @Nullable Boolean desired, @Nullable Boolean current) {
+    if (desired != null && !Objects.equals(desired, current)) {
+      steps.add(new Step(kind, null, desired, current));
+    }
+  }
+
+  /** Returns the steps, in the order they must run. */
+  public List<Step> getSteps() {
+    return mSteps;
+  }
+
+  /** Returns the number of policies of the bundle that already have the desired value. */
+  public int getUnchangedCount() {
+    return mUnchangedCount;
+  }
+
+  public boolean isEmpty() {
+    return mSteps.isEmpty();
+  }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import android.annotation.TargetApi;
+import android.app.admin.SecurityLog;
+import android.app.admin.SecurityLog.SecurityEvent;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+import android.util.SparseArray;
+import com.afwsamples.testdpc.common.Util;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local store of retrieved security logs, indexed by timestamp, tag and event id so that they can
+ * be filtered without formatting every event.
+ *
+ * <p>At most {@link #MAX_EVENTS} events are kept; the oldest ones are dropped when more are stored.
+ */
+@TargetApi(VERSION_CODES.N)
+public class SecurityLogIndex extends SQLiteOpenHelper {
+  private static final String TAG = "SecurityLogIndex";
+
+  private static final String DATABASE_NAME = "security_logs.db";
+  private static final int DATABASE_VERSION = 1;
+  private static final String CREATE_TABLE_SECURITY_EVENTS =
+      "CREATE TABLE "
+          + SecurityEventTable.TABLE_NAME
+          + " ("
+          + SecurityEventTable._ID
+          + " INTEGER PRIMARY KEY,"
+          + SecurityEventTable.EVENT_ID
+          + " INTEGER NOT NULL,"
+          + SecurityEventTable.TIME_NANOS
+          + " INTEGER NOT NULL,"
+          + SecurityEventTable.EVENT_TAG
+          + " INTEGER NOT NULL,"
+          + SecurityEventTable.PRE_REBOOT
+          + " INTEGER NOT NULL,"
+          + SecurityEventTable.DATA
+          + " TEXT,"
+          + " UNIQUE("
+          + SecurityEventTable.EVENT_ID
+          + ", "
+          + SecurityEventTable.TIME_NANOS
+          + ", "
+          + SecurityEventTable.EVENT_TAG
+          + ") ON CONFLICT IGNORE);";
+  private static final String[] CREATE_INDEXES = {
+    "CREATE INDEX security_events_time ON "
+        + SecurityEventTable.TABLE_NAME
+        + "("
+        + SecurityEventTable.TIME_NANOS
+        + ");",
+    "CREATE INDEX security_events_tag_time ON "
+        + SecurityEventTable.TABLE_NAME
+        + "("
+        + SecurityEventTable.EVENT_TAG
+        + ", "
+        + SecurityEventTable.TIME_NANOS
+        + ");",
+    "CREATE INDEX security_events_event_id ON "
+        + SecurityEventTable.TABLE_NAME
+        + "("
+        + SecurityEventTable.EVENT_ID
+        + ");",
+  };
+  private static final String INSERT_SQL =
+      "INSERT OR IGNORE INTO "
+          + SecurityEventTable.TABLE_NAME
+          + "("
+          + SecurityEventTable.EVENT_ID
+          + ", "
+          + SecurityEventTable.TIME_NANOS
+          + ", "
+          + SecurityEventTable.EVENT_TAG
+          + ", "
+          + SecurityEventTable.PRE_REBOOT
+          + ", "
+          + SecurityEventTable.DATA
+          + ") VALUES (?, ?, ?, ?, ?)";
+  // Deletes all but the newest rows, the number of which is bound to the parameter.
+  private static final String TRIM_SQL =
+      "DELETE FROM "
+          + SecurityEventTable.TABLE_NAME
+          + " WHERE "
+          + SecurityEventTable._ID
+          + " IN (SELECT "
+          + SecurityEventTable._ID
+          + " FROM "
+          + SecurityEventTable.TABLE_NAME
+          + " ORDER BY "
+          + SecurityEventTable.TIME_NANOS
+          + " DESC, "
+          + SecurityEventTable._ID
+          + " DESC LIMIT -1 OFFSET ?)";
+
+  /** Maximum number of stored events. */
+  public static final int MAX_EVENTS = 100_000;
+
+  /** Stored as the event id of events retrieved before {@link SecurityEvent#getId()} existed. */
+  public static final long NO_EVENT_ID = -1;
+
+  private static final ThreadLocal<SimpleDateFormat> sDateFormat =
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          return new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        }
+      };
+
+  private static SecurityLogIndex sInstance;
+  private static SparseArray<String> sTagNames;
+  private static Map<String, Integer> sTagIds;
+
+  private SecurityLogIndex(Context context) {
+    super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  public static synchronized SecurityLogIndex getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new SecurityLogIndex(context);
+    }
+    return sInstance;
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL(CREATE_TABLE_SECURITY_EVENTS);
+    for (String createIndex : CREATE_INDEXES) {
+      db.execSQL(createIndex);
+    }
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // The stored events are only a cache of the retrieved logs, so just start from scratch.
+    db.execSQL("DROP TABLE IF EXISTS " + SecurityEventTable.TABLE_NAME);
+    onCreate(db);
+  }
+
+  /**
+   * Stores the given events, skipping the ones that were already stored, then drops the oldest
+   * events beyond {@link #MAX_EVENTS}. Must not be called on the main thread.
+   *
+   * @return the number of newly stored events
+   */
+  public int insert(List<SecurityEvent> events, boolean preReboot) {
+    SQLiteDatabase db = getWritableDatabase();
+    SQLiteStatement statement = db.compileStatement(INSERT_SQL);
+    StringBuilder sb = new StringBuilder();
+    int inserted = 0;
+    db.beginTransaction();
+    try {
+      for (SecurityEvent event : events) {
+        sb.setLength(0);
+        appendData(sb, event.getData());
+        statement.clearBindings();
+        statement.bindLong(1, Util.SDK_INT >= VERSION_CODES.P ? event.getId() : NO_EVENT_ID);
+        statement.bindLong(2, event.getTimeNanos());
+        statement.bindLong(3, event.getTag());
+        statement.bindLong(4, preReboot ? 1 : 0);
+        statement.bindString(5, sb.toString());
+        if (statement.executeInsert() != -1) {
+          inserted++;
+        }
+      }
+      if (inserted > 0) {
+        trim(db);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      statement.close();
+    }
+    Log.d(TAG, "Stored " + inserted + " of " + events.size() + " security events");
+    return inserted;
+  }
+
+  private static void trim(SQLiteDatabase db) {
+    SQLiteStatement statement = db.compileStatement(TRIM_SQL);
+    try {
+      statement.bindLong(1, MAX_EVENTS);
+      int deleted = statement.executeUpdateDelete();
+      if (deleted > 0) {
+        Log.d(TAG, "Dropped " + deleted + " old security events");
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Streams the stored events matching {@code filter} to {@code consumer}, ordered by time. Must
+   * not be called on the main thread.
+   *
+   * @return the number of matching events
+   */
+  public int query(Filter filter, RowConsumer consumer) {
+    List<String> selectionArgs = new ArrayList<>();
+    String selection = filter.buildSelection(selectionArgs);
+    String limit = filter.mLimit > 0 ? Integer.toString(filter.mLimit) : null;
+    Cursor cursor =
+        getReadableDatabase()
+            .query(
+                SecurityEventTable.TABLE_NAME,
+                SecurityEventTable.PROJECTION,
+                selection,
+                selectionArgs.toArray(new String[0]),
+                /* groupBy= */ null,
+                /* having= */ null,
+                SecurityEventTable.TIME_NANOS + ", " + SecurityEventTable._ID,
+                limit);
+    try {
+      Row row = new Row();
+      int count = 0;
+      while (cursor.moveToNext()) {
+        row.mEventId = cursor.getLong(0);
+        row.mTimeNanos = cursor.getLong(1);
+        row.mTag = cursor.getInt(2);
+        row.mPreReboot = cursor.getInt(3) != 0;
+        row.mData = cursor.getString(4);
+        consumer.accept(row);
+        count++;
+      }
+      return count;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /** Returns the name of the given {@link SecurityLog} tag, without its {@code TAG_} prefix. */
+  public static String getTagName(int tag) {
+    String name = getTagNames().get(tag);
+    return name != null ? name : "UNKNOWN(" + tag + ")";
+  }
+
+  /**
+   * Returns the {@link SecurityLog} tag for the given name (with or without its {@code TAG_}
+   * prefix) or number, or {@code null} if there is no such tag.
+   */
+  public static Integer getTagId(String name) {
+    getTagNames();
+    String upperCaseName = name.toUpperCase(Locale.US);
+    if (upperCaseName.startsWith("TAG_")) {
+      upperCaseName = upperCaseName.substring(4);
+    }
+    Integer tag = sTagIds.get(upperCaseName);
+    if (tag != null) {
+      return tag;
+    }
+    try {
+      return Integer.parseInt(name);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Resolves the {@code SecurityLog.TAG_*} constants through reflection, once per process. */
+  private static synchronized SparseArray<String> getTagNames() {
+    if (sTagNames == null) {
+      SparseArray<String> tagNames = new SparseArray<>();
+      Map<String, Integer> tagIds = new HashMap<>();
+      for (Field f : SecurityLog.class.getDeclaredFields()) {
+        if (f.getName().startsWith("TAG_") && ((f.getModifiers() & Modifier.PUBLIC) > 0)) {
+          try {
+            int tag = f.getInt(null);
+            String name = f.getName().substring(4);
+            tagNames.put(tag, name);
+            tagIds.put(name, tag);
+          } catch (IllegalAccessException e) {
+            Log.e(TAG, "Failed to read field " + f, e);
+          }
+        }
+      }
+      sTagIds = tagIds;
+      sTagNames = tagNames;
+    }
+    return sTagNames;
+  }
+
+  /** Appends the payload of a {@link SecurityEvent}, flattening nested arrays. */
+  public static void appendData(StringBuilder sb, Object data) {
+    if (data instanceof Integer
+        || data instanceof Long
+        || data instanceof Float
+        || data instanceof String) {
+      sb.append(data).append(' ');
+    } else if (data instanceof Object[]) {
+      for (Object item : (Object[]) data) {
+        appendData(sb, item);
+      }
+    }
+  }
+
+  /**
+   * Appends the human-readable form of an event, as {@code "id: TAG (time): data"}. The id is
+   * omitted when unknown.
+   */
+  public static StringBuilder appendEvent(
+      StringBuilder sb, long eventId, long timeNanos, int tag, String data) {
+    if (eventId != NO_EVENT_ID) {
+      sb.append(eventId).append(": ");
+    }
+    return sb.append(getTagName(tag))
+        .append(" (")
+        .append(sDateFormat.get().format(new Date(TimeUnit.NANOSECONDS.toMillis(timeNanos))))
+        .append("): ")
+        .append(data);
+  }
+
+  /** Appends the human-readable form of a live event. */
+  public static StringBuilder appendEvent(StringBuilder sb, SecurityEvent event) {
+    appendEvent(
+        sb,
+        Util.SDK_INT >= VERSION_CODES.P ? event.getId() : NO_EVENT_ID,
+        event.getTimeNanos(),
+        event.getTag(),
+        "");
+    appendData(sb, event.getData());
+    return sb;
+  }
+
+  /** Receives the rows of a {@link #query(Filter, RowConsumer)}. */
+  public interface RowConsumer {
+    void accept(Row row);
+  }
+
+  /** A stored event. The same instance is reused for every row of a query. */
+  public static final class Row {
+    private long mEventId;
+    private long mTimeNanos;
+    private int mTag;
+    private boolean mPreReboot;
+    private String mData;
+
+    private Row() {}
+
+    public long getEventId() {
+      return mEventId;
+    }
+
+    public long getTimeNanos() {
+      return mTimeNanos;
+    }
+
+    public int getTag() {
+      return mTag;
+    }
+
+    public boolean isPreReboot() {
+      return mPreReboot;
+    }
+
+    public String getData() {
+      return mData;
+    }
+
+    public StringBuilder appendTo(StringBuilder sb) {
+      return appendEvent(sb, mEventId, mTimeNanos, mTag, mData);
+    }
+  }
+
+  /** Restricts the events returned by {@link #query(Filter, RowConsumer)}; matches all by default. */
+  public static final class Filter {
+    private int[] mTags = new int[0];
+    private Long mFromMillis;
+    private Long mToMillis;
+    private Long mMinEventId;
+    private Long mMaxEventId;
+    private Boolean mPreReboot;
+    private int mLimit;
+
+    /** Only matches events with one of the given tags, or any tag if empty. */
+    public Filter setTags(int... tags) {
+      mTags = tags;
+      return this;
+    }
+
+    /** Only matches events logged within the given bounds, in ms since epoch; both nullable. */
+    public Filter setTimeRange(Long fromMillis, Long toMillis) {
+      mFromMillis = fromMillis;
+      mToMillis = toMillis;
+      return this;
+    }
+
+    /** Only matches events whose id is within the given inclusive bounds; both nullable. */
+    public Filter setEventIdRange(Long minEventId, Long maxEventId) {
+      mMinEventId = minEventId;
+      mMaxEventId = maxEventId;
+      return this;
+    }
+
+    /** Only matches events retrieved as pre-reboot logs (or not), or both if {@code null}. */
+    public Filter setPreReboot(Boolean preReboot) {
+      mPreReboot = preReboot;
+      return this;
+    }
+
+    /** Returns at most {@code limit} events, or all of them if not positive. */
+    public Filter setLimit(int limit) {
+      mLimit = limit;
+      return this;
+    }
+
+    private String buildSelection(List<String> args) {
+      StringBuilder sb = new StringBuilder();
+      if (mTags.length > 0) {
+        sb.append(SecurityEventTable.EVENT_TAG).append(" IN (");
+        for (int i = 0; i < mTags.length; i++) {
+          sb.append(i == 0 ? "?" : ", ?");
+          args.add(Integer.toString(mTags[i]));
+        }
+        sb.append(')');
+      }
+      if (mFromMillis != null) {
+        appendCondition(sb, SecurityEventTable.TIME_NANOS + " >= ?");
+        args.add(Long.toString(TimeUnit.MILLISECONDS.toNanos(mFromMillis)));
+      }
+      if (mToMillis != null) {
+        appendCondition(sb, SecurityEventTable.TIME_NANOS + " <= ?");
+        args.add(Long.toString(TimeUnit.MILLISECONDS.toNanos(mToMillis)));
+      }
+      if (mMinEventId != null) {
+        appendCondition(sb, SecurityEventTable.EVENT_ID + " >= ?");
+        args.add(Long.toString(mMinEventId));
+      }
+      if (mMaxEventId != null) {
+        appendCondition(sb, SecurityEventTable.EVENT_ID + " <= ?");
+        args.add(Long.toString(mMaxEventId));
+      }
+      if (mPreReboot != null) {
+        appendCondition(sb, SecurityEventTable.PRE_REBOOT + " = ?");
+        args.add(mPreReboot ? "1" : "0");
+      }
+      return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void appendCondition(StringBuilder sb, String condition) {
+      if (sb.length() > 0) {
+        sb.append(" AND ");
+      }
+      sb.append(condition);
+    }
+  }
+
+  private static class SecurityEventTable {
+    private static final String TABLE_NAME = "security_events";
+
+    private static final String _ID = "_id";
+    /** {@link SecurityEvent#getId()}, or {@link #NO_EVENT_ID}. */
+    private static final String EVENT_ID = "event_id";
+    private static final String TIME_NANOS = "time_nanos";
+    private static final String EVENT_TAG = "tag";
+    /** Whether the event was retrieved through the pre-reboot logs. */
+    private static final String PRE_REBOOT = "pre_reboot";
+    /** Flattened event payload. */
+    private static final String DATA = "data";
+
+    private static final String[] PROJECTION = {EVENT_ID, TIME_NANOS, EVENT_TAG, PRE_REBOOT, DATA};
+  }
+}
@@ -19,13 +19,12 @@ package com.afwsamples.testdpc.policy;
 import android.annotation.TargetApi;
 import android.app.ListFragment;
 import android.app.admin.DevicePolicyManager;
-import android.app.admin.SecurityLog;
 import android.app.admin.SecurityLog.SecurityEvent;
 import android.content.ComponentName;
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
-import android.util.ArrayMap;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
@@ -34,15 +33,14 @@ import com.afwsamples.testdpc.R;
 import com.afwsamples.testdpc.common.ReflectionUtil;
 import com.afwsamples.testdpc.common.ReflectionUtil.ReflectionIsTemporaryException;
 import com.afwsamples.testdpc.common.Util;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.lang.IllegalAccessException;
-import java.text.SimpleDateFormat;
+import com.afwsamples.testdpc.util.MainThreadExecutor;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @TargetApi(VERSION_CODES.N)
 public class SecurityLogsFragment extends ListFragment {
@@ -50,14 +48,16 @@ public class SecurityLogsFragment extends ListFragment {
 
   private static final String PRE_REBOOT_KEY = "pre-reboot";
 
-  private static Map<Integer, String> sTagNames = getTagNames();
-
   private final ArrayList<String> mLogs = new ArrayList<>();
   private ArrayAdapter<String> mAdapter;
 
   private DevicePolicyManager mDevicePolicyManager;
   private ComponentName mAdminName;
   private boolean mPreReboot;
+  private String mPackageName;
+
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Executor mMainThreadExecutor = new MainThreadExecutor();
 
   public static SecurityLogsFragment newInstance(boolean preReboot) {
     final SecurityLogsFragment fragment = new SecurityLogsFragment();
@@ -77,6 +77,7 @@ public class SecurityLogsFragment extends ListFragment {
         new ArrayAdapter<>(
             getActivity(), android.R.layout.simple_list_item_1, android.R.id.text1, mLogs);
     mPreReboot = getArguments().getBoolean(PRE_REBOOT_KEY);
+    mPackageName = getActivity().getPackageName();
     setListAdapter(mAdapter);
   }
 
@@ -84,12 +85,30 @@ public class SecurityLogsFragment extends ListFragment {
   public void onActivityCreated(Bundle savedInstanceState) {
     super.onActivityCreated(savedInstanceState);
     mAdapter.add(getString(R.string.security_logs_retrieved_message, new Date().toString()));
-    try {
-      processEvents(getLogs());
-    } catch (SecurityException e) {
-      Log.e(TAG, "Exception thrown when trying to retrieve security logs", e);
-      mAdapter.add(getString(R.string.exception_retrieving_security_logs));
-    }
+    SecurityLogIndex index = SecurityLogIndex.getInstance(getActivity());
+    String failureMessage =
+        getString(
+            mPreReboot
+                ? R.string.failed_to_retrieve_pre_reboot_security_logs
+                : R.string.failed_to_retrieve_security_logs);
+    mExecutor.execute(
+        () -> {
+          List<String> formattedEvents;
+          try {
+            formattedEvents = processEvents(index, getLogs(), failureMessage);
+          } catch (SecurityException e) {
+            Log.e(TAG, "Exception thrown when trying to retrieve security logs", e);
+            formattedEvents = null;
+          }
+          List<String> result = formattedEvents;
+          mMainThreadExecutor.execute(() -> showEvents(result));
+        });
+  }
+
+  @Override
+  public void onDestroy() {
+    mExecutor.shutdownNow();
+    super.onDestroy();
   }
 
   private boolean hasSecurityLoggingDelegation() {
@@ -97,8 +116,7 @@ public class SecurityLogsFragment extends ListFragment {
       return false;
     }
 
-    final String packageName = getActivity().getPackageName();
-    List<String> delegations = mDevicePolicyManager.getDelegatedScopes(null, packageName);
+    List<String> delegations = mDevicePolicyManager.getDelegatedScopes(null, mPackageName);
 
     String securityLoggingDelegation = null;
     try {
@@ -120,64 +138,42 @@ public class SecurityLogsFragment extends ListFragment {
         : mDevicePolicyManager.retrieveSecurityLogs(name);
   }
 
-  @SuppressWarnings("SimpleDateFormat")
-  private void processEvents(List<SecurityEvent> logs) {
+  /**
+   * Stores the retrieved events in the {@link SecurityLogIndex}, if it can be written, and formats
+   * them. Runs on {@link #mExecutor}.
+   */
+  private List<String> processEvents(
+      SecurityLogIndex index, List<SecurityEvent> logs, String failureMessage) {
     if (logs == null) {
       Log.w(TAG, "logs == null, are you polling too early?");
-      final String message =
-          getString(
-              mPreReboot
-                  ? R.string.failed_to_retrieve_pre_reboot_security_logs
-                  : R.string.failed_to_retrieve_security_logs);
-      mAdapter.add(message);
-    } else {
-      SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
-      Log.d(TAG, "Incoming logs size: " + logs.size());
-      for (SecurityEvent event : logs) {
-        StringBuilder sb = new StringBuilder();
-        if (Util.SDK_INT >= VERSION_CODES.P) {
-          sb.append(event.getId() + ": ");
-        }
-        sb.append(getStringEventTagFromId(event.getTag()));
-        sb.append(" (")
-            .append(formatter.format(new Date(TimeUnit.NANOSECONDS.toMillis(event.getTimeNanos()))))
-            .append("): ");
-        printData(sb, event.getData());
-        mAdapter.add(sb.toString());
-      }
-      ListView listView = SecurityLogsFragment.this.getListView();
-      listView.setSelection(listView.getCount() - 1);
+      return Collections.singletonList(failureMessage);
     }
-  }
-
-  private static Map<Integer, String> getTagNames() {
-    Map<Integer, String> tagNames = new ArrayMap<Integer, String>();
-    for (Field f : SecurityLog.class.getDeclaredFields()) {
-      if (f.getName().startsWith("TAG_") && ((f.getModifiers() & Modifier.PUBLIC) > 0)) {
-        try {
-          tagNames.put(f.getInt(null), f.getName().substring(4));
-        } catch (IllegalAccessException e) {
-          Log.e(TAG, "Failed to read field " + f, e);
-        }
-      }
+    Log.d(TAG, "Incoming logs size: " + logs.size());
+    try {
+      index.insert(logs, mPreReboot);
+    } catch (SQLiteException e) {
+      // The events are still shown, they are only missing from the index.
+      Log.e(TAG, "Failed to index " + logs.size() + " security events", e);
     }
-    return tagNames;
-  }
-
-  public static String getStringEventTagFromId(int eventId) {
-    return sTagNames.getOrDefault(eventId, "UNKNOWN(" + eventId + ")");
+    List<String> formattedEvents = new ArrayList<>(logs.size());
+    StringBuilder sb = new StringBuilder();
+    for (SecurityEvent event : logs) {
+      sb.setLength(0);
+      formattedEvents.add(SecurityLogIndex.appendEvent(sb, event).toString());
+    }
+    return formattedEvents;
   }
 
-  public static void printData(StringBuilder sb, Object data) {
-    if (data instanceof Integer
-        || data instanceof Long
-        || data instanceof Float
-        || data instanceof String) {
-      sb.append(data.toString()).append(" ");
-    } else if (data instanceof Object[]) {
-      for (Object item : (Object[]) data) {
-        printData(sb, item);
-      }
+  private void showEvents(List<String> formattedEvents) {
+    if (!isAdded()) {
+      return;
+    }
+    if (formattedEvents == null) {
+      mAdapter.add(getString(R.string.exception_retrieving_security_logs));
+      return;
     }
+    mAdapter.addAll(formattedEvents);
+    ListView listView = getListView();
+    listView.setSelection(listView.getCount() - 1);
   }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+import com.afwsamples.testdpc.DevicePolicyManagerGateway;
+import com.afwsamples.testdpc.common.Util;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and applies user restrictions as whole sets.
+ *
+ * <p>Reading the restrictions takes a single call for all of them, and applying a set only adds
+ * and clears the restrictions that differ from the ones already set.
+ */
+public final class UserRestrictionEngine {
+  private static final String TAG = "UserRestrictionEngine";
+
+  /** Assigns a bit to every restriction of {@link UserRestriction#ALL_USER_RESTRICTIONS}. */
+  public static final UserRestrictionSet.Table TABLE = createTable();
+
+  /** Outcome of {@link #apply(UserRestrictionSet, boolean)}. */
+  public static final class Result {
+    private final List<String> mAdded = new ArrayList<>();
+    private final List<String> mCleared = new ArrayList<>();
+    private final Map<String, Exception> mFailures = new LinkedHashMap<>();
+    private int mUnchanged;
+
+    /** Restrictions that were added. */
+    public List<String> getAdded() {
+      return Collections.unmodifiableList(mAdded);
+    }
+
+    /** Restrictions that were cleared. */
+    public List<String> getCleared() {
+      return Collections.unmodifiableList(mCleared);
+    }
+
+    /** Restrictions that could not be added or cleared, with the reason. */
+    public Map<String, Exception> getFailures() {
+      return Collections.unmodifiableMap(mFailures);
+    }
+
+    /** Number of desired restrictions that were already set. */
+    public int getUnchanged() {
+      return mUnchanged;
+    }
+  }
+
+  private final DevicePolicyManagerGateway mDevicePolicyManagerGateway;
+
+  public UserRestrictionEngine(DevicePolicyManagerGateway devicePolicyManagerGateway) {
+    mDevicePolicyManagerGateway = devicePolicyManagerGateway;
+  }
+
+  /** Returns the set of the given restrictions. */
+  public static UserRestrictionSet toSet(Collection<String> restrictions) {
+    return UserRestrictionSet.of(TABLE, restrictions);
+  }
+
+  /** Returns the restrictions in effect for the user, whoever set them. */
+  public UserRestrictionSet getEffectiveRestrictions() {
+    return toSet(mDevicePolicyManagerGateway.getEffectiveUserRestrictions());
+  }
+
+  /**
+   * Returns the restrictions set by TestDPC. Before N they can't be told apart, so the effective
+   * restrictions are returned instead.
+   */
+  public UserRestrictionSet getAdminRestrictions() {
+    if (Util.SDK_INT < VERSION_CODES.N) {
+      return getEffectiveRestrictions();
+    }
+    return toSet(mDevicePolicyManagerGateway.getUserRestrictions());
+  }
+
+  /**
+   * Makes TestDPC set the {@code desired} restrictions, only adding the ones that are not set
+   * yet. If {@code clearOthers} is true, the restrictions set by TestDPC that are not desired are
+   * cleared, otherwise they are left as they are.
+   */
+  public Result apply(UserRestrictionSet desired, boolean clearOthers) {
+    UserRestrictionSet current = getAdminRestrictions();
+    UserRestrictionSet.Diff diff =
+        current.diffTo(clearOthers ? desired : current.union(desired));
+    Result result = new Result();
+    result.mUnchanged = desired.size() - diff.getAdded().size();
+    for (String restriction : diff.getAdded()) {
+      mDevicePolicyManagerGateway.setUserRestriction(
+          restriction,
+          true,
+          (v) -> result.mAdded.add(restriction),
+          (e) -> result.mFailures.put(restriction, e));
+    }
+    for (String restriction : diff.getCleared()) {
+      mDevicePolicyManagerGateway.setUserRestriction(
+          restriction,
+          false,
+          (v) -> result.mCleared.add(restriction),
+          (e) -> result.mFailures.put(restriction, e));
+    }
+    Log.d(
+        TAG,
+        "apply(): added "
+            + result.mAdded
+            + ", cleared "
+            + result.mCleared
+            + ", failed "
+            + result.mFailures.keySet());
+    return result;
+  }
+
+  private static UserRestrictionSet.Table createTable() {
+    String[] keys = new String[UserRestriction.ALL_USER_RESTRICTIONS.length];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = UserRestriction.ALL_USER_RESTRICTIONS[i].key;
+    }
+    return new UserRestrictionSet.Table(keys);
+  }
+}
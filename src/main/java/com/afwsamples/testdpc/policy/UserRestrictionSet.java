@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable set of user restriction keys.
+ *
+ * <p>The restrictions of a {@link Table} are stored as a bitset indexed by their position in the
+ * table, so that membership checks and diffs do not hash strings. Restrictions missing from the
+ * table, for example ones added by a newer platform, are kept in a separate set.
+ */
+public final class UserRestrictionSet {
+
+  /** Fixed assignment of restriction keys to bits. */
+  public static final class Table {
+    private final String[] mKeys;
+    private final Map<String, Integer> mIndexes;
+
+    public Table(String[] keys) {
+      mKeys = keys.clone();
+      mIndexes = new HashMap<>(keys.length * 2);
+      for (int i = 0; i < keys.length; i++) {
+        if (mIndexes.put(keys[i], i) != null) {
+          throw new IllegalArgumentException("Duplicate restriction " + keys[i]);
+        }
+      }
+    }
+
+    /** Returns the bit of the given restriction, or -1 if it is not in the table. */
+    public int indexOf(String key) {
+      Integer index = mIndexes.get(key);
+      return index != null ? index : -1;
+    }
+
+    public String keyAt(int index) {
+      return mKeys[index];
+    }
+
+    public int size() {
+      return mKeys.length;
+    }
+  }
+
+  /** Changes that turn one set into another. */
+  public static final class Diff {
+    private final List<String> mAdded;
+    private final List<String> mCleared;
+
+    Diff(List<String> added, List<String> cleared) {
+      mAdded = Collections.unmodifiableList(added);
+      mCleared = Collections.unmodifiableList(cleared);
+    }
+
+    /** Restrictions to add, in table order followed by the unknown ones sorted by key. */
+    public List<String> getAdded() {
+      return mAdded;
+    }
+
+    /** Restrictions to clear, in the same order as {@link #getAdded()}. */
+    public List<String> getCleared() {
+      return mCleared;
+    }
+
+    public boolean isEmpty() {
+      return mAdded.isEmpty() && mCleared.isEmpty();
+    }
+  }
+
+  private final Table mTable;
+  private final long[] mBits;
+  private final Set<String> mOtherKeys;
+
+  private UserRestrictionSet(Table table, long[] bits, Set<String> otherKeys) {
+    mTable = table;
+    mBits = bits;
+    mOtherKeys = otherKeys;
+  }
+
+  /** Returns the set of the given restrictions. */
+  public static UserRestrictionSet of(Table table, Collection<String> keys) {
+    long[] bits = new long[wordCount(table)];
+    Set<String> otherKeys = new TreeSet<>();
+    for (String key : keys) {
+      int index = table.indexOf(key);
+      if (index >= 0) {
+        bits[index >>> 6] |= 1L << index;
+      } else {
+        otherKeys.add(key);
+      }
+    }
+    return new UserRestrictionSet(table, bits, Collections.unmodifiableSet(otherKeys));
+  }
+
+  public boolean contains(String key) {
+    int index = mTable.indexOf(key);
+    if (index < 0) {
+      return mOtherKeys.contains(key);
+    }
+    return (mBits[index >>> 6] & (1L << index)) != 0;
+  }
+
+  public int size() {
+    int size = mOtherKeys.size();
+    for (long word : mBits) {
+      size += Long.bitCount(word);
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /** Returns the restrictions, in table order followed by the unknown ones sorted by key. */
+  public List<String> toList() {
+    List<String> keys = new ArrayList<>(size());
+    appendKeys(mBits, keys);
+    keys.addAll(mOtherKeys);
+    return keys;
+  }
+
+  /** Returns the restrictions of either set. */
+  public UserRestrictionSet union(UserRestrictionSet other) {
+    checkSameTable(other);
+    long[] bits = new long[mBits.length];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = mBits[i] | other.mBits[i];
+    }
+    Set<String> otherKeys = new TreeSet<>(mOtherKeys);
+    otherKeys.addAll(other.mOtherKeys);
+    return new UserRestrictionSet(mTable, bits, Collections.unmodifiableSet(otherKeys));
+  }
+
+  /** Returns the changes that turn this set into {@code desired}. */
+  public Diff diffTo(UserRestrictionSet desired) {
+    checkSameTable(desired);
+    long[] added = new long[mBits.length];
+    long[] cleared = new long[mBits.length];
+    for (int i = 0; i < mBits.length; i++) {
+      added[i] = desired.mBits[i] & ~mBits[i];
+      cleared[i] = mBits[i] & ~desired.mBits[i];
+    }
+    List<String> addedKeys = new ArrayList<>();
+    appendKeys(added, addedKeys);
+    for (String key : desired.mOtherKeys) {
+      if (!mOtherKeys.contains(key)) {
+        addedKeys.add(key);
+      }
+    }
+    List<String> clearedKeys = new ArrayList<>();
+    appendKeys(cleared, clearedKeys);
+    for (String key : mOtherKeys) {
+      if (!desired.mOtherKeys.contains(key)) {
+        clearedKeys.add(key);
+      }
+    }
+    return new Diff(addedKeys, clearedKeys);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof UserRestrictionSet)) {
+      return false;
+    }
+    UserRestrictionSet other = (UserRestrictionSet) o;
+    return mTable == other.mTable
+        && Arrays.equals(mBits, other.mBits)
+        && mOtherKeys.equals(other.mOtherKeys);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(mBits) + mOtherKeys.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return toList().toString();
+  }
+
+  private void appendKeys(long[] bits, List<String> keys) {
+    for (int i = 0; i < bits.length; i++) {
+      long word = bits[i];
+      while (word != 0) {
+        int bit = Long.numberOfTrailingZeros(word);
+        keys.add(mTable.keyAt((i << 6) + bit));
+        word &= word - 1;
+      }
+    }
+  }
+
+  private void checkSameTable(UserRestrictionSet other) {
+    if (mTable != other.mTable) {
+      throw new IllegalArgumentException("Sets built from different tables");
+    }
+  }
+
+  private static int wordCount(Table table) {
+    return (table.size() + 63) >>> 6;
+  }
+}
@@ -42,6 +42,7 @@ public class UserRestrictionsDisplayFragment extends BaseSearchablePolicyPrefere
   private static final String TAG = "UserRestrictions";
 
   private DevicePolicyManagerGateway mDevicePolicyManagerGateway;
+  private UserRestrictionEngine mUserRestrictionEngine;
 
   public static UserRestrictionsDisplayFragment newInstance() {
     UserRestrictionsDisplayFragment fragment = new UserRestrictionsDisplayFragment();
@@ -51,6 +52,7 @@ public class UserRestrictionsDisplayFragment extends BaseSearchablePolicyPrefere
   @Override
   public void onCreate(Bundle savedInstanceState) {
     mDevicePolicyManagerGateway = new DevicePolicyManagerGatewayImpl(getActivity());
+    mUserRestrictionEngine = new UserRestrictionEngine(mDevicePolicyManagerGateway);
     super.onCreate(savedInstanceState);
     getActivity().getActionBar().setTitle(R.string.user_restrictions_management_title);
   }
@@ -113,8 +115,11 @@ public class UserRestrictionsDisplayFragment extends BaseSearchablePolicyPrefere
   }
 
   private void updateAllUserRestrictions() {
+    // Reads all the restrictions at once instead of calling hasUserRestriction for each of them.
+    UserRestrictionSet restrictions = mUserRestrictionEngine.getEffectiveRestrictions();
     for (UserRestriction restriction : UserRestriction.ALL_USER_RESTRICTIONS) {
-      updateUserRestriction(restriction.key);
+      DpcSwitchPreference preference = (DpcSwitchPreference) findPreference(restriction.key);
+      preference.setChecked(restrictions.contains(restriction.key));
     }
   }
 
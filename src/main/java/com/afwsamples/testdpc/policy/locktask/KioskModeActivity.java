@@ -30,11 +30,9 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -46,6 +44,7 @@ import android.widget.TextView;
 import com.afwsamples.testdpc.DeviceAdminReceiver;
 import com.afwsamples.testdpc.PolicyManagementActivity;
 import com.afwsamples.testdpc.R;
+import com.afwsamples.testdpc.common.AppIconLoader;
 import com.afwsamples.testdpc.common.Util;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -230,32 +229,28 @@ public class KioskModeActivity extends Activity {
   private class KioskAppsArrayAdapter extends ArrayAdapter<String>
       implements AdapterView.OnItemClickListener {
 
+    private final AppIconLoader mIconLoader;
+
     public KioskAppsArrayAdapter(Context context, int resource, List<String> objects) {
       super(context, resource, objects);
+      mIconLoader = AppIconLoader.getInstance(context);
     }
 
     @Override
     public View getView(final int position, View convertView, ViewGroup parent) {
-      ApplicationInfo applicationInfo;
-      try {
-        applicationInfo = mPackageManager.getApplicationInfo(getItem(position), 0);
-      } catch (PackageManager.NameNotFoundException e) {
-        Log.e(TAG, "Fail to retrieve application info for the entry: " + position, e);
-        return null;
-      }
-
       if (convertView == null) {
         convertView =
             LayoutInflater.from(getContext()).inflate(R.layout.kiosk_mode_item, parent, false);
       }
       ImageView iconImageView = (ImageView) convertView.findViewById(R.id.pkg_icon);
-      iconImageView.setImageDrawable(applicationInfo.loadIcon(mPackageManager));
       TextView pkgNameTextView = (TextView) convertView.findViewById(R.id.pkg_name);
+      AppIconLoader.Request request = AppIconLoader.forPackage(getItem(position), 0);
       if (getPackageName().equals(getItem(position))) {
         // back door
+        mIconLoader.bind(iconImageView, null /* labelView */, request);
         pkgNameTextView.setText(getString(R.string.stop_kiosk_mode));
       } else {
-        pkgNameTextView.setText(applicationInfo.loadLabel(mPackageManager));
+        mIconLoader.bind(iconImageView, pkgNameTextView, request);
       }
       return convertView;
     }
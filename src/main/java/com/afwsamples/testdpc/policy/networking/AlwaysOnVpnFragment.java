@@ -43,6 +43,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -98,7 +99,7 @@ public class AlwaysOnVpnFragment extends SelectAppFragment {
   }
 
   @Override
-  protected List<String> createAppList() {
+  protected void loadAppList(Consumer<List<String>> callback) {
     Set<String> apps = new HashSet<>();
     PackageManager pm = getActivity().getPackageManager();
     List<ResolveInfo> serviceInfos = pm.queryIntentServices(VPN_INTENT, 0);
@@ -108,7 +109,7 @@ public class AlwaysOnVpnFragment extends SelectAppFragment {
       }
       apps.add(serviceInfo.serviceInfo.packageName);
     }
-    return new ArrayList<>(apps);
+    callback.accept(new ArrayList<>(apps));
   }
 
   @Override
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networking;
+
+import com.afwsamples.testdpc.policy.networking.NetworkUsageAggregator.UidUsage;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Data usage per network, time window and UID, as built by {@link DataUsageReportEngine}.
+ *
+ * <p>The rows are stored column by column in primitive arrays, with the network names stored once
+ * and referenced by index, so that large reports don't allocate an object per row.
+ */
+public final class DataUsageReport {
+  /** Header of {@link #writeCsv(Writer)}. */
+  static final String CSV_HEADER =
+      "network,window_start,window_end,uid,rx_bytes,rx_packets,tx_bytes,tx_packets";
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final List<String> mNetworks = new ArrayList<>();
+  private int mRowCount;
+  private int[] mNetworkIndexes = new int[INITIAL_CAPACITY];
+  private long[] mWindowStarts = new long[INITIAL_CAPACITY];
+  private long[] mWindowEnds = new long[INITIAL_CAPACITY];
+  private int[] mUids = new int[INITIAL_CAPACITY];
+  private long[] mRxBytes = new long[INITIAL_CAPACITY];
+  private long[] mRxPackets = new long[INITIAL_CAPACITY];
+  private long[] mTxBytes = new long[INITIAL_CAPACITY];
+  private long[] mTxPackets = new long[INITIAL_CAPACITY];
+
+  /** Adds a row for each UID of {@code usages}, in their order. */
+  void addRows(String network, long windowStart, long windowEnd, List<UidUsage> usages) {
+    int networkIndex = mNetworks.indexOf(network);
+    if (networkIndex < 0) {
+      networkIndex = mNetworks.size();
+      mNetworks.add(network);
+    }
+    ensureCapacity(mRowCount + usages.size());
+    for (UidUsage usage : usages) {
+      int row = mRowCount++;
+      mNetworkIndexes[row] = networkIndex;
+      mWindowStarts[row] = windowStart;
+      mWindowEnds[row] = windowEnd;
+      mUids[row] = usage.getUid();
+      mRxBytes[row] = usage.getRxBytes();
+      mRxPackets[row] = usage.getRxPackets();
+      mTxBytes[row] = usage.getTxBytes();
+      mTxPackets[row] = usage.getTxPackets();
+    }
+  }
+
+  public int getRowCount() {
+    return mRowCount;
+  }
+
+  public String getNetwork(int row) {
+    return mNetworks.get(mNetworkIndexes[checkRow(row)]);
+  }
+
+  public long getWindowStart(int row) {
+    return mWindowStarts[checkRow(row)];
+  }
+
+  public long getWindowEnd(int row) {
+    return mWindowEnds[checkRow(row)];
+  }
+
+  public int getUid(int row) {
+    return mUids[checkRow(row)];
+  }
+
+  public long getRxBytes(int row) {
+    return mRxBytes[checkRow(row)];
+  }
+
+  public long getRxPackets(int row) {
+    return mRxPackets[checkRow(row)];
+  }
+
+  public long getTxBytes(int row) {
+    return mTxBytes[checkRow(row)];
+  }
+
+  public long getTxPackets(int row) {
+    return mTxPackets[checkRow(row)];
+  }
+
+  /** Returns the received and transmitted bytes of all the rows. */
+  public long getTotalBytes() {
+    long total = 0;
+    for (int row = 0; row < mRowCount; row++) {
+      total += mRxBytes[row] + mTxBytes[row];
+    }
+    return total;
+  }
+
+  /** Writes the rows as CSV, with a header line. Times are in milliseconds since epoch. */
+  public void writeCsv(Writer writer) throws IOException {
+    StringBuilder line = new StringBuilder(128);
+    writer.write(CSV_HEADER);
+    writer.write('\n');
+    for (int row = 0; row < mRowCount; row++) {
+      line.setLength(0);
+      line.append(mNetworks.get(mNetworkIndexes[row]))
+          .append(',')
+          .append(mWindowStarts[row])
+          .append(',')
+          .append(mWindowEnds[row])
+          .append(',')
+          .append(mUids[row])
+          .append(',')
+          .append(mRxBytes[row])
+          .append(',')
+          .append(mRxPackets[row])
+          .append(',')
+          .append(mTxBytes[row])
+          .append(',')
+          .append(mTxPackets[row])
+          .append('\n');
+      writer.append(line);
+    }
+  }
+
+  private int checkRow(int row) {
+    if (row < 0 || row >= mRowCount) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + mRowCount);
+    }
+    return row;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= mUids.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, mUids.length * 2);
+    mNetworkIndexes = Arrays.copyOf(mNetworkIndexes, newCapacity);
+    mWindowStarts = Arrays.copyOf(mWindowStarts, newCapacity);
+    mWindowEnds = Arrays.copyOf(mWindowEnds, newCapacity);
+    mUids = Arrays.copyOf(mUids, newCapacity);
+    mRxBytes = Arrays.copyOf(mRxBytes, newCapacity);
+    mRxPackets = Arrays.copyOf(mRxPackets, newCapacity);
+    mTxBytes = Arrays.copyOf(mTxBytes, newCapacity);
+    mTxPackets = Arrays.copyOf(mTxPackets, newCapacity);
+  }
+}
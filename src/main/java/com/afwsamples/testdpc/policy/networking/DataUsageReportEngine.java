@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networking;
+
+import android.annotation.TargetApi;
+import android.app.usage.NetworkStats;
+import android.app.usage.NetworkStatsManager;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build.VERSION_CODES;
+import android.os.RemoteException;
+import android.util.Log;
+import com.afwsamples.testdpc.policy.networking.NetworkUsageAggregator.UidUsage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds {@link DataUsageReport}s of the data used by each UID on several networks over
+ * consecutive time windows, and exports them as CSV.
+ *
+ * <p>There is one {@link NetworkStatsManager#querySummary} query per network and window. The
+ * queries run concurrently and their results are merged in network and window order, so the
+ * report does not depend on which query completes first. A report is limited to {@link
+ * #MAX_QUERIES} queries.
+ */
+@TargetApi(VERSION_CODES.M)
+public final class DataUsageReportEngine {
+  private static final String TAG = "DataUsageReportEngine";
+  private static final int MAX_QUERY_THREADS = 4;
+  /** Maximum number of networks times windows of a report. */
+  public static final int MAX_QUERIES = 512;
+  private static final String REPORTS_DIR = "data-usage-reports";
+
+  /** Networks a report can cover, by name. */
+  public static final Map<String, Integer> NETWORK_TYPES = createNetworkTypes();
+
+  /** A summary query, as {@link NetworkStatsManager#querySummary}. */
+  interface SummaryQuery {
+    NetworkStats querySummary(int networkType, String subscriberId, long startTime, long endTime)
+        throws RemoteException;
+  }
+
+  private final Context mContext;
+  private final SummaryQuery mSummaryQuery;
+
+  public DataUsageReportEngine(Context context) {
+    this(
+        context.getApplicationContext(),
+        ((NetworkStatsManager)
+                context.getApplicationContext().getSystemService(Context.NETWORK_STATS_SERVICE))
+            ::querySummary);
+  }
+
+  DataUsageReportEngine(Context context, SummaryQuery summaryQuery) {
+    mContext = context;
+    mSummaryQuery = summaryQuery;
+  }
+
+  /**
+   * Reads the usage of each UID from {@code stats} into a single reused bucket, and closes it.
+   * Stops early if the thread is interrupted.
+   */
+  static List<UidUsage> readUsages(NetworkStats stats, boolean keepHistory) {
+    if (stats == null) {
+      return Collections.emptyList();
+    }
+    NetworkUsageAggregator aggregator = new NetworkUsageAggregator(keepHistory);
+    try {
+      NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+      while (stats.hasNextBucket() && !Thread.currentThread().isInterrupted()) {
+        stats.getNextBucket(bucket);
+        aggregator.add(
+            bucket.getUid(),
+            bucket.getState(),
+            bucket.getStartTimeStamp(),
+            bucket.getEndTimeStamp(),
+            bucket.getRxBytes(),
+            bucket.getRxPackets(),
+            bucket.getTxBytes(),
+            bucket.getTxPackets());
+      }
+    } finally {
+      stats.close();
+    }
+    return aggregator.getUsages();
+  }
+
+  /**
+   * Returns the usage of each UID on the given networks, in {@code windowCount} consecutive
+   * windows of {@code windowMillis} that end at {@code endTime}. Blocks until all the queries
+   * complete.
+   *
+   * @param networks keys of {@link #NETWORK_TYPES}.
+   * @throws SecurityException if TestDPC doesn't have usage access.
+   */
+  public DataUsageReport run(
+      List<String> networks, long endTime, long windowMillis, int windowCount)
+      throws RemoteException, InterruptedException {
+    for (String network : networks) {
+      if (!NETWORK_TYPES.containsKey(network)) {
+        throw new IllegalArgumentException("Unknown network " + network);
+      }
+    }
+    if (windowMillis <= 0 || windowCount <= 0) {
+      throw new IllegalArgumentException("Invalid windows: " + windowCount + "x" + windowMillis);
+    }
+    if ((long) networks.size() * windowCount > MAX_QUERIES) {
+      throw new IllegalArgumentException(
+          "Too many queries: "
+              + networks.size()
+              + " networks x "
+              + windowCount
+              + " windows, the maximum is "
+              + MAX_QUERIES);
+    }
+    int queryCount = networks.size() * windowCount;
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_QUERY_THREADS, queryCount)));
+    try {
+      List<Future<List<UidUsage>>> futures = new ArrayList<>(queryCount);
+      for (String network : networks) {
+        int networkType = NETWORK_TYPES.get(network);
+        String subscriberId = getSubscriberId(networkType);
+        for (int window = 0; window < windowCount; window++) {
+          long windowStart = getWindowStart(endTime, windowMillis, windowCount, window);
+          Callable<List<UidUsage>> query =
+              () ->
+                  readUsages(
+                      mSummaryQuery.querySummary(
+                          networkType, subscriberId, windowStart, windowStart + windowMillis),
+                      false /* keepHistory */);
+          futures.add(executor.submit(query));
+        }
+      }
+      DataUsageReport report = new DataUsageReport();
+      int index = 0;
+      for (String network : networks) {
+        for (int window = 0; window < windowCount; window++) {
+          long windowStart = getWindowStart(endTime, windowMillis, windowCount, window);
+          report.addRows(
+              network, windowStart, windowStart + windowMillis, getResult(futures.get(index++)));
+        }
+      }
+      return report;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Writes the report to a new CSV file in the external files dir, and returns the file. */
+  public File exportCsv(DataUsageReport report) throws IOException {
+    File directory = new File(mContext.getExternalFilesDir(null), REPORTS_DIR);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+    File file = new File(directory, "data-usage-" + timestamp + ".csv");
+    try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+      report.writeCsv(writer);
+    }
+    Log.d(TAG, "Exported " + report.getRowCount() + " rows to " + file);
+    return file;
+  }
+
+  /**
+   * Returns the subscriber ID to query {@code networkType} with: {@code null} for mobile networks,
+   * which matches all the subscribers, as an empty ID matches none. Other networks ignore it.
+   */
+  static String getSubscriberId(int networkType) {
+    return networkType == ConnectivityManager.TYPE_MOBILE ? null : "";
+  }
+
+  private static long getWindowStart(long endTime, long windowMillis, int windowCount, int window) {
+    return endTime - (windowCount - window) * windowMillis;
+  }
+
+  private static List<UidUsage> getResult(Future<List<UidUsage>> future)
+      throws RemoteException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RemoteException) {
+        throw (RemoteException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException("Data usage query failed", cause);
+    }
+  }
+
+  private static Map<String, Integer> createNetworkTypes() {
+    Map<String, Integer> networkTypes = new LinkedHashMap<>();
+    networkTypes.put("wifi", ConnectivityManager.TYPE_WIFI);
+    networkTypes.put("mobile", ConnectivityManager.TYPE_MOBILE);
+    return Collections.unmodifiableMap(networkTypes);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networking;
+
+import android.annotation.TargetApi;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Random-access, read-only view over every batch retained by a {@link NetworkLogStore}.
+ *
+ * <p>Each segment is memory-mapped once and records are addressed by their global position, so
+ * reading a window of records only touches the pages backing that window. Building the pager makes
+ * a single pass over the mapped records to index where each batch starts.
+ *
+ * <p>The pager reflects the store at the time it was opened. Segments removed by retention
+ * afterwards stay readable through their existing mapping.
+ */
+@TargetApi(VERSION_CODES.O)
+public final class NetworkLogPager {
+  private static final String TAG = "NetworkLogPager";
+
+  private final ByteBuffer[] mSegments;
+  // mSegmentStarts[i] is the global position of the first record of segment i.
+  private final int[] mSegmentStarts;
+  private final int mCount;
+  private final String[] mStrings;
+
+  private final long[] mBatchTokens;
+  private final int[] mBatchStarts;
+  private final int mBatchCount;
+
+  NetworkLogPager(File[] files, long[] lengths, String[] strings) throws IOException {
+    mStrings = strings;
+    List<ByteBuffer> segments = new ArrayList<>(files.length);
+    int[] segmentStarts = new int[files.length];
+    int count = 0;
+    for (int i = 0; i < files.length; i++) {
+      long recordBytes =
+          Math.max(0, (lengths[i] - NetworkLogStore.HEADER_SIZE) / NetworkLogStore.RECORD_SIZE)
+              * NetworkLogStore.RECORD_SIZE;
+      if (recordBytes == 0) {
+        continue;
+      }
+      ByteBuffer mapped;
+      try (RandomAccessFile raf = new RandomAccessFile(files[i], "r")) {
+        // The mapping stays valid after the channel is closed.
+        mapped =
+            raf.getChannel()
+                .map(FileChannel.MapMode.READ_ONLY, NetworkLogStore.HEADER_SIZE, recordBytes);
+      } catch (IOException e) {
+        Log.w(TAG, "Skipping unreadable segment " + files[i], e);
+        continue;
+      }
+      segmentStarts[segments.size()] = count;
+      segments.add(mapped);
+      count += (int) (recordBytes / NetworkLogStore.RECORD_SIZE);
+    }
+    mSegments = segments.toArray(new ByteBuffer[0]);
+    mSegmentStarts = Arrays.copyOf(segmentStarts, mSegments.length);
+    mCount = count;
+
+    long[] batchTokens = new long[16];
+    int[] batchStarts = new int[16];
+    int batchCount = 0;
+    int position = 0;
+    for (ByteBuffer segment : mSegments) {
+      int limit = segment.limit();
+      for (int offset = 0; offset < limit; offset += NetworkLogStore.RECORD_SIZE, position++) {
+        long batchToken = NetworkLogStore.readBatchToken(segment, offset);
+        if (batchCount == 0 || batchTokens[batchCount - 1] != batchToken) {
+          if (batchCount == batchTokens.length) {
+            batchTokens = Arrays.copyOf(batchTokens, batchCount * 2);
+            batchStarts = Arrays.copyOf(batchStarts, batchCount * 2);
+          }
+          batchTokens[batchCount] = batchToken;
+          batchStarts[batchCount] = position;
+          batchCount++;
+        }
+      }
+    }
+    mBatchTokens = batchTokens;
+    mBatchStarts = batchStarts;
+    mBatchCount = batchCount;
+  }
+
+  /** Returns the number of records across all retained batches. */
+  public int getCount() {
+    return mCount;
+  }
+
+  /** Returns the number of retained batches. */
+  public int getBatchCount() {
+    return mBatchCount;
+  }
+
+  public long getBatchToken(int batchIndex) {
+    return mBatchTokens[batchIndex];
+  }
+
+  /** Returns the position of the first record of the given batch. */
+  public int getBatchStart(int batchIndex) {
+    return mBatchStarts[batchIndex];
+  }
+
+  /** Returns the index of the batch containing the record at {@code position}. */
+  public int getBatchIndex(int position) {
+    int index = Arrays.binarySearch(mBatchStarts, 0, mBatchCount, position);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  /** Creates a view that can be passed to {@link #read(int, NetworkLogStore.RecordView)}. */
+  public NetworkLogStore.RecordView newRecordView() {
+    return new NetworkLogStore.RecordView(mStrings);
+  }
+
+  /** Loads the record at {@code position} into {@code view}. */
+  public void read(int position, NetworkLogStore.RecordView view) {
+    if (position < 0 || position >= mCount) {
+      throw new IndexOutOfBoundsException("position " + position + ", count " + mCount);
+    }
+    int segmentIndex = Arrays.binarySearch(mSegmentStarts, position);
+    if (segmentIndex < 0) {
+      segmentIndex = -segmentIndex - 2;
+    }
+    int offset = (position - mSegmentStarts[segmentIndex]) * NetworkLogStore.RECORD_SIZE;
+    NetworkLogStore.readRecord(mSegments[segmentIndex], offset, view);
+  }
+}
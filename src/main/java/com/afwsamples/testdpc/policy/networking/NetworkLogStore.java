@@ -0,0 +1,852 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networking;
+
+import android.annotation.TargetApi;
+import android.app.admin.ConnectEvent;
+import android.app.admin.DnsEvent;
+import android.app.admin.NetworkEvent;
+import android.content.Context;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+import com.afwsamples.testdpc.common.Util;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Append-only, segmented binary store for retrieved network logs.
+ *
+ * <p>Every {@link NetworkEvent} is written as a fixed-width record of {@link #RECORD_SIZE} bytes.
+ * Package names and DNS hostnames are interned in a dictionary file and referenced by index, so
+ * records never hold strings. A DNS event that resolved to several addresses is stored as one
+ * record per address, all sharing the same event id.
+ *
+ * <p>Records are appended to the newest segment until it reaches {@code maxSegmentBytes}, after
+ * which a new segment is started. Once the store grows beyond {@code maxStoreBytes}, the oldest
+ * segments are deleted. Segments whose header doesn't match {@link #FORMAT_VERSION} are discarded
+ * when the store is loaded.
+ *
+ * <p>Once the dropped segments leave at least half of the dictionary unused, and it holds at least
+ * {@link #MIN_STRINGS_TO_COMPACT} strings, the unused strings are dropped and the retained segments
+ * are rewritten with the new indexes.
+ */
+@TargetApi(VERSION_CODES.O)
+public final class NetworkLogStore {
+  private static final String TAG = "NetworkLogStore";
+
+  private static final String DIRECTORY_NAME = "network_logs";
+  private static final String SEGMENT_PREFIX = "segment_";
+  private static final String SEGMENT_SUFFIX = ".bin";
+  private static final String DICTIONARY_FILE_NAME = "dictionary.bin";
+  // Suffix of the files written by a dictionary compaction until it is committed.
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private static final long DEFAULT_MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+  private static final long DEFAULT_MAX_STORE_BYTES = 64 * 1024 * 1024;
+  static final int MIN_STRINGS_TO_COMPACT = 4096;
+
+  private static final int MAGIC = 0x4e4c4f47; // "NLOG"
+  private static final int FORMAT_VERSION = 1;
+  static final int HEADER_SIZE = 8;
+
+  // Record layout, all values big-endian.
+  private static final int OFFSET_ID = 0;
+  private static final int OFFSET_TIMESTAMP = 8;
+  private static final int OFFSET_BATCH_TOKEN = 16;
+  private static final int OFFSET_PACKAGE = 24;
+  private static final int OFFSET_HOSTNAME = 28;
+  private static final int OFFSET_TYPE = 32;
+  private static final int OFFSET_ADDRESS_LENGTH = 33;
+  private static final int OFFSET_PORT = 34;
+  private static final int OFFSET_ADDRESS = 36;
+  private static final int MAX_ADDRESS_LENGTH = 16;
+  public static final int RECORD_SIZE = OFFSET_ADDRESS + MAX_ADDRESS_LENGTH;
+
+  public static final int TYPE_UNKNOWN = 0;
+  public static final int TYPE_DNS = 1;
+  public static final int TYPE_CONNECT = 2;
+
+  /** Index stored for absent strings (e.g. the hostname of a connect event). */
+  public static final int NO_INDEX = -1;
+
+  /** Value stored as id for events retrieved before {@link NetworkEvent#getId()} existed. */
+  public static final long NO_ID = -1;
+
+  /** Number of records read from disk at once by a {@link Cursor}. */
+  private static final int RECORDS_PER_READ = 256;
+
+  private static NetworkLogStore sInstance;
+
+  private final File mDirectory;
+  private final long mMaxSegmentBytes;
+  private final long mMaxStoreBytes;
+
+  private final List<String> mStrings = new ArrayList<>();
+  private final Map<String, Integer> mStringIndexes = new HashMap<>();
+  private final List<Long> mSegmentIds = new ArrayList<>();
+  private long mLastBatchToken = -1;
+  // The dictionary is checked for unused strings once it holds this many strings.
+  private int mCompactionThreshold = MIN_STRINGS_TO_COMPACT;
+  private boolean mLoaded;
+
+  NetworkLogStore(File directory, long maxSegmentBytes, long maxStoreBytes) {
+    mDirectory = directory;
+    mMaxSegmentBytes = maxSegmentBytes;
+    mMaxStoreBytes = maxStoreBytes;
+  }
+
+  public static synchronized NetworkLogStore getInstance(Context context) {
+    if (sInstance == null) {
+      File directory = new File(context.getApplicationContext().getFilesDir(), DIRECTORY_NAME);
+      sInstance =
+          new NetworkLogStore(directory, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_STORE_BYTES);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Appends a batch of events to the store. Must not be called on the main thread.
+   *
+   * @return the number of records written
+   */
+  public synchronized int append(long batchToken, List<NetworkEvent> events) throws IOException {
+    ensureLoaded();
+    // Intern the strings first so the dictionary is durable before any record refers to it.
+    Map<String, Integer> newStrings = new LinkedHashMap<>();
+    int[] packageIndexes = new int[events.size()];
+    int[] hostnameIndexes = new int[events.size()];
+    int recordCount = 0;
+    for (int i = 0; i < events.size(); i++) {
+      NetworkEvent event = events.get(i);
+      packageIndexes[i] = intern(event.getPackageName(), newStrings);
+      hostnameIndexes[i] = NO_INDEX;
+      if (event instanceof DnsEvent) {
+        DnsEvent dnsEvent = (DnsEvent) event;
+        hostnameIndexes[i] = intern(dnsEvent.getHostname(), newStrings);
+        recordCount += Math.max(1, dnsEvent.getInetAddresses().size());
+      } else {
+        recordCount++;
+      }
+    }
+    writeDictionaryEntries(newStrings.keySet());
+    for (String value : newStrings.keySet()) {
+      mStringIndexes.put(value, mStrings.size());
+      mStrings.add(value);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_READ * RECORD_SIZE);
+    RandomAccessFile segment = openCurrentSegment();
+    try {
+      for (int i = 0; i < events.size(); i++) {
+        NetworkEvent event = events.get(i);
+        long id = Util.SDK_INT >= VERSION_CODES.P ? event.getId() : NO_ID;
+        if (event instanceof DnsEvent) {
+          List<InetAddress> addresses = ((DnsEvent) event).getInetAddresses();
+          if (addresses.isEmpty()) {
+            segment = flushIfFull(buffer, segment);
+            putRecord(buffer, id, event.getTimestamp(), batchToken, packageIndexes[i],
+                hostnameIndexes[i], TYPE_DNS, null, 0);
+          }
+          for (InetAddress address : addresses) {
+            segment = flushIfFull(buffer, segment);
+            putRecord(buffer, id, event.getTimestamp(), batchToken, packageIndexes[i],
+                hostnameIndexes[i], TYPE_DNS, address, 0);
+          }
+        } else if (event instanceof ConnectEvent) {
+          ConnectEvent connectEvent = (ConnectEvent) event;
+          segment = flushIfFull(buffer, segment);
+          putRecord(buffer, id, event.getTimestamp(), batchToken, packageIndexes[i], NO_INDEX,
+              TYPE_CONNECT, connectEvent.getInetAddress(), connectEvent.getPort());
+        } else {
+          segment = flushIfFull(buffer, segment);
+          putRecord(buffer, id, event.getTimestamp(), batchToken, packageIndexes[i], NO_INDEX,
+              TYPE_UNKNOWN, null, 0);
+        }
+      }
+      flush(buffer, segment);
+    } finally {
+      segment.close();
+    }
+    mLastBatchToken = batchToken;
+    enforceRetention();
+    Log.d(TAG, "Appended " + recordCount + " records for batch " + batchToken);
+    return recordCount;
+  }
+
+  /** Returns the token of the most recently stored batch, or {@code -1} if the store is empty. */
+  public synchronized long getLastBatchToken() throws IOException {
+    ensureLoaded();
+    return mLastBatchToken;
+  }
+
+  /** Opens a cursor over every retained record, oldest first. */
+  public Cursor query() throws IOException {
+    return query(/* batchToken= */ -1);
+  }
+
+  /**
+   * Opens a cursor over the retained records of the given batch, oldest first, or over every
+   * record if {@code batchToken} is negative.
+   *
+   * <p>The cursor sees the records that were stored when it was opened.
+   */
+  public synchronized Cursor query(long batchToken) throws IOException {
+    ensureLoaded();
+    File[] files = getSegmentFiles();
+    return new Cursor(files, getLengths(files), mStrings.toArray(new String[0]), batchToken);
+  }
+
+  /**
+   * Opens a random-access pager over every retained record. Must not be called on the main
+   * thread, as it maps and indexes every segment.
+   */
+  public synchronized NetworkLogPager openPager() throws IOException {
+    ensureLoaded();
+    // Mapped while holding the lock, so that a compaction can't rewrite the segments in between.
+    File[] files = getSegmentFiles();
+    return new NetworkLogPager(files, getLengths(files), mStrings.toArray(new String[0]));
+  }
+
+  private File[] getSegmentFiles() {
+    File[] files = new File[mSegmentIds.size()];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = getSegmentFile(mSegmentIds.get(i));
+    }
+    return files;
+  }
+
+  private static long[] getLengths(File[] files) {
+    long[] lengths = new long[files.length];
+    for (int i = 0; i < files.length; i++) {
+      lengths[i] = files[i].length();
+    }
+    return lengths;
+  }
+
+  private void ensureLoaded() throws IOException {
+    if (mLoaded) {
+      return;
+    }
+    // Also called again after a failed write, to get back in sync with the files.
+    mStrings.clear();
+    mStringIndexes.clear();
+    mSegmentIds.clear();
+    mCompactionThreshold = MIN_STRINGS_TO_COMPACT;
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      throw new IOException("Could not create " + mDirectory);
+    }
+    recoverCompaction();
+    loadDictionary();
+    File[] files =
+        mDirectory.listFiles(
+            (dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        long segmentId;
+        try {
+          segmentId =
+              Long.parseLong(
+                  name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+          Log.w(TAG, "Ignoring unexpected file " + name);
+          continue;
+        }
+        if (!hasValidHeader(file)) {
+          // E.g. written by another version, or cut short by a crash while it was started.
+          Log.w(TAG, "Discarding segment with an invalid header " + name);
+          if (!file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+          }
+          continue;
+        }
+        mSegmentIds.add(segmentId);
+      }
+    }
+    Collections.sort(mSegmentIds);
+    mLastBatchToken = readLastBatchToken();
+    mLoaded = true;
+  }
+
+  private static boolean hasValidHeader(File file) throws IOException {
+    if (file.length() < HEADER_SIZE) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readInt() == MAGIC && in.readInt() == FORMAT_VERSION;
+    }
+  }
+
+  /**
+   * Completes or rolls back a dictionary compaction that was interrupted, depending on whether the
+   * compacted dictionary had replaced the old one.
+   */
+  private void recoverCompaction() throws IOException {
+    File dictionaryTmp = new File(mDirectory, DICTIONARY_FILE_NAME + TMP_SUFFIX);
+    boolean committed = !dictionaryTmp.exists();
+    if (!committed && !dictionaryTmp.delete()) {
+      throw new IOException("Could not delete " + dictionaryTmp);
+    }
+    File[] files =
+        mDirectory.listFiles(
+            (dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(TMP_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (committed) {
+        String path = file.getPath();
+        File segment = new File(path.substring(0, path.length() - TMP_SUFFIX.length()));
+        if (!file.renameTo(segment)) {
+          throw new IOException("Could not rename " + file);
+        }
+      } else if (!file.delete()) {
+        throw new IOException("Could not delete " + file);
+      }
+    }
+  }
+
+  private void loadDictionary() throws IOException {
+    File file = new File(mDirectory, DICTIONARY_FILE_NAME);
+    if (!file.exists()) {
+      return;
+    }
+    byte[] bytes;
+    try (FileInputStream in = new FileInputStream(file)) {
+      bytes = Util.readBytes(in);
+    }
+    ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+    DataInputStream in = new DataInputStream(buffer);
+    int validLength = 0;
+    while (buffer.available() > 0) {
+      String value;
+      try {
+        value = in.readUTF();
+      } catch (EOFException | UTFDataFormatException e) {
+        break;
+      }
+      validLength = bytes.length - buffer.available();
+      mStringIndexes.put(value, mStrings.size());
+      mStrings.add(value);
+    }
+    if (validLength < bytes.length) {
+      // Drop a partially written entry, so that the next entries are appended after valid ones.
+      Log.w(TAG, "Truncating the dictionary from " + bytes.length + " to " + validLength);
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(validLength);
+      }
+    }
+  }
+
+  private long readLastBatchToken() throws IOException {
+    for (int i = mSegmentIds.size() - 1; i >= 0; i--) {
+      File file = getSegmentFile(mSegmentIds.get(i));
+      long recordCount = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+      if (recordCount <= 0) {
+        continue;
+      }
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        raf.seek(HEADER_SIZE + (recordCount - 1) * RECORD_SIZE + OFFSET_BATCH_TOKEN);
+        return raf.readLong();
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index of {@code value}, adding it to {@code newStrings} if it isn't in the
+   * dictionary. New strings are only added to the dictionary once they are written to disk.
+   */
+  private int intern(String value, Map<String, Integer> newStrings) {
+    if (value == null) {
+      return NO_INDEX;
+    }
+    Integer index = mStringIndexes.get(value);
+    if (index == null) {
+      index = newStrings.get(value);
+    }
+    if (index == null) {
+      index = mStrings.size() + newStrings.size();
+      newStrings.put(value, index);
+    }
+    return index;
+  }
+
+  private void writeDictionaryEntries(Collection<String> newStrings) throws IOException {
+    if (newStrings.isEmpty()) {
+      return;
+    }
+    File file = new File(mDirectory, DICTIONARY_FILE_NAME);
+    try {
+      writeStrings(new FileOutputStream(file, /* append= */ true), newStrings);
+    } catch (IOException e) {
+      // Some strings may have been written; reload the dictionary from disk before the next call.
+      mLoaded = false;
+      throw e;
+    }
+  }
+
+  private static void writeStrings(FileOutputStream file, Collection<String> strings)
+      throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+      for (String value : strings) {
+        out.writeUTF(value);
+      }
+    }
+  }
+
+  private RandomAccessFile openCurrentSegment() throws IOException {
+    if (mSegmentIds.isEmpty()) {
+      return startSegment(0);
+    }
+    File file = getSegmentFile(mSegmentIds.get(mSegmentIds.size() - 1));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    // Drop any partially written record left behind by a crash.
+    long length = raf.length();
+    long validLength = HEADER_SIZE + Math.max(0, (length - HEADER_SIZE) / RECORD_SIZE) * RECORD_SIZE;
+    if (validLength != length) {
+      raf.setLength(validLength);
+    }
+    raf.seek(validLength);
+    return raf;
+  }
+
+  private RandomAccessFile startSegment(long segmentId) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(getSegmentFile(segmentId), "rw");
+    raf.setLength(0);
+    raf.writeInt(MAGIC);
+    raf.writeInt(FORMAT_VERSION);
+    mSegmentIds.add(segmentId);
+    return raf;
+  }
+
+  private RandomAccessFile flushIfFull(ByteBuffer buffer, RandomAccessFile segment)
+      throws IOException {
+    if (buffer.remaining() < RECORD_SIZE) {
+      flush(buffer, segment);
+    }
+    if (segment.getFilePointer() + buffer.position() + RECORD_SIZE > mMaxSegmentBytes
+        && segment.getFilePointer() + buffer.position() > HEADER_SIZE) {
+      flush(buffer, segment);
+      segment.close();
+      return startSegment(mSegmentIds.get(mSegmentIds.size() - 1) + 1);
+    }
+    return segment;
+  }
+
+  private static void flush(ByteBuffer buffer, RandomAccessFile segment) throws IOException {
+    buffer.flip();
+    writeFully(buffer, segment.getChannel());
+    buffer.clear();
+  }
+
+  private static void writeFully(ByteBuffer buffer, FileChannel channel) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Reads the next whole records of {@code channel} into {@code buffer}, and flips it. Returns
+   * false once there are no more records.
+   */
+  private static boolean readRecords(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+    buffer.limit(buffer.limit() / RECORD_SIZE * RECORD_SIZE);
+    return buffer.hasRemaining();
+  }
+
+  private static void putRecord(
+      ByteBuffer buffer,
+      long id,
+      long timestamp,
+      long batchToken,
+      int packageIndex,
+      int hostnameIndex,
+      int type,
+      InetAddress address,
+      int port) {
+    int start = buffer.position();
+    buffer.putLong(start + OFFSET_ID, id);
+    buffer.putLong(start + OFFSET_TIMESTAMP, timestamp);
+    buffer.putLong(start + OFFSET_BATCH_TOKEN, batchToken);
+    buffer.putInt(start + OFFSET_PACKAGE, packageIndex);
+    buffer.putInt(start + OFFSET_HOSTNAME, hostnameIndex);
+    buffer.put(start + OFFSET_TYPE, (byte) type);
+    buffer.putChar(start + OFFSET_PORT, (char) port);
+    byte[] addressBytes = address == null ? null : address.getAddress();
+    int addressLength = addressBytes == null ? 0 : addressBytes.length;
+    buffer.put(start + OFFSET_ADDRESS_LENGTH, (byte) addressLength);
+    for (int i = 0; i < MAX_ADDRESS_LENGTH; i++) {
+      buffer.put(start + OFFSET_ADDRESS + i, i < addressLength ? addressBytes[i] : 0);
+    }
+    buffer.position(start + RECORD_SIZE);
+  }
+
+  private void enforceRetention() {
+    long totalBytes = 0;
+    for (long segmentId : mSegmentIds) {
+      totalBytes += getSegmentFile(segmentId).length();
+    }
+    boolean dropped = false;
+    while (totalBytes > mMaxStoreBytes && mSegmentIds.size() > 1) {
+      File oldest = getSegmentFile(mSegmentIds.remove(0));
+      totalBytes -= oldest.length();
+      if (!oldest.delete()) {
+        Log.w(TAG, "Could not delete " + oldest);
+      }
+      dropped = true;
+    }
+    if (dropped && mStrings.size() >= mCompactionThreshold) {
+      try {
+        compactDictionary();
+      } catch (IOException e) {
+        Log.w(TAG, "Could not compact the dictionary", e);
+        // Reloading completes or rolls back the compaction.
+        mLoaded = false;
+      }
+    }
+  }
+
+  /**
+   * Drops the strings that no retained record refers to, if they are at least half of the
+   * dictionary. The segments are rewritten with the new indexes next to the old ones, and the
+   * compaction is committed by replacing the dictionary; see {@link #recoverCompaction()}.
+   */
+  private void compactDictionary() throws IOException {
+    File[] files = getSegmentFiles();
+    ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_READ * RECORD_SIZE);
+    boolean[] used = new boolean[mStrings.size()];
+    for (File file : files) {
+      try (FileChannel channel = new FileInputStream(file).getChannel()) {
+        channel.position(HEADER_SIZE);
+        while (readRecords(channel, buffer)) {
+          for (int offset = 0; offset < buffer.limit(); offset += RECORD_SIZE) {
+            markUsed(used, buffer.getInt(offset + OFFSET_PACKAGE));
+            markUsed(used, buffer.getInt(offset + OFFSET_HOSTNAME));
+          }
+        }
+      }
+    }
+    int[] newIndexes = new int[used.length];
+    List<String> liveStrings = new ArrayList<>();
+    for (int i = 0; i < used.length; i++) {
+      newIndexes[i] = used[i] ? liveStrings.size() : NO_INDEX;
+      if (used[i]) {
+        liveStrings.add(mStrings.get(i));
+      }
+    }
+    // Checked again once the dictionary doubled, so that the segments are rarely scanned.
+    mCompactionThreshold = Math.max(MIN_STRINGS_TO_COMPACT, 2 * liveStrings.size());
+    if (liveStrings.size() * 2 > used.length) {
+      return;
+    }
+
+    File dictionary = new File(mDirectory, DICTIONARY_FILE_NAME);
+    File dictionaryTmp = new File(mDirectory, DICTIONARY_FILE_NAME + TMP_SUFFIX);
+    try (FileOutputStream out = new FileOutputStream(dictionaryTmp)) {
+      writeStrings(out, liveStrings);
+    }
+    for (File file : files) {
+      try (FileChannel in = new FileInputStream(file).getChannel();
+          FileOutputStream out = new FileOutputStream(file.getPath() + TMP_SUFFIX)) {
+        buffer.clear();
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        writeFully(buffer, out.getChannel());
+        in.position(HEADER_SIZE);
+        while (readRecords(in, buffer)) {
+          for (int offset = 0; offset < buffer.limit(); offset += RECORD_SIZE) {
+            remap(buffer, offset + OFFSET_PACKAGE, newIndexes);
+            remap(buffer, offset + OFFSET_HOSTNAME, newIndexes);
+          }
+          writeFully(buffer, out.getChannel());
+        }
+        out.getFD().sync();
+      }
+    }
+    if (!dictionaryTmp.renameTo(dictionary)) {
+      throw new IOException("Could not rename " + dictionaryTmp);
+    }
+    for (File file : files) {
+      if (!new File(file.getPath() + TMP_SUFFIX).renameTo(file)) {
+        throw new IOException("Could not rename the compacted " + file);
+      }
+    }
+    Log.i(TAG, "Compacted the dictionary from " + used.length + " to " + liveStrings.size());
+    mStrings.clear();
+    mStringIndexes.clear();
+    for (String value : liveStrings) {
+      mStringIndexes.put(value, mStrings.size());
+      mStrings.add(value);
+    }
+  }
+
+  private static void markUsed(boolean[] used, int index) {
+    if (index >= 0 && index < used.length) {
+      used[index] = true;
+    }
+  }
+
+  private static void remap(ByteBuffer buffer, int position, int[] newIndexes) {
+    int index = buffer.getInt(position);
+    buffer.putInt(position, index >= 0 && index < newIndexes.length ? newIndexes[index] : NO_INDEX);
+  }
+
+  private File getSegmentFile(long segmentId) {
+    return new File(
+        mDirectory, String.format(Locale.US, "%s%012d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+  }
+
+  static long readBatchToken(ByteBuffer buffer, int offset) {
+    return buffer.getLong(offset + OFFSET_BATCH_TOKEN);
+  }
+
+  /** Reads the record starting at {@code offset} of {@code buffer} into {@code view}. */
+  static void readRecord(ByteBuffer buffer, int offset, RecordView view) {
+    view.mId = buffer.getLong(offset + OFFSET_ID);
+    view.mTimestamp = buffer.getLong(offset + OFFSET_TIMESTAMP);
+    view.mBatchToken = buffer.getLong(offset + OFFSET_BATCH_TOKEN);
+    view.mPackageIndex = buffer.getInt(offset + OFFSET_PACKAGE);
+    view.mHostnameIndex = buffer.getInt(offset + OFFSET_HOSTNAME);
+    view.mType = buffer.get(offset + OFFSET_TYPE);
+    view.mAddressLength = buffer.get(offset + OFFSET_ADDRESS_LENGTH);
+    view.mPort = buffer.getChar(offset + OFFSET_PORT);
+    for (int i = 0; i < MAX_ADDRESS_LENGTH; i++) {
+      view.mAddress[i] = buffer.get(offset + OFFSET_ADDRESS + i);
+    }
+  }
+
+  /**
+   * Mutable view of a single record. Accessors never allocate, except for {@link #getAddress()}
+   * and {@link #appendTo(StringBuilder)}.
+   */
+  public static class RecordView {
+    private final String[] mStrings;
+    private long mId;
+    private long mTimestamp;
+    private long mBatchToken;
+    private int mPackageIndex;
+    private int mHostnameIndex;
+    private int mType;
+    private int mAddressLength;
+    private int mPort;
+    private final byte[] mAddress = new byte[MAX_ADDRESS_LENGTH];
+
+    RecordView(String[] strings) {
+      mStrings = strings;
+    }
+
+    public long getId() {
+      return mId;
+    }
+
+    public long getTimestamp() {
+      return mTimestamp;
+    }
+
+    public long getBatchToken() {
+      return mBatchToken;
+    }
+
+    /** One of {@link #TYPE_DNS}, {@link #TYPE_CONNECT} or {@link #TYPE_UNKNOWN}. */
+    public int getType() {
+      return mType;
+    }
+
+    public String getPackageName() {
+      return lookup(mPackageIndex);
+    }
+
+    /** Returns the queried hostname of a DNS event, or {@code null} for other events. */
+    public String getHostname() {
+      return lookup(mHostnameIndex);
+    }
+
+    /** Returns the port of a connect event, or {@code 0} for other events. */
+    public int getPort() {
+      return mPort;
+    }
+
+    public InetAddress getAddress() {
+      if (mAddressLength == 0) {
+        return null;
+      }
+      try {
+        return InetAddress.getByAddress(Arrays.copyOf(mAddress, mAddressLength));
+      } catch (UnknownHostException e) {
+        return null;
+      }
+    }
+
+    /** Appends a human-readable representation of the record, as shown to the user. */
+    public StringBuilder appendTo(StringBuilder sb) {
+      InetAddress address = getAddress();
+      String hostAddress = address == null ? "" : address.getHostAddress();
+      switch (mType) {
+        case TYPE_DNS:
+          sb.append("DnsEvent id=").append(mId)
+              .append(" pkg=").append(getPackageName())
+              .append(" hostname=").append(getHostname())
+              .append(" address=").append(hostAddress);
+          break;
+        case TYPE_CONNECT:
+          sb.append("ConnectEvent id=").append(mId)
+              .append(" pkg=").append(getPackageName())
+              .append(" address=").append(hostAddress)
+              .append(" port=").append(mPort);
+          break;
+        default:
+          sb.append("Unknown id=").append(mId).append(" pkg=").append(getPackageName());
+      }
+      return sb.append(" timestamp=").append(mTimestamp);
+    }
+
+    private String lookup(int index) {
+      return index >= 0 && index < mStrings.length ? mStrings[index] : null;
+    }
+  }
+
+  /**
+   * Forward-only cursor over the stored records. Reads segments in chunks of
+   * {@link #RECORDS_PER_READ} records through a reused buffer.
+   */
+  public static final class Cursor extends RecordView implements Closeable {
+    private final FileChannel[] mChannels;
+    private final long[] mLengths;
+    private final long mBatchFilter;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(RECORDS_PER_READ * RECORD_SIZE);
+    private int mFileIndex = -1;
+    private FileChannel mChannel;
+    private long mRemaining;
+
+    Cursor(File[] files, long[] lengths, String[] strings, long batchToken) {
+      super(strings);
+      mLengths = lengths;
+      mBatchFilter = batchToken;
+      mBuffer.limit(0);
+      // Opened up front, so that the cursor keeps reading the segments it was opened on, even if
+      // they are deleted by retention or rewritten by a compaction later.
+      mChannels = new FileChannel[files.length];
+      for (int i = 0; i < files.length; i++) {
+        if (lengths[i] < HEADER_SIZE) {
+          continue;
+        }
+        try {
+          mChannels[i] = new FileInputStream(files[i]).getChannel();
+        } catch (IOException e) {
+          Log.w(TAG, "Skipping unreadable segment " + files[i], e);
+        }
+      }
+    }
+
+    /** Moves to the next matching record, returning {@code false} once there are no more. */
+    public boolean moveToNext() throws IOException {
+      while (true) {
+        if (!mBuffer.hasRemaining() && !fill()) {
+          return false;
+        }
+        int offset = mBuffer.position();
+        mBuffer.position(offset + RECORD_SIZE);
+        if (mBatchFilter >= 0 && mBuffer.getLong(offset + OFFSET_BATCH_TOKEN) != mBatchFilter) {
+          continue;
+        }
+        readRecord(mBuffer, offset, this);
+        return true;
+      }
+    }
+
+    private boolean fill() throws IOException {
+      while (mRemaining == 0) {
+        closeChannel();
+        if (++mFileIndex >= mChannels.length) {
+          return false;
+        }
+        mChannel = mChannels[mFileIndex];
+        if (mChannel == null) {
+          continue;
+        }
+        mChannel.position(HEADER_SIZE);
+        mRemaining = (mLengths[mFileIndex] - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+      }
+      mBuffer.clear();
+      mBuffer.limit((int) Math.min(mBuffer.capacity(), mRemaining));
+      while (mBuffer.hasRemaining()) {
+        if (mChannel.read(mBuffer) < 0) {
+          break;
+        }
+      }
+      mBuffer.flip();
+      // Ignore a trailing partial record, if any.
+      mBuffer.limit(mBuffer.limit() / RECORD_SIZE * RECORD_SIZE);
+      mRemaining -= mBuffer.limit();
+      if (!mBuffer.hasRemaining()) {
+        mRemaining = 0;
+        return fill();
+      }
+      return true;
+    }
+
+    private void closeChannel() throws IOException {
+      if (mChannel != null) {
+        mChannel.close();
+        mChannel = null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      closeChannel();
+      for (FileChannel channel : mChannels) {
+        if (channel != null) {
+          channel.close();
+        }
+      }
+      mFileIndex = mChannels.length;
+      mRemaining = 0;
+      mBuffer.limit(0);
+    }
+  }
+}
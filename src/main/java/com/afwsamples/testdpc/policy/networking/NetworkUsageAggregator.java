@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates the buckets of a {@link android.app.usage.NetworkStats} query per UID.
+ *
+ * <p>Buckets are added one at a time as they are read, so the query result can be read with a
+ * single reused {@link android.app.usage.NetworkStats.Bucket}. Each UID keeps its totals and,
+ * if requested, the usage of every bucket in primitive arrays.
+ */
+public final class NetworkUsageAggregator {
+
+  /** Network usage of a single UID. */
+  public static final class UidUsage {
+    // Values stored for each bucket of the history.
+    private static final int START_TIME = 0;
+    private static final int END_TIME = 1;
+    private static final int RX_BYTES = 2;
+    private static final int RX_PACKETS = 3;
+    private static final int TX_BYTES = 4;
+    private static final int TX_PACKETS = 5;
+    private static final int FIELD_COUNT = 6;
+
+    private final int mUid;
+    private int mState;
+    private boolean mSingleState = true;
+    private long mRxBytes;
+    private long mRxPackets;
+    private long mTxBytes;
+    private long mTxPackets;
+    private int mBucketCount;
+    // FIELD_COUNT values for each bucket, or null if the history is not kept.
+    private long[] mHistory;
+
+    UidUsage(int uid, int state, boolean keepHistory) {
+      mUid = uid;
+      mState = state;
+      mHistory = keepHistory ? new long[FIELD_COUNT * 4] : null;
+    }
+
+    public int getUid() {
+      return mUid;
+    }
+
+    /** Returns the state of the buckets, only meaningful if {@link #hasSingleState()}. */
+    public int getState() {
+      return mState;
+    }
+
+    /** Whether all the buckets of the UID were in the same state. */
+    public boolean hasSingleState() {
+      return mSingleState;
+    }
+
+    public long getRxBytes() {
+      return mRxBytes;
+    }
+
+    public long getRxPackets() {
+      return mRxPackets;
+    }
+
+    public long getTxBytes() {
+      return mTxBytes;
+    }
+
+    public long getTxPackets() {
+      return mTxPackets;
+    }
+
+    /** Returns the number of buckets that were added. */
+    public int getBucketCount() {
+      return mBucketCount;
+    }
+
+    /** Whether the usage of each bucket can be read with the {@code getBucket*} methods. */
+    public boolean hasHistory() {
+      return mHistory != null;
+    }
+
+    public long getBucketStartTime(int bucket) {
+      return getHistory(bucket, START_TIME);
+    }
+
+    public long getBucketEndTime(int bucket) {
+      return getHistory(bucket, END_TIME);
+    }
+
+    public long getBucketRxBytes(int bucket) {
+      return getHistory(bucket, RX_BYTES);
+    }
+
+    public long getBucketRxPackets(int bucket) {
+      return getHistory(bucket, RX_PACKETS);
+    }
+
+    public long getBucketTxBytes(int bucket) {
+      return getHistory(bucket, TX_BYTES);
+    }
+
+    public long getBucketTxPackets(int bucket) {
+      return getHistory(bucket, TX_PACKETS);
+    }
+
+    private long getHistory(int bucket, int field) {
+      if (mHistory == null) {
+        throw new IllegalStateException("No history kept for UID " + mUid);
+      }
+      if (bucket < 0 || bucket >= mBucketCount) {
+        throw new IndexOutOfBoundsException("Bucket " + bucket + " of " + mBucketCount);
+      }
+      return mHistory[bucket * FIELD_COUNT + field];
+    }
+
+    private void add(
+        int state,
+        long startTime,
+        long endTime,
+        long rxBytes,
+        long rxPackets,
+        long txBytes,
+        long txPackets) {
+      if (state != mState) {
+        mSingleState = false;
+      }
+      mRxBytes += rxBytes;
+      mRxPackets += rxPackets;
+      mTxBytes += txBytes;
+      mTxPackets += txPackets;
+      if (mHistory != null) {
+        int offset = mBucketCount * FIELD_COUNT;
+        if (offset == mHistory.length) {
+          mHistory = Arrays.copyOf(mHistory, mHistory.length * 2);
+        }
+        mHistory[offset + START_TIME] = startTime;
+        mHistory[offset + END_TIME] = endTime;
+        mHistory[offset + RX_BYTES] = rxBytes;
+        mHistory[offset + RX_PACKETS] = rxPackets;
+        mHistory[offset + TX_BYTES] = txBytes;
+        mHistory[offset + TX_PACKETS] = txPackets;
+      }
+      mBucketCount++;
+    }
+  }
+
+  private final boolean mKeepHistory;
+  private final Map<Integer, UidUsage> mUsagesByUid = new HashMap<>();
+  private final List<UidUsage> mUsages = new ArrayList<>();
+
+  /**
+   * @param keepHistory whether to keep the usage of each bucket, for detail queries, on top of
+   *     the totals.
+   */
+  public NetworkUsageAggregator(boolean keepHistory) {
+    mKeepHistory = keepHistory;
+  }
+
+  /** Adds the usage of a bucket to its UID. */
+  public void add(
+      int uid,
+      int state,
+      long startTime,
+      long endTime,
+      long rxBytes,
+      long rxPackets,
+      long txBytes,
+      long txPackets) {
+    UidUsage usage = mUsagesByUid.get(uid);
+    if (usage == null) {
+      usage = new UidUsage(uid, state, mKeepHistory);
+      mUsagesByUid.put(uid, usage);
+      mUsages.add(usage);
+    }
+    usage.add(state, startTime, endTime, rxBytes, rxPackets, txBytes, txPackets);
+  }
+
+  /** Returns the usage of each UID, in the order the UIDs were first added. */
+  public List<UidUsage> getUsages() {
+    return Collections.unmodifiableList(mUsages);
+  }
+}
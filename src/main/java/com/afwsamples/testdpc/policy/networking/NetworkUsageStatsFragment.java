@@ -26,11 +26,13 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.res.Resources;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.text.Html;
 import android.text.Spanned;
@@ -41,6 +43,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.DatePicker;
 import android.widget.ImageView;
@@ -48,17 +51,25 @@ import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.TextView;
 import com.afwsamples.testdpc.R;
+import com.afwsamples.testdpc.common.AppIconLoader;
 import com.afwsamples.testdpc.common.OnBackPressedHandler;
+import com.afwsamples.testdpc.policy.networking.NetworkUsageAggregator.UidUsage;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Fragment for checking network usage of apps using {@link android.app.usage.NetworkStatsManager}
+ *
+ * <p>Queries run on a background thread, which accumulates the buckets per UID with {@link
+ * NetworkUsageAggregator}. Selecting another query drops the one in flight.
  */
 @TargetApi(VERSION_CODES.M)
 public class NetworkUsageStatsFragment extends ListFragment
@@ -72,8 +83,15 @@ public class NetworkUsageStatsFragment extends ListFragment
   private static final int QUERY_APPSUMMARY_POS = 3;
   private static final int QUERY_APPHISTORY_POS = 4;
 
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+
   private NetworkStatsManager mNetstatsManager;
   private PackageManager mPackageManager;
+  private AppIconLoader mAppIconLoader;
+  private Future<?> mPendingQuery;
+  // Incremented for each query, so that the results of dropped queries are ignored.
+  private int mQueryGeneration;
 
   private Spinner mQuerySpinner;
   private TextView mExplanation;
@@ -83,8 +101,10 @@ public class NetworkUsageStatsFragment extends ListFragment
   private Button mEndDateButton;
   private TextView mDataUsageSummary;
   private ListView mDataUsageList;
-  private List<List<NetworkStats.Bucket>> mListData;
-  private ArrayAdapter<List<NetworkStats.Bucket>> mListAdapter;
+  private List<UidUsage> mListData;
+  private ArrayAdapter<UidUsage> mListAdapter;
+  // Packages of the UIDs of mListData, read along with the query.
+  private SparseArray<String[]> mUidPackages = new SparseArray<>();
   private ListView mAppHistoryList;
   private DateFormat mDateStringFormat;
   private DateFormat mHourMinuteDateFormat;
@@ -106,12 +126,13 @@ public class NetworkUsageStatsFragment extends ListFragment
     getActivity().getActionBar().setTitle(R.string.data_usage);
 
     mPackageManager = getActivity().getPackageManager();
+    mAppIconLoader = AppIconLoader.getInstance(getActivity());
     mNetstatsManager =
         (NetworkStatsManager) getActivity().getSystemService(Context.NETWORK_STATS_SERVICE);
 
     mListData = new ArrayList<>();
     mListAdapter =
-        new ArrayAdapter<List<NetworkStats.Bucket>>(
+        new ArrayAdapter<UidUsage>(
             getActivity(), R.layout.data_usage_item, android.R.id.title, mListData) {
           @Override
           public View getView(int position, View convertView, ViewGroup parent) {
@@ -124,8 +145,7 @@ public class NetworkUsageStatsFragment extends ListFragment
               ImageView imageView = (ImageView) appView.findViewById(android.R.id.icon);
               appView.setTag(new ViewHolder(title, summary, state, imageView));
             }
-            List<NetworkStats.Bucket> item = getItem(position);
-            bindView(appView, item);
+            bindView(appView, getItem(position));
             return appView;
           }
         };
@@ -172,102 +192,140 @@ public class NetworkUsageStatsFragment extends ListFragment
     return false;
   }
 
+  @Override
+  public void onDestroyView() {
+    cancelQuery();
+    super.onDestroyView();
+  }
+
+  @Override
+  public void onDestroy() {
+    mExecutor.shutdownNow();
+    super.onDestroy();
+  }
+
   @Override
   public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
-    NetworkStats result = null;
-    NetworkStats.Bucket bucket = null;
+    cancelQuery();
     mDataUsageSummary.setVisibility(View.GONE);
     mDataUsageList.setVisibility(View.GONE);
     mAppHistoryList.setVisibility(View.GONE);
     mExplanation.setText("");
+    if (pos < QUERY_DEVICE_POS || pos > QUERY_APPHISTORY_POS) {
+      return;
+    }
+    mDataUsageSummary.setText(R.string.network_stats_loading);
+    mDataUsageSummary.setVisibility(View.VISIBLE);
+    final long startTime = mStartDate.getTime();
+    final long endTime = mEndDate.getTime();
+    final int generation = mQueryGeneration;
+    mPendingQuery =
+        mExecutor.submit(
+            () -> {
+              QueryResult result = runQuery(pos, startTime, endTime);
+              mHandler.post(
+                  () -> {
+                    if (generation == mQueryGeneration && isAdded()) {
+                      mPendingQuery = null;
+                      showResult(pos, result);
+                    }
+                  });
+            });
+  }
+
+  /** Drops the query in flight, if any. */
+  private void cancelQuery() {
+    mQueryGeneration++;
+    if (mPendingQuery != null) {
+      // Interrupting the query stops reading its buckets.
+      mPendingQuery.cancel(true /* mayInterruptIfRunning */);
+      mPendingQuery = null;
+    }
+  }
+
+  /** Runs on mExecutor. */
+  private QueryResult runQuery(int pos, long startTime, long endTime) {
+    QueryResult result = new QueryResult();
     try {
       switch (pos) {
         case QUERY_DEVICE_POS:
-          {
-            bucket =
-                mNetstatsManager.querySummaryForDevice(
-                    ConnectivityManager.TYPE_WIFI, "", mStartDate.getTime(), mEndDate.getTime());
-            mExplanation.setText(R.string.network_stats_device_summary_explanation);
-            mDataUsageSummary.setText(
-                getString(
-                    R.string.network_stats_device_summary,
-                    formatSize(bucket.getRxBytes()),
-                    bucket.getRxPackets(),
-                    formatSize(bucket.getTxBytes()),
-                    bucket.getTxPackets()));
-            mDataUsageSummary.setVisibility(View.VISIBLE);
-          }
+          result.summary =
+              mNetstatsManager.querySummaryForDevice(
+                  ConnectivityManager.TYPE_WIFI, "", startTime, endTime);
           break;
         case QUERY_PROFILE_POS:
-          {
-            bucket =
-                mNetstatsManager.querySummaryForUser(
-                    ConnectivityManager.TYPE_WIFI, "", mStartDate.getTime(), mEndDate.getTime());
-            mExplanation.setText(R.string.network_stats_profile_summary_explanation);
-            mDataUsageSummary.setText(
-                getString(
-                    R.string.network_stats_profile_summary,
-                    formatSize(bucket.getRxBytes()),
-                    bucket.getRxPackets(),
-                    formatSize(bucket.getTxBytes()),
-                    bucket.getTxPackets()));
-            mDataUsageSummary.setVisibility(View.VISIBLE);
-          }
+          result.summary =
+              mNetstatsManager.querySummaryForUser(
+                  ConnectivityManager.TYPE_WIFI, "", startTime, endTime);
           break;
         case QUERY_APPSUMMARY_POS:
-          {
-            result =
-                mNetstatsManager.querySummary(
-                    ConnectivityManager.TYPE_WIFI, "", mStartDate.getTime(), mEndDate.getTime());
-            mListData.clear();
-            if (result != null) {
-              while (result.hasNextBucket()) {
-                bucket = new NetworkStats.Bucket();
-                result.getNextBucket(bucket);
-                mListData.add(Arrays.asList(new NetworkStats.Bucket[] {bucket}));
-              }
-            }
-            mListAdapter.notifyDataSetChanged();
-            mDataUsageList.setVisibility(View.VISIBLE);
-          }
+          readUsages(
+              mNetstatsManager.querySummary(ConnectivityManager.TYPE_WIFI, "", startTime, endTime),
+              false /* keepHistory */,
+              result);
           break;
         case QUERY_APPHISTORY_POS:
-          {
-            result =
-                mNetstatsManager.queryDetails(
-                    ConnectivityManager.TYPE_WIFI, "", mStartDate.getTime(), mEndDate.getTime());
-            mListData.clear();
-            SparseArray<List<NetworkStats.Bucket>> uidMap = new SparseArray<>();
-            if (result != null) {
-              while (result.hasNextBucket()) {
-                bucket = new NetworkStats.Bucket();
-                result.getNextBucket(bucket);
-                final int uid = bucket.getUid();
-                List<NetworkStats.Bucket> list = uidMap.get(uid);
-                if (list == null) {
-                  list = new ArrayList<NetworkStats.Bucket>();
-                  mListData.add(list);
-                  uidMap.put(uid, list);
-                }
-                list.add(bucket);
-              }
-            }
-            mListAdapter.notifyDataSetChanged();
-            mDataUsageList.setVisibility(View.VISIBLE);
-          }
+          readUsages(
+              mNetstatsManager.queryDetails(ConnectivityManager.TYPE_WIFI, "", startTime, endTime),
+              true /* keepHistory */,
+              result);
           break;
       }
-    } catch (SecurityException e) {
+    } catch (RemoteException | RuntimeException e) {
+      // Any failure is shown, so that the loading state is always cleared.
+      result.error = e;
+    }
+    return result;
+  }
+
+  /** Runs on mExecutor. Reads the usage of each UID of {@code stats}, and their packages. */
+  private void readUsages(NetworkStats stats, boolean keepHistory, QueryResult result) {
+    result.usages = DataUsageReportEngine.readUsages(stats, keepHistory);
+    for (UidUsage usage : result.usages) {
+      result.uidPackages.put(usage.getUid(), mPackageManager.getPackagesForUid(usage.getUid()));
+    }
+  }
+
+  private void showResult(int pos, QueryResult result) {
+    mDataUsageSummary.setVisibility(View.GONE);
+    if (result.error instanceof SecurityException) {
       showErrorDialog(getString(R.string.network_stats_security_error_msg));
-    } catch (RemoteException | NumberFormatException e) {
-      showErrorDialog(e.toString());
-    } finally {
-      if (result != null) {
-        result.close();
-      }
+      return;
+    } else if (result.error != null) {
+      showErrorDialog(result.error.toString());
+      return;
+    }
+    switch (pos) {
+      case QUERY_DEVICE_POS:
+        mExplanation.setText(R.string.network_stats_device_summary_explanation);
+        showSummary(R.string.network_stats_device_summary, result.summary);
+        break;
+      case QUERY_PROFILE_POS:
+        mExplanation.setText(R.string.network_stats_profile_summary_explanation);
+        showSummary(R.string.network_stats_profile_summary, result.summary);
+        break;
+      case QUERY_APPSUMMARY_POS:
+      case QUERY_APPHISTORY_POS:
+        mListData.clear();
+        mListData.addAll(result.usages);
+        mUidPackages = result.uidPackages;
+        mListAdapter.notifyDataSetChanged();
+        mDataUsageList.setVisibility(View.VISIBLE);
+        break;
     }
   }
 
+  private void showSummary(int summaryResId, NetworkStats.Bucket bucket) {
+    mDataUsageSummary.setText(
+        getString(
+            summaryResId,
+            formatSize(bucket.getRxBytes()),
+            bucket.getRxPackets(),
+            formatSize(bucket.getTxBytes()),
+            bucket.getTxPackets()));
+    mDataUsageSummary.setVisibility(View.VISIBLE);
+  }
+
   @Override
   public void onNothingSelected(AdapterView<?> parent) {
     // NOP
@@ -275,13 +333,27 @@ public class NetworkUsageStatsFragment extends ListFragment
 
   @Override
   public void onListItemClick(ListView l, View v, int position, long id) {
-    List<NetworkStats.Bucket> item = mListAdapter.getItem(position);
+    final UidUsage item = mListAdapter.getItem(position);
     transitionAppHistoryView(View.GONE);
-    if (item != null && item.size() > 1) {
+    if (item != null && item.hasHistory() && item.getBucketCount() > 1) {
       transitionAppHistoryView(View.VISIBLE);
-      ArrayAdapter<NetworkStats.Bucket> adapter =
-          new ArrayAdapter<NetworkStats.Bucket>(
-              getActivity(), android.R.layout.two_line_list_item, android.R.id.title, item) {
+      BaseAdapter adapter =
+          new BaseAdapter() {
+            @Override
+            public int getCount() {
+              return item.getBucketCount();
+            }
+
+            @Override
+            public Integer getItem(int position) {
+              return position;
+            }
+
+            @Override
+            public long getItemId(int position) {
+              return position;
+            }
+
             @Override
             public View getView(int position, View convertView, ViewGroup parent) {
               View view = convertView;
@@ -291,19 +363,18 @@ public class NetworkUsageStatsFragment extends ListFragment
                         .getLayoutInflater()
                         .inflate(R.layout.network_usage_app_history_item, parent, false);
               }
-              NetworkStats.Bucket item = getItem(position);
-              Date startDate = new Date(item.getStartTimeStamp());
-              Date endDate = new Date(item.getEndTimeStamp());
+              Date startDate = new Date(item.getBucketStartTime(position));
+              Date endDate = new Date(item.getBucketEndTime(position));
               TextView text1 = (TextView) view.findViewById(R.id.text1);
               TextView text2 = (TextView) view.findViewById(R.id.text2);
               text1.setText(getDateString(startDate, endDate));
               text2.setText(
                   getString(
                       R.string.network_stats_bucket_usage,
-                      formatSize(item.getRxBytes()),
-                      item.getRxPackets(),
-                      formatSize(item.getTxBytes()),
-                      item.getTxPackets()));
+                      formatSize(item.getBucketRxBytes(position)),
+                      item.getBucketRxPackets(position),
+                      formatSize(item.getBucketTxBytes(position)),
+                      item.getBucketTxPackets(position)));
               return view;
             }
 
@@ -378,97 +449,133 @@ public class NetworkUsageStatsFragment extends ListFragment
     return calendar.getTime();
   }
 
-  private void bindView(View appView, List<NetworkStats.Bucket> item) {
+  private void bindView(View appView, UidUsage usage) {
     final ViewHolder viewHolder = (ViewHolder) appView.getTag();
     final TextView title = viewHolder.title;
     final TextView summary = viewHolder.summary;
     final TextView state = viewHolder.state;
     final ImageView imageView = viewHolder.image;
-    final Resources res = getResources();
-    Drawable icon = res.getDrawable(android.R.drawable.ic_dialog_info, null);
-    NetworkStats.Bucket bucket = item.get(0);
-    final int uid = bucket.getUid();
+    final int uid = usage.getUid();
+    final String[] packageNames = mUidPackages.get(uid);
     switch (uid) {
       case NetworkStats.Bucket.UID_REMOVED:
         {
           title.setText(R.string.network_stats_uid_removed);
+          showInfoIcon(imageView);
         }
         break;
       case NetworkStats.Bucket.UID_TETHERING:
         {
           title.setText(R.string.network_stats_uid_tethering);
+          showInfoIcon(imageView);
         }
         break;
       case android.os.Process.SYSTEM_UID:
         {
           title.setText(R.string.network_stats_uid_system);
+          showInfoIcon(imageView);
         }
         break;
       default:
         {
-          title.setText(getString(R.string.network_stats_uid, uid));
-          icon = mPackageManager.getDefaultActivityIcon();
-          final String[] packageNames = mPackageManager.getPackagesForUid(uid);
-          final int length = packageNames != null ? packageNames.length : 0;
-          try {
-            if (length == 1) {
-              final String pkgName = packageNames[0];
-              final ApplicationInfo info =
-                  mPackageManager.getApplicationInfo(pkgName, 0 /* no flags */);
-              if (info != null) {
-                title.setText(info.loadLabel(mPackageManager));
-                icon = info.loadIcon(mPackageManager);
-              }
-            } else {
-              for (int i = 0; i < length; i++) {
-                final String packageName = packageNames[i];
-                final PackageInfo packageInfo =
-                    mPackageManager.getPackageInfo(packageName, 0 /* no flags */);
-                final ApplicationInfo appInfo =
-                    mPackageManager.getApplicationInfo(packageName, 0 /* no flags */);
-
-                if (appInfo != null && packageInfo != null) {
-                  if (packageInfo.sharedUserLabel != 0) {
-                    title.setText(
-                        mPackageManager.getText(
-                            packageName, packageInfo.sharedUserLabel, packageInfo.applicationInfo));
-                    icon = appInfo.loadIcon(mPackageManager);
-                  }
-                }
-              }
-            }
-          } catch (PackageManager.NameNotFoundException e) {
-            // keep the default activity icon
+          if (packageNames != null && packageNames.length > 0) {
+            // Labels and icons are loaded in the background, and cached across queries.
+            mAppIconLoader.bind(imageView, title, createUidRequest(uid, packageNames));
+          } else {
+            mAppIconLoader.unbind(imageView);
+            title.setText(getString(R.string.network_stats_uid, uid));
+            imageView.setImageDrawable(mPackageManager.getDefaultActivityIcon());
           }
         }
     }
-    imageView.setImageDrawable(icon);
-    final int bucketsCount = item.size();
-    if (bucketsCount == 1) {
-      summary.setText(formatSize(bucket.getRxBytes() + bucket.getTxBytes()));
-      switch (bucket.getState()) {
-        case NetworkStats.Bucket.STATE_FOREGROUND:
-          {
-            state.setText(R.string.network_stats_foreground_state);
-          }
-          break;
-        case NetworkStats.Bucket.STATE_DEFAULT:
-          {
-            state.setText(R.string.network_stats_default_state);
-          }
-          break;
-        case NetworkStats.Bucket.STATE_ALL:
-          {
-            state.setText(R.string.network_stats_combined_state);
-          }
-          break;
-      }
-    } else {
+    final int bucketsCount = usage.getBucketCount();
+    if (usage.hasHistory() && bucketsCount > 1) {
       summary.setText(getString(R.string.network_stats_items, bucketsCount));
       state.setText(R.string.network_stats_combined_state);
+      return;
+    }
+    summary.setText(formatSize(usage.getRxBytes() + usage.getTxBytes()));
+    if (!usage.hasSingleState()) {
+      state.setText(R.string.network_stats_combined_state);
+      return;
+    }
+    switch (usage.getState()) {
+      case NetworkStats.Bucket.STATE_FOREGROUND:
+        {
+          state.setText(R.string.network_stats_foreground_state);
+        }
+        break;
+      case NetworkStats.Bucket.STATE_DEFAULT:
+        {
+          state.setText(R.string.network_stats_default_state);
+        }
+        break;
+      case NetworkStats.Bucket.STATE_ALL:
+        {
+          state.setText(R.string.network_stats_combined_state);
+        }
+        break;
     }
   }
 
+  private void showInfoIcon(ImageView imageView) {
+    mAppIconLoader.unbind(imageView);
+    imageView.setImageDrawable(getResources().getDrawable(android.R.drawable.ic_dialog_info, null));
+  }
+
+  /**
+   * Shows the app of a UID, or for UIDs shared by several packages, the shared user label and the
+   * icon of the package that declares it.
+   */
+  private AppIconLoader.Request createUidRequest(int uid, String[] packageNames) {
+    final String uidLabel = getString(R.string.network_stats_uid, uid);
+    final Drawable defaultIcon = mPackageManager.getDefaultActivityIcon();
+    return new AppIconLoader.Request(packageNames[0], "uid/" + uid) {
+      private String mLabelPackageName;
+      private CharSequence mLabel;
+
+      @Override
+      protected Drawable loadIcon(PackageManager packageManager) throws NameNotFoundException {
+        findLabel(packageManager);
+        if (mLabelPackageName == null) {
+          return defaultIcon;
+        }
+        return packageManager.getApplicationInfo(mLabelPackageName, 0 /* no flags */)
+            .loadIcon(packageManager);
+      }
+
+      @Override
+      protected CharSequence loadLabel(PackageManager packageManager)
+          throws NameNotFoundException {
+        findLabel(packageManager);
+        return mLabel;
+      }
+
+      private void findLabel(PackageManager packageManager) throws NameNotFoundException {
+        if (mLabel != null) {
+          return;
+        }
+        mLabel = uidLabel;
+        if (packageNames.length == 1) {
+          ApplicationInfo info =
+              packageManager.getApplicationInfo(packageNames[0], 0 /* no flags */);
+          mLabelPackageName = packageNames[0];
+          mLabel = info.loadLabel(packageManager);
+          return;
+        }
+        for (String packageName : packageNames) {
+          PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0 /* no flags */);
+          if (packageInfo.sharedUserLabel != 0) {
+            mLabelPackageName = packageName;
+            mLabel =
+                packageManager.getText(
+                    packageName, packageInfo.sharedUserLabel, packageInfo.applicationInfo);
+          }
+        }
+      }
+    };
+  }
+
   private void transitionAppHistoryView(int appHistoryVisibility) {
     mAppHistoryList.setVisibility(appHistoryVisibility);
     mDataUsageList.setVisibility(appHistoryVisibility == View.VISIBLE ? View.GONE : View.VISIBLE);
@@ -478,6 +585,14 @@ public class NetworkUsageStatsFragment extends ListFragment
     return Formatter.formatFileSize(getActivity(), sizeBytes);
   }
 
+  /** Result of a query, read on the background thread and shown on the main thread. */
+  private static class QueryResult {
+    NetworkStats.Bucket summary;
+    List<UidUsage> usages = Collections.emptyList();
+    SparseArray<String[]> uidPackages = new SparseArray<>();
+    Exception error;
+  }
+
   private static class ViewHolder {
     public final TextView title;
     public final TextView summary;
@@ -22,7 +22,6 @@ import com.google.common.base.CharMatcher;
 import com.google.common.io.BaseEncoding;
 import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
-import org.bouncycastle.asn1.ASN1Sequence;
 
 /**
  * Parses an attestation certificate and provides an easy-to-use interface for examining the
@@ -60,22 +59,36 @@ public class Attestation {
    */
   @RequiresApi(api = VERSION_CODES.N)
   public Attestation(X509Certificate x509Cert) throws CertificateParsingException {
-    ASN1Sequence seq = getAttestationSequence(x509Cert);
-
-    attestationVersion = Asn1Utils.getIntegerFromAsn1(seq.getObjectAt(ATTESTATION_VERSION_INDEX));
-    attestationSecurityLevel =
-        Asn1Utils.getIntegerFromAsn1(seq.getObjectAt(ATTESTATION_SECURITY_LEVEL_INDEX));
-    keymasterVersion = Asn1Utils.getIntegerFromAsn1(seq.getObjectAt(KEYMASTER_VERSION_INDEX));
-    keymasterSecurityLevel =
-        Asn1Utils.getIntegerFromAsn1(seq.getObjectAt(KEYMASTER_SECURITY_LEVEL_INDEX));
-
-    attestationChallenge =
-        Asn1Utils.getByteArrayFromAsn1(seq.getObjectAt(Attestation.ATTESTATION_CHALLENGE_INDEX));
-
-    uniqueId = Asn1Utils.getByteArrayFromAsn1(seq.getObjectAt(Attestation.UNIQUE_ID_INDEX));
-
-    softwareEnforced = new AuthorizationList(seq.getObjectAt(SW_ENFORCED_INDEX));
-    teeEnforced = new AuthorizationList(seq.getObjectAt(TEE_ENFORCED_INDEX));
+    byte[] extension = getAttestationExtension(x509Cert);
+    DerReader reader = new DerReader(extension, 0, extension.length);
+    reader.next(DerReader.TAG_OCTET_STRING);
+    reader.reset(reader.getValueOffset(), reader.getValueLength());
+    reader.next(DerReader.TAG_SEQUENCE);
+    reader.enter();
+
+    // The elements of the key description, in the order of the *_INDEX constants.
+    reader.next();
+    attestationVersion = (int) reader.readNonNegative(Integer.MAX_VALUE);
+    reader.next();
+    attestationSecurityLevel = (int) reader.readNonNegative(Integer.MAX_VALUE);
+    reader.next();
+    keymasterVersion = (int) reader.readNonNegative(Integer.MAX_VALUE);
+    reader.next();
+    keymasterSecurityLevel = (int) reader.readNonNegative(Integer.MAX_VALUE);
+
+    reader.next(DerReader.TAG_OCTET_STRING);
+    attestationChallenge = reader.copyValue();
+
+    reader.next(DerReader.TAG_OCTET_STRING);
+    uniqueId = reader.copyValue();
+
+    // The authorization lists keep indexing into the extension rather than copying their part.
+    int start = reader.getPosition();
+    reader.next(DerReader.TAG_SEQUENCE);
+    softwareEnforced = new AuthorizationList(extension, start, reader.getPosition() - start);
+    start = reader.getPosition();
+    reader.next(DerReader.TAG_SEQUENCE);
+    teeEnforced = new AuthorizationList(extension, start, reader.getPosition() - start);
   }
 
   public static String securityLevelToString(int attestationSecurityLevel) {
@@ -148,13 +161,13 @@ public class Attestation {
     return s.toString();
   }
 
-  private ASN1Sequence getAttestationSequence(X509Certificate x509Cert)
+  private byte[] getAttestationExtension(X509Certificate x509Cert)
       throws CertificateParsingException {
     byte[] attestationExtensionBytes = x509Cert.getExtensionValue(KEY_DESCRIPTION_OID);
     if (attestationExtensionBytes == null || attestationExtensionBytes.length == 0) {
       throw new CertificateParsingException(
           "Did not find extension with OID " + KEY_DESCRIPTION_OID);
     }
-    return Asn1Utils.getAsn1SequenceFromBytes(attestationExtensionBytes);
+    return attestationExtensionBytes;
   }
 }
@@ -19,30 +19,42 @@ package com.afwsamples.testdpc.policy.utils;
 import static com.google.common.base.Functions.forMap;
 import static com.google.common.collect.Collections2.transform;
 
+import android.annotation.TargetApi;
 import android.os.Build.VERSION_CODES;
 import android.security.keystore.KeyProperties;
-import android.util.Log;
 import androidx.annotation.RequiresApi;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.CertificateParsingException;
 import java.text.DateFormat;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import org.bouncycastle.asn1.ASN1Encodable;
-import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.asn1.ASN1Sequence;
-import org.bouncycastle.asn1.ASN1SequenceParser;
-import org.bouncycastle.asn1.ASN1TaggedObject;
-import org.bouncycastle.asn1.ASN1Util;
-import org.bouncycastle.asn1.BERTags;
 
+/**
+ * Authorization list of an attestation record, which describes the properties of the attested key
+ * enforced at one security level.
+ *
+ * <p>The list is indexed when constructed: the DER encoded entries are checked and the position of
+ * the value of each tag is recorded, but values are only decoded the first time they are read.
+ * Enumerated sets are decoded into bitmasks. Getters of fields whose structure is only checked
+ * when decoding ({@link #getRootOfTrust()} and {@link #getAttestationApplicationId()}) throw
+ * {@link IllegalStateException} if the field is malformed.
+ */
 public class AuthorizationList {
   // Algorithm values.
   public static final int KM_ALGORITHM_RSA = 1;
@@ -166,231 +178,155 @@ public class AuthorizationList {
           .put(KM_PURPOSE_VERIFY, "VERIFY")
           .build();
 
-  private Set<Integer> purposes;
-  private Integer algorithm;
-  private Integer keySize;
-  private Set<Integer> digests;
-  private Set<Integer> paddingModes;
-  private Integer ecCurve;
-  private Long rsaPublicExponent;
-  private Date activeDateTime;
-  private Date originationExpireDateTime;
-  private Date usageExpireDateTime;
-  private boolean noAuthRequired;
-  private Integer userAuthType;
-  private Integer authTimeout;
-  private boolean allowWhileOnBody;
-  private boolean allApplications;
-  private byte[] applicationId;
-  private Date creationDateTime;
-  private Integer origin;
-  private boolean rollbackResistant;
-  private RootOfTrust rootOfTrust;
-  private Integer osVersion;
-  private Integer osPatchLevel;
-  private Integer vendorPatchLevel;
-  private Integer bootPatchLevel;
-  private AttestationApplicationId attestationApplicationId;
-  private String brand;
-  private String device;
-  private String serialNumber;
-  private String imei;
-  private String meid;
-  private String product;
-  private String manufacturer;
-  private String model;
-  private boolean userPresenceRequired;
-  private boolean confirmationRequired;
-  private boolean individualAttestation;
+  // Keymaster tags of the authorization list, sorted by tag number.
+  private static final int[] KNOWN_TAGS = {
+    KM_TAG_PURPOSE,
+    KM_TAG_ALGORITHM,
+    KM_TAG_KEY_SIZE,
+    KM_TAG_DIGEST,
+    KM_TAG_PADDING,
+    KM_TAG_EC_CURVE,
+    KM_TAG_RSA_PUBLIC_EXPONENT,
+    KM_TAG_ACTIVE_DATETIME,
+    KM_TAG_ORIGINATION_EXPIRE_DATETIME,
+    KM_TAG_USAGE_EXPIRE_DATETIME,
+    KM_TAG_NO_AUTH_REQUIRED,
+    KM_TAG_USER_AUTH_TYPE,
+    KM_TAG_AUTH_TIMEOUT,
+    KM_TAG_ALLOW_WHILE_ON_BODY,
+    KM_TAG_TRUSTED_USER_PRESENCE_REQUIRED,
+    KM_TAG_TRUSTED_CONFIRMATION_REQUIRED,
+    KM_TAG_ALL_APPLICATIONS,
+    KM_TAG_APPLICATION_ID,
+    KM_TAG_CREATION_DATETIME,
+    KM_TAG_ORIGIN,
+    KM_TAG_ROLLBACK_RESISTANT,
+    KM_TAG_ROOT_OF_TRUST,
+    KM_TAG_OS_VERSION,
+    KM_TAG_OS_PATCHLEVEL,
+    KM_TAG_ATTESTATION_APPLICATION_ID,
+    KM_TAG_ATTESTATION_ID_BRAND,
+    KM_TAG_ATTESTATION_ID_DEVICE,
+    KM_TAG_ATTESTATION_ID_PRODUCT,
+    KM_TAG_ATTESTATION_ID_SERIAL,
+    KM_TAG_ATTESTATION_ID_IMEI,
+    KM_TAG_ATTESTATION_ID_MEID,
+    KM_TAG_ATTESTATION_ID_MANUFACTURER,
+    KM_TAG_ATTESTATION_ID_MODEL,
+    KM_TAG_VENDOR_PATCHLEVEL,
+    KM_TAG_BOOT_PATCHLEVEL,
+    KM_TAG_DEVICE_UNIQUE_ATTESTATION,
+  };
+
+  // Tag numbers of KNOWN_TAGS, as found in the DER encoding.
+  private static final int[] KNOWN_TAG_NUMBERS = new int[KNOWN_TAGS.length];
+
+  static {
+    for (int i = 0; i < KNOWN_TAGS.length; i++) {
+      KNOWN_TAG_NUMBERS[i] = KNOWN_TAGS[i] & KEYMASTER_TAG_TYPE_MASK;
+    }
+  }
+
+  // Encoded list, and position of the content of the value of each tag in KNOWN_TAGS order.
+  private final byte[] data;
+  private final int[] valueOffsets = new int[KNOWN_TAGS.length];
+  private final int[] valueLengths = new int[KNOWN_TAGS.length];
+  // Bit i is set when KNOWN_TAGS[i] is present.
+  private long presentTags;
+  // Values decoded so far, in KNOWN_TAGS order. Decoding is idempotent, so concurrent readers at
+  // worst decode a value twice.
+  private final Object[] decodedValues = new Object[KNOWN_TAGS.length];
 
   @RequiresApi(api = VERSION_CODES.N)
   public AuthorizationList(ASN1Encodable sequence) throws CertificateParsingException {
+    this(getEncoded(sequence));
+  }
+
+  private AuthorizationList(byte[] encoded) throws CertificateParsingException {
+    this(encoded, 0, encoded.length);
+  }
+
+  /**
+   * Indexes the authorization list whose DER encoded SEQUENCE is in the given range of {@code
+   * data}. The array is not copied, so it must not be modified afterwards.
+   */
+  AuthorizationList(byte[] data, int offset, int length) throws CertificateParsingException {
+    this.data = data;
+    DerReader reader = new DerReader(data, offset, length);
+    reader.next(DerReader.TAG_SEQUENCE);
+    int end = reader.getValueOffset() + reader.getValueLength();
+    reader.enter();
+    while (reader.hasNext()) {
+      reader.next();
+      if (reader.getTagClass() != DerReader.CLASS_CONTEXT_SPECIFIC || !reader.isConstructed()) {
+        throw new CertificateParsingException(
+            "Expected tagged object, found class " + reader.getTagClass() + " element");
+      }
+      int tagNumber = reader.getTagNumber();
+      int index = Arrays.binarySearch(KNOWN_TAG_NUMBERS, tagNumber);
+      if (index < 0) {
+        throw new CertificateParsingException("Unknown tag " + tagNumber + " found");
+      }
+      int entryEnd = reader.getPosition();
+      reader.enter();
+      indexValue(reader, index);
+      reader.reset(entryEnd, end - entryEnd);
+    }
+  }
+
+  /** Checks the explicitly tagged value of {@code KNOWN_TAGS[index]} and records its position. */
+  private void indexValue(DerReader reader, int index) throws CertificateParsingException {
+    int tag = KNOWN_TAGS[index];
+    int tagType = tag & ~KEYMASTER_TAG_TYPE_MASK;
+    // Only the presence of boolean tags matters, whatever their value.
+    if (tagType != KM_BOOL) {
+      reader.next(getUniversalTagNumber(tag));
+      valueOffsets[index] = reader.getValueOffset();
+      valueLengths[index] = reader.getValueLength();
+      switch (tagType) {
+        case KM_ENUM:
+        case KM_UINT:
+          reader.readNonNegative(Integer.MAX_VALUE);
+          break;
+        case KM_ULONG:
+        case KM_DATE:
+          reader.readNonNegative(Long.MAX_VALUE);
+          break;
+        case KM_ENUM_REP:
+          reader.enter();
+          while (reader.hasNext()) {
+            reader.next();
+            reader.readNonNegative(Integer.MAX_VALUE);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    presentTags |= 1L << index;
+    decodedValues[index] = null;
+  }
+
+  private static int getUniversalTagNumber(int tag) {
+    switch (tag & ~KEYMASTER_TAG_TYPE_MASK) {
+      case KM_ENUM_REP:
+        return DerReader.TAG_SET;
+      case KM_BYTES:
+        return tag == KM_TAG_ROOT_OF_TRUST ? DerReader.TAG_SEQUENCE : DerReader.TAG_OCTET_STRING;
+      default:
+        return DerReader.TAG_INTEGER;
+    }
+  }
+
+  private static byte[] getEncoded(ASN1Encodable sequence) throws CertificateParsingException {
     if (!(sequence instanceof ASN1Sequence)) {
       throw new CertificateParsingException(
           "Expected sequence for authorization list, found " + sequence.getClass().getName());
     }
-
-    ASN1SequenceParser parser = ((ASN1Sequence) sequence).parser();
-    ASN1TaggedObject entry = parseAsn1TaggedObject(parser);
-    for (; entry != null; entry = parseAsn1TaggedObject(parser)) {
-      int tag = entry.getTagNo();
-      Log.i(
-          "Attestation",
-          "Parsing tag: [" + tag + "], value: [" + entry.getExplicitBaseObject() + "]");
-      switch (tag) {
-        default:
-          throw new CertificateParsingException("Unknown tag " + tag + " found");
-
-        case KM_TAG_PURPOSE & KEYMASTER_TAG_TYPE_MASK:
-          purposes =
-              Asn1Utils.getIntegersFromAsn1Set(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.SET));
-          break;
-        case KM_TAG_ALGORITHM & KEYMASTER_TAG_TYPE_MASK:
-          algorithm =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_KEY_SIZE & KEYMASTER_TAG_TYPE_MASK:
-          keySize =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          Log.i("Attestation", "Found KEY SIZE, value: " + keySize);
-          break;
-        case KM_TAG_DIGEST & KEYMASTER_TAG_TYPE_MASK:
-          digests =
-              Asn1Utils.getIntegersFromAsn1Set(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.SET));
-          break;
-        case KM_TAG_PADDING & KEYMASTER_TAG_TYPE_MASK:
-          paddingModes =
-              Asn1Utils.getIntegersFromAsn1Set(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.SET));
-          break;
-        case KM_TAG_RSA_PUBLIC_EXPONENT & KEYMASTER_TAG_TYPE_MASK:
-          rsaPublicExponent =
-              Asn1Utils.getLongFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_NO_AUTH_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
-          noAuthRequired = true;
-          break;
-        case KM_TAG_CREATION_DATETIME & KEYMASTER_TAG_TYPE_MASK:
-          creationDateTime =
-              Asn1Utils.getDateFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_ORIGIN & KEYMASTER_TAG_TYPE_MASK:
-          origin =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_OS_VERSION & KEYMASTER_TAG_TYPE_MASK:
-          osVersion =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_OS_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
-          osPatchLevel =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_VENDOR_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
-          vendorPatchLevel =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_BOOT_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
-          bootPatchLevel =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_ACTIVE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
-          activeDateTime =
-              Asn1Utils.getDateFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_ORIGINATION_EXPIRE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
-          originationExpireDateTime =
-              Asn1Utils.getDateFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_USAGE_EXPIRE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
-          usageExpireDateTime =
-              Asn1Utils.getDateFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_APPLICATION_ID & KEYMASTER_TAG_TYPE_MASK:
-          applicationId =
-              Asn1Utils.getByteArrayFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ROLLBACK_RESISTANT & KEYMASTER_TAG_TYPE_MASK:
-          rollbackResistant = true;
-          break;
-        case KM_TAG_AUTH_TIMEOUT & KEYMASTER_TAG_TYPE_MASK:
-          authTimeout =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_ALLOW_WHILE_ON_BODY & KEYMASTER_TAG_TYPE_MASK:
-          allowWhileOnBody = true;
-          break;
-        case KM_TAG_EC_CURVE & KEYMASTER_TAG_TYPE_MASK:
-          ecCurve =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_USER_AUTH_TYPE & KEYMASTER_TAG_TYPE_MASK:
-          userAuthType =
-              Asn1Utils.getIntegerFromAsn1(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.INTEGER));
-          break;
-        case KM_TAG_ROOT_OF_TRUST & KEYMASTER_TAG_TYPE_MASK:
-          rootOfTrust =
-              new RootOfTrust(ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.SEQUENCE));
-          break;
-        case KM_TAG_ATTESTATION_APPLICATION_ID & KEYMASTER_TAG_TYPE_MASK:
-          attestationApplicationId =
-              new AttestationApplicationId(
-                  Asn1Utils.getAsn1EncodableFromBytes(
-                      Asn1Utils.getByteArrayFromAsn1(
-                          ASN1Util.getContextBaseUniversal(
-                              entry, tag, true, BERTags.OCTET_STRING))));
-          break;
-        case KM_TAG_ATTESTATION_ID_BRAND & KEYMASTER_TAG_TYPE_MASK:
-          brand =
-              getStringFromAsn1Value(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ATTESTATION_ID_DEVICE & KEYMASTER_TAG_TYPE_MASK:
-          device =
-              getStringFromAsn1Value(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ATTESTATION_ID_PRODUCT & KEYMASTER_TAG_TYPE_MASK:
-          product =
-              getStringFromAsn1Value(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ATTESTATION_ID_SERIAL & KEYMASTER_TAG_TYPE_MASK:
-          serialNumber =
-              getStringFromAsn1Value(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ATTESTATION_ID_IMEI & KEYMASTER_TAG_TYPE_MASK:
-          imei =
-              getStringFromAsn1Value(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ATTESTATION_ID_MEID & KEYMASTER_TAG_TYPE_MASK:
-          meid =
-              getStringFromAsn1Value(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ATTESTATION_ID_MANUFACTURER & KEYMASTER_TAG_TYPE_MASK:
-          manufacturer =
-              getStringFromAsn1Value(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ATTESTATION_ID_MODEL & KEYMASTER_TAG_TYPE_MASK:
-          model =
-              getStringFromAsn1Value(
-                  ASN1Util.getContextBaseUniversal(entry, tag, true, BERTags.OCTET_STRING));
-          break;
-        case KM_TAG_ALL_APPLICATIONS & KEYMASTER_TAG_TYPE_MASK:
-          allApplications = true;
-          break;
-        case KM_TAG_TRUSTED_USER_PRESENCE_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
-          userPresenceRequired = true;
-          break;
-        case KM_TAG_TRUSTED_CONFIRMATION_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
-          confirmationRequired = true;
-          break;
-        case KM_TAG_DEVICE_UNIQUE_ATTESTATION & KEYMASTER_TAG_TYPE_MASK:
-          individualAttestation = true;
-          break;
-      }
+    try {
+      return ((ASN1Sequence) sequence).getEncoded(ASN1Encoding.DER);
+    } catch (IOException e) {
+      throw new CertificateParsingException("Failed to encode authorization list", e);
     }
   }
 
@@ -457,46 +393,111 @@ public class AuthorizationList {
     return DateFormat.getDateTimeInstance().format(date);
   }
 
-  private static ASN1TaggedObject parseAsn1TaggedObject(ASN1SequenceParser parser)
-      throws CertificateParsingException {
-    ASN1Encodable asn1Encodable = parseAsn1Encodable(parser);
-    if (asn1Encodable == null || asn1Encodable instanceof ASN1TaggedObject) {
-      return (ASN1TaggedObject) asn1Encodable;
+  private static int indexOf(int tag) {
+    return Arrays.binarySearch(KNOWN_TAG_NUMBERS, tag & KEYMASTER_TAG_TYPE_MASK);
+  }
+
+  private boolean isPresent(int tag) {
+    return (presentTags & (1L << indexOf(tag))) != 0;
+  }
+
+  /** Returns the decoded value of {@code tag}, decoding it on first access. */
+  private Object getValue(int tag) {
+    int index = indexOf(tag);
+    if ((presentTags & (1L << index)) == 0) {
+      return null;
+    }
+    Object value = decodedValues[index];
+    if (value == null) {
+      try {
+        value = decode(tag, valueOffsets[index], valueLengths[index]);
+      } catch (CertificateParsingException e) {
+        throw new IllegalStateException(
+            "Malformed value of tag " + (tag & KEYMASTER_TAG_TYPE_MASK), e);
+      }
+      decodedValues[index] = value;
+    }
+    return value;
+  }
+
+  // Lists can only be constructed on N and above.
+  @TargetApi(VERSION_CODES.N)
+  private Object decode(int tag, int offset, int length) throws CertificateParsingException {
+    switch (tag & ~KEYMASTER_TAG_TYPE_MASK) {
+      case KM_ENUM:
+      case KM_UINT:
+        return (int) DerReader.decodeNonNegative(data, offset, length, Integer.MAX_VALUE);
+      case KM_ULONG:
+        return DerReader.decodeNonNegative(data, offset, length, Long.MAX_VALUE);
+      case KM_DATE:
+        return new Date(DerReader.decodeNonNegative(data, offset, length, Long.MAX_VALUE));
+      case KM_ENUM_REP:
+        return decodeIntegerSet(offset, length);
+      case KM_BYTES:
+        if (tag == KM_TAG_ROOT_OF_TRUST) {
+          return new RootOfTrust(data, offset, length);
+        } else if (tag == KM_TAG_ATTESTATION_APPLICATION_ID) {
+          return new AttestationApplicationId(
+              Asn1Utils.getAsn1EncodableFromBytes(
+                  Arrays.copyOfRange(data, offset, offset + length)));
+        } else if (tag == KM_TAG_APPLICATION_ID) {
+          return Arrays.copyOfRange(data, offset, offset + length);
+        }
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+      default:
+        throw new CertificateParsingException("Unsupported tag type of tag " + tag);
     }
-    throw new CertificateParsingException(
-        "Expected tagged object, found " + asn1Encodable.getClass().getName());
   }
 
-  private static ASN1Encodable parseAsn1Encodable(ASN1SequenceParser parser)
+  private Set<Integer> decodeIntegerSet(int offset, int length)
       throws CertificateParsingException {
-    try {
-      return parser.readObject();
-    } catch (IOException e) {
-      throw new CertificateParsingException("Failed to parse ASN1 sequence", e);
+    DerReader reader = new DerReader(data, offset, length);
+    long bits = 0;
+    Set<Integer> largeValues = null;
+    while (reader.hasNext()) {
+      reader.next();
+      int value = (int) reader.readNonNegative(Integer.MAX_VALUE);
+      if (value < Long.SIZE) {
+        bits |= 1L << value;
+      } else {
+        if (largeValues == null) {
+          largeValues = new HashSet<>();
+        }
+        largeValues.add(value);
+      }
+    }
+    if (largeValues == null) {
+      return new BitmaskSet(bits);
     }
+    largeValues.addAll(new BitmaskSet(bits));
+    return Collections.unmodifiableSet(largeValues);
   }
 
+  @SuppressWarnings("unchecked")
   public Set<Integer> getPurposes() {
-    return purposes;
+    return (Set<Integer>) getValue(KM_TAG_PURPOSE);
   }
 
   public Integer getAlgorithm() {
-    return algorithm;
+    return (Integer) getValue(KM_TAG_ALGORITHM);
   }
 
   public Integer getKeySize() {
-    return keySize;
+    return (Integer) getValue(KM_TAG_KEY_SIZE);
   }
 
+  @SuppressWarnings("unchecked")
   public Set<Integer> getDigests() {
-    return digests;
+    return (Set<Integer>) getValue(KM_TAG_DIGEST);
   }
 
+  @SuppressWarnings("unchecked")
   public Set<Integer> getPaddingModes() {
-    return paddingModes;
+    return (Set<Integer>) getValue(KM_TAG_PADDING);
   }
 
   public Set<String> getPaddingModesAsStrings() throws CertificateParsingException {
+    Set<Integer> paddingModes = getPaddingModes();
     if (paddingModes == null) {
       return ImmutableSet.of();
     }
@@ -527,10 +528,11 @@ public class AuthorizationList {
   }
 
   public Integer getEcCurve() {
-    return ecCurve;
+    return (Integer) getValue(KM_TAG_EC_CURVE);
   }
 
   public String ecCurveAsString() {
+    Integer ecCurve = getEcCurve();
     if (ecCurve == null) return "NULL";
 
     switch (ecCurve) {
@@ -548,250 +550,314 @@ public class AuthorizationList {
   }
 
   public Long getRsaPublicExponent() {
-    return rsaPublicExponent;
+    return (Long) getValue(KM_TAG_RSA_PUBLIC_EXPONENT);
   }
 
   public Date getActiveDateTime() {
-    return activeDateTime;
+    return (Date) getValue(KM_TAG_ACTIVE_DATETIME);
   }
 
   public Date getOriginationExpireDateTime() {
-    return originationExpireDateTime;
+    return (Date) getValue(KM_TAG_ORIGINATION_EXPIRE_DATETIME);
   }
 
   public Date getUsageExpireDateTime() {
-    return usageExpireDateTime;
+    return (Date) getValue(KM_TAG_USAGE_EXPIRE_DATETIME);
   }
 
   public boolean isNoAuthRequired() {
-    return noAuthRequired;
+    return isPresent(KM_TAG_NO_AUTH_REQUIRED);
   }
 
   public Integer getUserAuthType() {
-    return userAuthType;
+    return (Integer) getValue(KM_TAG_USER_AUTH_TYPE);
   }
 
   public Integer getAuthTimeout() {
-    return authTimeout;
+    return (Integer) getValue(KM_TAG_AUTH_TIMEOUT);
   }
 
   public boolean isAllowWhileOnBody() {
-    return allowWhileOnBody;
+    return isPresent(KM_TAG_ALLOW_WHILE_ON_BODY);
   }
 
   public boolean isAllApplications() {
-    return allApplications;
+    return isPresent(KM_TAG_ALL_APPLICATIONS);
   }
 
   public byte[] getApplicationId() {
-    return applicationId;
+    return (byte[]) getValue(KM_TAG_APPLICATION_ID);
   }
 
   public Date getCreationDateTime() {
-    return creationDateTime;
+    return (Date) getValue(KM_TAG_CREATION_DATETIME);
   }
 
   public Integer getOrigin() {
-    return origin;
+    return (Integer) getValue(KM_TAG_ORIGIN);
   }
 
   public boolean isRollbackResistant() {
-    return rollbackResistant;
+    return isPresent(KM_TAG_ROLLBACK_RESISTANT);
   }
 
   public RootOfTrust getRootOfTrust() {
-    return rootOfTrust;
+    return (RootOfTrust) getValue(KM_TAG_ROOT_OF_TRUST);
   }
 
   public Integer getOsVersion() {
-    return osVersion;
+    return (Integer) getValue(KM_TAG_OS_VERSION);
   }
 
   public Integer getOsPatchLevel() {
-    return osPatchLevel;
+    return (Integer) getValue(KM_TAG_OS_PATCHLEVEL);
   }
 
   public Integer getVendorPatchLevel() {
-    return vendorPatchLevel;
+    return (Integer) getValue(KM_TAG_VENDOR_PATCHLEVEL);
   }
 
   public Integer getBootPatchLevel() {
-    return bootPatchLevel;
+    return (Integer) getValue(KM_TAG_BOOT_PATCHLEVEL);
   }
 
   public AttestationApplicationId getAttestationApplicationId() {
-    return attestationApplicationId;
+    return (AttestationApplicationId) getValue(KM_TAG_ATTESTATION_APPLICATION_ID);
   }
 
   public String getBrand() {
-    return brand;
+    return (String) getValue(KM_TAG_ATTESTATION_ID_BRAND);
   }
 
   public String getDevice() {
-    return device;
+    return (String) getValue(KM_TAG_ATTESTATION_ID_DEVICE);
   }
 
   public String getSerialNumber() {
-    return serialNumber;
+    return (String) getValue(KM_TAG_ATTESTATION_ID_SERIAL);
   }
   ;
 
   public String getImei() {
-    return imei;
+    return (String) getValue(KM_TAG_ATTESTATION_ID_IMEI);
   }
   ;
 
   public String getMeid() {
-    return meid;
+    return (String) getValue(KM_TAG_ATTESTATION_ID_MEID);
   }
   ;
 
   public String getProduct() {
-    return product;
+    return (String) getValue(KM_TAG_ATTESTATION_ID_PRODUCT);
   }
   ;
 
   public String getManufacturer() {
-    return manufacturer;
+    return (String) getValue(KM_TAG_ATTESTATION_ID_MANUFACTURER);
   }
   ;
 
   public String getModel() {
-    return model;
+    return (String) getValue(KM_TAG_ATTESTATION_ID_MODEL);
   }
   ;
 
   public boolean isUserPresenceRequired() {
-    return userPresenceRequired;
+    return isPresent(KM_TAG_TRUSTED_USER_PRESENCE_REQUIRED);
   }
 
   public boolean isConfirmationRequired() {
-    return confirmationRequired;
+    return isPresent(KM_TAG_TRUSTED_CONFIRMATION_REQUIRED);
   }
 
   public boolean isIndividualAttestation() {
-    return individualAttestation;
-  }
-
-  private String getStringFromAsn1Value(ASN1Primitive value) throws CertificateParsingException {
-    try {
-      return Asn1Utils.getStringFromAsn1OctetStreamAssumingUTF8(value);
-    } catch (UnsupportedEncodingException e) {
-      throw new CertificateParsingException("Error parsing ASN.1 value", e);
-    }
+    return isPresent(KM_TAG_DEVICE_UNIQUE_ATTESTATION);
   }
 
   @Override
   public String toString() {
     StringBuilder s = new StringBuilder();
 
+    Integer algorithm = getAlgorithm();
     if (algorithm != null) {
       s.append("\nAlgorithm: ").append(algorithmToString(algorithm));
     }
 
+    Integer keySize = getKeySize();
     if (keySize != null) {
       s.append("\nKeySize: ").append(keySize);
     }
 
+    Set<Integer> purposes = getPurposes();
     if (purposes != null && !purposes.isEmpty()) {
       s.append("\nPurposes: ").append(purposesToString(purposes));
     }
 
+    Set<Integer> digests = getDigests();
     if (digests != null && !digests.isEmpty()) {
       s.append("\nDigests: ").append(digestsToString(digests));
     }
 
+    Set<Integer> paddingModes = getPaddingModes();
     if (paddingModes != null && !paddingModes.isEmpty()) {
       s.append("\nPadding modes: ").append(paddingModesToString(paddingModes));
     }
 
-    if (ecCurve != null) {
+    if (getEcCurve() != null) {
       s.append("\nEC Curve: ").append(ecCurveAsString());
     }
 
     String label = "\nRSA exponent: ";
+    Long rsaPublicExponent = getRsaPublicExponent();
     if (rsaPublicExponent != null) {
       s.append(label).append(rsaPublicExponent);
     }
 
+    Date activeDateTime = getActiveDateTime();
     if (activeDateTime != null) {
       s.append("\nActive: ").append(formatDate(activeDateTime));
     }
 
+    Date originationExpireDateTime = getOriginationExpireDateTime();
     if (originationExpireDateTime != null) {
       s.append("\nOrigination expire: ").append(formatDate(originationExpireDateTime));
     }
 
+    Date usageExpireDateTime = getUsageExpireDateTime();
     if (usageExpireDateTime != null) {
       s.append("\nUsage expire: ").append(formatDate(usageExpireDateTime));
     }
 
-    if (!noAuthRequired && userAuthType != null) {
+    Integer userAuthType = getUserAuthType();
+    if (!isNoAuthRequired() && userAuthType != null) {
       s.append("\nAuth types: ").append(userAuthTypeToString(userAuthType));
+      Integer authTimeout = getAuthTimeout();
       if (authTimeout != null) {
         s.append("\nAuth timeout: ").append(authTimeout);
       }
     }
 
+    byte[] applicationId = getApplicationId();
     if (applicationId != null) {
       s.append("\nApplication ID: ").append(new String(applicationId));
     }
 
+    Date creationDateTime = getCreationDateTime();
     if (creationDateTime != null) {
       s.append("\nCreated: ").append(formatDate(creationDateTime));
     }
 
+    Integer origin = getOrigin();
     if (origin != null) {
       s.append("\nOrigin: ").append(originToString(origin));
     }
 
-    if (rollbackResistant) {
+    if (isRollbackResistant()) {
       s.append("\nRollback resistant: true");
     }
 
+    RootOfTrust rootOfTrust = getRootOfTrust();
     if (rootOfTrust != null) {
       s.append("\nRoot of Trust:\n");
       s.append(rootOfTrust);
     }
 
+    Integer osVersion = getOsVersion();
     if (osVersion != null) {
       s.append("\nOS Version: ").append(osVersion);
     }
 
+    Integer osPatchLevel = getOsPatchLevel();
     if (osPatchLevel != null) {
       s.append("\nOS Patchlevel: ").append(osPatchLevel);
     }
 
+    Integer vendorPatchLevel = getVendorPatchLevel();
     if (vendorPatchLevel != null) {
       s.append("\nVendor Patchlevel: ").append(vendorPatchLevel);
     }
 
+    Integer bootPatchLevel = getBootPatchLevel();
     if (bootPatchLevel != null) {
       s.append("\nBoot Patchlevel: ").append(bootPatchLevel);
     }
 
+    AttestationApplicationId attestationApplicationId = getAttestationApplicationId();
     if (attestationApplicationId != null) {
       s.append("\nAttestation Application Id:").append(attestationApplicationId);
     }
 
-    if (userPresenceRequired) {
+    if (isUserPresenceRequired()) {
       s.append("\nUser presence required");
     }
 
-    if (confirmationRequired) {
+    if (isConfirmationRequired()) {
       s.append("\nConfirmation required");
     }
 
-    if (individualAttestation) {
+    if (isIndividualAttestation()) {
       s.append("\nIndividual attestation");
     }
 
+    String brand = getBrand();
     if (brand != null) {
       s.append("\nBrand: ").append(brand);
     }
+    String device = getDevice();
     if (device != null) {
       s.append("\nDevice type: ").append(device);
     }
     return s.toString();
   }
+
+  /** Unmodifiable set of the integers in [0, 63] whose bits are set in a bitmask. */
+  private static final class BitmaskSet extends AbstractSet<Integer> {
+    private final long bits;
+
+    BitmaskSet(long bits) {
+      this.bits = bits;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Integer)) {
+        return false;
+      }
+      int value = (Integer) o;
+      return value >= 0 && value < Long.SIZE && (bits & (1L << value)) != 0;
+    }
+
+    @Override
+    public int size() {
+      return Long.bitCount(bits);
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+      return new Iterator<Integer>() {
+        private long remaining = bits;
+
+        @Override
+        public boolean hasNext() {
+          return remaining != 0;
+        }
+
+        @Override
+        public Integer next() {
+          if (remaining == 0) {
+            throw new NoSuchElementException();
+          }
+          int value = Long.numberOfTrailingZeros(remaining);
+          remaining &= remaining - 1;
+          return value;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import java.security.cert.CertificateParsingException;
+import java.util.Arrays;
+
+/**
+ * Cursor over the DER encoded elements of a byte range.
+ *
+ * <p>{@link #next()} reads the header of the element at the cursor and moves the cursor past it;
+ * the decoded header is then available through the getters until the next call. Headers are
+ * decoded in place without allocating, so a single reader can walk a whole structure by calling
+ * {@link #enter()} on the constructed elements it wants to descend into.
+ */
+final class DerReader {
+  static final int CLASS_UNIVERSAL = 0;
+  static final int CLASS_CONTEXT_SPECIFIC = 2;
+
+  // Universal tag numbers.
+  static final int TAG_BOOLEAN = 1;
+  static final int TAG_INTEGER = 2;
+  static final int TAG_OCTET_STRING = 4;
+  static final int TAG_ENUMERATED = 10;
+  static final int TAG_SEQUENCE = 16;
+  static final int TAG_SET = 17;
+
+  private final byte[] mData;
+  private int mPosition;
+  private int mEnd;
+
+  private int mTagClass;
+  private boolean mConstructed;
+  private int mTagNumber;
+  private int mValueOffset;
+  private int mValueLength;
+
+  DerReader(byte[] data, int offset, int length) {
+    mData = data;
+    reset(offset, length);
+  }
+
+  /** Moves the cursor to the start of the given range, which it will not read past. */
+  void reset(int offset, int length) {
+    mPosition = offset;
+    mEnd = offset + length;
+  }
+
+  boolean hasNext() {
+    return mPosition < mEnd;
+  }
+
+  /** Reads the header of the next element and moves the cursor past the element. */
+  void next() throws CertificateParsingException {
+    if (mPosition >= mEnd) {
+      throw new CertificateParsingException("Unexpected end of DER data at " + mPosition);
+    }
+    int identifier = readByte();
+    mTagClass = identifier >>> 6;
+    mConstructed = (identifier & 0x20) != 0;
+    mTagNumber = identifier & 0x1f;
+    if (mTagNumber == 0x1f) {
+      // High tag number form: base 128 digits, most significant first.
+      mTagNumber = 0;
+      int b;
+      do {
+        if (mTagNumber > (Integer.MAX_VALUE >> 7)) {
+          throw new CertificateParsingException("DER tag number too large at " + mPosition);
+        }
+        b = readByte();
+        mTagNumber = (mTagNumber << 7) | (b & 0x7f);
+      } while ((b & 0x80) != 0);
+    }
+    int length = readByte();
+    if ((length & 0x80) != 0) {
+      int lengthBytes = length & 0x7f;
+      if (lengthBytes == 0 || lengthBytes > 4) {
+        throw new CertificateParsingException("Unsupported DER length at " + mPosition);
+      }
+      length = 0;
+      for (int i = 0; i < lengthBytes; i++) {
+        length = (length << 8) | readByte();
+      }
+    }
+    if (length < 0 || length > mEnd - mPosition) {
+      throw new CertificateParsingException("DER length exceeds the data at " + mPosition);
+    }
+    mValueOffset = mPosition;
+    mValueLength = length;
+    mPosition += length;
+  }
+
+  /**
+   * Reads the header of the next element and checks that it is the universal element with the
+   * given tag number.
+   */
+  void next(int universalTagNumber) throws CertificateParsingException {
+    next();
+    if (mTagClass != CLASS_UNIVERSAL || mTagNumber != universalTagNumber) {
+      throw new CertificateParsingException(
+          "Expected universal tag " + universalTagNumber + ", found " + describeTag());
+    }
+  }
+
+  /** Moves the cursor to the first child of the element read last. */
+  void enter() throws CertificateParsingException {
+    if (!mConstructed) {
+      throw new CertificateParsingException("Expected constructed element, found " + describeTag());
+    }
+    reset(mValueOffset, mValueLength);
+  }
+
+  int getTagClass() {
+    return mTagClass;
+  }
+
+  boolean isConstructed() {
+    return mConstructed;
+  }
+
+  int getTagNumber() {
+    return mTagNumber;
+  }
+
+  int getValueOffset() {
+    return mValueOffset;
+  }
+
+  int getValueLength() {
+    return mValueLength;
+  }
+
+  /** Position of the cursor, which is the end of the element read last. */
+  int getPosition() {
+    return mPosition;
+  }
+
+  /** Returns a copy of the content octets of the element read last. */
+  byte[] copyValue() {
+    return Arrays.copyOfRange(mData, mValueOffset, mValueOffset + mValueLength);
+  }
+
+  /** Returns the value of the BOOLEAN read last. */
+  boolean readBoolean() throws CertificateParsingException {
+    if (mTagClass != CLASS_UNIVERSAL || mTagNumber != TAG_BOOLEAN || mValueLength != 1) {
+      throw new CertificateParsingException("Expected boolean, found " + describeTag());
+    }
+    return mData[mValueOffset] != 0;
+  }
+
+  /** Returns the value of the INTEGER or ENUMERATED read last, which must be in [0, max]. */
+  long readNonNegative(long max) throws CertificateParsingException {
+    if (mTagClass != CLASS_UNIVERSAL
+        || (mTagNumber != TAG_INTEGER && mTagNumber != TAG_ENUMERATED)) {
+      throw new CertificateParsingException("Integer value expected, found " + describeTag());
+    }
+    return decodeNonNegative(mData, mValueOffset, mValueLength, max);
+  }
+
+  /** Decodes the content octets of a DER INTEGER, which must be in [0, max]. */
+  static long decodeNonNegative(byte[] data, int offset, int length, long max)
+      throws CertificateParsingException {
+    if (length == 0 || data[offset] < 0) {
+      throw new CertificateParsingException("INTEGER out of bounds");
+    }
+    // A leading zero octet only makes room for a sign bit.
+    if (length > 1 && data[offset] == 0) {
+      offset++;
+      length--;
+    }
+    if (length > 8) {
+      throw new CertificateParsingException("INTEGER out of bounds");
+    }
+    long value = 0;
+    for (int i = 0; i < length; i++) {
+      value = (value << 8) | (data[offset + i] & 0xff);
+    }
+    if (value < 0 || value > max) {
+      throw new CertificateParsingException("INTEGER out of bounds");
+    }
+    return value;
+  }
+
+  private int readByte() throws CertificateParsingException {
+    if (mPosition >= mEnd) {
+      throw new CertificateParsingException("Truncated DER header at " + mPosition);
+    }
+    return mData[mPosition++] & 0xff;
+  }
+
+  private String describeTag() {
+    return "class " + mTagClass + " tag " + mTagNumber;
+  }
+}
@@ -48,6 +48,17 @@ public class RootOfTrust {
         Asn1Utils.getIntegerFromAsn1(sequence.getObjectAt(VERIFIED_BOOT_STATE_INDEX));
   }
 
+  /** Parses the content of a DER encoded root of trust in the given range of {@code data}. */
+  RootOfTrust(byte[] data, int offset, int length) throws CertificateParsingException {
+    DerReader reader = new DerReader(data, offset, length);
+    reader.next(DerReader.TAG_OCTET_STRING);
+    verifiedBootKey = reader.copyValue();
+    reader.next();
+    deviceLocked = reader.readBoolean();
+    reader.next();
+    verifiedBootState = (int) reader.readNonNegative(Integer.MAX_VALUE);
+  }
+
   public static String verifiedBootStateToString(int verifiedBootState) {
     switch (verifiedBootState) {
       case KM_VERIFIED_BOOT_VERIFIED:
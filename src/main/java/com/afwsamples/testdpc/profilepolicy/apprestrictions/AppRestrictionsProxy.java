@@ -18,11 +18,16 @@ package com.afwsamples.testdpc.profilepolicy.apprestrictions;
 
 import android.app.Service;
 import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Messenger;
+import android.os.Process;
 import com.afwsamples.testdpc.DeviceAdminReceiver;
 
 /**
@@ -36,14 +41,43 @@ import com.afwsamples.testdpc.DeviceAdminReceiver;
  * which removes the need for the proxy code.
  */
 public class AppRestrictionsProxy extends Service {
+  private static final String TAG = "AppRestrictionsProxy";
 
+  private HandlerThread mHandlerThread;
+  private AppRestrictionsProxyHandler mHandler;
   private Messenger mMessenger;
 
+  private final BroadcastReceiver mPackageChangedReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          mHandler.onPackageChanged();
+        }
+      };
+
   @Override
   public void onCreate() {
-    mMessenger =
-        new Messenger(
-            new AppRestrictionsProxyHandler(this, DeviceAdminReceiver.getComponentName(this)));
+    // The messages are handled off the main thread, as the managing package can send many.
+    mHandlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+    mHandlerThread.start();
+    mHandler =
+        new AppRestrictionsProxyHandler(
+            this, DeviceAdminReceiver.getComponentName(this), mHandlerThread.getLooper());
+    mMessenger = new Messenger(mHandler);
+
+    IntentFilter intentFilter = new IntentFilter();
+    intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    intentFilter.addDataScheme("package");
+    // Runs on the looper of the handler, which owns the cache.
+    registerReceiver(mPackageChangedReceiver, intentFilter, null, mHandler);
+  }
+
+  @Override
+  public void onDestroy() {
+    unregisterReceiver(mPackageChangedReceiver);
+    mHandlerThread.quitSafely();
+    super.onDestroy();
   }
 
   @Override
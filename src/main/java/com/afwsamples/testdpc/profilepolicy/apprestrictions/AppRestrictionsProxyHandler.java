@@ -25,20 +25,27 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.util.Log;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles the message passed from another package to set the application restrictions.
  *
  * <p>The package name must be provided, along with the application restrictions bundle to set. To
  * clear the application restrictions, an empty bundle should be passed.
+ *
+ * <p>Whether a UID is authorized is checked once and cached, until the managing package is changed
+ * with {@link #setApplicationRestrictionsManagingPackage(Context, String)} or a package is
+ * replaced or removed (see {@link #onPackageChanged()}). The cache is only used on the looper of
+ * the handler.
  */
 public class AppRestrictionsProxyHandler extends Handler {
 
@@ -56,14 +63,30 @@ public class AppRestrictionsProxyHandler extends Handler {
   public static final String KEY_PACKAGE_NAME = "packageName";
   public static final String KEY_CAN_SET_APPLICATION_RESTRICTIONS = "canSetApplicationRestrictions";
 
+  // Incremented whenever the managing package is set, to drop the cache of every handler.
+  private static final AtomicInteger sManagingPackageGeneration = new AtomicInteger();
+
   private final Context mContext;
   private final ComponentName mAdmin;
 
-  public AppRestrictionsProxyHandler(Context context, ComponentName admin) {
+  private final Map<Integer, Boolean> mAuthorizedUids = new HashMap<>();
+  private Set<String> mExpectedSignatures;
+  private int mCacheGeneration = -1;
+
+  public AppRestrictionsProxyHandler(Context context, ComponentName admin, Looper looper) {
+    super(looper);
     mContext = context;
     mAdmin = admin;
   }
 
+  /**
+   * Drops the cached authorizations after a package was replaced or removed, since its UID or
+   * signatures may have changed. Must be called on the looper of the handler.
+   */
+  public void onPackageChanged() {
+    mAuthorizedUids.clear();
+  }
+
   @Override
   public void handleMessage(Message msg) {
     switch (msg.what) {
@@ -132,6 +155,7 @@ public class AppRestrictionsProxyHandler extends Handler {
           .putStringSet(APPLICATION_RESTRICTIONS_MANAGING_PACKAGE_SIGNATURES_KEY, null)
           .putString(APPLICATION_RESTRICTIONS_MANAGING_PACKAGE_KEY, null)
           .apply();
+      sManagingPackageGeneration.incrementAndGet();
       return;
     }
     Signature[] signatures;
@@ -166,6 +190,7 @@ public class AppRestrictionsProxyHandler extends Handler {
         .putStringSet(APPLICATION_RESTRICTIONS_MANAGING_PACKAGE_SIGNATURES_KEY, signatureSet)
         .putString(APPLICATION_RESTRICTIONS_MANAGING_PACKAGE_KEY, packageName)
         .apply();
+    sManagingPackageGeneration.incrementAndGet();
   }
 
   /**
@@ -199,6 +224,27 @@ public class AppRestrictionsProxyHandler extends Handler {
     return devicePolicyManager.getApplicationRestrictions(mAdmin, packageName);
   }
 
+  /**
+   * Returns whether {@code callerUid} is the application restrictions managing package, checking it
+   * with {@link #verifyCaller(int)} if it is not cached.
+   */
+  private boolean isCallerAuthorized(int callerUid) {
+    int generation = sManagingPackageGeneration.get();
+    if (generation != mCacheGeneration) {
+      mAuthorizedUids.clear();
+      mExpectedSignatures = null;
+      mCacheGeneration = generation;
+    }
+    Boolean authorized = mAuthorizedUids.get(callerUid);
+    if (authorized == null) {
+      authorized = verifyCaller(callerUid);
+      mAuthorizedUids.put(callerUid, authorized);
+    } else if (!authorized) {
+      Log.e(TAG, "Caller " + callerUid + " is not authorized");
+    }
+    return authorized;
+  }
+
   /**
    * Checks that the message sent through the bound service was sent by the same package as declared
    * in {@link #setApplicationRestrictionsManagingPackage(Context, String)}, and that its signature
@@ -207,7 +253,7 @@ public class AppRestrictionsProxyHandler extends Handler {
    * @param callerUid the UID of the caller
    * @return whether the caller is the application restictions managing package
    */
-  private boolean isCallerAuthorized(int callerUid) {
+  private boolean verifyCaller(int callerUid) {
     String appRestrictionsManagingPackage = getApplicationRestrictionsManagingPackage(mContext);
     if (appRestrictionsManagingPackage == null) {
       Log.e(TAG, "There is no app restrictions managing package");
@@ -220,13 +266,7 @@ public class AppRestrictionsProxyHandler extends Handler {
       return false;
     }
 
-    Set<String> storedSignatures =
-        PreferenceManager.getDefaultSharedPreferences(mContext)
-            .getStringSet(APPLICATION_RESTRICTIONS_MANAGING_PACKAGE_SIGNATURES_KEY, null);
-    if (storedSignatures == null) {
-      throw new IllegalStateException(
-          "App restrictions managing package signatures have not been stored.");
-    }
+    Set<String> expectedSignatures = getExpectedSignatures();
     Signature[] callingPackageSignatures;
     try {
       PackageInfo packageInfo =
@@ -243,18 +283,29 @@ public class AppRestrictionsProxyHandler extends Handler {
     } catch (NameNotFoundException e) {
       throw new IllegalArgumentException(e);
     }
-    List<Signature> expectedSignatures = new ArrayList<>(storedSignatures.size());
-    for (String signatureString : storedSignatures) {
-      expectedSignatures.add(new Signature(signatureString));
-    }
+    // Two signatures are equal when their bytes, and so their char strings, are equal.
     for (Signature callingSignature : callingPackageSignatures) {
-      for (Signature expectedSignature : expectedSignatures) {
-        if (expectedSignature.equals(callingSignature)) {
-          return true;
-        }
+      if (expectedSignatures.contains(callingSignature.toCharsString())) {
+        return true;
       }
     }
     Log.e(TAG, "Calling package signature doesn't match");
     return false;
   }
+
+  /** Returns the stored signatures of the managing package, read once per managing package. */
+  private Set<String> getExpectedSignatures() {
+    if (mExpectedSignatures == null) {
+      Set<String> storedSignatures =
+          PreferenceManager.getDefaultSharedPreferences(mContext)
+              .getStringSet(APPLICATION_RESTRICTIONS_MANAGING_PACKAGE_SIGNATURES_KEY, null);
+      if (storedSignatures == null) {
+        throw new IllegalStateException(
+            "App restrictions managing package signatures have not been stored.");
+      }
+      // The returned set must not be modified, so it is copied.
+      mExpectedSignatures = new HashSet<>(storedSignatures);
+    }
+    return mExpectedSignatures;
+  }
 }
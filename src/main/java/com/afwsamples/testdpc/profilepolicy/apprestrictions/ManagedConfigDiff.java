@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.profilepolicy.apprestrictions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * Structural difference between two managed configurations.
+ *
+ * <p>A configuration is a tree of maps from restriction keys to values, as built by {@link
+ * ManagedConfigEngine}: a {@code Boolean}, an {@code Integer}, a {@code String}, a {@code
+ * List<String>} for a multi-select, a {@code Map<String, Object>} for a bundle, or a {@code
+ * List<Map<String, Object>>} for a bundle array. Bundles and bundle arrays are compared entry by
+ * entry, and the other values as a whole.
+ */
+public final class ManagedConfigDiff {
+
+  /** How a value changed. */
+  public enum Kind {
+    ADDED,
+    REMOVED,
+    CHANGED
+  }
+
+  /** A value that differs, at a path such as {@code servers[1]/host}. */
+  public static final class Change {
+    public final Kind kind;
+    public final String path;
+
+    Change(Kind kind, String path) {
+      this.kind = kind;
+      this.path = path;
+    }
+
+    @Override
+    public String toString() {
+      return kind + " " + path;
+    }
+  }
+
+  private ManagedConfigDiff() {}
+
+  /** Returns the changes to go from {@code current} to {@code desired}, sorted by path. */
+  public static List<Change> diff(Map<String, Object> current, Map<String, Object> desired) {
+    List<Change> changes = new ArrayList<>();
+    diffBundles("", current, desired, changes);
+    return Collections.unmodifiableList(changes);
+  }
+
+  private static void diffBundles(
+      String prefix, Map<String, Object> current, Map<String, Object> desired, List<Change> out) {
+    TreeSet<String> keys = new TreeSet<>(current.keySet());
+    keys.addAll(desired.keySet());
+    for (String key : keys) {
+      String path = prefix + key;
+      if (!desired.containsKey(key)) {
+        out.add(new Change(Kind.REMOVED, path));
+      } else if (!current.containsKey(key)) {
+        out.add(new Change(Kind.ADDED, path));
+      } else {
+        diffValues(path, current.get(key), desired.get(key), out);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void diffValues(String path, Object current, Object desired, List<Change> out) {
+    if (current instanceof Map && desired instanceof Map) {
+      diffBundles(path + "/", (Map<String, Object>) current, (Map<String, Object>) desired, out);
+    } else if (isBundleList(current) && isBundleList(desired)) {
+      List<Map<String, Object>> currentList = (List<Map<String, Object>>) current;
+      List<Map<String, Object>> desiredList = (List<Map<String, Object>>) desired;
+      int size = Math.max(currentList.size(), desiredList.size());
+      for (int i = 0; i < size; i++) {
+        String itemPath = path + "[" + i + "]";
+        if (i >= desiredList.size()) {
+          out.add(new Change(Kind.REMOVED, itemPath));
+        } else if (i >= currentList.size()) {
+          out.add(new Change(Kind.ADDED, itemPath));
+        } else {
+          diffBundles(itemPath + "/", currentList.get(i), desiredList.get(i), out);
+        }
+      }
+    } else if (!Objects.equals(current, desired)) {
+      out.add(new Change(Kind.CHANGED, path));
+    }
+  }
+
+  /**
+   * Returns whether {@code value} is a list of bundles. An empty list can be either a bundle array
+   * or a multi-select, which compare the same way when empty.
+   */
+  private static boolean isBundleList(Object value) {
+    if (!(value instanceof List)) {
+      return false;
+    }
+    for (Object item : (List<?>) value) {
+      if (!(item instanceof Map)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.profilepolicy.apprestrictions;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+import com.afwsamples.testdpc.DevicePolicyManagerGateway;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Pushes managed configurations to many packages through a {@link DevicePolicyManagerGateway}.
+ *
+ * <p>The configurations are read from a JSON document with one object per package, whose values
+ * are booleans, integers, strings, arrays of strings (multi-selects), objects (bundles) and arrays
+ * of objects (bundle arrays):
+ *
+ * <pre>
+ * {
+ *   "com.example.mail": {
+ *     "sync_enabled": true,
+ *     "servers": [{"host": "mail.example.com", "port": 993}]
+ *   }
+ * }
+ * </pre>
+ *
+ * <p>Each configuration replaces the whole configuration of its package. It is compared with the
+ * current one with {@link ManagedConfigDiff} first, and only the packages whose configuration
+ * changes are pushed, several at a time.
+ */
+public final class ManagedConfigEngine {
+  private static final String TAG = "ManagedConfigEngine";
+
+  private static final int MAX_CONCURRENT_PUSHES = 4;
+
+  /** The configurations to push, as returned by {@link #plan(Map)}. */
+  public static final class Plan {
+    private final Map<String, Map<String, Object>> mConfigs = new LinkedHashMap<>();
+    private final Map<String, List<ManagedConfigDiff.Change>> mChanges = new LinkedHashMap<>();
+    private final List<String> mUnchanged = new ArrayList<>();
+
+    /** Returns the changes of each package to push, in the order of the document. */
+    public Map<String, List<ManagedConfigDiff.Change>> getChanges() {
+      return Collections.unmodifiableMap(mChanges);
+    }
+
+    /** Returns the packages whose configuration is already the desired one. */
+    public List<String> getUnchanged() {
+      return Collections.unmodifiableList(mUnchanged);
+    }
+  }
+
+  /** Outcome of {@link #apply(Plan)}. */
+  public static final class Result {
+    private final Map<String, Long> mPushedMicros = new LinkedHashMap<>();
+    private final Map<String, Exception> mErrors = new LinkedHashMap<>();
+    private int mUnchanged;
+
+    public boolean isSuccess() {
+      return mErrors.isEmpty();
+    }
+
+    /** Packages whose configuration was pushed, with the time the call took in microseconds. */
+    public Map<String, Long> getPushedMicros() {
+      return Collections.unmodifiableMap(mPushedMicros);
+    }
+
+    /** Packages whose configuration could not be pushed. */
+    public Map<String, Exception> getErrors() {
+      return Collections.unmodifiableMap(mErrors);
+    }
+
+    /** Number of packages that already had the desired configuration. */
+    public int getUnchanged() {
+      return mUnchanged;
+    }
+  }
+
+  private final DevicePolicyManagerGateway mDevicePolicyManagerGateway;
+
+  public ManagedConfigEngine(DevicePolicyManagerGateway devicePolicyManagerGateway) {
+    mDevicePolicyManagerGateway = devicePolicyManagerGateway;
+  }
+
+  /** Reads the configuration of each package from a JSON document. */
+  public static Map<String, Map<String, Object>> parseDocument(String json) throws JSONException {
+    JSONObject document = new JSONObject(json);
+    Map<String, Map<String, Object>> configs = new LinkedHashMap<>();
+    Iterator<String> packageNames = document.keys();
+    while (packageNames.hasNext()) {
+      String packageName = packageNames.next();
+      configs.put(packageName, fromJson(document.getJSONObject(packageName)));
+    }
+    return configs;
+  }
+
+  /** Compares {@code configs} with the current configuration of each package. */
+  public Plan plan(Map<String, Map<String, Object>> configs) {
+    long start = System.nanoTime();
+    Plan plan = new Plan();
+    for (Map.Entry<String, Map<String, Object>> entry : configs.entrySet()) {
+      String packageName = entry.getKey();
+      Map<String, Object> current =
+          toTree(mDevicePolicyManagerGateway.getApplicationRestrictions(packageName));
+      List<ManagedConfigDiff.Change> changes = ManagedConfigDiff.diff(current, entry.getValue());
+      if (changes.isEmpty()) {
+        plan.mUnchanged.add(packageName);
+      } else {
+        plan.mConfigs.put(packageName, entry.getValue());
+        plan.mChanges.put(packageName, changes);
+      }
+    }
+    Log.d(
+        TAG,
+        "plan(): "
+            + plan.mConfigs.size()
+            + " packages to push, "
+            + plan.mUnchanged.size()
+            + " unchanged, in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            + " ms");
+    return plan;
+  }
+
+  /** Pushes the configurations of {@code plan}, {@link #MAX_CONCURRENT_PUSHES} at a time. */
+  public Result apply(Plan plan) throws InterruptedException {
+    Result result = new Result();
+    result.mUnchanged = plan.mUnchanged.size();
+    if (plan.mConfigs.isEmpty()) {
+      return result;
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(MAX_CONCURRENT_PUSHES, plan.mConfigs.size()));
+    Map<String, Future<Long>> futures = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<String, Map<String, Object>> entry : plan.mConfigs.entrySet()) {
+        String packageName = entry.getKey();
+        Bundle settings = toBundle(entry.getValue());
+        futures.put(packageName, executor.submit(() -> push(packageName, settings)));
+      }
+      for (Map.Entry<String, Future<Long>> entry : futures.entrySet()) {
+        try {
+          result.mPushedMicros.put(entry.getKey(), entry.getValue().get());
+        } catch (ExecutionException e) {
+          Exception error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          Log.e(TAG, "Failed to push the configuration of " + entry.getKey(), error);
+          result.mErrors.put(entry.getKey(), error);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Log.d(
+        TAG,
+        "apply(): pushed " + result.mPushedMicros.size() + ", failed " + result.mErrors.size());
+    return result;
+  }
+
+  /** Pushes a configuration, returning the time it took in microseconds. */
+  private long push(String packageName, Bundle settings) throws Exception {
+    long start = System.nanoTime();
+    Exception[] error = new Exception[1];
+    mDevicePolicyManagerGateway.setApplicationRestrictions(
+        packageName, settings, (v) -> {}, (e) -> error[0] = e);
+    if (error[0] != null) {
+      throw error[0];
+    }
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+  }
+
+  private static Map<String, Object> fromJson(JSONObject object) throws JSONException {
+    Map<String, Object> tree = new LinkedHashMap<>();
+    Iterator<String> keys = object.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      tree.put(key, fromJson(key, object.get(key)));
+    }
+    return tree;
+  }
+
+  private static Object fromJson(String key, Object value) throws JSONException {
+    if (value instanceof Boolean || value instanceof Integer || value instanceof String) {
+      return value;
+    }
+    if (value instanceof Long
+        && (Long) value >= Integer.MIN_VALUE
+        && (Long) value <= Integer.MAX_VALUE) {
+      return ((Long) value).intValue();
+    }
+    if (value instanceof JSONObject) {
+      return fromJson((JSONObject) value);
+    }
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      List<Object> list = new ArrayList<>(array.length());
+      boolean bundles = array.length() > 0 && array.get(0) instanceof JSONObject;
+      for (int i = 0; i < array.length(); i++) {
+        Object item = array.get(i);
+        if (bundles && item instanceof JSONObject) {
+          list.add(fromJson((JSONObject) item));
+        } else if (!bundles && item instanceof String) {
+          list.add(item);
+        } else {
+          throw new JSONException(key + " must be an array of only strings or only objects");
+        }
+      }
+      return list;
+    }
+    throw new JSONException("Unsupported value for " + key + ": " + value);
+  }
+
+  /** Returns the tree of {@code bundle}, in the form compared by {@link ManagedConfigDiff}. */
+  static Map<String, Object> toTree(Bundle bundle) {
+    Map<String, Object> tree = new LinkedHashMap<>();
+    if (bundle == null) {
+      return tree;
+    }
+    for (String key : bundle.keySet()) {
+      Object value = bundle.get(key);
+      if (value instanceof Bundle) {
+        value = toTree((Bundle) value);
+      } else if (value instanceof String[]) {
+        List<String> strings = new ArrayList<>();
+        Collections.addAll(strings, (String[]) value);
+        value = strings;
+      } else if (value instanceof Parcelable[]) {
+        List<Object> bundles = new ArrayList<>();
+        for (Parcelable item : (Parcelable[]) value) {
+          bundles.add(item instanceof Bundle ? toTree((Bundle) item) : item);
+        }
+        value = bundles;
+      }
+      tree.put(key, value);
+    }
+    return tree;
+  }
+
+  /** Returns the bundle of a tree read by {@link #parseDocument(String)}. */
+  @SuppressWarnings("unchecked")
+  static Bundle toBundle(Map<String, Object> tree) {
+    Bundle bundle = new Bundle();
+    for (Map.Entry<String, Object> entry : tree.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof Boolean) {
+        bundle.putBoolean(key, (Boolean) value);
+      } else if (value instanceof Integer) {
+        bundle.putInt(key, (Integer) value);
+      } else if (value instanceof String) {
+        bundle.putString(key, (String) value);
+      } else if (value instanceof Map) {
+        bundle.putBundle(key, toBundle((Map<String, Object>) value));
+      } else if (value instanceof List) {
+        List<Object> list = (List<Object>) value;
+        if (!list.isEmpty() && list.get(0) instanceof Map) {
+          Bundle[] bundles = new Bundle[list.size()];
+          for (int i = 0; i < bundles.length; i++) {
+            bundles[i] = toBundle((Map<String, Object>) list.get(i));
+          }
+          bundle.putParcelableArray(key, bundles);
+        } else {
+          bundle.putStringArray(key, list.toArray(new String[list.size()]));
+        }
+      }
+    }
+    return bundle;
+  }
+}
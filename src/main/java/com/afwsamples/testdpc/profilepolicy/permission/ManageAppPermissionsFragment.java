@@ -21,13 +21,11 @@ import android.app.admin.DevicePolicyManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PermissionInfo;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -36,9 +34,12 @@ import android.widget.TextView;
 import com.afwsamples.testdpc.DeviceAdminReceiver;
 import com.afwsamples.testdpc.R;
 import com.afwsamples.testdpc.common.ManageAppFragment;
+import com.afwsamples.testdpc.common.PermissionInfoCache;
 import com.afwsamples.testdpc.common.Util;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This fragment shows all installed apps and allows viewing and editing the dangerous application
@@ -46,12 +47,14 @@ import java.util.List;
  */
 @TargetApi(VERSION_CODES.M)
 public class ManageAppPermissionsFragment extends ManageAppFragment {
-  private static final String TAG = "ManageAppPermissions";
 
   private DevicePolicyManager mDpm;
   private List<AppPermissionsArrayAdapter.AppPermission> mAppPermissions = new ArrayList<>();
   private TextView mAppPermissionsView;
   private ComponentName mAdminComponent;
+  private String mSelectedPackage;
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
@@ -76,45 +79,40 @@ public class ManageAppPermissionsFragment extends ManageAppFragment {
     return view;
   }
 
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    mExecutor.shutdownNow();
+  }
+
   @Override
   protected void onSpinnerItemSelected(ApplicationInfo appInfo) {
     String pkgName = appInfo.packageName;
-    if (!TextUtils.isEmpty(pkgName)) {
-      List<String> permissions = new ArrayList<String>();
-
-      PackageInfo info = null;
-      try {
-        info = mPackageManager.getPackageInfo(pkgName, PackageManager.GET_PERMISSIONS);
-      } catch (PackageManager.NameNotFoundException e) {
-        Log.e(TAG, "Could not retrieve info about the package: " + pkgName, e);
-        return;
-      }
-
-      if (info != null && info.requestedPermissions != null) {
-        for (String requestedPerm : info.requestedPermissions) {
-          try {
-            PermissionInfo pInfo = mPackageManager.getPermissionInfo(requestedPerm, 0);
-            if (pInfo != null) {
-              if ((pInfo.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
-                  == PermissionInfo.PROTECTION_DANGEROUS) {
-                permissions.add(pInfo.name);
-              }
-            }
-          } catch (PackageManager.NameNotFoundException e) {
-            Log.i(TAG, "Could not retrieve info about the permission: " + requestedPerm);
-          }
-        }
-      }
-
-      List<AppPermissionsArrayAdapter.AppPermission> populatedPermissions = new ArrayList<>();
-      for (String permission : permissions) {
-        int permissionState = mDpm.getPermissionGrantState(mAdminComponent, pkgName, permission);
-        AppPermissionsArrayAdapter.AppPermission populatedPerm =
-            new AppPermissionsArrayAdapter.AppPermission(pkgName, permission, permissionState);
-        populatedPermissions.add(populatedPerm);
-      }
-      displayAppPermissions(populatedPermissions);
+    if (TextUtils.isEmpty(pkgName)) {
+      return;
     }
+    mSelectedPackage = pkgName;
+    PermissionInfoCache permissionInfoCache = PermissionInfoCache.getInstance(getContext());
+    // Each grant state is a call to the system server, so they are read in the background.
+    mExecutor.execute(
+        () -> {
+          List<String> permissions = permissionInfoCache.getRuntimePermissions(pkgName);
+          List<AppPermissionsArrayAdapter.AppPermission> populatedPermissions =
+              new ArrayList<>(permissions.size());
+          for (String permission : permissions) {
+            int permissionState =
+                mDpm.getPermissionGrantState(mAdminComponent, pkgName, permission);
+            populatedPermissions.add(
+                new AppPermissionsArrayAdapter.AppPermission(pkgName, permission, permissionState));
+          }
+          mHandler.post(
+              () -> {
+                // Another app may have been selected in the meantime.
+                if (isAdded() && pkgName.equals(mSelectedPackage)) {
+                  displayAppPermissions(populatedPermissions);
+                }
+              });
+        });
   }
 
   @Override
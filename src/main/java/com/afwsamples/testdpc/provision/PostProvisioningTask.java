@@ -28,18 +28,16 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PermissionInfo;
 import android.os.Build.VERSION_CODES;
 import android.os.PersistableBundle;
 import android.util.Log;
 import com.afwsamples.testdpc.AddAccountActivity;
 import com.afwsamples.testdpc.FinalizeActivity;
 import com.afwsamples.testdpc.common.LaunchIntentUtil;
+import com.afwsamples.testdpc.common.PermissionInfoCache;
 import com.afwsamples.testdpc.common.Util;
 import com.afwsamples.testdpc.cosu.EnableCosuActivity;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -181,7 +179,8 @@ public class PostProvisioningTask {
     String packageName = mContext.getPackageName();
     ComponentName adminComponentName = getComponentName(mContext);
 
-    List<String> permissions = getRuntimePermissions(mContext.getPackageManager(), packageName);
+    List<String> permissions =
+        PermissionInfoCache.getInstance(mContext).getRuntimePermissions(packageName);
     for (String permission : permissions) {
       boolean success =
           mDevicePolicyManager.setPermissionGrantState(
@@ -192,39 +191,4 @@ public class PostProvisioningTask {
       }
     }
   }
-
-  private List<String> getRuntimePermissions(PackageManager packageManager, String packageName) {
-    List<String> permissions = new ArrayList<>();
-    PackageInfo packageInfo;
-    try {
-      packageInfo = packageManager.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-    } catch (PackageManager.NameNotFoundException e) {
-      Log.e(TAG, "Could not retrieve info about the package: " + packageName, e);
-      return permissions;
-    }
-
-    if (packageInfo != null && packageInfo.requestedPermissions != null) {
-      for (String requestedPerm : packageInfo.requestedPermissions) {
-        if (isRuntimePermission(packageManager, requestedPerm)) {
-          permissions.add(requestedPerm);
-        }
-      }
-    }
-    return permissions;
-  }
-
-  private boolean isRuntimePermission(PackageManager packageManager, String permission) {
-    try {
-      PermissionInfo pInfo = packageManager.getPermissionInfo(permission, 0);
-      if (pInfo != null) {
-        if ((pInfo.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE)
-            == PermissionInfo.PROTECTION_DANGEROUS) {
-          return true;
-        }
-      }
-    } catch (PackageManager.NameNotFoundException e) {
-      Log.i(TAG, "Could not retrieve info about the permission: " + permission);
-    }
-    return false;
-  }
 }
@@ -3,6 +3,9 @@ package com.afwsamples.testdpc.search;
 import android.content.Context;
 import android.util.Log;
 import com.afwsamples.testdpc.common.BaseSearchablePolicyPreferenceFragment;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 public abstract class BaseIndexableFragment {
@@ -32,4 +35,36 @@ public abstract class BaseIndexableFragment {
   }
 
   public abstract List<PreferenceIndex> index(Context context);
+
+  /**
+   * Returns a hash of everything {@link #index(Context)} depends on, so fragments whose content did
+   * not change since the previous crawl don't need to be indexed again. Must be cheaper than {@link
+   * #index(Context)}.
+   */
+  public abstract String getContentHash(Context context);
+
+  protected static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /** Adds {@code value} to {@code digest}, terminated so consecutive values can't run together. */
+  protected static void update(MessageDigest digest, CharSequence value) {
+    if (value != null) {
+      digest.update(value.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    digest.update((byte) 0);
+  }
+
+  protected static String toHexString(MessageDigest digest) {
+    StringBuilder builder = new StringBuilder();
+    for (byte b : digest.digest()) {
+      builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+      builder.append(Character.forDigit(b & 0xf, 16));
+    }
+    return builder.toString();
+  }
 }
@@ -0,0 +1,250 @@
+package com.afwsamples.testdpc.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/**
+ * In-memory search engine over the preference index.
+ *
+ * <p>The tokens of the title and key of every preference are stored in a prefix trie. A query token
+ * matches the indexed tokens it is a prefix of and, when it has at least {@link #MIN_FUZZY_LENGTH}
+ * characters, the ones that start with a string within an edit distance of 1 from it. A preference
+ * matches a query when all the query tokens match, and results are ranked by how each token matched
+ * (exact, prefix or fuzzy), in which field (title before key) and how early in that field.
+ *
+ * <p>Instances are immutable, so they can be shared by concurrent searches.
+ */
+public final class PolicySearchEngine {
+  /** Query tokens shorter than this only match as exact tokens or prefixes. */
+  public static final int MIN_FUZZY_LENGTH = 4;
+
+  private static final int MAX_DISTANCE = 1;
+
+  private static final int FIELD_TITLE = 0;
+  private static final int FIELD_KEY = 1;
+
+  // Postings pack the entry index, the field and the position of the token in that field.
+  private static final int POSITION_BITS = 7;
+  private static final int MAX_POSITION = (1 << POSITION_BITS) - 1;
+  private static final int FIELD_SHIFT = POSITION_BITS;
+  private static final int ENTRY_SHIFT = POSITION_BITS + 1;
+
+  private static final float SCORE_EXACT = 1f;
+  private static final float SCORE_PREFIX = 0.75f;
+  private static final float SCORE_FUZZY = 0.5f;
+  private static final float WEIGHT_TITLE = 1f;
+  private static final float WEIGHT_KEY = 0.6f;
+  private static final float POSITION_PENALTY = 0.05f;
+  private static final int MAX_POSITION_PENALTIES = 10;
+
+  // How often the cancellation of the searching thread is checked, in visited trie nodes.
+  private static final int CANCELLATION_CHECK_INTERVAL = 256;
+
+  private final PreferenceIndex[] mEntries;
+  private final Node mRoot = new Node();
+
+  public PolicySearchEngine(List<PreferenceIndex> preferences) {
+    mEntries = preferences.toArray(new PreferenceIndex[0]);
+    for (int entry = 0; entry < mEntries.length; entry++) {
+      addTokens(entry, FIELD_TITLE, mEntries[entry].title);
+      addTokens(entry, FIELD_KEY, mEntries[entry].key);
+    }
+  }
+
+  /** Returns the number of indexed preferences. */
+  public int size() {
+    return mEntries.length;
+  }
+
+  /**
+   * Returns the preferences of the given fragments that match {@code query}, most relevant first.
+   *
+   * @throws CancellationException if the calling thread is interrupted during the search
+   */
+  public List<PreferenceIndex> search(String query, Collection<String> targetFragments) {
+    String[] queryTokens = tokenize(query);
+    if (queryTokens.length == 0 || mEntries.length == 0) {
+      return Collections.emptyList();
+    }
+    Set<String> fragments = new HashSet<>(targetFragments);
+    float[] scores = new float[mEntries.length];
+    int[] matchedTokens = new int[mEntries.length];
+    float[] tokenScores = new float[mEntries.length];
+    Search search = new Search();
+    for (String queryToken : queryTokens) {
+      Arrays.fill(tokenScores, 0f);
+      search.run(queryToken, tokenScores);
+      for (int entry = 0; entry < mEntries.length; entry++) {
+        if (tokenScores[entry] > 0) {
+          scores[entry] += tokenScores[entry];
+          matchedTokens[entry]++;
+        }
+      }
+    }
+
+    List<Integer> matches = new ArrayList<>();
+    for (int entry = 0; entry < mEntries.length; entry++) {
+      if (matchedTokens[entry] == queryTokens.length
+          && fragments.contains(mEntries[entry].fragmentClass)) {
+        matches.add(entry);
+      }
+    }
+    Collections.sort(
+        matches,
+        (a, b) -> {
+          int byScore = Float.compare(scores[b], scores[a]);
+          return byScore != 0 ? byScore : mEntries[a].title.compareTo(mEntries[b].title);
+        });
+    List<PreferenceIndex> results = new ArrayList<>(matches.size());
+    for (int entry : matches) {
+      results.add(mEntries[entry]);
+    }
+    return results;
+  }
+
+  /** Splits {@code text} into lowercase tokens of letters and digits. */
+  static String[] tokenize(String text) {
+    if (text == null) {
+      return new String[0];
+    }
+    List<String> tokens = new ArrayList<>();
+    String lowercase = text.toLowerCase(Locale.getDefault());
+    int start = -1;
+    for (int i = 0; i <= lowercase.length(); i++) {
+      boolean tokenChar = i < lowercase.length() && Character.isLetterOrDigit(lowercase.charAt(i));
+      if (tokenChar && start < 0) {
+        start = i;
+      } else if (!tokenChar && start >= 0) {
+        tokens.add(lowercase.substring(start, i));
+        start = -1;
+      }
+    }
+    return tokens.toArray(new String[0]);
+  }
+
+  private void addTokens(int entry, int field, String text) {
+    String[] tokens = tokenize(text);
+    for (int position = 0; position < tokens.length; position++) {
+      Node node = mRoot;
+      String token = tokens[position];
+      for (int i = 0; i < token.length(); i++) {
+        node = node.getOrAddChild(token.charAt(i));
+      }
+      node.addPosting(
+          (entry << ENTRY_SHIFT) | (field << FIELD_SHIFT) | Math.min(position, MAX_POSITION));
+    }
+  }
+
+  private static float score(int posting, float matchScore) {
+    int field = (posting >> FIELD_SHIFT) & 1;
+    int position = posting & MAX_POSITION;
+    float fieldWeight = field == FIELD_TITLE ? WEIGHT_TITLE : WEIGHT_KEY;
+    return matchScore
+        * fieldWeight
+        * (1f - POSITION_PENALTY * Math.min(position, MAX_POSITION_PENALTIES));
+  }
+
+  /** State of the search of a single query token. */
+  private final class Search {
+    private String mToken;
+    private int mMaxDistance;
+    private float[] mScores;
+    private int mVisited;
+
+    void run(String token, float[] scores) {
+      mToken = token;
+      mMaxDistance = token.length() >= MIN_FUZZY_LENGTH ? MAX_DISTANCE : 0;
+      mScores = scores;
+      // Row of the edit distances between the prefixes of the token and the empty string.
+      int[] row = new int[token.length() + 1];
+      for (int i = 0; i < row.length; i++) {
+        row[i] = i;
+      }
+      visitChildren(mRoot, row, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Visits the children of {@code node}, whose path is at the edit distances in {@code row} from
+     * the prefixes of the token. {@code prefixDistance} is the smallest distance between the token
+     * and the path of {@code node} or one of its ancestors, so any token below it starts with a
+     * string within that distance.
+     */
+    private void visitChildren(Node node, int[] row, int prefixDistance) {
+      for (int child = 0; child < node.mChildCount; child++) {
+        if (++mVisited % CANCELLATION_CHECK_INTERVAL == 0 && Thread.interrupted()) {
+          throw new CancellationException();
+        }
+        char c = node.mChars[child];
+        int[] childRow = new int[row.length];
+        childRow[0] = row[0] + 1;
+        int minDistance = childRow[0];
+        for (int i = 1; i < row.length; i++) {
+          int substitution = row[i - 1] + (mToken.charAt(i - 1) == c ? 0 : 1);
+          childRow[i] = Math.min(Math.min(row[i] + 1, childRow[i - 1] + 1), substitution);
+          minDistance = Math.min(minDistance, childRow[i]);
+        }
+        int distance = childRow[row.length - 1];
+        int childPrefixDistance = Math.min(prefixDistance, distance);
+        Node childNode = node.mChildren[child];
+        if (childPrefixDistance <= mMaxDistance) {
+          float matchScore;
+          if (distance == 0) {
+            matchScore = SCORE_EXACT;
+          } else if (childPrefixDistance == 0) {
+            matchScore = SCORE_PREFIX;
+          } else {
+            matchScore = SCORE_FUZZY;
+          }
+          for (int i = 0; i < childNode.mPostingCount; i++) {
+            int posting = childNode.mPostings[i];
+            int entry = posting >>> ENTRY_SHIFT;
+            mScores[entry] = Math.max(mScores[entry], score(posting, matchScore));
+          }
+        }
+        if (childPrefixDistance <= mMaxDistance || minDistance <= mMaxDistance) {
+          visitChildren(childNode, childRow, childPrefixDistance);
+        }
+      }
+    }
+  }
+
+  private static final class Node {
+    private char[] mChars = new char[0];
+    private Node[] mChildren = new Node[0];
+    private int mChildCount;
+    private int[] mPostings = new int[0];
+    private int mPostingCount;
+
+    Node getOrAddChild(char c) {
+      for (int i = 0; i < mChildCount; i++) {
+        if (mChars[i] == c) {
+          return mChildren[i];
+        }
+      }
+      if (mChildCount == mChars.length) {
+        int capacity = Math.max(2, mChildCount * 2);
+        mChars = Arrays.copyOf(mChars, capacity);
+        mChildren = Arrays.copyOf(mChildren, capacity);
+      }
+      Node child = new Node();
+      mChars[mChildCount] = c;
+      mChildren[mChildCount] = child;
+      mChildCount++;
+      return child;
+    }
+
+    void addPosting(int posting) {
+      if (mPostingCount == mPostings.length) {
+        mPostings = Arrays.copyOf(mPostings, Math.max(2, mPostingCount * 2));
+      }
+      mPostings[mPostingCount++] = posting;
+    }
+  }
+}
@@ -1,8 +1,9 @@
 package com.afwsamples.testdpc.search;
 
 import android.app.Fragment;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -18,12 +19,27 @@ import com.afwsamples.testdpc.R;
 import com.afwsamples.testdpc.common.BaseSearchablePolicyPreferenceFragment;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** Fragment that processes the search query and shows the result. */
 public class PolicySearchFragment extends Fragment
     implements SearchItemAdapter.OnItemClickListener {
   private static final String TAG = "PolicySearchFragment";
   private static final int MIN_LENGTH_TO_SEARCH = 3;
+  // Delay after the last keystroke before searching, so typing doesn't trigger a search per key.
+  private static final long SEARCH_DEBOUNCE_MS = 150;
+
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mPendingSearch = () -> doSearchAsync(mPendingQuery);
+  private String mPendingQuery;
+  // Search in progress, cancelled when a newer one is started.
+  private Future<?> mSearchFuture;
+  // Incremented on the main thread for each search, to tell whether results are still wanted.
+  private int mSearchGeneration;
 
   private SearchView mSearchView;
   private PreferenceIndexSqliteOpenHelper mSqliteOpenHelper;
@@ -68,14 +84,17 @@ public class PolicySearchFragment extends Fragment
         new SearchView.OnQueryTextListener() {
           @Override
           public boolean onQueryTextSubmit(String s) {
+            mHandler.removeCallbacks(mPendingSearch);
             doSearchAsync(s);
             return true;
           }
 
           @Override
           public boolean onQueryTextChange(String s) {
+            mHandler.removeCallbacks(mPendingSearch);
             if (s != null && s.length() >= MIN_LENGTH_TO_SEARCH) {
-              doSearchAsync(s);
+              mPendingQuery = s;
+              mHandler.postDelayed(mPendingSearch, SEARCH_DEBOUNCE_MS);
               return true;
             }
             return false;
@@ -96,19 +115,37 @@ public class PolicySearchFragment extends Fragment
         });
   }
 
-  private void doSearchAsync(final String query) {
-    new AsyncTask<Void, Void, List<PreferenceIndex>>() {
-      @Override
-      protected List<PreferenceIndex> doInBackground(Void... voids) {
-        return mSqliteOpenHelper.lookup(query, mAvailableFragments);
-      }
+  @Override
+  public void onDestroy() {
+    mHandler.removeCallbacks(mPendingSearch);
+    mExecutor.shutdownNow();
+    super.onDestroy();
+  }
 
-      @Override
-      protected void onPostExecute(List<PreferenceIndex> result) {
-        mAdapter.setSearchResult(result);
-        mAdapter.notifyDataSetChanged();
-      }
-    }.execute();
+  private void doSearchAsync(final String query) {
+    if (mSearchFuture != null) {
+      mSearchFuture.cancel(/* mayInterruptIfRunning= */ true);
+    }
+    final int generation = ++mSearchGeneration;
+    mSearchFuture =
+        mExecutor.submit(
+            () -> {
+              List<PreferenceIndex> result;
+              try {
+                result = mSqliteOpenHelper.getSearchEngine().search(query, mAvailableFragments);
+              } catch (CancellationException e) {
+                return;
+              }
+              mHandler.post(
+                  () -> {
+                    // Drop results of searches superseded after they completed.
+                    if (generation != mSearchGeneration || isDetached()) {
+                      return;
+                    }
+                    mAdapter.setSearchResult(result);
+                    mAdapter.notifyDataSetChanged();
+                  });
+            });
   }
 
   @Override
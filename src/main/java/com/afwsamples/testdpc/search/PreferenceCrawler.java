@@ -1,33 +1,215 @@
 package com.afwsamples.testdpc.search;
 
 import android.content.Context;
-import android.util.TimingLogger;
+import android.os.SystemClock;
+import android.util.Log;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Crawl indexable fragments to index all their preferences. Run adb shell setprop
- * log.tag.PreferenceCrawler_Timer VERBOSE to see timing log. At the time of writing, nexus 5x
- * spends 27ms to finish crawling.
+ * Crawl indexable fragments to index all their preferences.
+ *
+ * <p>Fragments are crawled in parallel on a bounded pool of workers, and a fragment is only indexed
+ * again when its content hash differs from the one of the previous crawl.
+ *
+ * <p>The crawl time is logged as metrics with one {@code key=value} line per crawl. Run adb shell
+ * setprop log.tag.PreferenceCrawler_Timer VERBOSE to also see one line per fragment.
  */
 public class PreferenceCrawler {
-  private Context mContext;
   private static final String TAG = "PreferenceCrawler_Timer";
+  private static final int MAX_WORKERS = 4;
+
+  private final Context mContext;
 
   public PreferenceCrawler(Context context) {
     mContext = context;
   }
 
-  public List<PreferenceIndex> doCrawl() {
-    final TimingLogger logger = new TimingLogger(TAG, "doCrawl");
-    List<PreferenceIndex> indexablePreferences = new ArrayList<>();
+  /** Indexes all the fragments. */
+  public CrawlResult doCrawl() {
+    return doCrawl(Collections.emptyMap());
+  }
+
+  /**
+   * Indexes the fragments whose content changed.
+   *
+   * @param previousHashes content hashes of the previous crawl, keyed by fragment class name
+   */
+  public CrawlResult doCrawl(Map<String, String> previousHashes) {
+    final long start = SystemClock.elapsedRealtime();
     List<BaseIndexableFragment> indexableFragments = IndexableFragments.values();
-    for (BaseIndexableFragment indexableFragment : indexableFragments) {
-      indexablePreferences.addAll(indexableFragment.index(mContext));
-      logger.addSplit("processed " + indexableFragment.fragmentName);
+    int workers =
+        Math.max(
+            1,
+            Math.min(
+                indexableFragments.size(),
+                Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors())));
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    List<FragmentResult> fragmentResults = new ArrayList<>(indexableFragments.size());
+    try {
+      List<Future<FragmentResult>> futures = new ArrayList<>(indexableFragments.size());
+      for (BaseIndexableFragment indexableFragment : indexableFragments) {
+        String previousHash = previousHashes.get(indexableFragment.fragmentName);
+        futures.add(executor.submit(() -> crawl(indexableFragment, previousHash)));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        String fragmentName = indexableFragments.get(i).fragmentName;
+        try {
+          fragmentResults.add(futures.get(i).get());
+        } catch (ExecutionException e) {
+          Log.e(TAG, "Error crawling " + fragmentName, e);
+          fragmentResults.add(FragmentResult.failed(fragmentName));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          fragmentResults.add(FragmentResult.failed(fragmentName));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    CrawlResult result =
+        new CrawlResult(fragmentResults, workers, SystemClock.elapsedRealtime() - start);
+    result.logMetrics();
+    return result;
+  }
+
+  private FragmentResult crawl(BaseIndexableFragment indexableFragment, String previousHash) {
+    long start = SystemClock.elapsedRealtime();
+    String contentHash = indexableFragment.getContentHash(mContext);
+    long hashMillis = SystemClock.elapsedRealtime() - start;
+    if (contentHash != null && contentHash.equals(previousHash)) {
+      return new FragmentResult(
+          indexableFragment.fragmentName, contentHash, null, hashMillis, /* indexMillis= */ 0);
+    }
+    start = SystemClock.elapsedRealtime();
+    List<PreferenceIndex> preferences = indexableFragment.index(mContext);
+    return new FragmentResult(
+        indexableFragment.fragmentName,
+        contentHash,
+        preferences,
+        hashMillis,
+        SystemClock.elapsedRealtime() - start);
+  }
+
+  /** Outcome of crawling a single fragment. */
+  public static class FragmentResult {
+    /** Class of the crawled fragment. */
+    public final String fragmentName;
+    /** Content hash of the fragment, or {@code null} if it could not be computed. */
+    public final String contentHash;
+    /**
+     * Preferences of the fragment, or {@code null} if its previously indexed preferences are still
+     * up to date (or could not be crawled, in which case they are kept until the next crawl).
+     */
+    public final List<PreferenceIndex> preferences;
+
+    public final long hashMillis;
+    public final long indexMillis;
+    /** Whether the fragment could not be crawled, and must be crawled again. */
+    public final boolean failed;
+
+    FragmentResult(
+        String fragmentName,
+        String contentHash,
+        List<PreferenceIndex> preferences,
+        long hashMillis,
+        long indexMillis) {
+      this(fragmentName, contentHash, preferences, hashMillis, indexMillis, false);
+    }
+
+    private FragmentResult(
+        String fragmentName,
+        String contentHash,
+        List<PreferenceIndex> preferences,
+        long hashMillis,
+        long indexMillis,
+        boolean failed) {
+      this.fragmentName = fragmentName;
+      this.contentHash = contentHash;
+      this.preferences = preferences;
+      this.hashMillis = hashMillis;
+      this.indexMillis = indexMillis;
+      this.failed = failed;
+    }
+
+    static FragmentResult failed(String fragmentName) {
+      return new FragmentResult(fragmentName, null, null, 0, 0, true);
+    }
+
+    public boolean isReindexed() {
+      return preferences != null;
+    }
+  }
+
+  /** Outcome of a crawl, with its metrics. */
+  public static class CrawlResult {
+    public final List<FragmentResult> fragmentResults;
+    public final int workers;
+    public final long elapsedMillis;
+
+    CrawlResult(List<FragmentResult> fragmentResults, int workers, long elapsedMillis) {
+      this.fragmentResults = fragmentResults;
+      this.workers = workers;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    public int getFailedCount() {
+      int count = 0;
+      for (FragmentResult fragmentResult : fragmentResults) {
+        if (fragmentResult.failed) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    public int getReindexedCount() {
+      int count = 0;
+      for (FragmentResult fragmentResult : fragmentResults) {
+        if (fragmentResult.isReindexed()) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    private void logMetrics() {
+      int preferenceCount = 0;
+      boolean verbose = Log.isLoggable(TAG, Log.VERBOSE);
+      for (FragmentResult fragmentResult : fragmentResults) {
+        int fragmentPreferenceCount =
+            fragmentResult.isReindexed() ? fragmentResult.preferences.size() : 0;
+        preferenceCount += fragmentPreferenceCount;
+        if (verbose) {
+          Log.v(
+              TAG,
+              String.format(
+                  Locale.US,
+                  "crawl_fragment fragment=%s reindexed=%b preferences=%d hash_ms=%d index_ms=%d",
+                  fragmentResult.fragmentName,
+                  fragmentResult.isReindexed(),
+                  fragmentPreferenceCount,
+                  fragmentResult.hashMillis,
+                  fragmentResult.indexMillis));
+        }
+      }
+      Log.i(
+          TAG,
+          String.format(
+              Locale.US,
+              "crawl fragments=%d reindexed=%d preferences=%d workers=%d elapsed_ms=%d",
+              fragmentResults.size(),
+              getReindexedCount(),
+              preferenceCount,
+              workers,
+              elapsedMillis));
     }
-    logger.addSplit("Finish crawling");
-    logger.dumpToLog();
-    return indexablePreferences;
   }
 }
@@ -2,18 +2,43 @@ package com.afwsamples.testdpc.search;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.core.content.pm.PackageInfoCompat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-/** Manage the preference index database. */
-// TODO(b/203757850): Restore cached search index in release
+/**
+ * Manage the preference index database.
+ *
+ * <p>The index is persisted across process restarts, together with the app version code, locale
+ * and SDK level it was built for, and only rebuilt when one of them changes. Rebuilds are
+ * incremental: the content hash of each indexed fragment is stored too, and only the fragments
+ * whose hash changed are indexed again.
+ *
+ * <p>The version is only recorded once every fragment was indexed. Fragments that fail to be
+ * crawled keep their previous preferences and lose their hash, so they are crawled again: on the
+ * next start, or after {@link #RETRY_INTERVAL_MILLIS} in the same process.
+ */
 public class PreferenceIndexSqliteOpenHelper extends SQLiteOpenHelper {
+  private static final String TAG = "PreferenceIndex";
   private static final String DATABASE_NAME = "preference_index.db";
-  private static final int DATABASE_VERSION = 1;
+  private static final int DATABASE_VERSION = 4;
+  // Minimum time between two crawls while some fragments fail to be indexed.
+  private static final long RETRY_INTERVAL_MILLIS = 60 * 1000;
+  // Full text search table of previous versions, replaced by PolicySearchEngine.
+  private static final String OBSOLETE_FTS_TABLE_NAME = "preference_index_fts";
   private static final String CREATE_TABLE_PREFERENCE_INDEX =
       "CREATE TABLE "
           + PreferenceIndexTable.TABLE_NAME
@@ -27,41 +52,38 @@ public class PreferenceIndexSqliteOpenHelper extends SQLiteOpenHelper {
           + PreferenceIndexTable.FRAGMENT_CLASS
           + " TEXT NOT NULL"
           + ");";
-  private static final String CREATE_FTS_TABLE =
-      "CREATE VIRTUAL TABLE "
-          + PreferenceIndexFtsTable.TABLE_NAME
-          + " USING fts4 (content='"
-          + PreferenceIndexTable.TABLE_NAME
-          + "', "
-          + PreferenceIndexTable.TITLE
+  private static final String CREATE_TABLE_INDEX_METADATA =
+      "CREATE TABLE "
+          + IndexMetadataTable.TABLE_NAME
+          + " ("
+          + IndexMetadataTable.INDEX_VERSION
+          + " TEXT NOT NULL"
+          + ");";
+  private static final String CREATE_TABLE_FRAGMENT_HASHES =
+      "CREATE TABLE "
+          + FragmentHashTable.TABLE_NAME
+          + " ("
+          + FragmentHashTable.FRAGMENT_CLASS
+          + " TEXT PRIMARY KEY,"
+          + FragmentHashTable.CONTENT_HASH
+          + " TEXT NOT NULL"
           + ");";
-  private static final String REBUILD_FTS_SQL =
-      "INSERT INTO "
-          + PreferenceIndexFtsTable.TABLE_NAME
-          + "("
-          + PreferenceIndexFtsTable.TABLE_NAME
-          + ") VALUES('rebuild')";
-  private static final String LOOKUP_SQL =
-      "SELECT * FROM "
-          + PreferenceIndexTable.TABLE_NAME
-          + " WHERE _id IN (SELECT "
-          + PreferenceIndexFtsTable.DOC_ID
-          + " FROM "
-          + PreferenceIndexFtsTable.TABLE_NAME
-          + " WHERE "
-          + PreferenceIndexFtsTable.TABLE_NAME
-          + " MATCH ?) AND "
-          + PreferenceIndexTable.FRAGMENT_CLASS
-          + " IN(";
-
   private static PreferenceIndexSqliteOpenHelper sInstance;
-  private static boolean sIndexed = false;
 
-  private Context mContext;
+  private final Context mContext;
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final long mVersionCode;
+
+  // Version of the index known to be in the database, to skip the metadata query once checked.
+  private String mIndexedVersion;
+  // Time of the last crawl in which some fragments failed, or 0.
+  private long mFailedCrawlMillis;
+  private PolicySearchEngine mSearchEngine;
 
   private PreferenceIndexSqliteOpenHelper(Context context) {
     super(context, DATABASE_NAME, null, DATABASE_VERSION);
     mContext = context.getApplicationContext();
+    mVersionCode = getVersionCode(mContext);
   }
 
   public static synchronized PreferenceIndexSqliteOpenHelper getInstance(Context context) {
@@ -74,28 +96,68 @@ public class PreferenceIndexSqliteOpenHelper extends SQLiteOpenHelper {
   @Override
   public void onCreate(SQLiteDatabase db) {
     db.execSQL(CREATE_TABLE_PREFERENCE_INDEX);
-    db.execSQL(CREATE_FTS_TABLE);
+    db.execSQL(CREATE_TABLE_INDEX_METADATA);
+    db.execSQL(CREATE_TABLE_FRAGMENT_HASHES);
   }
 
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
-
-  private void clearDatabase() {
-    getWritableDatabase().delete(PreferenceIndexTable.TABLE_NAME, null, null);
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // The index can always be crawled again, so just start from scratch.
+    db.execSQL("DROP TABLE IF EXISTS " + OBSOLETE_FTS_TABLE_NAME);
+    db.execSQL("DROP TABLE IF EXISTS " + PreferenceIndexTable.TABLE_NAME);
+    db.execSQL("DROP TABLE IF EXISTS " + IndexMetadataTable.TABLE_NAME);
+    db.execSQL("DROP TABLE IF EXISTS " + FragmentHashTable.TABLE_NAME);
+    onCreate(db);
   }
 
-  public void insertIndexablePreferences(List<PreferenceIndex> preferenceIndexList) {
+  /**
+   * Applies the result of a crawl to the index, recording the version it was crawled for if no
+   * fragment failed. Done in a single transaction so a partially written index is never visible.
+   */
+  private void applyCrawlResult(PreferenceCrawler.CrawlResult result, String indexVersion) {
     SQLiteDatabase db = getWritableDatabase();
     db.beginTransaction();
     try {
-      for (PreferenceIndex preferenceIndex : preferenceIndexList) {
-        db.insert(
+      List<String> fragmentClasses = new ArrayList<>();
+      for (PreferenceCrawler.FragmentResult fragmentResult : result.fragmentResults) {
+        fragmentClasses.add(fragmentResult.fragmentName);
+        if (!fragmentResult.isReindexed()) {
+          continue;
+        }
+        db.delete(
             PreferenceIndexTable.TABLE_NAME,
-            null,
-            PreferenceIndexTable.toContentValues(preferenceIndex));
+            PreferenceIndexTable.FRAGMENT_CLASS + " = ?",
+            new String[] {fragmentResult.fragmentName});
+        for (PreferenceIndex preferenceIndex : fragmentResult.preferences) {
+          db.insert(
+              PreferenceIndexTable.TABLE_NAME,
+              null,
+              PreferenceIndexTable.toContentValues(preferenceIndex));
+        }
+      }
+      // Drop the preferences of fragments that are not indexable anymore.
+      db.delete(
+          PreferenceIndexTable.TABLE_NAME,
+          PreferenceIndexTable.FRAGMENT_CLASS + " NOT IN " + buildInClause(fragmentClasses),
+          null);
+
+      db.delete(FragmentHashTable.TABLE_NAME, null, null);
+      for (PreferenceCrawler.FragmentResult fragmentResult : result.fragmentResults) {
+        if (fragmentResult.contentHash == null) {
+          continue;
+        }
+        ContentValues hash = new ContentValues();
+        hash.put(FragmentHashTable.FRAGMENT_CLASS, fragmentResult.fragmentName);
+        hash.put(FragmentHashTable.CONTENT_HASH, fragmentResult.contentHash);
+        db.insert(FragmentHashTable.TABLE_NAME, null, hash);
+      }
+
+      db.delete(IndexMetadataTable.TABLE_NAME, null, null);
+      if (result.getFailedCount() == 0) {
+        ContentValues metadata = new ContentValues();
+        metadata.put(IndexMetadataTable.INDEX_VERSION, indexVersion);
+        db.insert(IndexMetadataTable.TABLE_NAME, null, metadata);
       }
-      // Rebuild the fts table.
-      db.execSQL(REBUILD_FTS_SQL);
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -103,56 +165,150 @@ public class PreferenceIndexSqliteOpenHelper extends SQLiteOpenHelper {
   }
 
   /**
-   * @param query the words to lookup
-   * @param targetFragments the fragments you are searching for
-   * @return the list of preferences that match the query
+   * Checks the index, and rebuilds it if it is out of date, on a background thread. Meant to be
+   * called at startup so the first search does not have to wait for the crawl.
    */
-  public List<PreferenceIndex> lookup(String query, List<String> targetFragments) {
-    updateIndexIfNeeded();
-    SQLiteDatabase db = getReadableDatabase();
-    Cursor cursor = null;
+  public void updateIndexInBackground() {
+    mExecutor.execute(this::getSearchEngine);
+  }
+
+  /**
+   * Returns the search engine built from the up to date index, building it (and the index) first
+   * if needed. Should not be called on the main thread.
+   */
+  public synchronized PolicySearchEngine getSearchEngine() {
+    if (updateIndexIfNeeded() || mSearchEngine == null) {
+      mSearchEngine = new PolicySearchEngine(getAllPreferences());
+    }
+    return mSearchEngine;
+  }
+
+  private List<PreferenceIndex> getAllPreferences() {
+    List<PreferenceIndex> preferenceIndexList = new ArrayList<>();
+    Cursor cursor =
+        getReadableDatabase()
+            .query(PreferenceIndexTable.TABLE_NAME, null, null, null, null, null, null);
     try {
-      String[] selectionArgs = {query + "*"};
-      cursor = db.rawQuery(buildLookupSQL(targetFragments), selectionArgs);
-      List<PreferenceIndex> preferenceIndexList = new ArrayList<>();
       while (cursor.moveToNext()) {
         preferenceIndexList.add(PreferenceIndexTable.fromCursor(cursor));
       }
-      return preferenceIndexList;
     } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
+      cursor.close();
     }
+    return preferenceIndexList;
   }
 
-  private String buildLookupSQL(List<String> targetFragments) {
-    StringBuilder stringBuilder = new StringBuilder(LOOKUP_SQL);
-    for (String fragment : targetFragments) {
-      DatabaseUtils.appendEscapedSQLString(stringBuilder, fragment);
+  private static String buildInClause(List<String> values) {
+    StringBuilder stringBuilder = new StringBuilder("(");
+    for (String value : values) {
+      DatabaseUtils.appendEscapedSQLString(stringBuilder, value);
       stringBuilder.append(",");
     }
-    stringBuilder.setLength(stringBuilder.length() - 1); // Strip the last comma
+    if (!values.isEmpty()) {
+      stringBuilder.setLength(stringBuilder.length() - 1); // Strip the last comma
+    }
     stringBuilder.append(")");
     return stringBuilder.toString();
   }
 
-  private void updateIndexIfNeeded() {
-    if (shouldUpdateIndex()) {
-      updateIndex();
-      sIndexed = true;
+  /**
+   * Crawls the fragments again if the index is out of date or incomplete, and returns whether the
+   * index changed.
+   */
+  // Synchronized so a search issued during a background rebuild waits for it instead of crawling
+  // again.
+  private synchronized boolean updateIndexIfNeeded() {
+    String indexVersion = getIndexVersion();
+    if (indexVersion.equals(mIndexedVersion)) {
+      return false;
+    }
+    if (indexVersion.equals(getStoredIndexVersion())) {
+      mIndexedVersion = indexVersion;
+      return false;
+    }
+    long now = SystemClock.elapsedRealtime();
+    if (mFailedCrawlMillis != 0 && now - mFailedCrawlMillis < RETRY_INTERVAL_MILLIS) {
+      return false;
+    }
+    Log.i(TAG, "Rebuilding index for " + indexVersion);
+    if (updateIndex(indexVersion)) {
+      mIndexedVersion = indexVersion;
+      mFailedCrawlMillis = 0;
+    } else {
+      mFailedCrawlMillis = now;
+    }
+    return true;
+  }
+
+  /** Returns whether all the fragments were indexed. */
+  private boolean updateIndex(String indexVersion) {
+    PreferenceCrawler preferenceCrawler = new PreferenceCrawler(mContext);
+    PreferenceCrawler.CrawlResult result = preferenceCrawler.doCrawl(getFragmentHashes());
+    applyCrawlResult(result, indexVersion);
+    if (result.getFailedCount() > 0) {
+      Log.w(TAG, result.getFailedCount() + " fragments could not be indexed, will retry");
+      return false;
     }
+    return true;
   }
 
-  private boolean shouldUpdateIndex() {
-    return !sIndexed;
+  private Map<String, String> getFragmentHashes() {
+    Map<String, String> hashes = new HashMap<>();
+    Cursor cursor =
+        getReadableDatabase()
+            .query(
+                FragmentHashTable.TABLE_NAME,
+                new String[] {FragmentHashTable.FRAGMENT_CLASS, FragmentHashTable.CONTENT_HASH},
+                null,
+                null,
+                null,
+                null,
+                null);
+    try {
+      while (cursor.moveToNext()) {
+        hashes.put(cursor.getString(0), cursor.getString(1));
+      }
+    } finally {
+      cursor.close();
+    }
+    return hashes;
   }
 
-  private void updateIndex() {
-    clearDatabase();
-    PreferenceCrawler preferenceCrawler = new PreferenceCrawler(mContext);
-    List<PreferenceIndex> preferenceIndexList = preferenceCrawler.doCrawl();
-    insertIndexablePreferences(preferenceIndexList);
+  /**
+   * Returns the version the index must have been built for: preference titles depend on the app
+   * resources, the locale they are resolved for, and the SDK level (which decides what is
+   * indexable).
+   */
+  private String getIndexVersion() {
+    return mVersionCode + "/" + Locale.getDefault().toLanguageTag() + "/" + Build.VERSION.SDK_INT;
+  }
+
+  private String getStoredIndexVersion() {
+    Cursor cursor =
+        getReadableDatabase()
+            .query(
+                IndexMetadataTable.TABLE_NAME,
+                new String[] {IndexMetadataTable.INDEX_VERSION},
+                null,
+                null,
+                null,
+                null,
+                null);
+    try {
+      return cursor.moveToFirst() ? cursor.getString(0) : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static long getVersionCode(Context context) {
+    try {
+      return PackageInfoCompat.getLongVersionCode(
+          context.getPackageManager().getPackageInfo(context.getPackageName(), 0));
+    } catch (NameNotFoundException e) {
+      Log.e(TAG, "Could not find own package", e);
+      return 0;
+    }
   }
 
   private static class PreferenceIndexTable {
@@ -185,13 +341,16 @@ public class PreferenceIndexSqliteOpenHelper extends SQLiteOpenHelper {
     }
   }
 
-  /**
-   * It is full text search table. We indexed {@link PreferenceIndexTable#TITLE} so that we can have
-   * full text search on it.
-   */
-  private static class PreferenceIndexFtsTable {
-    private static final String TABLE_NAME = "preference_index_fts";
-    /** It is the predefined column represents the id column in the table being indexed. */
-    private static final String DOC_ID = "docid";
+  /** Content hash of each indexed fragment, as of the last crawl. */
+  private static class FragmentHashTable {
+    private static final String TABLE_NAME = "fragment_hashes";
+    private static final String FRAGMENT_CLASS = "fragment_class";
+    private static final String CONTENT_HASH = "content_hash";
+  }
+
+  /** Single row table recording which version the index was built for. */
+  private static class IndexMetadataTable {
+    private static final String TABLE_NAME = "index_metadata";
+    private static final String INDEX_VERSION = "index_version";
   }
 }
@@ -3,6 +3,7 @@ package com.afwsamples.testdpc.search;
 import android.content.Context;
 import com.afwsamples.testdpc.policy.UserRestriction;
 import com.afwsamples.testdpc.policy.UserRestrictionsDisplayFragment;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,4 +22,14 @@ public class UserRestrictionIndexableFragment extends BaseIndexableFragment {
     }
     return preferenceIndices;
   }
+
+  @Override
+  public String getContentHash(Context context) {
+    MessageDigest digest = newDigest();
+    for (UserRestriction userRestriction : UserRestriction.ALL_USER_RESTRICTIONS) {
+      update(digest, userRestriction.key);
+      update(digest, context.getString(userRestriction.titleResId));
+    }
+    return toHexString(digest);
+  }
 }
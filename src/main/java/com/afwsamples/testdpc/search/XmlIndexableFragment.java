@@ -1,6 +1,8 @@
 package com.afwsamples.testdpc.search;
 
 import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -8,6 +10,7 @@ import android.util.Xml;
 import androidx.annotation.XmlRes;
 import com.afwsamples.testdpc.common.BaseSearchablePolicyPreferenceFragment;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 import org.xmlpull.v1.XmlPullParser;
@@ -17,6 +20,7 @@ public class XmlIndexableFragment extends BaseIndexableFragment {
   private static final String NODE_NAME_PREFERENCE_SCREEN = "PreferenceScreen";
   private static final String NODE_NAME_PREFERENCE_CATEGORY = "PreferenceCategory";
   private static final String TAG = "PreferenceCrawler_Timer";
+  private static final String RESOURCE_TYPE_STRING = "string";
 
   public @XmlRes int xmlRes;
 
@@ -73,4 +77,41 @@ public class XmlIndexableFragment extends BaseIndexableFragment {
     }
     return indexablePreferences;
   }
+
+  /**
+   * Hashes the raw attributes of the xml file, resolving referenced strings as titles come from
+   * them, without the cost of resolving styled attributes done by {@link #index(Context)}.
+   */
+  @Override
+  public String getContentHash(Context context) {
+    MessageDigest digest = newDigest();
+    Resources resources = context.getResources();
+    XmlResourceParser parser = resources.getXml(xmlRes);
+    try {
+      int type;
+      while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+        if (type != XmlPullParser.START_TAG) {
+          continue;
+        }
+        update(digest, parser.getName());
+        final AttributeSet attrs = Xml.asAttributeSet(parser);
+        for (int i = 0; i < attrs.getAttributeCount(); i++) {
+          update(digest, attrs.getAttributeName(i));
+          update(digest, attrs.getAttributeValue(i));
+          int resourceId = attrs.getAttributeResourceValue(i, 0);
+          if (resourceId != 0
+              && RESOURCE_TYPE_STRING.equals(resources.getResourceTypeName(resourceId))) {
+            update(digest, resources.getText(resourceId));
+          }
+        }
+      }
+    } catch (XmlPullParserException | IOException | Resources.NotFoundException ex) {
+      Log.e(TAG, "Error in hashing a preference xml file", ex);
+      // Never matches a stored hash, so the file is always indexed again.
+      return null;
+    } finally {
+      parser.close();
+    }
+    return toHexString(digest);
+  }
 }
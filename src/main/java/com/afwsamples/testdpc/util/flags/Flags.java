@@ -35,6 +35,8 @@ import java.util.Set;
  * command-line.
  */
 public final class Flags {
+  private static final String NAMED_ARG_PREFIX = "--";
+
   private static class InvalidCommandInvocationException extends RuntimeException {
     private final String message;
 
@@ -416,178 +418,264 @@ public final class Flags {
     }
   }
 
-  private static final class TypeParser {
-    private final Map<Class<?>, ArgumentParser<?>> parsers;
+  private static RuntimeException invalidValueException(Param<?> param, String message) {
+    if (message != null) {
+      return commandInvocationException(
+          "Parameter '%s' could not be parsed as '%s'.\n%s",
+          param.name(), param.dataType().getSimpleName(), message);
+    }
+
+    return commandInvocationException(
+        "Parameter '%s' could not be parsed as '%s'.", param.name(), param.dataType().getSimpleName());
+  }
+
+  /**
+   * Parses the values of a single parameter. Resolved once per parameter when a {@link
+   * CommandPlan} is compiled, so that parsing does not look up the parser for each value.
+   */
+  private abstract static class SlotParser {
+    abstract Object parse(Param<?> param, String value);
+  }
+
+  /** Delegates to a registered {@link ArgumentParser}, used for all non-specialized types. */
+  private static final class RegisteredSlotParser<T> extends SlotParser {
+    private final ArgumentParser<T> parser;
 
-    private TypeParser(Map<Class<?>, ArgumentParser<?>> parsers) {
-      this.parsers = parsers;
+    private RegisteredSlotParser(ArgumentParser<T> parser) {
+      this.parser = parser;
     }
 
-    // Forced by type parameters for external calls and validated by tests for internal calls
-    @SuppressWarnings("unchecked")
-    private <T> T parse(Param<T> param, String value) {
-      ArgumentParser<T> parser = (ArgumentParser<T>) parsers.get(param.dataType());
+    @Override
+    Object parse(Param<?> param, String value) {
       Validator.ValidationResult<T> result = parser.parserFunc().apply(value, parser.validator());
 
       if (!result.isValid()) {
-        if (result.hasMessage()) {
-          throw commandInvocationException(
-              "Parameter '%s' could not be parsed as '%s'.\n%s",
-              param.name(), param.dataType().getSimpleName(), result.message());
-        }
-
-        throw commandInvocationException(
-            "Parameter '%s' could not be parsed as '%s'.",
-            param.name(), param.dataType().getSimpleName());
+        throw invalidValueException(param, result.message());
       }
 
       return result.value();
     }
   }
 
-  private static final class CommandLineParser {
-    private final Map<Param<?>, Object> parsedParams = new HashMap<>();
+  // Specialized parsers for the most common primitive types, which skip the validator and its
+  // result allocation. Only used while the default parser for the type has not been overridden.
+  private static final SlotParser INT_SLOT_PARSER =
+      new SlotParser() {
+        @Override
+        Object parse(Param<?> param, String value) {
+          try {
+            return Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            throw invalidValueException(param, null);
+          }
+        }
+      };
 
-    private final Set<Param<?>> parsedOrdinalParams = new HashSet<>();
+  private static final SlotParser LONG_SLOT_PARSER =
+      new SlotParser() {
+        @Override
+        Object parse(Param<?> param, String value) {
+          try {
+            return Long.parseLong(value);
+          } catch (NumberFormatException e) {
+            throw invalidValueException(param, null);
+          }
+        }
+      };
+
+  private static final SlotParser BOOLEAN_SLOT_PARSER =
+      new SlotParser() {
+        @Override
+        Object parse(Param<?> param, String value) {
+          // Same result as comparing the lowercase value, as "true" and "false" have no
+          // locale-sensitive letters.
+          if (value.equalsIgnoreCase("true")) {
+            return Boolean.TRUE;
+          }
+
+          if (value.equalsIgnoreCase("false")) {
+            return Boolean.FALSE;
+          }
 
-    private final TypeParser typeParser;
+          throw invalidValueException(param, null);
+        }
+      };
 
-    private final String[] args;
+  private static final Map<Class<?>, SlotParser> SPECIALIZED_SLOT_PARSERS = new HashMap<>();
 
-    private int currentIndex = 1;
+  static {
+    SPECIALIZED_SLOT_PARSERS.put(int.class, INT_SLOT_PARSER);
+    SPECIALIZED_SLOT_PARSERS.put(Integer.class, INT_SLOT_PARSER);
+    SPECIALIZED_SLOT_PARSERS.put(long.class, LONG_SLOT_PARSER);
+    SPECIALIZED_SLOT_PARSERS.put(Long.class, LONG_SLOT_PARSER);
+    SPECIALIZED_SLOT_PARSERS.put(boolean.class, BOOLEAN_SLOT_PARSER);
+    SPECIALIZED_SLOT_PARSERS.put(Boolean.class, BOOLEAN_SLOT_PARSER);
+  }
 
-    private CommandLineParser(TypeParser typeParser, String[] args) {
-      this.typeParser = typeParser;
-      this.args = args;
+  /**
+   * Precompiled parsing plan of a command, built the first time the command is run.
+   *
+   * <p>Parameters are resolved to indexed slots (ordinal parameters first, in registration order,
+   * followed by named parameters), each with its parser and default value, so parsing a command
+   * line only allocates the array of parsed values.
+   */
+  private static final class CommandPlan {
+    // Commands have at most 16 parameters, so presence is tracked with a bitmask.
+    private final Param<?>[] slots;
+    private final SlotParser[] slotParsers;
+    private final Object[] defaultValues;
+    private final int ordinalCount;
+    private final int requiredMask;
+
+    private CommandPlan(Params params, Map<Class<?>, SlotParser> slotParsers) {
+      List<Param<?>> ordinalParams = params.ordinalParams();
+      ordinalCount = ordinalParams.size();
+      slots = new Param<?>[ordinalCount + params.namedParams().size()];
+      this.slotParsers = new SlotParser[slots.length];
+      defaultValues = new Object[slots.length];
+
+      int index = 0;
+      for (Param<?> param : ordinalParams) {
+        slots[index++] = param;
+      }
+      for (Param<?> param : params.namedParams().values()) {
+        slots[index++] = param;
+      }
+
+      int mask = 0;
+      for (int slot = 0; slot < slots.length; ++slot) {
+        Param<?> param = slots[slot];
+        this.slotParsers[slot] = slotParsers.get(param.dataType());
+        defaultValues[slot] = ArgsContainer.defaultValue(param);
+        if (!param.acceptsMultipleValues() && !param.isOptional()) {
+          mask |= 1 << slot;
+        }
+      }
+      requiredMask = mask;
+    }
+
+    private int slotOf(Param<?> param) {
+      for (int slot = 0; slot < slots.length; ++slot) {
+        if (slots[slot] == param) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    private int namedSlotOf(String arg) {
+      int nameLength = arg.length() - NAMED_ARG_PREFIX.length();
+      for (int slot = ordinalCount; slot < slots.length; ++slot) {
+        String name = slots[slot].name();
+        if (name.length() == nameLength
+            && arg.regionMatches(NAMED_ARG_PREFIX.length(), name, 0, nameLength)) {
+          return slot;
+        }
+      }
+      return -1;
     }
 
-    private ArgsContainer parse(Params params) {
-      while (hasNextValue()) {
-        String currentArg = peekNextValue();
+    private ArgsContainer parse(String[] args) {
+      Object[] values = new Object[slots.length];
+      int parsedMask = 0;
+      int parsedOrdinalCount = 0;
+      int index = 1;
+
+      while (index < args.length) {
+        String currentArg = args[index];
 
         if (isNamedArg(currentArg)) {
-          advance();
+          ++index;
 
-          String argName = namedArgValueToName(currentArg);
+          int slot = namedSlotOf(currentArg);
 
-          if (!params.namedParams().containsKey(argName)) {
-            throw commandInvocationException("Named argument '%s' does not exist.", argName);
+          if (slot < 0) {
+            throw commandInvocationException(
+                "Named argument '%s' does not exist.", namedArgValueToName(currentArg));
           }
 
-          Param<?> param = params.namedParams().get(argName);
-
-          if (parsedParams.containsKey(param)) {
-            throw commandInvocationException("Named argument '%s' was called repeatedly.", argName);
+          if ((parsedMask & (1 << slot)) != 0) {
+            throw commandInvocationException(
+                "Named argument '%s' was called repeatedly.", slots[slot].name());
           }
 
-          if (param.acceptsMultipleValues()) {
-            parseMultipleValues(param);
+          if (slots[slot].acceptsMultipleValues()) {
+            index = parseMultipleValues(slot, args, index, values);
           } else {
-            if (!hasNextValue()) {
+            if (index >= args.length) {
               throw commandInvocationException(
-                  "Expected value for parameter '%s' but it was not provided.", argName);
+                  "Expected value for parameter '%s' but it was not provided.",
+                  slots[slot].name());
             }
 
-            parseSingleValue(param, getNextValue());
+            values[slot] = slotParsers[slot].parse(slots[slot], args[index++]);
           }
+
+          parsedMask |= 1 << slot;
         } else {
-          if (!hasOrdinalParamForCurrentArg(params)) {
+          if (parsedOrdinalCount >= ordinalCount) {
             throw commandInvocationException(
                 "More ordinal parameters were provided than the command accepts.");
           }
 
-          Param<?> param = getCurrentOrdinalParam(params);
+          int slot = parsedOrdinalCount++;
 
-          if (param.acceptsMultipleValues()) {
-            parseMultipleValues(param);
+          if (slots[slot].acceptsMultipleValues()) {
+            index = parseMultipleValues(slot, args, index, values);
           } else {
-            parseSingleValue(param, currentArg);
+            values[slot] = slotParsers[slot].parse(slots[slot], currentArg);
           }
 
-          parsedOrdinalParams.add(param);
-
-          advance();
-        }
-      }
+          parsedMask |= 1 << slot;
 
-      if (parsedOrdinalParams.size() < params.ordinalParams().size()) {
-        for (Param<?> param : params.ordinalParams()) {
-          if (!parsedOrdinalParams.contains(param) && !param.acceptsMultipleValues()) {
-            throw commandInvocationException(
-                "Ordinal parameter '%s' was not provided.", param.name());
-          }
+          ++index;
         }
       }
 
-      int parsedNamedParamsCount = parsedParams.size() - parsedOrdinalParams.size();
-      if (parsedNamedParamsCount < params.namedParams().size()) {
-        for (Param<?> param : params.namedParams().values()) {
-          if (!parsedParams.containsKey(param)
-              && !param.isOptional()
-              && !param.acceptsMultipleValues()) {
-            throw commandInvocationException(
-                "Named parameter '%s' was not provided.", param.name());
-          }
-        }
+      int missingMask = requiredMask & ~parsedMask;
+      if (missingMask != 0) {
+        int slot = Integer.numberOfTrailingZeros(missingMask);
+        throw commandInvocationException(
+            slot < ordinalCount
+                ? "Ordinal parameter '%s' was not provided."
+                : "Named parameter '%s' was not provided.",
+            slots[slot].name());
       }
 
-      return new ArgsContainer(parsedParams);
-    }
-
-    private void advance() {
-      ++currentIndex;
+      return new ArgsContainer(this, values);
     }
 
-    private boolean hasNextValue() {
-      return currentIndex < args.length;
-    }
-
-    private String getNextValue() {
-      return args[currentIndex++];
-    }
-
-    private String peekNextValue() {
-      return args[currentIndex];
-    }
-
-    private boolean hasOrdinalParamForCurrentArg(Params params) {
-      return parsedOrdinalParams.size() < params.ordinalParams().size();
-    }
-
-    private Param<?> getCurrentOrdinalParam(Params params) {
-      return params.ordinalParams().get(parsedOrdinalParams.size());
-    }
-
-    private void parseSingleValue(Param<?> param, String value) {
-      parsedParams.put(param, typeParser.parse(param, value));
-    }
-
-    private void parseMultipleValues(Param<?> param) {
-      List<Object> value = new ArrayList<>();
+    /** Parses the values from {@code index} up to the next named argument into an array. */
+    private int parseMultipleValues(int slot, String[] args, int index, Object[] values) {
+      int end = index;
+      while (end < args.length && !isNamedArg(args[end])) {
+        ++end;
+      }
 
-      while (hasNextValue() && !isNamedArg(peekNextValue())) {
-        value.add(typeParser.parse(param, getNextValue()));
+      Param<?> param = slots[slot];
+      SlotParser parser = slotParsers[slot];
+      Object array = Array.newInstance(param.dataType(), end - index);
+      if (array instanceof Object[]) {
+        Object[] objects = (Object[]) array;
+        for (int i = 0; i < objects.length; ++i) {
+          objects[i] = parser.parse(param, args[index + i]);
+        }
+      } else {
+        for (int i = index; i < end; ++i) {
+          Array.set(array, i - index, parser.parse(param, args[i]));
+        }
       }
 
-      parsedParams.put(param, asArray(param.dataType(), value));
+      values[slot] = array;
+      return end;
     }
 
     private static boolean isNamedArg(String value) {
-      return value.startsWith("--");
+      return value.startsWith(NAMED_ARG_PREFIX);
     }
 
     private static String namedArgValueToName(String arg) {
-      return arg.substring("--".length());
-    }
-
-    private static Object asArray(Class<?> type, List<Object> values) {
-      Object array = Array.newInstance(type, values.size());
-
-      for (int index = 0; index < values.size(); ++index) {
-        Array.set(array, index, values.get(index));
-      }
-
-      return array;
+      return arg.substring(NAMED_ARG_PREFIX.length());
     }
   }
 
@@ -605,26 +693,32 @@ public final class Flags {
       primitiveTypeDefaultValues.put(long.class, 0L);
     }
 
-    private final Map<Param<?>, Object> args;
+    private final CommandPlan plan;
+    private final Object[] values;
 
-    private ArgsContainer(Map<Param<?>, Object> args) {
-      this.args = args;
+    private ArgsContainer(CommandPlan plan, Object[] values) {
+      this.plan = plan;
+      this.values = values;
     }
 
-    private Object get(Param<?> param) {
-      Object value = args.get(param);
-
-      if (value == null) {
-        if (param.acceptsMultipleValues()) {
-          return Array.newInstance(param.dataType(), 0);
-        }
+    /** Returns the value of a parameter that was not provided, shared by all invocations. */
+    private static Object defaultValue(Param<?> param) {
+      if (param.acceptsMultipleValues()) {
+        // Empty arrays are immutable, so a single instance can be handed to every callback.
+        return Array.newInstance(param.dataType(), 0);
+      }
 
-        if (param.dataType().isPrimitive()) {
-          return primitiveTypeDefaultValues.get(param.dataType());
-        }
+      if (param.dataType().isPrimitive()) {
+        return primitiveTypeDefaultValues.get(param.dataType());
       }
 
-      return value;
+      return null;
+    }
+
+    private Object get(Param<?> param) {
+      int slot = plan.slotOf(param);
+      Object value = values[slot];
+      return value != null ? value : plan.defaultValues[slot];
     }
   }
 
@@ -654,8 +748,12 @@ public final class Flags {
   }
 
   private final PrintWriter printWriter;
+  private PrintWriter currentPrintWriter;
   private final Map<Class<?>, ArgumentParser<?>> parsers = new HashMap<>();
+  private final Map<Class<?>, ArgumentParser<?>> defaultParsers;
   private final Map<String, RegisteredCommand> commands = new LinkedHashMap<>();
+  // Compiled lazily per command name and dropped whenever the parsers change.
+  private final Map<String, CommandPlan> plans = new HashMap<>();
 
   /**
    * Creates a Flags instance that prints usage and error messages to the {@link System#out} stream.
@@ -670,7 +768,9 @@ public final class Flags {
    */
   public Flags(PrintWriter printWriter) {
     this.printWriter = printWriter;
+    this.currentPrintWriter = printWriter;
     registerDefaultArgumentParsers();
+    defaultParsers = new HashMap<>(parsers);
     addCommand(
         command("help", () -> usagePrinter().showUsage()).setDescription("Prints this help text."));
   }
@@ -685,26 +785,50 @@ public final class Flags {
   public <T> void registerCustomParser(
       Class<T> type, BiFunction<String, Validator<T>, Validator.ValidationResult<T>> parserFunc) {
     parsers.put(type, ArgumentParser.create(parserFunc));
+    plans.clear();
   }
 
   /**
    * Runs the registered commands and their parameters against the provided command-line arguments.
+   *
+   * @return whether a command was executed, i.e. {@code false} if the usage was printed instead.
    */
-  public void run(String[] args) {
-    if ((args == null) || (args.length == 0)) {
-      usagePrinter().showUsage();
-      return;
-    }
+  public boolean run(String[] args) {
+    return run(args, printWriter);
+  }
 
+  /**
+   * Runs the registered commands against the provided command-line arguments, printing usage and
+   * error messages to the specified {@code PrintWriter} instead of the one given at construction.
+   *
+   * <p>This allows a single {@link Flags} instance, and its registered commands, to be reused
+   * across invocations that report to different outputs.
+   *
+   * @return whether a command was executed, i.e. {@code false} if the usage was printed instead.
+   */
+  public boolean run(String[] args, PrintWriter usageWriter) {
+    PrintWriter previousWriter = currentPrintWriter;
+    currentPrintWriter = usageWriter;
     try {
-      execute(args);
-    } catch (InvalidCommandInvocationException e) {
-      usagePrinter().showUsage(e.message());
+      if ((args == null) || (args.length == 0)) {
+        usagePrinter().showUsage();
+        return false;
+      }
+
+      try {
+        execute(args);
+        return true;
+      } catch (InvalidCommandInvocationException e) {
+        usagePrinter().showUsage(e.message());
+        return false;
+      }
+    } finally {
+      currentPrintWriter = previousWriter;
     }
   }
 
   private UsagePrinter usagePrinter() {
-    return new UsagePrinter(printWriter, commands.values());
+    return new UsagePrinter(currentPrintWriter, commands.values());
   }
 
   private void execute(String[] args) {
@@ -715,10 +839,30 @@ public final class Flags {
     }
 
     RegisteredCommand command = commands.get(commandName);
-    command
-        .commandMethod()
-        .execute(
-            this, new CommandLineParser(new TypeParser(parsers), args).parse(command.params()));
+    command.commandMethod().execute(this, commandPlan(command).parse(args));
+  }
+
+  private CommandPlan commandPlan(RegisteredCommand command) {
+    CommandPlan plan = plans.get(command.name());
+    if (plan == null) {
+      plan = new CommandPlan(command.params(), slotParsers());
+      plans.put(command.name(), plan);
+    }
+    return plan;
+  }
+
+  private Map<Class<?>, SlotParser> slotParsers() {
+    Map<Class<?>, SlotParser> slotParsers = new HashMap<>();
+    for (Map.Entry<Class<?>, ArgumentParser<?>> entry : parsers.entrySet()) {
+      Class<?> type = entry.getKey();
+      if (SPECIALIZED_SLOT_PARSERS.containsKey(type)
+          && entry.getValue() == defaultParsers.get(type)) {
+        slotParsers.put(type, SPECIALIZED_SLOT_PARSERS.get(type));
+      } else {
+        slotParsers.put(type, new RegisteredSlotParser<>(entry.getValue()));
+      }
+    }
+    return slotParsers;
   }
 
   // All parser functions must provide the correct type - verified by unit tests and type
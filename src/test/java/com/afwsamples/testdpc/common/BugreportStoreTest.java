@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BugreportStoreTest {
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void save_matchingHash_savesFile() throws Exception {
+    byte[] data = newData(3 * 1024 * 1024 + 5);
+    BugreportStore store = new BugreportStore(mFolder.getRoot(), Long.MAX_VALUE);
+    List<Long> progress = new ArrayList<>();
+
+    BugreportStore.Result result =
+        store.save(channel(data), "bugreport.zip", sha256(data).toUpperCase(), progress::add);
+
+    assertThat(result.file).isEqualTo(new File(mFolder.getRoot(), "bugreport.zip"));
+    assertThat(result.size).isEqualTo(data.length);
+    assertThat(result.sha256).isEqualTo(sha256(data));
+    assertThat(Files.readAllBytes(result.file.toPath())).isEqualTo(data);
+    assertThat(progress.get(progress.size() - 1)).isEqualTo((long) data.length);
+    assertThat(mFolder.getRoot().list()).asList().containsExactly("bugreport.zip");
+  }
+
+  @Test
+  public void save_noHash_savesFile() throws Exception {
+    byte[] data = newData(100);
+    BugreportStore store = new BugreportStore(mFolder.getRoot(), Long.MAX_VALUE);
+
+    BugreportStore.Result result = store.save(channel(data), "bugreport.zip", null, null);
+
+    assertThat(Files.readAllBytes(result.file.toPath())).isEqualTo(data);
+  }
+
+  @Test
+  public void save_hashMismatch_savesNothing() throws Exception {
+    byte[] data = newData(100);
+    BugreportStore store = new BugreportStore(mFolder.getRoot(), Long.MAX_VALUE);
+
+    BugreportStore.HashMismatchException e =
+        assertThrows(
+            BugreportStore.HashMismatchException.class,
+            () -> store.save(channel(data), "bugreport.zip", sha256(new byte[1]), null));
+
+    assertThat(e.getActualHash()).isEqualTo(sha256(data));
+    assertThat(mFolder.getRoot().list()).isEmpty();
+  }
+
+  @Test
+  public void save_overQuota_deletesOldestBugreports() throws Exception {
+    BugreportStore store = new BugreportStore(mFolder.getRoot(), 250);
+    File oldest = store.save(channel(newData(100)), "a.zip", null, null).file;
+    oldest.setLastModified(1000);
+    File older = store.save(channel(newData(100)), "b.zip", null, null).file;
+    older.setLastModified(2000);
+
+    BugreportStore.Result result = store.save(channel(newData(100)), "c.zip", null, null);
+
+    assertThat(result.deletedFiles).containsExactly(oldest);
+    assertThat(store.getBugreports()).containsExactly(result.file, older).inOrder();
+  }
+
+  @Test
+  public void save_overQuota_deletesOlderBugreportsBeforeLargeNewerOne() throws Exception {
+    File oldest = newBugreport("a.zip", 100, 1000);
+    File older = newBugreport("b.zip", 100, 2000);
+    File old = newBugreport("c.zip", 100, 3000);
+    File large = newBugreport("d.zip", 400, 4000);
+    BugreportStore store = new BugreportStore(mFolder.getRoot(), 450);
+
+    BugreportStore.Result result = store.save(channel(newData(100)), "e.zip", null, null);
+
+    assertThat(result.deletedFiles).containsExactly(oldest, older, old, large).inOrder();
+    assertThat(store.getBugreports()).containsExactly(result.file);
+  }
+
+  @Test
+  public void save_largerThanQuota_keepsNewBugreport() throws Exception {
+    BugreportStore store = new BugreportStore(mFolder.getRoot(), 10);
+
+    BugreportStore.Result result = store.save(channel(newData(100)), "a.zip", null, null);
+
+    assertThat(store.getBugreports()).containsExactly(result.file);
+  }
+
+  @Test
+  public void save_deletesLeftoverPartialFiles() throws Exception {
+    File partial = mFolder.newFile(".old.zip.partial");
+    BugreportStore store = new BugreportStore(mFolder.getRoot(), Long.MAX_VALUE);
+
+    store.save(channel(newData(10)), "a.zip", null, null);
+
+    assertThat(partial.exists()).isFalse();
+  }
+
+  private File newBugreport(String name, int size, long lastModified) throws Exception {
+    File file = mFolder.newFile(name);
+    Files.write(file.toPath(), newData(size));
+    file.setLastModified(lastModified);
+    return file;
+  }
+
+  private static ReadableByteChannel channel(byte[] data) {
+    return Channels.newChannel(new ByteArrayInputStream(data));
+  }
+
+  private static byte[] newData(int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (i * 31);
+    }
+    return data;
+  }
+
+  private static String sha256(byte[] data) throws Exception {
+    return BugreportStore.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.afwsamples.testdpc.common.CaCertificateInventory.CaCertificate;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CaCertificateInventoryTest {
+  private static final long NOT_AFTER = 1893456000000L; // 2030-01-01
+
+  private static KeyPair sKeyPair;
+
+  @BeforeClass
+  public static void generateKeyPair() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    sKeyPair = generator.generateKeyPair();
+  }
+
+  @Test
+  public void decode_readsCertificateFields() throws Exception {
+    byte[] der = certificate("CN=Root A", "CN=Issuer");
+
+    CaCertificate certificate =
+        new CaCertificateInventory().decode(Arrays.asList(der)).getCertificates().get(0);
+
+    assertThat(certificate.subject).isEqualTo("CN=Root A");
+    assertThat(certificate.issuer).isEqualTo("CN=Issuer");
+    assertThat(certificate.notAfterMillis).isEqualTo(NOT_AFTER);
+    assertThat(certificate.fingerprint).isEqualTo(CaCertificateInventory.sha256(der));
+    assertThat(certificate.fingerprint).hasLength(64);
+    assertThat(certificate.getEncoded()).isEqualTo(der);
+  }
+
+  @Test
+  public void decode_sameBlobTwice_parsesItOnce() throws Exception {
+    CaCertificateInventory inventory = new CaCertificateInventory();
+    List<byte[]> blobs = Arrays.asList(certificate("CN=A", "CN=A"), certificate("CN=B", "CN=B"));
+
+    CaCertificateInventory.Result first = inventory.decode(blobs);
+    CaCertificateInventory.Result second = inventory.decode(blobs);
+
+    assertThat(first.getParsedBlobs()).isEqualTo(2);
+    assertThat(first.getCachedBlobs()).isEqualTo(0);
+    assertThat(second.getParsedBlobs()).isEqualTo(0);
+    assertThat(second.getCachedBlobs()).isEqualTo(2);
+    assertThat(subjects(second.getCertificates())).containsExactly("CN=A", "CN=B").inOrder();
+  }
+
+  @Test
+  public void decode_manyBlobs_keepsTheirOrder() throws Exception {
+    List<byte[]> blobs = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    int count =
+        CaCertificateInventory.MAX_DECODE_THREADS * CaCertificateInventory.MIN_BLOBS_PER_THREAD;
+    for (int i = 0; i < count; i++) {
+      blobs.add(certificate("CN=" + i, "CN=Issuer"));
+      expected.add("CN=" + i);
+    }
+
+    CaCertificateInventory.Result result = new CaCertificateInventory().decode(blobs);
+
+    assertThat(result.getParsedBlobs()).isEqualTo(count);
+    assertThat(subjects(result.getCertificates())).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void decode_pemBundle_returnsAllCertificates() throws Exception {
+    byte[] bundle = concat(pem(certificate("CN=A", "CN=A")), pem(certificate("CN=B", "CN=B")));
+
+    CaCertificateInventory.Result result =
+        new CaCertificateInventory().decode(Arrays.asList(bundle));
+
+    assertThat(result.getParsedBlobs()).isEqualTo(1);
+    assertThat(subjects(result.getCertificates())).containsExactly("CN=A", "CN=B").inOrder();
+  }
+
+  @Test
+  public void decode_pemAndDer_haveSameFingerprint() throws Exception {
+    byte[] der = certificate("CN=A", "CN=A");
+
+    List<CaCertificate> certificates =
+        new CaCertificateInventory().decode(Arrays.asList(der, pem(der))).getCertificates();
+
+    assertThat(certificates.get(0).fingerprint).isEqualTo(certificates.get(1).fingerprint);
+  }
+
+  @Test
+  public void decode_invalidBlob_isSkippedAndNotCached() throws Exception {
+    CaCertificateInventory inventory = new CaCertificateInventory();
+    List<byte[]> blobs = Arrays.asList("not a certificate".getBytes(US_ASCII));
+
+    CaCertificateInventory.Result first = inventory.decode(blobs);
+    CaCertificateInventory.Result second = inventory.decode(blobs);
+
+    assertThat(first.getCertificates()).isEmpty();
+    assertThat(first.getInvalidBlobs()).isEqualTo(1);
+    assertThat(second.getInvalidBlobs()).isEqualTo(1);
+    assertThat(second.getCachedBlobs()).isEqualTo(0);
+  }
+
+  @Test
+  public void unique_dropsDuplicatesAndExcluded() throws Exception {
+    byte[] a = certificate("CN=A", "CN=A");
+    byte[] b = certificate("CN=B", "CN=B");
+    byte[] c = certificate("CN=C", "CN=C");
+    CaCertificateInventory inventory = new CaCertificateInventory();
+    List<CaCertificate> certificates =
+        inventory.decode(Arrays.asList(a, b, pem(a), c)).getCertificates();
+    List<CaCertificate> installed = inventory.decode(Arrays.asList(b)).getCertificates();
+
+    assertThat(subjects(CaCertificateInventory.unique(certificates, installed)))
+        .containsExactly("CN=A", "CN=C")
+        .inOrder();
+  }
+
+  @Test
+  public void intersect_returnsEachInstalledCertificateOnce() throws Exception {
+    byte[] a = certificate("CN=A", "CN=A");
+    byte[] b = certificate("CN=B", "CN=B");
+    CaCertificateInventory inventory = new CaCertificateInventory();
+    List<CaCertificate> certificates =
+        inventory.decode(Arrays.asList(a, b, pem(a))).getCertificates();
+    List<CaCertificate> installed = inventory.decode(Arrays.asList(a)).getCertificates();
+
+    assertThat(subjects(CaCertificateInventory.intersect(certificates, installed)))
+        .containsExactly("CN=A");
+    assertThat(CaCertificateInventory.intersect(certificates, Collections.emptyList())).isEmpty();
+  }
+
+  private static byte[] certificate(String subject, String issuer) throws Exception {
+    return new JcaX509v3CertificateBuilder(
+            new X500Name(issuer),
+            BigInteger.ONE,
+            new Date(0),
+            new Date(NOT_AFTER),
+            new X500Name(subject),
+            sKeyPair.getPublic())
+        .build(new JcaContentSignerBuilder("SHA256withECDSA").build(sKeyPair.getPrivate()))
+        .getEncoded();
+  }
+
+  private static byte[] pem(byte[] der) {
+    String base64 = Base64.getMimeEncoder().encodeToString(der);
+    return ("-----BEGIN CERTIFICATE-----\n" + base64 + "\n-----END CERTIFICATE-----\n")
+        .getBytes(US_ASCII);
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  private static List<String> subjects(List<CaCertificate> certificates) {
+    List<String> subjects = new ArrayList<>();
+    for (CaCertificate certificate : certificates) {
+      subjects.add(certificate.subject);
+    }
+    return subjects;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PermissionGrantMatrixTest {
+  private static final String CAMERA = "android.permission.CAMERA";
+  private static final String LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+  private static final String SMS = "android.permission.READ_SMS";
+
+  // Values of DevicePolicyManager.PERMISSION_GRANT_STATE_*.
+  private static final int DEFAULT = 0;
+  private static final int GRANTED = 1;
+  private static final int DENIED = 2;
+
+  @Test
+  public void select_noPermissions_returnsAllRequested() {
+    List<String> requested = Arrays.asList(CAMERA, LOCATION);
+
+    assertThat(PermissionGrantMatrix.select(requested, Collections.<String>emptyList()))
+        .containsExactly(CAMERA, LOCATION)
+        .inOrder();
+  }
+
+  @Test
+  public void select_keepsOnlyRequestedPermissions_inRequestedOrder() {
+    List<String> requested = Arrays.asList(CAMERA, LOCATION, SMS);
+
+    assertThat(PermissionGrantMatrix.select(requested, Arrays.asList(SMS, "unknown", CAMERA)))
+        .containsExactly(CAMERA, SMS)
+        .inOrder();
+  }
+
+  @Test
+  public void put_countsEachPermissionOnce() {
+    PermissionGrantMatrix matrix = new PermissionGrantMatrix();
+    matrix.put("a", CAMERA, DEFAULT);
+    matrix.put("a", CAMERA, GRANTED);
+    matrix.put("b", CAMERA, DEFAULT);
+
+    assertThat(matrix.size()).isEqualTo(2);
+    assertThat(matrix.getGrantStates("a")).containsExactly(CAMERA, GRANTED);
+  }
+
+  @Test
+  public void addPackage_withoutPermissions_isListed() {
+    PermissionGrantMatrix matrix = new PermissionGrantMatrix();
+    matrix.addPackage("a");
+    matrix.put("b", CAMERA, DEFAULT);
+
+    assertThat(matrix.getPackages()).containsExactly("a", "b").inOrder();
+    assertThat(matrix.getGrantStates("a")).isEmpty();
+    assertThat(matrix.getGrantStates("missing")).isEmpty();
+    assertThat(matrix.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void getCellsToChange_skipsCellsInTheGrantState() {
+    PermissionGrantMatrix matrix = new PermissionGrantMatrix();
+    matrix.put("a", CAMERA, GRANTED);
+    matrix.put("a", LOCATION, DEFAULT);
+    matrix.put("b", CAMERA, DENIED);
+    matrix.put("b", SMS, GRANTED);
+
+    assertThat(describe(matrix.getCellsToChange(GRANTED)))
+        .containsExactly("a " + LOCATION + "=0", "b " + CAMERA + "=2")
+        .inOrder();
+    assertThat(matrix.getCells()).hasSize(4);
+  }
+
+  private static List<String> describe(List<PermissionGrantMatrix.Cell> cells) {
+    List<String> descriptions = new ArrayList<>();
+    for (PermissionGrantMatrix.Cell cell : cells) {
+      descriptions.add(cell.toString());
+    }
+    return descriptions;
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.comp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.Build.VERSION_CODES;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.UserManager;
+import androidx.test.core.app.ApplicationProvider;
+import com.afwsamples.testdpc.DeviceAdminReceiver;
+import com.afwsamples.testdpc.comp.ProfileOwnerService.ProfileOwnerServiceImpl;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.Q)
+public class ProfileOperationBatchTest {
+  private static final String PACKAGE_NAME = "com.example.app";
+  private static final String PERMISSION = "android.permission.CAMERA";
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+  private final DevicePolicyManager mDevicePolicyManager =
+      (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
+  private final ComponentName mAdmin = DeviceAdminReceiver.getComponentName(mContext);
+
+  @Before
+  public void setUp() {
+    shadowOf(mDevicePolicyManager).setProfileOwner(mAdmin);
+    PackageInfo packageInfo = new PackageInfo();
+    packageInfo.packageName = PACKAGE_NAME;
+    packageInfo.applicationInfo = new ApplicationInfo();
+    packageInfo.applicationInfo.packageName = PACKAGE_NAME;
+    shadowOf(mContext.getPackageManager()).installPackage(packageInfo);
+  }
+
+  @Test
+  public void getOperations_surviveParceling() {
+    byte[] certificate = {1, 2, 3};
+    ProfileOperationBatch batch =
+        new ProfileOperationBatch()
+            .setUserRestriction(UserManager.DISALLOW_CAMERA, true)
+            .installCaCertificate(certificate)
+            .setApplicationHidden(PACKAGE_NAME, true)
+            .setPermissionGrantState(
+                PACKAGE_NAME, PERMISSION, DevicePolicyManager.PERMISSION_GRANT_STATE_DENIED);
+
+    List<Bundle> operations = parcel(batch.getOperations());
+
+    assertThat(operations).hasSize(batch.size());
+    assertThat(operations.get(0).getInt(ProfileOperationBatch.KEY_TYPE))
+        .isEqualTo(ProfileOperationBatch.TYPE_SET_USER_RESTRICTION);
+    assertThat(operations.get(0).getString(ProfileOperationBatch.KEY_RESTRICTION))
+        .isEqualTo(UserManager.DISALLOW_CAMERA);
+    assertThat(operations.get(0).getBoolean(ProfileOperationBatch.KEY_ENABLED)).isTrue();
+    assertThat(operations.get(1).getInt(ProfileOperationBatch.KEY_TYPE))
+        .isEqualTo(ProfileOperationBatch.TYPE_INSTALL_CA_CERTIFICATE);
+    assertThat(operations.get(1).getByteArray(ProfileOperationBatch.KEY_CERTIFICATE))
+        .isEqualTo(certificate);
+    assertThat(operations.get(2).getInt(ProfileOperationBatch.KEY_TYPE))
+        .isEqualTo(ProfileOperationBatch.TYPE_SET_APPLICATION_HIDDEN);
+    assertThat(operations.get(2).getString(ProfileOperationBatch.KEY_PACKAGE))
+        .isEqualTo(PACKAGE_NAME);
+    assertThat(operations.get(2).getBoolean(ProfileOperationBatch.KEY_HIDDEN)).isTrue();
+    assertThat(operations.get(3).getInt(ProfileOperationBatch.KEY_TYPE))
+        .isEqualTo(ProfileOperationBatch.TYPE_SET_PERMISSION_GRANT_STATE);
+    assertThat(operations.get(3).getString(ProfileOperationBatch.KEY_PERMISSION))
+        .isEqualTo(PERMISSION);
+    assertThat(operations.get(3).getInt(ProfileOperationBatch.KEY_GRANT_STATE))
+        .isEqualTo(DevicePolicyManager.PERMISSION_GRANT_STATE_DENIED);
+  }
+
+  @Test
+  public void parseResults_surviveParceling() {
+    List<Bundle> results =
+        Arrays.asList(
+            ProfileOperationBatch.Result.success().toBundle(),
+            ProfileOperationBatch.Result.failure("error").toBundle());
+
+    List<ProfileOperationBatch.Result> parsed =
+        ProfileOperationBatch.parseResults(parcel(results));
+
+    assertThat(parsed.get(0).isSuccess()).isTrue();
+    assertThat(parsed.get(0).getError()).isNull();
+    assertThat(parsed.get(1).isSuccess()).isFalse();
+    assertThat(parsed.get(1).getError()).isEqualTo("error");
+  }
+
+  @Test
+  public void executeBatch_failedOperations_runFollowingOnes() {
+    Bundle unknown = new Bundle();
+    unknown.putInt(ProfileOperationBatch.KEY_TYPE, -1);
+    List<Bundle> operations = new ArrayList<>();
+    // Reading a null operation throws a NullPointerException.
+    operations.add(null);
+    operations.add(unknown);
+    operations.addAll(
+        new ProfileOperationBatch().setApplicationHidden(PACKAGE_NAME, true).getOperations());
+
+    List<ProfileOperationBatch.Result> results =
+        ProfileOperationBatch.parseResults(
+            new ProfileOwnerServiceImpl(mContext).executeBatch(operations));
+
+    assertThat(results).hasSize(3);
+    assertThat(results.get(0).getError()).contains("NullPointerException");
+    assertThat(results.get(1).getError()).contains("Unknown operation type");
+    assertThat(results.get(2).isSuccess()).isTrue();
+    assertThat(mDevicePolicyManager.isApplicationHidden(mAdmin, PACKAGE_NAME)).isTrue();
+  }
+
+  @Test
+  public void executeBatch_appAlreadyInHiddenState_succeeds() {
+    assertThat(mDevicePolicyManager.setApplicationHidden(mAdmin, PACKAGE_NAME, true)).isTrue();
+
+    List<ProfileOperationBatch.Result> results =
+        ProfileOperationBatch.parseResults(
+            new ProfileOwnerServiceImpl(mContext)
+                .executeBatch(
+                    new ProfileOperationBatch()
+                        .setApplicationHidden(PACKAGE_NAME, true)
+                        .getOperations()));
+
+    assertThat(results.get(0).isSuccess()).isTrue();
+  }
+
+  private static List<Bundle> parcel(List<Bundle> bundles) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeTypedList(bundles);
+      parcel.setDataPosition(0);
+      return parcel.createTypedArrayList(Bundle.CREATOR);
+    } finally {
+      parcel.recycle();
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.cosu;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.afwsamples.testdpc.cosu.AppInstallTracker.App;
+import com.afwsamples.testdpc.cosu.AppInstallTracker.Phase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AppInstallTrackerTest {
+  @Test
+  public void nextDownload_limitsConcurrentDownloads() {
+    AppInstallTracker tracker = newTracker(2, "a", "b", "c");
+
+    App a = startDownload(tracker, 1);
+    App b = startDownload(tracker, 2);
+
+    assertThat(tracker.nextDownload()).isNull();
+    assertThat(tracker.onDownloadComplete(1, 10)).isSameInstanceAs(a);
+    App c = tracker.nextDownload();
+    assertThat(c.packageName).isEqualTo("c");
+    assertThat(b.phase).isEqualTo(Phase.DOWNLOADING);
+    assertThat(tracker.getActiveDownloadCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void onDownloadComplete_unknownId_returnsNull() {
+    AppInstallTracker tracker = newTracker(2, "a");
+    startDownload(tracker, 1);
+
+    assertThat(tracker.onDownloadComplete(42, 10)).isNull();
+    assertThat(tracker.onDownloadComplete(1, 10)).isNotNull();
+    assertThat(tracker.onDownloadComplete(1, 11)).isNull();
+  }
+
+  @Test
+  public void isFinished_afterAllInstalledOrFailed() {
+    AppInstallTracker tracker = newTracker(4, "a", "b");
+    App a = startDownload(tracker, 1);
+    App b = startDownload(tracker, 2);
+    tracker.onDownloadComplete(1, 10);
+    tracker.onInstallStarted(a, 11);
+    tracker.onInstallCommitted(a, 12);
+
+    assertThat(tracker.isFinished()).isFalse();
+    assertThat(tracker.onInstallComplete("a", 13)).isSameInstanceAs(a);
+    assertThat(tracker.isFinished()).isFalse();
+    tracker.onFailed(b, 14);
+    assertThat(tracker.isFinished()).isTrue();
+    assertThat(tracker.getActiveDownloadCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void isFinished_noApps_isTrue() {
+    assertThat(new AppInstallTracker(1).isFinished()).isTrue();
+  }
+
+  @Test
+  public void restore_resumesSavedProgress() {
+    AppInstallTracker tracker = newTracker(4, "installed", "downloading", "installing", "queued");
+    App installed = startDownload(tracker, 1);
+    startDownload(tracker, 2);
+    App installing = startDownload(tracker, 3);
+    tracker.onDownloadComplete(1, 10);
+    tracker.onInstallStarted(installed, 11);
+    tracker.onInstallComplete("installed", 12);
+    tracker.onDownloadComplete(3, 13);
+    tracker.onInstallStarted(installing, 14);
+
+    AppInstallTracker restored =
+        newTracker(4, "installed", "downloading", "installing", "queued", "new");
+    restored.restore(tracker.serialize());
+
+    assertThat(restored.getApp("installed").phase).isEqualTo(Phase.INSTALLED);
+    assertThat(restored.getApp("installed").installEndTime).isEqualTo(12);
+    assertThat(restored.getApp("downloading").phase).isEqualTo(Phase.DOWNLOADING);
+    assertThat(restored.getApp("installing").phase).isEqualTo(Phase.DOWNLOADED);
+    assertThat(restored.getApp("installing").downloadId).isEqualTo(3);
+    assertThat(restored.getActiveDownloadCount()).isEqualTo(1);
+    assertThat(restored.onDownloadComplete(2, 20).packageName).isEqualTo("downloading");
+    assertThat(restored.nextDownload().packageName).isEqualTo("queued");
+    assertThat(restored.nextDownload().packageName).isEqualTo("new");
+    assertThat(restored.nextDownload()).isNull();
+  }
+
+  @Test
+  public void restore_changedLocation_startsOver() {
+    AppInstallTracker tracker = newTracker(4, "a");
+    startDownload(tracker, 1);
+    tracker.onDownloadComplete(1, 10);
+
+    AppInstallTracker restored = new AppInstallTracker(4);
+    restored.addApp("a", "https://example.com/other.apk");
+    restored.restore(tracker.serialize());
+
+    assertThat(restored.getApp("a").phase).isEqualTo(Phase.QUEUED);
+    assertThat(restored.getApp("a").downloadId).isEqualTo(AppInstallTracker.NO_DOWNLOAD);
+  }
+
+  @Test
+  public void restore_failedApp_isRetried() {
+    AppInstallTracker tracker = newTracker(4, "a");
+    tracker.onFailed(startDownload(tracker, 1), 10);
+
+    AppInstallTracker restored = newTracker(4, "a");
+    restored.restore(tracker.serialize());
+
+    assertThat(restored.isFinished()).isFalse();
+    assertThat(restored.nextDownload().packageName).isEqualTo("a");
+  }
+
+  @Test
+  public void restore_malformedState_isIgnored() {
+    AppInstallTracker tracker = newTracker(4, "a");
+
+    tracker.restore("a\tnot enough fields\n\na\t" + location("a") + "\tBOGUS\t1\t0\t0\t0\t0\t0\n");
+
+    assertThat(tracker.getApp("a").phase).isEqualTo(Phase.QUEUED);
+    assertThat(tracker.nextDownload().packageName).isEqualTo("a");
+  }
+
+  @Test
+  public void requeue_restartsDownload() {
+    AppInstallTracker tracker = newTracker(1, "a");
+    App a = startDownload(tracker, 1);
+
+    tracker.requeue(a);
+
+    assertThat(tracker.onDownloadComplete(1, 10)).isNull();
+    assertThat(tracker.nextDownload()).isSameInstanceAs(a);
+  }
+
+  @Test
+  public void requeue_installedApp_downloadsAgain() {
+    AppInstallTracker tracker = newTracker(1, "a");
+    App a = startDownload(tracker, 1);
+    tracker.onDownloadComplete(1, 10);
+    tracker.onInstallStarted(a, 11);
+    tracker.onInstallComplete("a", 12);
+
+    tracker.requeue(a);
+
+    assertThat(tracker.isFinished()).isFalse();
+    assertThat(a.downloadId).isEqualTo(AppInstallTracker.NO_DOWNLOAD);
+    assertThat(tracker.nextDownload()).isSameInstanceAs(a);
+  }
+
+  @Test
+  public void requeue_failedApp_staysFailed() {
+    AppInstallTracker tracker = newTracker(1, "a");
+    App a = startDownload(tracker, 1);
+    tracker.onFailed(a, 10);
+
+    tracker.requeue(a);
+
+    assertThat(tracker.isFinished()).isTrue();
+    assertThat(tracker.nextDownload()).isNull();
+  }
+
+  private static AppInstallTracker newTracker(int maxConcurrentDownloads, String... packages) {
+    AppInstallTracker tracker = new AppInstallTracker(maxConcurrentDownloads);
+    for (String packageName : packages) {
+      tracker.addApp(packageName, location(packageName));
+    }
+    return tracker;
+  }
+
+  private static App startDownload(AppInstallTracker tracker, long downloadId) {
+    App app = tracker.nextDownload();
+    tracker.onDownloadEnqueued(app, downloadId, downloadId);
+    return app;
+  }
+
+  private static String location(String packageName) {
+    return "https://example.com/" + packageName + ".apk";
+  }
+}
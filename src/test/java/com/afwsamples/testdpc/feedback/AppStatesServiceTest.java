@@ -31,6 +31,7 @@ import androidx.preference.PreferenceManager;
 import androidx.test.core.app.ApplicationProvider;
 import com.afwsamples.testdpc.R;
 import java.util.Arrays;
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
@@ -84,6 +85,12 @@ public class AppStatesServiceTest {
       mContext.getSystemService(NotificationManager.class);
   private final AppStatesService mService = Robolectric.buildService(AppStatesService.class).get();
 
+  @After
+  public void tearDown() {
+    // The store is process-wide, and would otherwise see the states of the previous tests.
+    KeyedAppStateStore.getInstance().clear();
+  }
+
   @Test
   public void onReceive_shouldNotNotify_noNotification() {
     setNotificationPreference(false);
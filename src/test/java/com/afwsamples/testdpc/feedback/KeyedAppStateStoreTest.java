@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afwsamples.testdpc.feedback;
+
+import static com.afwsamples.testdpc.feedback.KeyedAppStateStore.DIGEST_INTERVAL_MILLIS;
+import static com.afwsamples.testdpc.feedback.KeyedAppStateStore.HISTORY_SIZE;
+import static com.afwsamples.testdpc.feedback.KeyedAppStateStore.MAX_ENTRIES;
+import static com.afwsamples.testdpc.feedback.KeyedAppStateStore.SEVERITY_ERROR;
+import static com.afwsamples.testdpc.feedback.KeyedAppStateStore.SEVERITY_INFO;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.afwsamples.testdpc.feedback.KeyedAppStateStore.DigestItem;
+import com.afwsamples.testdpc.feedback.KeyedAppStateStore.Update;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class KeyedAppStateStoreTest {
+  private static final String PACKAGE = "test.package";
+
+  private final KeyedAppStateStore mStore = new KeyedAppStateStore();
+
+  @Test
+  public void record_firstValue_isNotifiedNow() {
+    Update update = record("key", SEVERITY_INFO, "data", 0);
+
+    assertThat(update.repeated).isFalse();
+    assertThat(update.notifyNow).isTrue();
+    assertThat(update.evictedNotificationId).isEqualTo(-1);
+  }
+
+  @Test
+  public void record_sameValue_isFoldedIntoLatest() {
+    record("key", SEVERITY_INFO, "data", 0);
+    record("key", SEVERITY_INFO, "data", 1);
+    Update update = record("key", SEVERITY_INFO, "data", 2);
+
+    assertThat(update.repeated).isTrue();
+    assertThat(update.notifyNow).isFalse();
+    assertThat(update.record.count).isEqualTo(3);
+    assertThat(mStore.dump(null, true))
+        .containsExactly(
+            "1 keys, 3 info and 0 error states received",
+            PACKAGE + ":key (3 info, 0 error)",
+            "  2 INFO data (message) x3")
+        .inOrder();
+  }
+
+  @Test
+  public void record_newValueWithinInterval_isLeftForDigest() {
+    Update first = record("key", SEVERITY_INFO, "a", 0);
+    record("key", SEVERITY_ERROR, "b", 1);
+    Update third = record("key", SEVERITY_INFO, "c", 2);
+
+    assertThat(third.notifyNow).isFalse();
+    assertThat(mStore.hasPendingDigest()).isTrue();
+
+    List<DigestItem> digest = mStore.takeDigest(DIGEST_INTERVAL_MILLIS);
+
+    assertThat(digest).hasSize(1);
+    assertThat(digest.get(0).notificationId).isEqualTo(first.notificationId);
+    assertThat(digest.get(0).updates).isEqualTo(2);
+    assertThat(digest.get(0).latest.data).isEqualTo("c");
+    assertThat(mStore.hasPendingDigest()).isFalse();
+  }
+
+  @Test
+  public void record_newValueAfterInterval_isNotifiedNow() {
+    record("key", SEVERITY_INFO, "a", 0);
+
+    Update update = record("key", SEVERITY_INFO, "b", DIGEST_INTERVAL_MILLIS);
+
+    assertThat(update.notifyNow).isTrue();
+    assertThat(mStore.hasPendingDigest()).isFalse();
+  }
+
+  @Test
+  public void record_history_keepsLastValues() {
+    for (int i = 0; i < HISTORY_SIZE + 3; i++) {
+      record("key", SEVERITY_INFO, "v" + i, i);
+    }
+
+    List<String> lines = mStore.dump(PACKAGE, true);
+
+    assertThat(lines).hasSize(2 + HISTORY_SIZE);
+    assertThat(lines.get(2)).isEqualTo("  3 INFO v3 (message)");
+    assertThat(lines.get(lines.size() - 1))
+        .isEqualTo("  " + (HISTORY_SIZE + 2) + " INFO v" + (HISTORY_SIZE + 2) + " (message)");
+  }
+
+  @Test
+  public void record_tooManyKeys_evictsLeastRecentlyReported() {
+    Update first = record("key0", SEVERITY_INFO, "data", 0);
+    Update second = record("key1", SEVERITY_INFO, "data", 0);
+    for (int i = 2; i < MAX_ENTRIES; i++) {
+      record("key" + i, SEVERITY_INFO, "data", 0);
+    }
+    record("key0", SEVERITY_INFO, "data", 1);
+
+    Update update = record("new", SEVERITY_INFO, "data", 2);
+
+    assertThat(update.evictedNotificationId).isEqualTo(second.notificationId);
+    assertThat(mStore.dump(null, false)).contains(PACKAGE + ":key0 (2 info, 0 error)");
+    assertThat(first.notificationId).isNotEqualTo(update.notificationId);
+  }
+
+  @Test
+  public void recordSyncRequest_countsBatchesPerPackage() {
+    mStore.recordSyncRequest(Arrays.asList("a", "b"));
+    mStore.recordSyncRequest(Arrays.asList("a"));
+
+    assertThat(mStore.dump(null, false))
+        .containsAtLeast("Sync requested by a 2x", "Sync requested by b 1x")
+        .inOrder();
+    assertThat(mStore.dump("b", false)).doesNotContain("Sync requested by a 2x");
+  }
+
+  @Test
+  public void clear_dropsStatesAndCounters() {
+    record("key", SEVERITY_ERROR, "data", 0);
+    mStore.recordSyncRequest(Arrays.asList(PACKAGE));
+
+    mStore.clear();
+
+    assertThat(mStore.dump(null, true))
+        .containsExactly("0 keys, 0 info and 0 error states received");
+  }
+
+  private Update record(String key, int severity, String data, long nowMillis) {
+    return mStore.record(PACKAGE, key, severity, "message", data, nowMillis, nowMillis);
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.afwsamples.testdpc.policy.PolicyPlan.Kind;
+import com.afwsamples.testdpc.policy.PolicyPlan.Step;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PolicyPlanTest {
+  @Test
+  public void create_sameAsCurrent_isEmpty() {
+    PolicyBundle bundle =
+        new PolicyBundle.Builder()
+            .addLockTaskPackage("com.example.kiosk")
+            .addHiddenApp("com.example.game")
+            .addUserRestriction("no_install_apps")
+            .putGlobalSetting("auto_time", "1")
+            .setCameraDisabled(true)
+            .build();
+
+    PolicyPlan plan = PolicyPlan.create(bundle, bundle);
+
+    assertThat(plan.isEmpty()).isTrue();
+    assertThat(plan.getUnchangedCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void create_ordersStepsByDependency() {
+    PolicyBundle desired =
+        new PolicyBundle.Builder()
+            .setScreenCaptureDisabled(true)
+            .putGlobalSetting("auto_time", "1")
+            .addUserRestriction("no_install_apps")
+            .addLockTaskPackage("com.example.kiosk")
+            .addHiddenApp("com.example.game")
+            .addEnabledSystemApp("com.android.camera2")
+            .setKeyguardDisabled(true)
+            .build();
+
+    PolicyPlan plan = PolicyPlan.create(desired, new PolicyBundle.Builder().build());
+
+    assertThat(kinds(plan))
+        .containsExactly(
+            Kind.ENABLE_SYSTEM_APP,
+            Kind.HIDE_APP,
+            Kind.LOCK_TASK_PACKAGES,
+            Kind.USER_RESTRICTION,
+            Kind.GLOBAL_SETTING,
+            Kind.KEYGUARD_DISABLED,
+            Kind.SCREEN_CAPTURE_DISABLED)
+        .inOrder();
+    assertThat(plan.getUnchangedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void create_onlyPlansChangedPolicies() {
+    PolicyBundle desired =
+        new PolicyBundle.Builder()
+            .addHiddenApp("com.example.a")
+            .addHiddenApp("com.example.b")
+            .addUserRestriction("no_install_apps")
+            .addUserRestriction("no_sms")
+            .putGlobalSetting("auto_time", "1")
+            .putGlobalSetting("adb_enabled", "0")
+            .setCameraDisabled(false)
+            .build();
+    PolicyBundle current =
+        new PolicyBundle.Builder()
+            .addHiddenApp("com.example.a")
+            .addUserRestriction("no_sms")
+            .putGlobalSetting("auto_time", "0")
+            .putGlobalSetting("adb_enabled", "0")
+            .setCameraDisabled(false)
+            .build();
+
+    PolicyPlan plan = PolicyPlan.create(desired, current);
+
+    assertThat(descriptions(plan))
+        .containsExactly(
+            "HIDE_APP com.example.b: false -> true",
+            "USER_RESTRICTION no_install_apps: false -> true",
+            "GLOBAL_SETTING auto_time: 0 -> 1")
+        .inOrder();
+    assertThat(plan.getUnchangedCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void create_lockTaskPackages_comparedAsSets() {
+    PolicyBundle desired =
+        new PolicyBundle.Builder().setLockTaskPackages(Arrays.asList("b", "a", "a")).build();
+    PolicyBundle current =
+        new PolicyBundle.Builder().setLockTaskPackages(Arrays.asList("a", "b")).build();
+
+    assertThat(PolicyPlan.create(desired, current).isEmpty()).isTrue();
+  }
+
+  @Test
+  public void create_unknownPreviousValue_isNotReversible() {
+    PolicyBundle desired =
+        new PolicyBundle.Builder()
+            .addEnabledSystemApp("com.android.camera2")
+            .putGlobalSetting("new_setting", "1")
+            .setStatusBarDisabled(true)
+            .setCameraDisabled(true)
+            .build();
+    PolicyBundle current = new PolicyBundle.Builder().setCameraDisabled(false).build();
+
+    List<Step> steps = PolicyPlan.create(desired, current).getSteps();
+
+    assertThat(steps).hasSize(4);
+    assertThat(steps.get(0).isReversible()).isFalse();
+    assertThat(steps.get(1).isReversible()).isFalse();
+    assertThat(steps.get(2).isReversible()).isFalse();
+    assertThat(steps.get(3).isReversible()).isTrue();
+    assertThat(steps.get(3).getPreviousValue()).isEqualTo(false);
+  }
+
+  @Test
+  public void isBestEffort_enablingSystemApps() {
+    PolicyBundle desired =
+        new PolicyBundle.Builder()
+            .addEnabledSystemApp("com.android.camera2")
+            .addHiddenApp("com.example.game")
+            .setCameraDisabled(true)
+            .build();
+
+    List<Step> steps = PolicyPlan.create(desired, new PolicyBundle.Builder().build()).getSteps();
+
+    assertThat(steps.get(0).getKind()).isEqualTo(Kind.ENABLE_SYSTEM_APP);
+    assertThat(steps.get(0).isBestEffort()).isTrue();
+    assertThat(steps.get(1).isBestEffort()).isFalse();
+    assertThat(steps.get(2).isBestEffort()).isFalse();
+  }
+
+  @Test
+  public void isBestEffort_keyguardAndStatusBarSteps() {
+    PolicyBundle desired =
+        new PolicyBundle.Builder().setKeyguardDisabled(false).setStatusBarDisabled(false).build();
+
+    // Neither value can be read back, so the steps are always in the plan.
+    List<Step> steps = PolicyPlan.create(desired, new PolicyBundle.Builder().build()).getSteps();
+
+    assertThat(steps).hasSize(2);
+    assertThat(steps.get(0).getKind()).isEqualTo(Kind.KEYGUARD_DISABLED);
+    assertThat(steps.get(0).isBestEffort()).isTrue();
+    assertThat(steps.get(1).getKind()).isEqualTo(Kind.STATUS_BAR_DISABLED);
+    assertThat(steps.get(1).isBestEffort()).isTrue();
+  }
+
+  @Test
+  public void create_unsetPolicies_areIgnored() {
+    PolicyBundle current =
+        new PolicyBundle.Builder()
+            .setLockTaskPackages(Arrays.asList("a"))
+            .setCameraDisabled(true)
+            .build();
+
+    PolicyPlan plan = PolicyPlan.create(new PolicyBundle.Builder().build(), current);
+
+    assertThat(plan.isEmpty()).isTrue();
+    assertThat(plan.getUnchangedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void builder_deduplicates() {
+    PolicyBundle bundle =
+        new PolicyBundle.Builder()
+            .addHiddenApp("a")
+            .addHiddenApp("a")
+            .addUserRestriction("no_sms")
+            .addUserRestriction("no_sms")
+            .putGlobalSetting("auto_time", "0")
+            .putGlobalSetting("auto_time", "1")
+            .build();
+
+    assertThat(bundle.size()).isEqualTo(3);
+    assertThat(bundle.getGlobalSettings()).containsExactly("auto_time", "1");
+  }
+
+  private static List<Kind> kinds(PolicyPlan plan) {
+    List<Kind> kinds = new ArrayList<>();
+    for (Step step : plan.getSteps()) {
+      kinds.add(step.getKind());
+    }
+    return kinds;
+  }
+
+  private static List<String> descriptions(PolicyPlan plan) {
+    List<String> descriptions = new ArrayList<>();
+    for (Step step : plan.getSteps()) {
+      descriptions.add(step.toString());
+    }
+    return descriptions;
+  }
+}
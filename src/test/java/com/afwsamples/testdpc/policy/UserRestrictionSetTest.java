@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class UserRestrictionSetTest {
+  // More than 64 keys, so that sets span several words.
+  private static final UserRestrictionSet.Table TABLE = createTable(70);
+
+  @Test
+  public void of_containsGivenKeys() {
+    UserRestrictionSet set = UserRestrictionSet.of(TABLE, Arrays.asList("r0", "r65", "unknown"));
+
+    assertThat(set.contains("r0")).isTrue();
+    assertThat(set.contains("r65")).isTrue();
+    assertThat(set.contains("unknown")).isTrue();
+    assertThat(set.contains("r1")).isFalse();
+    assertThat(set.contains("other")).isFalse();
+    assertThat(set.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void toList_tableOrderThenUnknownSorted() {
+    UserRestrictionSet set =
+        UserRestrictionSet.of(TABLE, Arrays.asList("zz", "r66", "aa", "r3", "r3"));
+
+    assertThat(set.toList()).containsExactly("r3", "r66", "aa", "zz").inOrder();
+  }
+
+  @Test
+  public void isEmpty() {
+    assertThat(UserRestrictionSet.of(TABLE, Collections.emptyList()).isEmpty()).isTrue();
+    assertThat(UserRestrictionSet.of(TABLE, Arrays.asList("aa")).isEmpty()).isFalse();
+  }
+
+  @Test
+  public void union() {
+    UserRestrictionSet a = UserRestrictionSet.of(TABLE, Arrays.asList("r1", "r64", "aa"));
+    UserRestrictionSet b = UserRestrictionSet.of(TABLE, Arrays.asList("r2", "r64", "bb"));
+
+    assertThat(a.union(b).toList()).containsExactly("r1", "r2", "r64", "aa", "bb").inOrder();
+  }
+
+  @Test
+  public void diffTo_addsAndClearsOnlyDifferences() {
+    UserRestrictionSet current = UserRestrictionSet.of(TABLE, Arrays.asList("r1", "r65", "aa"));
+    UserRestrictionSet desired = UserRestrictionSet.of(TABLE, Arrays.asList("r1", "r69", "bb"));
+
+    UserRestrictionSet.Diff diff = current.diffTo(desired);
+
+    assertThat(diff.getAdded()).containsExactly("r69", "bb").inOrder();
+    assertThat(diff.getCleared()).containsExactly("r65", "aa").inOrder();
+    assertThat(diff.isEmpty()).isFalse();
+  }
+
+  @Test
+  public void diffTo_sameSet_isEmpty() {
+    UserRestrictionSet set = UserRestrictionSet.of(TABLE, Arrays.asList("r1", "r65", "aa"));
+
+    assertThat(set.diffTo(UserRestrictionSet.of(TABLE, set.toList())).isEmpty()).isTrue();
+  }
+
+  @Test
+  public void equals_sameKeys() {
+    UserRestrictionSet a = UserRestrictionSet.of(TABLE, Arrays.asList("r1", "r65", "aa"));
+    UserRestrictionSet b = UserRestrictionSet.of(TABLE, Arrays.asList("aa", "r65", "r1"));
+
+    assertThat(a).isEqualTo(b);
+    assertThat(a.hashCode()).isEqualTo(b.hashCode());
+  }
+
+  @Test
+  public void differentTables_throws() {
+    UserRestrictionSet a = UserRestrictionSet.of(TABLE, Arrays.asList("r1"));
+    UserRestrictionSet b = UserRestrictionSet.of(createTable(2), Arrays.asList("r1"));
+
+    assertThrows(IllegalArgumentException.class, () -> a.diffTo(b));
+  }
+
+  @Test
+  public void table_duplicateKey_throws() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new UserRestrictionSet.Table(new String[] {"r1", "r2", "r1"}));
+  }
+
+  private static UserRestrictionSet.Table createTable(int size) {
+    String[] keys = new String[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = "r" + i;
+    }
+    return new UserRestrictionSet.Table(keys);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networking;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.net.ConnectivityManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DataUsageReportEngineTest {
+  private static final long HOUR = 60 * 60 * 1000;
+
+  private final List<String> mQueries = Collections.synchronizedList(new ArrayList<>());
+  private final DataUsageReportEngine mEngine =
+      new DataUsageReportEngine(
+          null,
+          (networkType, subscriberId, startTime, endTime) -> {
+            mQueries.add(networkType + "/" + subscriberId + "/" + startTime + "-" + endTime);
+            return null;
+          });
+
+  @Test
+  public void run_mobile_queriesAllSubscribers() throws Exception {
+    mEngine.run(Arrays.asList("mobile"), 3 * HOUR, HOUR, 1);
+
+    assertThat(mQueries)
+        .containsExactly(ConnectivityManager.TYPE_MOBILE + "/null/" + 2 * HOUR + "-" + 3 * HOUR);
+  }
+
+  @Test
+  public void run_wifi_queriesWithEmptySubscriber() throws Exception {
+    mEngine.run(Arrays.asList("wifi"), 3 * HOUR, HOUR, 1);
+
+    assertThat(mQueries)
+        .containsExactly(ConnectivityManager.TYPE_WIFI + "//" + 2 * HOUR + "-" + 3 * HOUR);
+  }
+
+  @Test
+  public void run_queriesEachNetworkAndWindow() throws Exception {
+    DataUsageReport report = mEngine.run(Arrays.asList("wifi", "mobile"), 3 * HOUR, HOUR, 3);
+
+    assertThat(mQueries).hasSize(6);
+    assertThat(report.getRowCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void run_tooManyQueries_throws() {
+    int windowCount = DataUsageReportEngine.MAX_QUERIES / 2 + 1;
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> mEngine.run(Arrays.asList("wifi", "mobile"), 0, HOUR, windowCount));
+    assertThat(mQueries).isEmpty();
+  }
+
+  @Test
+  public void getSubscriberId_onlyMobileMatchesAllSubscribers() {
+    assertThat(DataUsageReportEngine.getSubscriberId(ConnectivityManager.TYPE_MOBILE)).isNull();
+    assertThat(DataUsageReportEngine.getSubscriberId(ConnectivityManager.TYPE_WIFI)).isEmpty();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.policy.networking;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.afwsamples.testdpc.policy.networking.NetworkUsageAggregator.UidUsage;
+import java.io.StringWriter;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DataUsageReportTest {
+
+  @Test
+  public void addRows_storesOneRowPerUid() {
+    DataUsageReport report = new DataUsageReport();
+
+    report.addRows("wifi", 0, 100, usages(new int[] {10, 20}, 5));
+    report.addRows("mobile", 100, 200, usages(new int[] {30}, 7));
+
+    assertThat(report.getRowCount()).isEqualTo(3);
+    assertThat(report.getNetwork(0)).isEqualTo("wifi");
+    assertThat(report.getUid(1)).isEqualTo(20);
+    assertThat(report.getNetwork(2)).isEqualTo("mobile");
+    assertThat(report.getWindowStart(2)).isEqualTo(100);
+    assertThat(report.getWindowEnd(2)).isEqualTo(200);
+    assertThat(report.getRxBytes(2)).isEqualTo(7);
+    assertThat(report.getTxBytes(2)).isEqualTo(14);
+    assertThat(report.getTotalBytes()).isEqualTo(15 + 15 + 21);
+  }
+
+  @Test
+  public void addRows_growsPastInitialCapacity() {
+    DataUsageReport report = new DataUsageReport();
+    int[] uids = new int[200];
+    for (int i = 0; i < uids.length; i++) {
+      uids[i] = 1000 + i;
+    }
+
+    report.addRows("wifi", 0, 100, usages(uids, 1));
+    report.addRows("wifi", 100, 200, usages(uids, 1));
+
+    assertThat(report.getRowCount()).isEqualTo(400);
+    assertThat(report.getUid(399)).isEqualTo(1199);
+    assertThat(report.getWindowStart(399)).isEqualTo(100);
+  }
+
+  @Test
+  public void writeCsv() throws Exception {
+    DataUsageReport report = new DataUsageReport();
+    report.addRows("wifi", 0, 100, usages(new int[] {10}, 5));
+    StringWriter writer = new StringWriter();
+
+    report.writeCsv(writer);
+
+    assertThat(writer.toString())
+        .isEqualTo(DataUsageReport.CSV_HEADER + "\n" + "wifi,0,100,10,5,1,10,2\n");
+  }
+
+  /** Returns one usage per UID, with {@code rxBytes} received and twice as many transmitted. */
+  private static List<UidUsage> usages(int[] uids, long rxBytes) {
+    NetworkUsageAggregator aggregator = new NetworkUsageAggregator(false /* keepHistory */);
+    for (int uid : uids) {
+      aggregator.add(uid, 0 /* state */, 0, 0, rxBytes, 1, rxBytes * 2, 2);
+    }
+    return aggregator.getUsages();
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.policy.networking;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.afwsamples.testdpc.policy.networking.NetworkUsageAggregator.UidUsage;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class NetworkUsageAggregatorTest {
+  private static final int STATE_DEFAULT = 1;
+  private static final int STATE_FOREGROUND = 2;
+
+  @Test
+  public void add_accumulatesPerUidInFirstSeenOrder() {
+    NetworkUsageAggregator aggregator = new NetworkUsageAggregator(false /* keepHistory */);
+
+    aggregator.add(20, STATE_DEFAULT, 0, 10, 100, 1, 50, 2);
+    aggregator.add(10, STATE_DEFAULT, 0, 10, 7, 1, 3, 1);
+    aggregator.add(20, STATE_DEFAULT, 10, 20, 200, 3, 25, 4);
+
+    List<UidUsage> usages = aggregator.getUsages();
+    assertThat(usages).hasSize(2);
+    UidUsage first = usages.get(0);
+    assertThat(first.getUid()).isEqualTo(20);
+    assertThat(first.getRxBytes()).isEqualTo(300);
+    assertThat(first.getRxPackets()).isEqualTo(4);
+    assertThat(first.getTxBytes()).isEqualTo(75);
+    assertThat(first.getTxPackets()).isEqualTo(6);
+    assertThat(first.getBucketCount()).isEqualTo(2);
+    assertThat(first.hasSingleState()).isTrue();
+    assertThat(first.getState()).isEqualTo(STATE_DEFAULT);
+    assertThat(usages.get(1).getUid()).isEqualTo(10);
+  }
+
+  @Test
+  public void add_differentStates_notSingleState() {
+    NetworkUsageAggregator aggregator = new NetworkUsageAggregator(false /* keepHistory */);
+
+    aggregator.add(10, STATE_DEFAULT, 0, 10, 1, 1, 1, 1);
+    aggregator.add(10, STATE_FOREGROUND, 0, 10, 1, 1, 1, 1);
+
+    assertThat(aggregator.getUsages().get(0).hasSingleState()).isFalse();
+  }
+
+  @Test
+  public void history_keepsEveryBucket() {
+    NetworkUsageAggregator aggregator = new NetworkUsageAggregator(true /* keepHistory */);
+    // More buckets than the initial capacity of the history.
+    for (int i = 0; i < 10; i++) {
+      aggregator.add(10, STATE_DEFAULT, i * 100, i * 100 + 50, i, i + 1, i + 2, i + 3);
+    }
+
+    UidUsage usage = aggregator.getUsages().get(0);
+    assertThat(usage.hasHistory()).isTrue();
+    assertThat(usage.getBucketCount()).isEqualTo(10);
+    assertThat(usage.getBucketStartTime(7)).isEqualTo(700);
+    assertThat(usage.getBucketEndTime(7)).isEqualTo(750);
+    assertThat(usage.getBucketRxBytes(7)).isEqualTo(7);
+    assertThat(usage.getBucketRxPackets(7)).isEqualTo(8);
+    assertThat(usage.getBucketTxBytes(7)).isEqualTo(9);
+    assertThat(usage.getBucketTxPackets(7)).isEqualTo(10);
+    assertThat(usage.getRxBytes()).isEqualTo(45);
+    assertThrows(IndexOutOfBoundsException.class, () -> usage.getBucketRxBytes(10));
+  }
+
+  @Test
+  public void noHistory_bucketAccessThrows() {
+    NetworkUsageAggregator aggregator = new NetworkUsageAggregator(false /* keepHistory */);
+    aggregator.add(10, STATE_DEFAULT, 0, 10, 1, 1, 1, 1);
+
+    UidUsage usage = aggregator.getUsages().get(0);
+    assertThat(usage.hasHistory()).isFalse();
+    assertThrows(IllegalStateException.class, () -> usage.getBucketStartTime(0));
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Date;
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Enumerated;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Sample key attestation certificates, shaped like the ones produced by Keystore.
+ *
+ * <p>{@link #teeCertificate()} attests an EC signing key generated in a TEE with device ID
+ * attestation, so its TEE enforced list sets most tags. {@link #softwareCertificate()} attests an
+ * RSA key with a software keymaster, which only populates the software enforced list.
+ */
+final class AttestationFixtures {
+  static final byte[] CHALLENGE = "fixture-challenge".getBytes(UTF_8);
+  static final byte[] UNIQUE_ID = {0x0a, 0x0b, 0x0c, 0x0d};
+  static final long CREATION_DATE_TIME = 1_700_000_000_000L;
+  static final long ACTIVE_DATE_TIME = 1_700_000_100_000L;
+  static final byte[] VERIFIED_BOOT_KEY = new byte[32];
+  static final String PACKAGE_NAME = "com.afwsamples.testdpc";
+  static final long PACKAGE_VERSION = 9001;
+  static final byte[] SIGNATURE_DIGEST = new byte[32];
+  static final int OS_VERSION = 140000;
+  static final int OS_PATCH_LEVEL = 202405;
+  static final int VENDOR_PATCH_LEVEL = 20240501;
+  static final int BOOT_PATCH_LEVEL = 20240505;
+  static final String BRAND = "brand";
+  static final String DEVICE = "device";
+  static final String PRODUCT = "product";
+  static final String SERIAL = "serial-1234";
+  static final String IMEI = "490154203237518";
+  static final String MEID = "A1000049015420";
+  static final String MANUFACTURER = "manufacturer";
+  static final String MODEL = "model";
+  static final long RSA_PUBLIC_EXPONENT = 65537;
+
+  private static final String KEY_DESCRIPTION_OID = Attestation.KEY_DESCRIPTION_OID;
+
+  static {
+    Arrays.fill(VERIFIED_BOOT_KEY, (byte) 0x5a);
+    Arrays.fill(SIGNATURE_DIGEST, (byte) 0xc3);
+  }
+
+  private AttestationFixtures() {}
+
+  static X509Certificate teeCertificate() throws Exception {
+    ASN1EncodableVector tee = new ASN1EncodableVector();
+    tee.add(tagged(1, new DERSet(new ASN1Encodable[] {integer(2), integer(3)})));
+    tee.add(tagged(2, integer(AuthorizationList.KM_ALGORITHM_EC)));
+    tee.add(tagged(3, integer(256)));
+    tee.add(
+        tagged(
+            5,
+            new DERSet(
+                new ASN1Encodable[] {
+                  integer(AuthorizationList.KM_DIGEST_NONE),
+                  integer(AuthorizationList.KM_DIGEST_SHA_2_256)
+                })));
+    tee.add(tagged(10, integer(AuthorizationList.KM_EC_CURVE_P256)));
+    tee.add(tagged(503, DERNull.INSTANCE));
+    tee.add(tagged(702, integer(AuthorizationList.KM_ORIGIN_GENERATED)));
+    tee.add(
+        tagged(
+            704,
+            new DERSequence(
+                new ASN1Encodable[] {
+                  new DEROctetString(VERIFIED_BOOT_KEY),
+                  ASN1Boolean.TRUE,
+                  new ASN1Enumerated(RootOfTrust.KM_VERIFIED_BOOT_VERIFIED)
+                })));
+    tee.add(tagged(705, integer(OS_VERSION)));
+    tee.add(tagged(706, integer(OS_PATCH_LEVEL)));
+    tee.add(tagged(710, octets(BRAND)));
+    tee.add(tagged(711, octets(DEVICE)));
+    tee.add(tagged(712, octets(PRODUCT)));
+    tee.add(tagged(713, octets(SERIAL)));
+    tee.add(tagged(714, octets(IMEI)));
+    tee.add(tagged(715, octets(MEID)));
+    tee.add(tagged(716, octets(MANUFACTURER)));
+    tee.add(tagged(717, octets(MODEL)));
+    tee.add(tagged(718, integer(VENDOR_PATCH_LEVEL)));
+    tee.add(tagged(719, integer(BOOT_PATCH_LEVEL)));
+
+    ASN1EncodableVector software = new ASN1EncodableVector();
+    software.add(tagged(701, integer(CREATION_DATE_TIME)));
+    software.add(tagged(709, new DEROctetString(attestationApplicationId())));
+
+    return certificate(
+        keyDescription(
+            /* attestationVersion= */ 4,
+            Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT,
+            new DERSequence(software),
+            new DERSequence(tee)));
+  }
+
+  static X509Certificate softwareCertificate() throws Exception {
+    ASN1EncodableVector software = new ASN1EncodableVector();
+    software.add(tagged(1, new DERSet(new ASN1Encodable[] {integer(0), integer(1)})));
+    software.add(tagged(2, integer(AuthorizationList.KM_ALGORITHM_RSA)));
+    software.add(tagged(3, integer(2048)));
+    software.add(
+        tagged(
+            6,
+            new DERSet(
+                new ASN1Encodable[] {
+                  integer(AuthorizationList.KM_PAD_RSA_OAEP),
+                  integer(AuthorizationList.KM_PAD_RSA_PKCS1_1_5_ENCRYPT)
+                })));
+    software.add(tagged(200, integer(RSA_PUBLIC_EXPONENT)));
+    software.add(tagged(400, integer(ACTIVE_DATE_TIME)));
+    software.add(tagged(504, integer(AuthorizationList.HW_AUTH_PASSWORD)));
+    software.add(tagged(505, integer(300)));
+    software.add(tagged(701, integer(CREATION_DATE_TIME)));
+    software.add(tagged(702, integer(AuthorizationList.KM_ORIGIN_GENERATED)));
+
+    return certificate(
+        keyDescription(
+            /* attestationVersion= */ 1,
+            Attestation.KM_SECURITY_LEVEL_SOFTWARE,
+            new DERSequence(software),
+            new DERSequence()));
+  }
+
+  private static DERSequence keyDescription(
+      int attestationVersion,
+      int securityLevel,
+      DERSequence softwareEnforced,
+      DERSequence teeEnforced) {
+    return new DERSequence(
+        new ASN1Encodable[] {
+          integer(attestationVersion),
+          new ASN1Enumerated(securityLevel),
+          integer(attestationVersion * 10),
+          new ASN1Enumerated(securityLevel),
+          new DEROctetString(CHALLENGE),
+          new DEROctetString(UNIQUE_ID),
+          softwareEnforced,
+          teeEnforced
+        });
+  }
+
+  private static byte[] attestationApplicationId() throws Exception {
+    DERSequence packageInfo =
+        new DERSequence(new ASN1Encodable[] {octets(PACKAGE_NAME), integer(PACKAGE_VERSION)});
+    return new DERSequence(
+            new ASN1Encodable[] {
+              new DERSet(packageInfo), new DERSet(new DEROctetString(SIGNATURE_DIGEST))
+            })
+        .getEncoded();
+  }
+
+  private static X509Certificate certificate(DERSequence keyDescription) throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    KeyPair keyPair = generator.generateKeyPair();
+    X500Name subject = new X500Name("CN=Android Keystore Key");
+    X509v3CertificateBuilder builder =
+        new JcaX509v3CertificateBuilder(
+            subject,
+            BigInteger.ONE,
+            new Date(CREATION_DATE_TIME),
+            new Date(CREATION_DATE_TIME + 365L * 24 * 60 * 60 * 1000),
+            subject,
+            keyPair.getPublic());
+    builder.addExtension(new ASN1ObjectIdentifier(KEY_DESCRIPTION_OID), false, keyDescription);
+    ContentSigner signer =
+        new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate());
+    return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+  }
+
+  private static DERTaggedObject tagged(int tagNumber, ASN1Encodable value) {
+    return new DERTaggedObject(true, tagNumber, value);
+  }
+
+  private static ASN1Integer integer(long value) {
+    return new ASN1Integer(value);
+  }
+
+  private static DEROctetString octets(String value) {
+    return new DEROctetString(value.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import com.afwsamples.testdpc.util.BenchmarkRunner;
+import java.security.cert.X509Certificate;
+
+/**
+ * Measures the throughput of parsing the sample certificates of {@link AttestationFixtures}.
+ *
+ * <p>Each certificate is measured when only constructing the {@link Attestation}, when reading
+ * the fields shown after generating a key, and when formatting the whole record, using {@link
+ * BenchmarkRunner}. Run with {@code bazel run :AttestationParseBenchmark}, optionally passing the
+ * measurement time per iteration in milliseconds.
+ */
+public final class AttestationParseBenchmark {
+  private static final int OPS_PER_CHECK = 256;
+
+  // Consumes the parsed values so the parsing work cannot be optimized away.
+  private static volatile long sink;
+
+  private AttestationParseBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    BenchmarkRunner runner = new BenchmarkRunner(args, OPS_PER_CHECK);
+    X509Certificate tee = AttestationFixtures.teeCertificate();
+    X509Certificate software = AttestationFixtures.softwareCertificate();
+
+    runner.measure("tee/construct", () -> construct(tee));
+    runner.measure("tee/device-ids", () -> readDeviceIds(tee));
+    runner.measure("tee/toString", () -> format(tee));
+    runner.measure("sw/construct", () -> construct(software));
+    runner.measure("sw/toString", () -> format(software));
+  }
+
+  private static void construct(X509Certificate certificate) throws Exception {
+    sink += new Attestation(certificate).getAttestationVersion();
+  }
+
+  /** Reads the same fields as the key generation result dialog. */
+  private static void readDeviceIds(X509Certificate certificate) throws Exception {
+    Attestation attestation = new Attestation(certificate);
+    AuthorizationList teeList = attestation.getTeeEnforced();
+    sink +=
+        attestation.getAttestationChallenge().length
+            + teeList.getSerialNumber().length()
+            + teeList.getImei().length()
+            + teeList.getMeid().length()
+            + (teeList.isIndividualAttestation() ? 1 : 0);
+  }
+
+  private static void format(X509Certificate certificate) throws Exception {
+    sink += new Attestation(certificate).toString().length();
+  }
+}
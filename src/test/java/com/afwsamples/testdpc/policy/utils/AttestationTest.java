@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.security.cert.CertificateParsingException;
+import java.util.Date;
+import java.util.Set;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AttestationTest {
+
+  @Test
+  public void teeCertificate_parsesRecord() throws Exception {
+    Attestation attestation = new Attestation(AttestationFixtures.teeCertificate());
+
+    assertThat(attestation.getAttestationVersion()).isEqualTo(4);
+    assertThat(attestation.getAttestationSecurityLevel())
+        .isEqualTo(Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT);
+    assertThat(attestation.getKeymasterVersion()).isEqualTo(40);
+    assertThat(attestation.getAttestationChallenge()).isEqualTo(AttestationFixtures.CHALLENGE);
+    assertThat(attestation.getUniqueId()).isEqualTo(AttestationFixtures.UNIQUE_ID);
+  }
+
+  @Test
+  public void teeCertificate_decodesTeeEnforcedList() throws Exception {
+    AuthorizationList tee = new Attestation(AttestationFixtures.teeCertificate()).getTeeEnforced();
+
+    assertThat(tee.getPurposes())
+        .containsExactly(AuthorizationList.KM_PURPOSE_SIGN, AuthorizationList.KM_PURPOSE_VERIFY);
+    assertThat(tee.getAlgorithm()).isEqualTo(AuthorizationList.KM_ALGORITHM_EC);
+    assertThat(tee.getKeySize()).isEqualTo(256);
+    assertThat(tee.getDigests())
+        .containsExactly(AuthorizationList.KM_DIGEST_NONE, AuthorizationList.KM_DIGEST_SHA_2_256);
+    assertThat(tee.getPaddingModes()).isNull();
+    assertThat(tee.ecCurveAsString()).isEqualTo("secp256r1");
+    assertThat(tee.isNoAuthRequired()).isTrue();
+    assertThat(tee.isIndividualAttestation()).isFalse();
+    assertThat(tee.getRootOfTrust().getVerifiedBootKey())
+        .isEqualTo(AttestationFixtures.VERIFIED_BOOT_KEY);
+    assertThat(tee.getRootOfTrust().isDeviceLocked()).isTrue();
+    assertThat(tee.getOsVersion()).isEqualTo(AttestationFixtures.OS_VERSION);
+    assertThat(tee.getBootPatchLevel()).isEqualTo(AttestationFixtures.BOOT_PATCH_LEVEL);
+    assertThat(tee.getSerialNumber()).isEqualTo(AttestationFixtures.SERIAL);
+    assertThat(tee.getImei()).isEqualTo(AttestationFixtures.IMEI);
+    assertThat(tee.getMeid()).isEqualTo(AttestationFixtures.MEID);
+    assertThat(tee.getModel()).isEqualTo(AttestationFixtures.MODEL);
+  }
+
+  @Test
+  public void teeCertificate_decodesSoftwareEnforcedList() throws Exception {
+    AuthorizationList software =
+        new Attestation(AttestationFixtures.teeCertificate()).getSoftwareEnforced();
+
+    assertThat(software.getCreationDateTime())
+        .isEqualTo(new Date(AttestationFixtures.CREATION_DATE_TIME));
+    AttestationPackageInfo packageInfo =
+        software.getAttestationApplicationId().getAttestationPackageInfos().get(0);
+    assertThat(packageInfo.getPackageName()).isEqualTo(AttestationFixtures.PACKAGE_NAME);
+    assertThat(packageInfo.getVersion()).isEqualTo(AttestationFixtures.PACKAGE_VERSION);
+    assertThat(software.getAlgorithm()).isNull();
+  }
+
+  @Test
+  public void softwareCertificate_decodesLongsAndDates() throws Exception {
+    AuthorizationList software =
+        new Attestation(AttestationFixtures.softwareCertificate()).getSoftwareEnforced();
+
+    assertThat(software.getRsaPublicExponent()).isEqualTo(AttestationFixtures.RSA_PUBLIC_EXPONENT);
+    assertThat(software.getActiveDateTime())
+        .isEqualTo(new Date(AttestationFixtures.ACTIVE_DATE_TIME));
+    assertThat(software.getPaddingModes())
+        .containsExactly(
+            AuthorizationList.KM_PAD_RSA_OAEP, AuthorizationList.KM_PAD_RSA_PKCS1_1_5_ENCRYPT);
+    assertThat(software.getAuthTimeout()).isEqualTo(300);
+  }
+
+  @Test
+  public void integerSet_supportsValuesOutsideBitmask() throws Exception {
+    AuthorizationList list =
+        new AuthorizationList(
+            new DERSequence(
+                new DERTaggedObject(
+                    true,
+                    1,
+                    new DERSet(
+                        new ASN1Encodable[] {new ASN1Integer(3), new ASN1Integer(1000)}))));
+
+    Set<Integer> purposes = list.getPurposes();
+
+    assertThat(purposes).containsExactly(3, 1000);
+    assertThat(purposes.contains(64)).isFalse();
+  }
+
+  @Test
+  public void unknownTag_throws() {
+    assertThrows(
+        CertificateParsingException.class,
+        () ->
+            new AuthorizationList(
+                new DERSequence(new DERTaggedObject(true, 9999, new ASN1Integer(1)))));
+  }
+
+  @Test
+  public void negativeInteger_throws() {
+    assertThrows(
+        CertificateParsingException.class,
+        () ->
+            new AuthorizationList(
+                new DERSequence(new DERTaggedObject(true, 3, new ASN1Integer(-1)))));
+  }
+}
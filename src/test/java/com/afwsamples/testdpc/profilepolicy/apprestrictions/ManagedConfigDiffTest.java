@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.profilepolicy.apprestrictions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ManagedConfigDiffTest {
+  @Test
+  public void diff_sameConfig_isEmpty() {
+    Map<String, Object> config =
+        bundle(
+            "enabled", true,
+            "port", 993,
+            "tags", Arrays.asList("a", "b"),
+            "servers", Arrays.asList(bundle("host", "a"), bundle("host", "b")));
+
+    assertThat(ManagedConfigDiff.diff(config, copy(config))).isEmpty();
+  }
+
+  @Test
+  public void diff_topLevel_reportsAddedRemovedAndChangedKeysInOrder() {
+    Map<String, Object> current = bundle("b", 1, "c", "x", "d", true);
+    Map<String, Object> desired = bundle("a", 1, "c", "y", "d", true);
+
+    assertThat(describe(ManagedConfigDiff.diff(current, desired)))
+        .containsExactly("ADDED a", "REMOVED b", "CHANGED c")
+        .inOrder();
+  }
+
+  @Test
+  public void diff_nestedBundles_reportsPaths() {
+    Map<String, Object> current = bundle("proxy", bundle("host", "a", "port", 80));
+    Map<String, Object> desired = bundle("proxy", bundle("host", "a", "port", 8080));
+
+    assertThat(describe(ManagedConfigDiff.diff(current, desired)))
+        .containsExactly("CHANGED proxy/port");
+  }
+
+  @Test
+  public void diff_bundleArrays_comparedByIndex() {
+    Map<String, Object> current =
+        bundle("servers", Arrays.asList(bundle("host", "a"), bundle("host", "b")));
+    Map<String, Object> desired =
+        bundle(
+            "servers",
+            Arrays.asList(bundle("host", "a"), bundle("host", "c"), bundle("host", "d")));
+
+    assertThat(describe(ManagedConfigDiff.diff(current, desired)))
+        .containsExactly("CHANGED servers[1]/host", "ADDED servers[2]")
+        .inOrder();
+  }
+
+  @Test
+  public void diff_stringArrays_comparedAsAWhole() {
+    Map<String, Object> current = bundle("tags", Arrays.asList("a", "b"));
+    Map<String, Object> desired = bundle("tags", Arrays.asList("b", "a"));
+
+    assertThat(describe(ManagedConfigDiff.diff(current, desired))).containsExactly("CHANGED tags");
+  }
+
+  @Test
+  public void diff_emptyList_matchesEmptyList() {
+    Map<String, Object> current = bundle("servers", new ArrayList<>());
+    Map<String, Object> desired = bundle("servers", Collections.emptyList());
+
+    assertThat(ManagedConfigDiff.diff(current, desired)).isEmpty();
+  }
+
+  @Test
+  public void diff_typeChange_isChanged() {
+    Map<String, Object> current = bundle("port", "993");
+    Map<String, Object> desired = bundle("port", 993);
+
+    assertThat(describe(ManagedConfigDiff.diff(current, desired))).containsExactly("CHANGED port");
+  }
+
+  private static Map<String, Object> bundle(Object... keysAndValues) {
+    Map<String, Object> bundle = new LinkedHashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      bundle.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return bundle;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> copy(Map<String, Object> config) {
+    Map<String, Object> copy = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : config.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof Map) {
+        value = copy((Map<String, Object>) value);
+      } else if (value instanceof List) {
+        List<Object> list = new ArrayList<>();
+        for (Object item : (List<Object>) value) {
+          list.add(item instanceof Map ? copy((Map<String, Object>) item) : item);
+        }
+        value = list;
+      }
+      copy.put(entry.getKey(), value);
+    }
+    return copy;
+  }
+
+  private static List<String> describe(List<ManagedConfigDiff.Change> changes) {
+    List<String> descriptions = new ArrayList<>();
+    for (ManagedConfigDiff.Change change : changes) {
+      descriptions.add(change.toString());
+    }
+    return descriptions;
+  }
+}
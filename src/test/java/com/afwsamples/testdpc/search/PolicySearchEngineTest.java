@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.search;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PolicySearchEngineTest {
+  private static final String FRAGMENT = "Fragment";
+  private static final String OTHER_FRAGMENT = "OtherFragment";
+
+  private final PolicySearchEngine mEngine =
+      new PolicySearchEngine(
+          Arrays.asList(
+              new PreferenceIndex("disable_camera", "Disable camera", FRAGMENT),
+              new PreferenceIndex("camera_access", "Manage access", FRAGMENT),
+              new PreferenceIndex("lock_screen", "Lock screen camera", FRAGMENT),
+              new PreferenceIndex("wipe_data", "Wipe data", FRAGMENT),
+              new PreferenceIndex("other_camera", "Camera elsewhere", OTHER_FRAGMENT)));
+
+  @Test
+  public void prefix_matchesTokensStartingWithQuery() {
+    assertThat(keys(mEngine.search("cam", Arrays.asList(FRAGMENT))))
+        .containsExactly("disable_camera", "camera_access", "lock_screen");
+  }
+
+  @Test
+  public void title_rankedBeforeKey_andEarlierPositionFirst() {
+    assertThat(keys(mEngine.search("camera", Arrays.asList(FRAGMENT))))
+        .containsExactly("disable_camera", "lock_screen", "camera_access")
+        .inOrder();
+  }
+
+  @Test
+  public void exactToken_rankedBeforePrefix() {
+    List<PreferenceIndex> results =
+        new PolicySearchEngine(
+                Arrays.asList(
+                    new PreferenceIndex("a", "Data usage", FRAGMENT),
+                    new PreferenceIndex("b", "Date", FRAGMENT)))
+            .search("date", Arrays.asList(FRAGMENT));
+
+    assertThat(keys(results)).containsExactly("b", "a").inOrder();
+  }
+
+  @Test
+  public void typo_matchesWithinEditDistanceOne() {
+    assertThat(keys(mEngine.search("camrea", Arrays.asList(FRAGMENT)))).isEmpty();
+    assertThat(keys(mEngine.search("cmera", Arrays.asList(FRAGMENT))))
+        .containsExactly("disable_camera", "camera_access", "lock_screen");
+    assertThat(keys(mEngine.search("wupe", Arrays.asList(FRAGMENT))))
+        .containsExactly("wipe_data");
+  }
+
+  @Test
+  public void shortQuery_isNotFuzzy() {
+    assertThat(keys(mEngine.search("wup", Arrays.asList(FRAGMENT)))).isEmpty();
+  }
+
+  @Test
+  public void multipleTokens_allMustMatch() {
+    assertThat(keys(mEngine.search("lock cam", Arrays.asList(FRAGMENT))))
+        .containsExactly("lock_screen");
+    assertThat(keys(mEngine.search("wipe cam", Arrays.asList(FRAGMENT)))).isEmpty();
+  }
+
+  @Test
+  public void results_limitedToTargetFragments() {
+    assertThat(keys(mEngine.search("elsewhere", Arrays.asList(FRAGMENT)))).isEmpty();
+    assertThat(keys(mEngine.search("elsewhere", Arrays.asList(FRAGMENT, OTHER_FRAGMENT))))
+        .containsExactly("other_camera");
+  }
+
+  @Test
+  public void query_isCaseInsensitive() {
+    assertThat(keys(mEngine.search("WIPE", Arrays.asList(FRAGMENT))))
+        .containsExactly("wipe_data");
+  }
+
+  private static List<String> keys(List<PreferenceIndex> results) {
+    List<String> keys = new ArrayList<>();
+    for (PreferenceIndex result : results) {
+      keys.add(result.key);
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.util;
+
+import java.util.Locale;
+
+/**
+ * Minimal benchmark harness shared by the {@code *Benchmark} binaries.
+ *
+ * <p>Follows the JMH structure (warmup and measurement iterations reporting ops/s) without
+ * depending on JMH. Benchmarks consume their results in a volatile sink so the measured work
+ * cannot be optimized away.
+ */
+public final class BenchmarkRunner {
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASUREMENT_ITERATIONS = 5;
+  private static final long DEFAULT_ITERATION_MILLIS = 1000;
+
+  /** A measured operation. */
+  public interface Scenario {
+    void run() throws Exception;
+  }
+
+  private final long mIterationMillis;
+  private final int mOpsPerCheck;
+
+  /**
+   * @param args the benchmark arguments, optionally holding the measurement time per iteration in
+   *     milliseconds
+   * @param opsPerCheck number of operations run between two checks of the clock
+   */
+  public BenchmarkRunner(String[] args, int opsPerCheck) {
+    mIterationMillis = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_ITERATION_MILLIS;
+    mOpsPerCheck = opsPerCheck;
+  }
+
+  /** Warms {@code scenario} up, then measures it and prints its throughput. */
+  public void measure(String name, Scenario scenario) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      iteration(scenario);
+    }
+    double total = 0;
+    double min = Double.MAX_VALUE;
+    double max = 0;
+    for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+      double opsPerSecond = iteration(scenario);
+      total += opsPerSecond;
+      min = Math.min(min, opsPerSecond);
+      max = Math.max(max, opsPerSecond);
+    }
+    System.out.printf(
+        Locale.US,
+        "%-16s %,14.0f ops/s (min %,.0f, max %,.0f)%n",
+        name,
+        total / MEASUREMENT_ITERATIONS,
+        min,
+        max);
+  }
+
+  private double iteration(Scenario scenario) throws Exception {
+    long deadline = System.nanoTime() + mIterationMillis * 1_000_000L;
+    long start = System.nanoTime();
+    long ops = 0;
+    long now;
+    do {
+      for (int i = 0; i < mOpsPerCheck; i++) {
+        scenario.run();
+      }
+      ops += mOpsPerCheck;
+      now = System.nanoTime();
+    } while (now < deadline);
+    return ops * 1e9 / (now - start);
+  }
+}
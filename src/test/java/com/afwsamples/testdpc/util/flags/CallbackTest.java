@@ -55,6 +55,15 @@ public class CallbackTest {
     assertThat(callback.wasCalled).isTrue();
   }
 
+  @Test
+  public void callbackInvoked_returnsTrue() {
+    NoArgsCallback callback = new NoArgsCallback();
+    Flags flags = new Flags();
+    flags.addCommand(command("command", callback::callback));
+
+    assertThat(flags.run(asArgs("command"))).isTrue();
+  }
+
   @Test
   public void callback1Arg_isInvoked() {
     Callback1Arg callback = new Callback1Arg();
@@ -21,6 +21,7 @@ import static com.afwsamples.testdpc.util.flags.Flags.ordinalParam;
 import static com.afwsamples.testdpc.util.flags.Utils.asArgs;
 import static com.google.common.truth.Truth.assertThat;
 
+import com.afwsamples.testdpc.util.flags.Utils.IntCallback;
 import com.afwsamples.testdpc.util.flags.Utils.KeyValueCallback;
 import com.afwsamples.testdpc.util.flags.Utils.KeyValueType;
 import org.junit.Test;
@@ -52,4 +53,18 @@ public class CustomParserTest {
     assertThat(callback.value.key).isEqualTo("key");
     assertThat(callback.value.value).isEqualTo("value");
   }
+
+  @Test
+  public void customParserRegisteredAfterRun_overridesDefaultParser() {
+    Flags flags = new Flags();
+    IntCallback callback = new IntCallback();
+    flags.addCommand(command("command", callback::callback, ordinalParam(int.class, "arg")));
+    flags.run(asArgs("command 1"));
+
+    flags.registerCustomParser(
+        int.class, (string, validator) -> validator.valid(Integer.parseInt(string, 16)));
+    flags.run(asArgs("command 10"));
+
+    assertThat(callback.value).isEqualTo(16);
+  }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.afwsamples.testdpc.util.flags;
+
+import static com.afwsamples.testdpc.util.flags.Flags.command;
+import static com.afwsamples.testdpc.util.flags.Flags.namedParam;
+import static com.afwsamples.testdpc.util.flags.Flags.optional;
+import static com.afwsamples.testdpc.util.flags.Flags.ordinalParam;
+import static com.afwsamples.testdpc.util.flags.Flags.repeated;
+import static com.afwsamples.testdpc.util.flags.Utils.asArgs;
+
+import com.afwsamples.testdpc.util.BenchmarkRunner;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Measures the throughput of {@link Flags#run(String[])} for a few representative command shapes.
+ *
+ * <p>The callback results are consumed by a sink, and each command is measured by {@link
+ * BenchmarkRunner}. Run with {@code bazel run :FlagsParseBenchmark}, optionally passing the
+ * measurement time per iteration in milliseconds.
+ */
+public final class FlagsParseBenchmark {
+  private static final int OPS_PER_CHECK = 1024;
+
+  // Consumes callback arguments so the parsing work cannot be optimized away.
+  private static volatile long sink;
+
+  private FlagsParseBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    BenchmarkRunner runner = new BenchmarkRunner(args, OPS_PER_CHECK);
+    Flags flags = new Flags(new PrintWriter(new StringWriter()));
+    flags.addCommand(
+        command(
+            "primitives",
+            (i, l, b) -> sink += i + l + (b ? 1 : 0),
+            ordinalParam(int.class, "int"),
+            ordinalParam(long.class, "long"),
+            ordinalParam(boolean.class, "boolean")));
+    flags.addCommand(
+        command(
+            "named",
+            (s, i, l) -> sink += s.length() + i + (l == null ? 0 : l),
+            ordinalParam(String.class, "string"),
+            namedParam(int.class, "int"),
+            optional(namedParam(Long.class, "long"))));
+    flags.addCommand(
+        command(
+            "repeated",
+            (s, values) -> sink += s.length() + values.length,
+            ordinalParam(String.class, "string"),
+            repeated(ordinalParam(String.class, "values"))));
+
+    String[] primitives = asArgs("primitives 42 1234567890123 true");
+    String[] named = asArgs("named value --long 7 --int 13");
+    String[] repeated = asArgs("repeated head a b c d e f g h");
+
+    runner.measure("primitives", () -> flags.run(primitives));
+    runner.measure("named", () -> flags.run(named));
+    runner.measure("repeated", () -> flags.run(repeated));
+  }
+}
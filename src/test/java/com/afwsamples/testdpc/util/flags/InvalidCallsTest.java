@@ -147,4 +147,30 @@ public class InvalidCallsTest {
     assertThat(stringWriter.getBuffer().toString())
         .startsWith("Command 'hello' was not found.\n\nUsage:");
   }
+
+  @Test
+  public void unregisteredCommandCalled_returnsFalse() {
+    Flags flags = new Flags(new PrintWriter(new StringWriter()));
+    StringCallback callback = new StringCallback();
+    flags.addCommand(command("command", callback::callback, ordinalParam(String.class, "arg")));
+
+    assertThat(flags.run(asArgs("hello command"))).isFalse();
+  }
+
+  @Test
+  public void invalidCallWithWriter_usagePrintedToGivenWriter() {
+    StringWriter defaultWriter = new StringWriter();
+    StringWriter stringWriter = new StringWriter();
+    Flags flags = new Flags(new PrintWriter(defaultWriter));
+    StringCallback callback = new StringCallback();
+    flags.addCommand(command("command", callback::callback, ordinalParam(String.class, "arg")));
+
+    flags.run(asArgs("hello command"), new PrintWriter(stringWriter));
+    flags.run(asArgs("hello"));
+
+    assertThat(stringWriter.getBuffer().toString())
+        .startsWith("Command 'hello' was not found.\n\nUsage:");
+    assertThat(defaultWriter.getBuffer().toString())
+        .startsWith("Command 'hello' was not found.\n\nUsage:");
+  }
 }